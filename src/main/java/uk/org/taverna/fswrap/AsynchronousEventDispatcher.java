@@ -0,0 +1,301 @@
+package uk.org.taverna.fswrap;
+
+import java.io.Closeable;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link FileSystemEventListener} which queues events in a bounded ring
+ * buffer, and delivers them in batches to a target listener from a separate
+ * dispatcher thread.
+ * <p>
+ * Events are delivered in the order they were received. The
+ * {@link Backpressure} policy decides what happens when the buffer is full.
+ * <p>
+ * Use {@link #flush()} to wait for all queued events to be delivered, and
+ * {@link #close()} to flush and stop the dispatcher thread. Events received
+ * after closing are delivered directly by the calling thread.
+ *
+ */
+public class AsynchronousEventDispatcher implements ChannelEventListener,
+		Closeable {
+
+	public enum Backpressure {
+		/**
+		 * Wait until there is space in the buffer.
+		 */
+		BLOCK,
+		/**
+		 * Discard the new event.
+		 */
+		DROP,
+		/**
+		 * Merge the new event into the latest event for its path waiting in
+		 * the buffer, if that is of the same kind and subject, so listeners
+		 * still see the latest state, otherwise wait for space.
+		 */
+		COALESCE
+	}
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final FileSystemEventListener target;
+	private final Backpressure backpressure;
+	private final FileSystemEvent[] buffer;
+	private final int batchSize;
+	private final Thread dispatcher;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition delivered = lock.newCondition();
+	private int head;
+	private int count;
+	private boolean delivering;
+	private volatile boolean closed;
+
+	public AsynchronousEventDispatcher(FileSystemEventListener target) {
+		this(target, DEFAULT_CAPACITY, Backpressure.BLOCK);
+	}
+
+	public AsynchronousEventDispatcher(FileSystemEventListener target,
+			int capacity, Backpressure backpressure) {
+		this(target, capacity, backpressure, DEFAULT_BATCH_SIZE);
+	}
+
+	public AsynchronousEventDispatcher(FileSystemEventListener target,
+			int capacity, Backpressure backpressure, int batchSize) {
+		if (capacity < 1 || batchSize < 1) {
+			throw new IllegalArgumentException(
+					"Capacity and batch size must be positive");
+		}
+		this.target = target;
+		this.backpressure = backpressure;
+		this.buffer = new FileSystemEvent[capacity];
+		this.batchSize = Math.min(batchSize, capacity);
+		dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "fswrap-event-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Wait until all queued events have been delivered, then stop the
+	 * dispatcher thread.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			// Any blocked producers should deliver their own events
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		boolean interrupted = false;
+		while (dispatcher.isAlive()) {
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void channelClosed(Path path, long bytesRead, long bytesWritten,
+			long durationNanos) {
+		enqueue(FileSystemEvent.channelClosed(path, bytesRead, bytesWritten,
+				durationNanos));
+	}
+
+	@Override
+	public void copied(Path source, Path target, CopyOption[] options) {
+		enqueue(FileSystemEvent.copied(source, target, options));
+	}
+
+	@Override
+	public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+		enqueue(FileSystemEvent.createdDirectory(dir, attrs));
+	}
+
+	@Override
+	public void deleted(Path path) {
+		enqueue(FileSystemEvent.deleted(path));
+	}
+
+	@Override
+	public void digestComputed(Path path, String algorithm, byte[] digest) {
+		enqueue(FileSystemEvent.digestComputed(path, algorithm, digest));
+	}
+
+	private void deliver(FileSystemEvent event) {
+		try {
+			event.deliverTo(target);
+		} catch (RuntimeException ex) {
+			// Don't let a failing listener stop the dispatcher thread
+			Thread current = Thread.currentThread();
+			current.getUncaughtExceptionHandler().uncaughtException(current,
+					ex);
+		}
+	}
+
+	private void dispatch() {
+		FileSystemEvent[] batch = new FileSystemEvent[batchSize];
+		while (true) {
+			int size = 0;
+			lock.lock();
+			try {
+				delivering = false;
+				delivered.signalAll();
+				while (count == 0) {
+					if (closed) {
+						return;
+					}
+					notEmpty.awaitUninterruptibly();
+				}
+				while (count > 0 && size < batchSize) {
+					batch[size++] = buffer[head];
+					buffer[head] = null;
+					head = (head + 1) % buffer.length;
+					count--;
+				}
+				delivering = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			for (int i = 0; i < size; i++) {
+				deliver(batch[i]);
+				batch[i] = null;
+			}
+		}
+	}
+
+	private void enqueue(FileSystemEvent event) {
+		lock.lock();
+		try {
+			while (count == buffer.length && !closed) {
+				if (backpressure == Backpressure.DROP
+						|| (backpressure == Backpressure.COALESCE && merge(event))) {
+					dropped.incrementAndGet();
+					return;
+				}
+				notFull.awaitUninterruptibly();
+			}
+			if (!closed) {
+				buffer[(head + count) % buffer.length] = event;
+				count++;
+				notEmpty.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		deliver(event);
+	}
+
+	/**
+	 * Wait until all events queued so far have been delivered to the target
+	 * listener.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while ((count > 0 || delivering) && dispatcher.isAlive()) {
+				delivered.await(100, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Backpressure getBackpressure() {
+		return backpressure;
+	}
+
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * The number of events discarded, or merged into queued events, because
+	 * the buffer was full.
+	 */
+	public long getDroppedEvents() {
+		return dropped.get();
+	}
+
+	public FileSystemEventListener getTarget() {
+		return target;
+	}
+
+	/**
+	 * Merge the event into the latest queued event for any of its paths, so
+	 * it keeps its place in the order.
+	 *
+	 * @return <code>false</code> if there is none, or it cannot be merged
+	 */
+	private boolean merge(FileSystemEvent event) {
+		for (int i = count - 1; i >= 0; i--) {
+			int index = (head + i) % buffer.length;
+			if (buffer[index].sharesPath(event)) {
+				FileSystemEvent merged = buffer[index].mergedWith(event);
+				if (merged == null) {
+					return false;
+				}
+				buffer[index] = merged;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void moved(Path source, Path target, CopyOption[] options) {
+		enqueue(FileSystemEvent.moved(source, target, options));
+	}
+
+	@Override
+	public void newByteChannel(Path path, Set<? extends OpenOption> options,
+			FileAttribute<?>[] attrs, SeekableByteChannel byteChannel) {
+		enqueue(FileSystemEvent.newByteChannel(path, options, attrs,
+				byteChannel));
+	}
+
+	@Override
+	public void newFileSystem(WrappedFileSystem fs, Map<String, ?> env) {
+		enqueue(FileSystemEvent.newFileSystem(fs, env));
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value,
+			LinkOption[] options) {
+		enqueue(FileSystemEvent.setAttribute(path, attribute, value, options));
+	}
+
+}
@@ -0,0 +1,153 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of file attributes read through a {@link WrappedFileSystem}, by
+ * absolute original path.
+ * <p>
+ * Entries expire after a time-to-live, and the least recently used paths are
+ * evicted when the cache is full. The provider invalidates the entries of
+ * paths that are modified through the wrapped file system; changes made
+ * directly to the original file system are only noticed when entries
+ * expire.
+ *
+ */
+public class AttributeCache {
+
+	private static final class Entry {
+		private final Object attributes;
+		private final long expires;
+
+		private Entry(Object attributes, long expires) {
+			this.attributes = attributes;
+			this.expires = expires;
+		}
+	}
+
+	private final LruMap<Path, Map<List<Object>, Entry>> entries;
+	private final long ttlNanos;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of paths to keep attributes for
+	 * @param ttl
+	 *            How long to keep attributes, in milliseconds
+	 */
+	public AttributeCache(int maxSize, long ttl) {
+		entries = new LruMap<Path, Map<List<Object>, Entry>>(maxSize);
+		ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath();
+	}
+
+	private static List<Object> key(Object type, LinkOption... options) {
+		boolean followLinks = !Arrays.asList(options).contains(
+				LinkOption.NOFOLLOW_LINKS);
+		return Arrays.asList(type, followLinks);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Get cached attributes for the original path.
+	 *
+	 * @param path
+	 *            Original path
+	 * @param type
+	 *            Attribute class or attribute string, as given to
+	 *            <code>readAttributes()</code>
+	 * @param options
+	 *            Link options given to <code>readAttributes()</code>
+	 * @return The cached attributes, or <code>null</code> if not cached or
+	 *         expired
+	 */
+	public Object get(Path path, Object type, LinkOption... options) {
+		Path pathKey = key(path);
+		List<Object> key = key(type, options);
+		synchronized (this) {
+			Map<List<Object>, Entry> forPath = entries.get(pathKey);
+			Entry entry = forPath == null ? null : forPath.get(key);
+			if (entry != null) {
+				if (entry.expires - System.nanoTime() > 0) {
+					hits.incrementAndGet();
+					return entry.attributes;
+				}
+				forPath.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Remove any attributes cached for the original path.
+	 */
+	public void invalidate(Path path) {
+		Path pathKey = key(path);
+		synchronized (this) {
+			entries.remove(pathKey);
+		}
+	}
+
+	/**
+	 * Remove any attributes cached for the original path and any path
+	 * within it.
+	 */
+	public void invalidateTree(Path path) {
+		Path pathKey = key(path);
+		synchronized (this) {
+			Iterator<Path> it = entries.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(pathKey)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void put(Path path, Object type, Object attributes,
+			LinkOption... options) {
+		Entry entry = new Entry(attributes, System.nanoTime() + ttlNanos);
+		Path pathKey = key(path);
+		List<Object> key = key(type, options);
+		synchronized (this) {
+			Map<List<Object>, Entry> forPath = entries.get(pathKey);
+			if (forPath == null) {
+				forPath = new HashMap<List<Object>, Entry>(4);
+				entries.put(pathKey, forPath);
+			}
+			forPath.put(key, entry);
+		}
+	}
+
+	/**
+	 * The number of paths attributes are cached for.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+}
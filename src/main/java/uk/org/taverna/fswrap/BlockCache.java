@@ -0,0 +1,557 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of the blocks of files read through
+ * {@link WrappedFileSystem}s, for original file systems where reading is
+ * slow, such as zip file systems or network mounts.
+ * <p>
+ * Channels opened just for reading read whole blocks from the original file
+ * and keep them in the cache, from which later reads of the same regions,
+ * through any channel, are served. When a channel reads blocks in order, the
+ * next few blocks are read ahead with them. The least recently used blocks
+ * are evicted when the cache is full.
+ * <p>
+ * Once blocks of a file are cached, the original file is not opened until a
+ * block is missing, although it is still checked to exist and be readable
+ * when a channel is opened. Cached blocks are used as long as the file has the same
+ * size and last modified time, and until it is modified, deleted or replaced
+ * through a wrapped file system using the cache. Changes made directly to
+ * the original file system are only noticed by their attributes, which may
+ * themselves be cached by an {@link AttributeCache}.
+ * <p>
+ * A cache can be shared by several file systems by passing it as
+ * {@link WrappedFileSystem#BLOCK_CACHE}.
+ *
+ */
+public class BlockCache {
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	public static final int DEFAULT_READ_AHEAD = 4;
+
+	/**
+	 * Maximum number of evicted buffers kept for reuse.
+	 */
+	private static final int FREE_BUFFERS = 16;
+
+	/**
+	 * The cached blocks of one version of a file, which is no longer valid
+	 * once the file has been modified.
+	 */
+	private static final class FileBlocks {
+		private final Path key;
+		private final long size;
+		private final FileTime lastModified;
+		private volatile boolean valid = true;
+		private volatile boolean loaded;
+
+		private FileBlocks(Path key, long size, FileTime lastModified) {
+			this.key = key;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static final class BlockKey {
+		private final FileBlocks file;
+		private final long index;
+
+		private BlockKey(FileBlocks file, long index) {
+			this.file = file;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BlockKey)) {
+				return false;
+			}
+			BlockKey other = (BlockKey) obj;
+			return file == other.file && index == other.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(file) * 31
+					+ (int) (index ^ (index >>> 32));
+		}
+	}
+
+	/**
+	 * A channel reading a file through the cache.
+	 */
+	private final class CachingChannel implements SeekableByteChannel {
+		private final Path path;
+		private final Set<? extends OpenOption> options;
+		private final FileSystemProvider provider;
+		private FileBlocks file;
+		private SeekableByteChannel original;
+		private long originalPosition;
+		private long position;
+		private long previousIndex = -1;
+		private boolean open = true;
+
+		private CachingChannel(Path path, Set<? extends OpenOption> options,
+				FileSystemProvider provider, FileBlocks file,
+				SeekableByteChannel original) {
+			this.path = path;
+			this.options = options;
+			this.provider = provider;
+			this.file = file;
+			this.original = original;
+		}
+
+		private void checkOpen() throws ClosedChannelException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		/**
+		 * Start reading the current version of the file, if it has been
+		 * modified since this channel was opened.
+		 */
+		private void checkValid() throws IOException {
+			if (file.valid) {
+				return;
+			}
+			file = file(path, provider.readAttributes(path,
+					BasicFileAttributes.class));
+			if (original != null) {
+				// May not see the modifications, e.g. if read into memory
+				original.close();
+				original = null;
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (!open) {
+				return;
+			}
+			open = false;
+			if (original != null) {
+				original.close();
+			}
+		}
+
+		@Override
+		public synchronized boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public synchronized long position() throws IOException {
+			checkOpen();
+			return position;
+		}
+
+		@Override
+		public synchronized SeekableByteChannel position(long newPosition)
+				throws IOException {
+			checkOpen();
+			if (newPosition < 0) {
+				throw new IllegalArgumentException("Negative position");
+			}
+			position = newPosition;
+			return this;
+		}
+
+		@Override
+		public synchronized int read(ByteBuffer dst) throws IOException {
+			checkOpen();
+			checkValid();
+			if (position >= file.size) {
+				return -1;
+			}
+			int total = 0;
+			while (dst.hasRemaining() && position < file.size) {
+				long index = position / blockSize;
+				int offset = (int) (position - index * blockSize);
+				int copied = copy(file, index, offset, dst);
+				if (copied < 0) {
+					copied = load(index, offset, dst);
+				} else {
+					hits.incrementAndGet();
+				}
+				if (copied == 0) {
+					// Shorter than it was, treat as end of file
+					break;
+				}
+				previousIndex = index;
+				position += copied;
+				total += copied;
+			}
+			if (total == 0 && dst.hasRemaining()) {
+				return -1;
+			}
+			return total;
+		}
+
+		/**
+		 * Read the missing block from the original file, copying from it to
+		 * the buffer, and read the blocks after it if reading in order.
+		 *
+		 * @return The number of bytes copied
+		 */
+		private int load(long index, int offset, ByteBuffer dst)
+				throws IOException {
+			misses.incrementAndGet();
+			ByteBuffer block = loadBlock(index);
+			int copied = 0;
+			if (offset < block.limit()) {
+				// Still ours, so it can not be evicted and reused meanwhile
+				ByteBuffer src = block.duplicate();
+				src.position(offset);
+				src.limit(Math.min(block.limit(), offset + dst.remaining()));
+				copied = src.remaining();
+				dst.put(src);
+			}
+			put(file, index, block);
+			if (index != previousIndex + 1 || block.limit() < blockSize) {
+				return copied;
+			}
+			for (long i = index + 1; i < index + readAhead; i++) {
+				if (i * blockSize >= file.size || contains(file, i)) {
+					break;
+				}
+				ByteBuffer ahead = loadBlock(i);
+				put(file, i, ahead);
+				readAheads.incrementAndGet();
+				if (ahead.limit() < blockSize) {
+					// End of file
+					break;
+				}
+			}
+			return copied;
+		}
+
+		private ByteBuffer loadBlock(long index) throws IOException {
+			ByteBuffer block = allocate();
+			seekOriginal(index * blockSize);
+			int read;
+			while (block.hasRemaining() && (read = original.read(block)) >= 0) {
+				originalPosition += read;
+			}
+			block.flip();
+			return block;
+		}
+
+		/**
+		 * Move the original channel to the position, opening it if needed.
+		 * If it can not be positioned, e.g. a channel of a zip entry on Java
+		 * 7, it is read forward, or opened again to go back.
+		 */
+		private void seekOriginal(long newPosition) throws IOException {
+			if (original == null) {
+				original = provider.newByteChannel(path, options);
+				originalPosition = 0;
+			}
+			if (newPosition == originalPosition) {
+				return;
+			}
+			try {
+				original.position(newPosition);
+				originalPosition = newPosition;
+				return;
+			} catch (UnsupportedOperationException e) {
+			}
+			if (newPosition < originalPosition) {
+				original.close();
+				original = provider.newByteChannel(path, options);
+				originalPosition = 0;
+			}
+			ByteBuffer skipped = allocate();
+			try {
+				while (originalPosition < newPosition) {
+					skipped.clear();
+					skipped.limit((int) Math.min(skipped.capacity(),
+							newPosition - originalPosition));
+					int read = original.read(skipped);
+					if (read < 0) {
+						return;
+					}
+					originalPosition += read;
+				}
+			} finally {
+				recycle(skipped);
+			}
+		}
+
+		@Override
+		public synchronized long size() throws IOException {
+			checkOpen();
+			checkValid();
+			return file.size;
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) throws IOException {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	private final int blockSize;
+	private final boolean direct;
+	private final int readAhead;
+	private final int maxBlocks;
+	/**
+	 * Current version of cached files, by absolute original path.
+	 */
+	private final LruMap<Path, FileBlocks> files;
+	private final LruMap<BlockKey, ByteBuffer> blocks;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong readAheads = new AtomicLong();
+
+	public BlockCache(long size) {
+		this(size, DEFAULT_BLOCK_SIZE, false, DEFAULT_READ_AHEAD);
+	}
+
+	/**
+	 * @param size
+	 *            Number of bytes to cache
+	 * @param blockSize
+	 *            Number of bytes read from the original file at a time
+	 * @param direct
+	 *            If <code>true</code>, blocks are kept in direct buffers,
+	 *            outside the Java heap
+	 * @param readAhead
+	 *            Number of blocks to read at a time when reading in order
+	 */
+	public BlockCache(long size, int blockSize, boolean direct, int readAhead) {
+		if (blockSize < 1 || size < blockSize) {
+			throw new IllegalArgumentException(
+					"Block size must be positive and not exceed the cache size");
+		}
+		this.blockSize = blockSize;
+		this.direct = direct;
+		this.readAhead = readAhead;
+		this.maxBlocks = (int) Math.min(size / blockSize, Integer.MAX_VALUE);
+		files = new LruMap<Path, FileBlocks>(maxBlocks);
+		blocks = new LruMap<BlockKey, ByteBuffer>(maxBlocks) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<BlockKey, ByteBuffer> eldest) {
+				if (!super.removeEldestEntry(eldest)) {
+					return false;
+				}
+				recycle(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath();
+	}
+
+	/**
+	 * Check if a channel opened with these options can read through the
+	 * cache: opened just for reading.
+	 */
+	public static boolean canCache(Set<? extends OpenOption> options) {
+		return !options.contains(StandardOpenOption.WRITE)
+				&& !options.contains(StandardOpenOption.APPEND)
+				&& !options.contains(StandardOpenOption.DELETE_ON_CLOSE)
+				&& !options.contains(LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/**
+	 * Open a channel reading the original file through the cache.
+	 *
+	 * @param path
+	 *            Original path
+	 * @param options
+	 *            Options to open the original file with, for reading
+	 * @param provider
+	 *            Provider of the original file system
+	 * @param attrs
+	 *            Current attributes of the original file
+	 */
+	public SeekableByteChannel open(Path path,
+			Set<? extends OpenOption> options, FileSystemProvider provider,
+			BasicFileAttributes attrs) throws IOException {
+		if (!attrs.isRegularFile()) {
+			return provider.newByteChannel(path, options);
+		}
+		FileBlocks file = file(path, attrs);
+		SeekableByteChannel original = null;
+		if (!file.loaded) {
+			// Open now, so any failure to open is not deferred
+			original = provider.newByteChannel(path, options);
+		} else {
+			// The attributes may be cached, but the file must still be there
+			provider.checkAccess(path, AccessMode.READ);
+		}
+		return new CachingChannel(path, options, provider, file, original);
+	}
+
+	/**
+	 * Get the blocks of the current version of the file.
+	 */
+	private synchronized FileBlocks file(Path path, BasicFileAttributes attrs) {
+		Path key = key(path);
+		FileBlocks file = files.get(key);
+		if (file == null || file.size != attrs.size()
+				|| !file.lastModified.equals(attrs.lastModifiedTime())) {
+			if (file != null) {
+				file.valid = false;
+			}
+			file = new FileBlocks(key, attrs.size(), attrs.lastModifiedTime());
+			files.put(key, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Copy from a cached block to the buffer.
+	 *
+	 * @return The number of bytes copied, or -1 if the block is not cached
+	 */
+	private synchronized int copy(FileBlocks file, long index, int offset,
+			ByteBuffer dst) {
+		ByteBuffer block = blocks.get(new BlockKey(file, index));
+		if (block == null) {
+			return -1;
+		}
+		if (offset >= block.limit()) {
+			return 0;
+		}
+		ByteBuffer src = block.duplicate();
+		src.position(offset);
+		src.limit(Math.min(block.limit(), offset + dst.remaining()));
+		int copied = src.remaining();
+		dst.put(src);
+		return copied;
+	}
+
+	private synchronized boolean contains(FileBlocks file, long index) {
+		return blocks.containsKey(new BlockKey(file, index));
+	}
+
+	private synchronized void put(FileBlocks file, long index, ByteBuffer block) {
+		file.loaded = true;
+		if (file.valid) {
+			ByteBuffer replaced = blocks.put(new BlockKey(file, index), block);
+			if (replaced != null) {
+				recycle(replaced);
+			}
+		} else {
+			recycle(block);
+		}
+	}
+
+	private ByteBuffer allocate() {
+		ByteBuffer buffer;
+		synchronized (free) {
+			buffer = free.poll();
+		}
+		if (buffer == null) {
+			return direct ? ByteBuffer.allocateDirect(blockSize) : ByteBuffer
+					.allocate(blockSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	private void recycle(ByteBuffer buffer) {
+		synchronized (free) {
+			if (free.size() < FREE_BUFFERS) {
+				free.add(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Forget the cached blocks of the original file, which has been
+	 * modified, deleted or replaced.
+	 */
+	public synchronized void invalidate(Path path) {
+		FileBlocks file = files.remove(key(path));
+		if (file != null) {
+			// Its blocks are not used again, and so are evicted in time
+			file.valid = false;
+		}
+	}
+
+	/**
+	 * Forget the cached blocks of the original file, or of any files within
+	 * the original directory.
+	 */
+	public synchronized void invalidateTree(Path path) {
+		Path key = key(path);
+		Iterator<FileBlocks> it = files.values().iterator();
+		while (it.hasNext()) {
+			FileBlocks file = it.next();
+			if (file.key.startsWith(key)) {
+				file.valid = false;
+				it.remove();
+			}
+		}
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public synchronized int getBlockCount() {
+		return blocks.size();
+	}
+
+	public int getMaxBlockCount() {
+		return maxBlocks;
+	}
+
+	/**
+	 * The number of block reads served from the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of block reads that had to read the original file.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * The number of blocks read ahead of a miss.
+	 */
+	public long getReadAheadCount() {
+		return readAheads.get();
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+}
@@ -0,0 +1,45 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.Path;
+
+/**
+ * A {@link FileSystemEventListener} which is also told about the channels
+ * opened through the wrapped file system, and the digests of the files
+ * written through them.
+ * <p>
+ * These events are only fired on listeners implementing this interface, so
+ * channels are only wrapped to observe them when such a listener has
+ * subscribed to them.
+ *
+ */
+public interface ChannelEventListener extends FileSystemEventListener {
+
+	/**
+	 * A byte channel opened through the wrapped file system was closed.
+	 *
+	 * @param path
+	 *            Path the channel was opened for
+	 * @param bytesRead
+	 *            Number of bytes read through the channel
+	 * @param bytesWritten
+	 *            Number of bytes written through the channel
+	 * @param durationNanos
+	 *            How long the channel was open, in nanoseconds
+	 */
+	void channelClosed(Path path, long bytesRead, long bytesWritten,
+			long durationNanos);
+
+	/**
+	 * The digest of a file written through the wrapped file system was
+	 * computed, after its channel was closed.
+	 *
+	 * @param path
+	 *            Path of the file
+	 * @param algorithm
+	 *            Digest algorithm, e.g. <code>SHA-256</code>
+	 * @param digest
+	 *            The digest of the content of the file
+	 */
+	void digestComputed(Path path, String algorithm, byte[] digest);
+
+}
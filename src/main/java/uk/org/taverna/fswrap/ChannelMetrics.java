@@ -0,0 +1,182 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link IoMetrics} of the byte channels of a {@link WrappedFileSystem}, in
+ * total and by absolute original path.
+ * <p>
+ * Metrics are kept for a maximum number of paths; those of the least
+ * recently opened paths are dropped when the limit is reached, but still
+ * count towards the total.
+ *
+ */
+public class ChannelMetrics implements ChannelMetricsMXBean {
+
+	/**
+	 * Number of paths returned by {@link #getHotPaths()}.
+	 */
+	public static final int HOT_PATHS = 10;
+
+	private final IoMetrics total = new IoMetrics();
+	private final LruMap<Path, IoMetrics> byPath;
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of paths to keep metrics for
+	 */
+	public ChannelMetrics(int maxSize) {
+		byPath = new LruMap<Path, IoMetrics>(maxSize);
+	}
+
+	/**
+	 * Get the metrics to record to for a channel opened for the original
+	 * path.
+	 */
+	public IoMetrics forPath(Path path) {
+		Path key = path.toAbsolutePath();
+		synchronized (byPath) {
+			IoMetrics metrics = byPath.get(key);
+			if (metrics == null) {
+				metrics = new IoMetrics();
+				byPath.put(key, metrics);
+			}
+			return metrics;
+		}
+	}
+
+	/**
+	 * Get the metrics for the original path, or <code>null</code> if none
+	 * are kept.
+	 */
+	public IoMetrics.Snapshot getMetrics(Path path) {
+		IoMetrics metrics;
+		synchronized (byPath) {
+			metrics = byPath.get(path.toAbsolutePath());
+		}
+		return metrics == null ? null : metrics.snapshot();
+	}
+
+	/**
+	 * The metrics of all channels of the file system.
+	 */
+	public IoMetrics getTotal() {
+		return total;
+	}
+
+	/**
+	 * Take a snapshot of the metrics of each path.
+	 */
+	public Map<Path, IoMetrics.Snapshot> snapshot() {
+		Map<Path, IoMetrics> copy;
+		synchronized (byPath) {
+			copy = new LinkedHashMap<Path, IoMetrics>(byPath);
+		}
+		Map<Path, IoMetrics.Snapshot> snapshot = new LinkedHashMap<Path, IoMetrics.Snapshot>();
+		for (Map.Entry<Path, IoMetrics> entry : copy.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get the paths with the most bytes read and written, busiest first.
+	 *
+	 * @param count
+	 *            Maximum number of paths to return
+	 */
+	public List<Path> getHotPaths(int count) {
+		Map<Path, Long> transferred = new LinkedHashMap<Path, Long>();
+		synchronized (byPath) {
+			for (Map.Entry<Path, IoMetrics> entry : byPath.entrySet()) {
+				transferred.put(entry.getKey(), entry.getValue()
+						.getBytesTransferred());
+			}
+		}
+		return hottest(transferred, count);
+	}
+
+	@Override
+	public Map<String, Long> getHotPaths() {
+		// From a snapshot, as looking up each path would make it the most
+		// recently used
+		Map<Path, Long> transferred = new LinkedHashMap<Path, Long>();
+		for (Map.Entry<Path, IoMetrics.Snapshot> entry : snapshot()
+				.entrySet()) {
+			transferred.put(entry.getKey(), entry.getValue().getBytesRead()
+					+ entry.getValue().getBytesWritten());
+		}
+		Map<String, Long> hot = new LinkedHashMap<String, Long>();
+		for (Path path : hottest(transferred, HOT_PATHS)) {
+			hot.put(path.toString(), transferred.get(path));
+		}
+		return hot;
+	}
+
+	private static List<Path> hottest(final Map<Path, Long> transferred,
+			int count) {
+		List<Path> paths = new ArrayList<Path>(transferred.keySet());
+		Collections.sort(paths, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				return Long.compare(transferred.get(b), transferred.get(a));
+			}
+		});
+		return paths.subList(0, Math.min(count, paths.size()));
+	}
+
+	@Override
+	public long getBytesRead() {
+		return total.snapshot().getBytesRead();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return total.snapshot().getBytesWritten();
+	}
+
+	@Override
+	public long getReadCount() {
+		return total.snapshot().getReadCount();
+	}
+
+	@Override
+	public long getWriteCount() {
+		return total.snapshot().getWriteCount();
+	}
+
+	@Override
+	public long getSeekCount() {
+		return total.snapshot().getSeekCount();
+	}
+
+	@Override
+	public long getChannelCount() {
+		return total.snapshot().getChannelCount();
+	}
+
+	@Override
+	public long getReadLatency99() {
+		return total.getReadLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getWriteLatency99() {
+		return total.getWriteLatency().getPercentile(99);
+	}
+
+	@Override
+	public void reset() {
+		total.reset();
+		synchronized (byPath) {
+			byPath.clear();
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package uk.org.taverna.fswrap;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ChannelMetrics} of a {@link WrappedFileSystem},
+ * registered as
+ * <code>uk.org.taverna.fswrap:type=ChannelMetrics,name=...</code>.
+ *
+ */
+public interface ChannelMetricsMXBean {
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getReadCount();
+
+	long getWriteCount();
+
+	long getSeekCount();
+
+	long getChannelCount();
+
+	/**
+	 * 99th percentile read latency, in nanoseconds.
+	 */
+	long getReadLatency99();
+
+	/**
+	 * 99th percentile write latency, in nanoseconds.
+	 */
+	long getWriteLatency99();
+
+	/**
+	 * The paths with the most bytes read and written, with their byte counts.
+	 */
+	Map<String, Long> getHotPaths();
+
+	void reset();
+
+}
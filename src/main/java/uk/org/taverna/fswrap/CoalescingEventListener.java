@@ -0,0 +1,651 @@
+package uk.org.taverna.fswrap;
+
+import java.io.Closeable;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link FileSystemEventListener} which holds events for a time window,
+ * folds the events for each path into their net change, and then delivers
+ * what is left to a target listener, in the order the events were received.
+ * <p>
+ * Within a window:
+ * <ul>
+ * <li>A file or directory that is created and then deleted gives no events
+ * at all, including the events for writing to it in between. A file is
+ * known to be created when opened with {@link StandardOpenOption#CREATE_NEW}
+ * , or with {@link StandardOpenOption#CREATE} when it was deleted before or
+ * its directory was created in the same window.</li>
+ * <li>A chain of moves gives a single move from the first source to the last
+ * target, followed by the deletion of the first target if the first move
+ * replaced a file there. A file created and then moved gives its events as
+ * if it had been created at the target.</li>
+ * <li>A file moved and then deleted gives the deletion of the source.</li>
+ * <li>Deleting a file discards the events for modifying it.</li>
+ * <li>Only the latest value set for an attribute of a path, and the latest
+ * digest of a path, are kept.</li>
+ * </ul>
+ * Events are only folded when that can't leave behind an event about a path
+ * that the target listener has not been told exists, such as a copy from a
+ * file created and deleted in the window, or a file in a directory which is
+ * moved or deleted.
+ * <p>
+ * Pending events are delivered every <code>window</code> milliseconds by a
+ * separate thread, when more than <code>capacity</code> events are pending,
+ * on {@link #flush()} and on {@link #close()}. Byte channels given to
+ * {@link #newByteChannel(Path, Set, FileAttribute[], SeekableByteChannel)}
+ * are usually closed by the time they are delivered. Events received after
+ * closing are delivered directly by the calling thread.
+ *
+ */
+public class CoalescingEventListener implements ChannelEventListener,
+		Closeable {
+
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/**
+	 * What is known within the current window about the path a
+	 * {@link Subject} is kept for.
+	 */
+	private static final class Subject {
+		/**
+		 * Keys of the pending events about the path since it was last
+		 * created, deleted or moved away.
+		 */
+		final List<Long> events = new ArrayList<Long>();
+		/**
+		 * Key of the event which created the path or moved it there, or
+		 * <code>null</code>.
+		 */
+		Long creation;
+		/**
+		 * Whether the path did not exist before {@link #creation}.
+		 */
+		boolean created;
+		/**
+		 * If {@link #creation} is a move, its source.
+		 */
+		Path origin;
+		/**
+		 * Whether the move from {@link #origin} may have replaced an
+		 * existing file.
+		 */
+		boolean replacing;
+		/**
+		 * Whether the path could be a directory with entries.
+		 */
+		boolean mayHaveChildren;
+		/**
+		 * Whether the path is known to not exist.
+		 */
+		boolean absent;
+		/**
+		 * Whether a pending event of another path refers to this path, such
+		 * as a copy from it.
+		 */
+		boolean pinned;
+
+		void reset() {
+			events.clear();
+			creation = null;
+			created = false;
+			origin = null;
+			replacing = false;
+			mayHaveChildren = false;
+			absent = false;
+			pinned = false;
+		}
+	}
+
+	private final FileSystemEventListener target;
+	private final long window;
+	private final int capacity;
+	private final ScheduledExecutorService flusher;
+	private final Object flushLock = new Object();
+
+	/**
+	 * Pending events, by the order they were received.
+	 */
+	private TreeMap<Long, FileSystemEvent> pending = new TreeMap<Long, FileSystemEvent>();
+	private final Map<Path, Subject> subjects = new HashMap<Path, Subject>();
+	/**
+	 * Number of paths referred to by pending events, by each directory they
+	 * are within, so that checking a directory for them takes no scan.
+	 */
+	private final Map<Path, Integer> descendants = new HashMap<Path, Integer>();
+	private long sequence;
+	private long received;
+	private long delivered;
+	private boolean closed;
+
+	public CoalescingEventListener(FileSystemEventListener target, long window) {
+		this(target, window, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param target
+	 *            Listener to deliver the folded events to
+	 * @param window
+	 *            Milliseconds to hold events for before delivering them, or 0
+	 *            to only deliver them on {@link #flush()}, or when more than
+	 *            <code>capacity</code> are pending
+	 * @param capacity
+	 *            Maximum number of events to hold
+	 */
+	public CoalescingEventListener(FileSystemEventListener target,
+			long window, int capacity) {
+		if (window < 0 || capacity < 1) {
+			throw new IllegalArgumentException(
+					"Window must not be negative, and capacity must be positive");
+		}
+		this.target = target;
+		this.window = window;
+		this.capacity = capacity;
+		if (window > 0) {
+			flusher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"fswrap-event-coalescer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, window, window, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Deliver the pending events, and deliver later events directly.
+	 */
+	@Override
+	public void close() {
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+		synchronized (flushLock) {
+			flush();
+			synchronized (this) {
+				closed = true;
+			}
+		}
+	}
+
+	/**
+	 * Deliver all pending events to the target listener, and start a new
+	 * window.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			TreeMap<Long, FileSystemEvent> batch;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new TreeMap<Long, FileSystemEvent>();
+				subjects.clear();
+				descendants.clear();
+				delivered += batch.size();
+			}
+			for (FileSystemEvent event : batch.values()) {
+				deliver(event);
+			}
+		}
+	}
+
+	private void deliver(FileSystemEvent event) {
+		try {
+			event.deliverTo(target);
+		} catch (RuntimeException ex) {
+			// Don't let a failing listener stop the flushing thread
+			Thread current = Thread.currentThread();
+			current.getUncaughtExceptionHandler().uncaughtException(current,
+					ex);
+		}
+	}
+
+	/**
+	 * The number of events received since this listener was created.
+	 */
+	public synchronized long getReceivedCount() {
+		return received;
+	}
+
+	/**
+	 * The number of events delivered to the target listener since this
+	 * listener was created, not counting those delivered directly after
+	 * closing.
+	 */
+	public synchronized long getDeliveredCount() {
+		return delivered;
+	}
+
+	public FileSystemEventListener getTarget() {
+		return target;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Start folding a received event, unless closed.
+	 *
+	 * @return <code>false</code> if the event should be delivered directly
+	 */
+	private boolean receive() {
+		if (closed) {
+			return false;
+		}
+		received++;
+		return true;
+	}
+
+	/**
+	 * Finish folding a received event, flushing if too many are pending.
+	 */
+	private void received() {
+		boolean full;
+		synchronized (this) {
+			full = pending.size() > capacity;
+		}
+		if (full) {
+			flush();
+		}
+	}
+
+	private Subject subject(Path path) {
+		Subject subject = subjects.get(path);
+		if (subject == null) {
+			subject = new Subject();
+			subjects.put(path, subject);
+		}
+		return subject;
+	}
+
+	private long add(Subject subject, FileSystemEvent event) {
+		long key = sequence++;
+		put(key, event);
+		if (subject != null) {
+			subject.events.add(key);
+		}
+		return key;
+	}
+
+	/**
+	 * Add or replace a pending event, counting it for the directories it
+	 * refers to paths in.
+	 */
+	private void put(Long key, FileSystemEvent event) {
+		FileSystemEvent replaced = pending.put(key, event);
+		if (replaced != null) {
+			count(replaced, -1);
+		}
+		count(event, 1);
+	}
+
+	private void remove(Long key) {
+		FileSystemEvent removed = pending.remove(key);
+		if (removed != null) {
+			count(removed, -1);
+		}
+	}
+
+	private void count(FileSystemEvent event, int delta) {
+		count(event.getPath(), delta);
+		count(event.getTarget(), delta);
+	}
+
+	private void count(Path path, int delta) {
+		if (path == null) {
+			return;
+		}
+		for (Path dir = path.getParent(); dir != null; dir = dir.getParent()) {
+			Integer count = descendants.get(dir);
+			int updated = (count == null ? 0 : count) + delta;
+			if (updated > 0) {
+				descendants.put(dir, updated);
+			} else {
+				descendants.remove(dir);
+			}
+		}
+	}
+
+	/**
+	 * Discard the pending events of a subject, except for its creation if
+	 * <code>keepCreation</code>.
+	 */
+	private void discard(Subject subject, boolean keepCreation) {
+		for (Long key : subject.events) {
+			if (!(keepCreation && key.equals(subject.creation))) {
+				remove(key);
+			}
+		}
+		subject.events.clear();
+		if (keepCreation && subject.creation != null) {
+			subject.events.add(subject.creation);
+		}
+	}
+
+	/**
+	 * Discard the pending events of a subject that the event would replace.
+	 */
+	private void discardSameSubject(Subject subject, FileSystemEvent event) {
+		Iterator<Long> keys = subject.events.iterator();
+		while (keys.hasNext()) {
+			Long key = keys.next();
+			if (!key.equals(subject.creation)
+					&& pending.get(key).isSameSubject(event)) {
+				remove(key);
+				keys.remove();
+			}
+		}
+	}
+
+	private static boolean isChild(Path other, Path path) {
+		return other != null && !other.equals(path) && other.startsWith(path);
+	}
+
+	/**
+	 * Whether a pending event refers to a path in the directory.
+	 */
+	private boolean hasChildren(Path path) {
+		return descendants.containsKey(path);
+	}
+
+	/**
+	 * Whether the events about a path can be discarded or moved to another
+	 * path, as no other pending event depends on them.
+	 */
+	private boolean isFoldable(Path path, Subject subject) {
+		return subject != null && (subject.created || subject.origin != null)
+				&& !subject.pinned
+				&& !(subject.mayHaveChildren && hasChildren(path));
+	}
+
+	/**
+	 * Whether a path is known to not exist before an event creating it.
+	 */
+	private boolean isNew(Path path) {
+		Subject subject = subjects.get(path);
+		if (subject != null) {
+			return subject.absent;
+		}
+		Subject parent = path.getParent() == null ? null : subjects.get(path
+				.getParent());
+		// Anything in it would have been created through us
+		return parent != null && parent.created && parent.mayHaveChildren;
+	}
+
+	private void created(Path path, FileSystemEvent event,
+			boolean mayHaveChildren) {
+		Subject subject = subject(path);
+		subject.reset();
+		subject.creation = add(subject, event);
+		subject.created = true;
+		subject.mayHaveChildren = mayHaveChildren;
+	}
+
+	private void absent(Path path) {
+		Subject subject = subject(path);
+		subject.reset();
+		subject.absent = true;
+	}
+
+	private static boolean replaces(CopyOption[] options) {
+		return options != null
+				&& Arrays.asList(options).contains(
+						StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public void channelClosed(Path path, long bytesRead, long bytesWritten,
+			long durationNanos) {
+		FileSystemEvent event = FileSystemEvent.channelClosed(path,
+				bytesRead, bytesWritten, durationNanos);
+		synchronized (this) {
+			if (receive()) {
+				add(subject(path), event);
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void copied(Path source, Path target, CopyOption[] options) {
+		FileSystemEvent event = FileSystemEvent.copied(source, target,
+				options);
+		synchronized (this) {
+			if (receive()) {
+				subject(source).pinned = true;
+				if (!replaces(options) || isNew(target)) {
+					created(target, event, true);
+				} else {
+					// The new content replaces any changes to the old
+					Subject subject = subject(target);
+					discard(subject, true);
+					add(subject, event);
+				}
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+		FileSystemEvent event = FileSystemEvent.createdDirectory(dir, attrs);
+		synchronized (this) {
+			if (receive()) {
+				created(dir, event, true);
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void deleted(Path path) {
+		FileSystemEvent event = FileSystemEvent.deleted(path);
+		synchronized (this) {
+			if (receive()) {
+				Subject subject = subjects.get(path);
+				if (isFoldable(path, subject)) {
+					discard(subject, false);
+					if (subject.origin != null) {
+						add(null, FileSystemEvent.deleted(subject.origin));
+					}
+					if (subject.replacing) {
+						add(null, event);
+					}
+				} else {
+					if (subject != null) {
+						discard(subject, true);
+					}
+					add(null, event);
+				}
+				absent(path);
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void digestComputed(Path path, String algorithm, byte[] digest) {
+		FileSystemEvent event = FileSystemEvent.digestComputed(path,
+				algorithm, digest);
+		synchronized (this) {
+			if (receive()) {
+				Subject subject = subject(path);
+				discardSameSubject(subject, event);
+				add(subject, event);
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void moved(Path source, Path target, CopyOption[] options) {
+		FileSystemEvent event = FileSystemEvent.moved(source, target, options);
+		synchronized (this) {
+			if (receive()) {
+				Subject subject = subjects.get(source);
+				boolean targetNew = !replaces(options) || isNew(target);
+				if (targetNew && isFoldable(source, subject)
+						&& !target.equals(subject.origin)) {
+					// As if created at, or moved directly to, the target
+					for (Long key : subject.events) {
+						put(key, pending.get(key).renamed(source, target));
+					}
+					boolean replaced = subject.replacing;
+					subject.replacing = false;
+					subjects.remove(source);
+					subjects.put(target, subject);
+					absent(source);
+					if (replaced) {
+						// The file the first move replaced is still gone
+						add(null, FileSystemEvent.deleted(source));
+					}
+				} else {
+					Subject targetSubject = subjects.get(target);
+					if (targetSubject != null) {
+						discard(targetSubject, true);
+					}
+					if (subject == null || subject.mayHaveChildren) {
+						// Entries of a moved directory are gone
+						for (Map.Entry<Path, Subject> entry : subjects
+								.entrySet()) {
+							if (isChild(entry.getKey(), source)) {
+								entry.getValue().reset();
+								entry.getValue().absent = true;
+							}
+						}
+					}
+					absent(source);
+					targetSubject = subject(target);
+					targetSubject.reset();
+					targetSubject.creation = add(targetSubject, event);
+					targetSubject.origin = source;
+					targetSubject.replacing = !targetNew;
+					targetSubject.mayHaveChildren = true;
+				}
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void newByteChannel(Path path, Set<? extends OpenOption> options,
+			FileAttribute<?>[] attrs, SeekableByteChannel byteChannel) {
+		FileSystemEvent event = FileSystemEvent.newByteChannel(path, options,
+				attrs, byteChannel);
+		synchronized (this) {
+			if (receive()) {
+				if (options.contains(StandardOpenOption.CREATE_NEW)
+						|| (options.contains(StandardOpenOption.CREATE) && isNew(path))) {
+					created(path, event, false);
+				} else {
+					add(subject(path), event);
+				}
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void newFileSystem(WrappedFileSystem fs, Map<String, ?> env) {
+		FileSystemEvent event = FileSystemEvent.newFileSystem(fs, env);
+		synchronized (this) {
+			if (receive()) {
+				add(null, event);
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value,
+			LinkOption[] options) {
+		FileSystemEvent event = FileSystemEvent.setAttribute(path, attribute,
+				value, options);
+		synchronized (this) {
+			if (receive()) {
+				Subject subject = subject(path);
+				discardSameSubject(subject, event);
+				add(subject, event);
+				event = null;
+			}
+		}
+		if (event == null) {
+			received();
+		} else {
+			deliver(event);
+		}
+	}
+
+}
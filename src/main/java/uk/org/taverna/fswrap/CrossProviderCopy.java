@@ -0,0 +1,170 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copy or move original paths between file systems, which their providers
+ * can not do.
+ * <p>
+ * File content is transferred with {@link FileChannel#transferTo} or
+ * {@link FileChannel#transferFrom} if either provider can open a
+ * {@link FileChannel}, otherwise through a direct buffer. Like
+ * {@link Files#copy(Path, Path, CopyOption...)}, directories are copied
+ * without their entries, and only empty directories can be moved.
+ *
+ */
+class CrossProviderCopy {
+
+	/**
+	 * Size of the direct buffer used when neither side has a
+	 * {@link FileChannel}.
+	 */
+	static final int BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private CrossProviderCopy() {
+	}
+
+	static void copy(Path source, Path target, CopyOption... options)
+			throws IOException {
+		List<CopyOption> optionList = Arrays.asList(options);
+		if (optionList.contains(StandardCopyOption.ATOMIC_MOVE)) {
+			throw new UnsupportedOperationException(
+					"ATOMIC_MOVE is not a copy option");
+		}
+		LinkOption[] linkOptions = optionList
+				.contains(LinkOption.NOFOLLOW_LINKS) ? new LinkOption[] { LinkOption.NOFOLLOW_LINKS }
+				: new LinkOption[0];
+		BasicFileAttributes attrs = Files.readAttributes(source,
+				BasicFileAttributes.class, linkOptions);
+		if (optionList.contains(StandardCopyOption.REPLACE_EXISTING)) {
+			Files.deleteIfExists(target);
+		}
+		if (attrs.isDirectory()) {
+			Files.createDirectory(target);
+		} else if (attrs.isSymbolicLink()) {
+			Path link = Files.readSymbolicLink(source);
+			Files.createSymbolicLink(target,
+					target.getFileSystem().getPath(link.toString()));
+		} else {
+			copyContent(source, target);
+		}
+		if (optionList.contains(StandardCopyOption.COPY_ATTRIBUTES)
+				&& !attrs.isSymbolicLink()) {
+			Files.getFileAttributeView(target, BasicFileAttributeView.class)
+					.setTimes(attrs.lastModifiedTime(),
+							attrs.lastAccessTime(), attrs.creationTime());
+		}
+	}
+
+	static void move(Path source, Path target, CopyOption... options)
+			throws IOException {
+		if (Arrays.asList(options).contains(StandardCopyOption.ATOMIC_MOVE)) {
+			throw new AtomicMoveNotSupportedException(source.toString(),
+					target.toString(), "Moving between file systems");
+		}
+		if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+			try (DirectoryStream<Path> entries = Files
+					.newDirectoryStream(source)) {
+				if (entries.iterator().hasNext()) {
+					throw new DirectoryNotEmptyException(source.toString());
+				}
+			}
+		}
+		CopyOption[] copyOptions = Arrays.copyOf(options, options.length + 2);
+		copyOptions[options.length] = StandardCopyOption.COPY_ATTRIBUTES;
+		copyOptions[options.length + 1] = LinkOption.NOFOLLOW_LINKS;
+		copy(source, target, copyOptions);
+		Files.delete(source);
+	}
+
+	private static void copyContent(Path source, Path target)
+			throws IOException {
+		try (SeekableByteChannel in = openChannel(source,
+				StandardOpenOption.READ);
+				SeekableByteChannel out = openChannel(target,
+						StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE)) {
+			if (in instanceof FileChannel) {
+				transferTo((FileChannel) in, out);
+			} else if (out instanceof FileChannel) {
+				transferFrom(in, (FileChannel) out);
+			} else {
+				pump(in, out);
+			}
+		}
+	}
+
+	/**
+	 * Open a {@link FileChannel} if the provider supports it, otherwise a
+	 * {@link SeekableByteChannel}.
+	 */
+	private static SeekableByteChannel openChannel(Path path,
+			StandardOpenOption... options) throws IOException {
+		try {
+			return FileChannel.open(path, options);
+		} catch (UnsupportedOperationException e) {
+			return Files.newByteChannel(path, options);
+		}
+	}
+
+	private static void transferTo(FileChannel in, WritableByteChannel out)
+			throws IOException {
+		long size = in.size();
+		long position = 0;
+		while (position < size) {
+			long transferred = in.transferTo(position, size - position, out);
+			if (transferred <= 0) {
+				// Truncated meanwhile
+				break;
+			}
+			position += transferred;
+		}
+	}
+
+	private static void transferFrom(ReadableByteChannel in, FileChannel out)
+			throws IOException {
+		long position = 0;
+		long transferred;
+		// For a blocking channel, nothing transferred means end of file
+		while ((transferred = out.transferFrom(in, position, BUFFER_SIZE)) > 0) {
+			position += transferred;
+		}
+	}
+
+	private static void pump(ReadableByteChannel in, WritableByteChannel out)
+			throws IOException {
+		ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		while (in.read(buffer) >= 0 || buffer.position() > 0) {
+			buffer.flip();
+			out.write(buffer);
+			buffer.compact();
+		}
+	}
+
+}
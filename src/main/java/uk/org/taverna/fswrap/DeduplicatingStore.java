@@ -0,0 +1,366 @@
+package uk.org.taverna.fswrap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed store of the files written through a
+ * {@link WrappedFileSystem}, so that identical files take up the space of
+ * one.
+ * <p>
+ * When a file has been written, it is made a hard link to a blob in the
+ * store directory named by the digest of its content, which is created from
+ * the file if it is not already there. Files therefore stay where they were
+ * written, and can be listed and read as usual, while identical files share
+ * their blob. An index from paths to digests lets copies of such files be
+ * made by linking the target to the blob instead of copying the bytes.
+ * <p>
+ * Before a stored file is modified through the wrapped file system, it is
+ * replaced by a private copy, so that the other files sharing its blob are
+ * not modified. Files must therefore not be modified directly in the
+ * original file system. Note that files sharing a blob also share its
+ * attributes, such as the last modified time.
+ * <p>
+ * The original file system must support hard links, and the store directory
+ * must be on the same file store as the files; otherwise files are left as
+ * they are.
+ *
+ */
+public class DeduplicatingStore {
+
+	/**
+	 * Name of the index file in the store directory.
+	 */
+	public static final String INDEX = "index";
+	private static final String TEMP_PREFIX = ".fswrap-dedup-";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path storeDir;
+	private final String algorithm;
+	/**
+	 * Hex digest, by absolute original path.
+	 */
+	private final ConcurrentMap<Path, String> index = new ConcurrentHashMap<Path, String>();
+	private final AtomicLong linkedCopies = new AtomicLong();
+	private final AtomicLong sharedBlobs = new AtomicLong();
+
+	/**
+	 * Open a store, reading its index if it exists.
+	 *
+	 * @param storeDir
+	 *            Directory in the original file system to keep blobs in, which
+	 *            is created if needed
+	 * @param algorithm
+	 *            Digest algorithm the blobs are named by
+	 */
+	public DeduplicatingStore(Path storeDir, String algorithm)
+			throws IOException {
+		this.storeDir = storeDir.toAbsolutePath();
+		this.algorithm = algorithm;
+		Files.createDirectories(this.storeDir);
+		readIndex();
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath();
+	}
+
+	static String toHex(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * The blob for the digest, in a subdirectory named by its first two
+	 * characters, to keep directories small.
+	 */
+	public Path getBlob(String hexDigest) {
+		return storeDir.resolve(hexDigest.substring(0, 2)).resolve(hexDigest);
+	}
+
+	/**
+	 * The number of copies made by linking to a blob.
+	 */
+	public long getLinkedCopyCount() {
+		return linkedCopies.get();
+	}
+
+	/**
+	 * The number of written files found to be identical to an existing blob.
+	 */
+	public long getSharedBlobCount() {
+		return sharedBlobs.get();
+	}
+
+	public Path getStoreDirectory() {
+		return storeDir;
+	}
+
+	/**
+	 * Get the hex digest of the original path, if it is known to be linked to
+	 * a blob.
+	 */
+	public String getDigest(Path path) {
+		return index.get(key(path));
+	}
+
+	/**
+	 * Store a file that has been written, replacing it by a link to the blob
+	 * of its content.
+	 *
+	 * @param file
+	 *            Original path of the file
+	 * @param digest
+	 *            Digest of its content
+	 */
+	public void stored(Path file, byte[] digest) throws IOException {
+		String hex = toHex(digest);
+		Path blob = getBlob(hex);
+		try {
+			if (Files.exists(blob, LinkOption.NOFOLLOW_LINKS)) {
+				if (!Files.isSameFile(file, blob)) {
+					replaceWithLink(file, blob);
+					sharedBlobs.incrementAndGet();
+				}
+			} else {
+				Files.createDirectories(blob.getParent());
+				try {
+					Files.createLink(blob, file);
+				} catch (FileAlreadyExistsException e) {
+					// Stored by someone else meanwhile
+					replaceWithLink(file, blob);
+					sharedBlobs.incrementAndGet();
+				}
+			}
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			// No hard links here; leave the file as it is
+			index.remove(key(file));
+			return;
+		}
+		index.put(key(file), hex);
+	}
+
+	private void replaceWithLink(Path file, Path blob) throws IOException {
+		// Link next to the file, so it can replace it atomically
+		Path temp = file.resolveSibling(TEMP_PREFIX + UUID.randomUUID());
+		Files.createLink(temp, blob);
+		try {
+			replace(temp, file);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	private static void replace(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Copy a stored file by linking the target to its blob.
+	 *
+	 * @return <code>false</code> if the source is not a stored file, so it
+	 *         has to be copied as usual
+	 */
+	public boolean copy(Path source, Path target, CopyOption... options)
+			throws IOException {
+		String hex = index.get(key(source));
+		if (hex == null) {
+			return false;
+		}
+		Path blob = getBlob(hex);
+		try {
+			if (!Files.isSameFile(source, blob)) {
+				index.remove(key(source));
+				return false;
+			}
+		} catch (NoSuchFileException e) {
+			index.remove(key(source));
+			return false;
+		}
+		if (Arrays.asList(options).contains(
+				StandardCopyOption.REPLACE_EXISTING)) {
+			// Unlinking the target does not modify its blob, if any
+			index.remove(key(target));
+			Files.deleteIfExists(target);
+		}
+		Files.createLink(target, blob);
+		index.put(key(target), hex);
+		linkedCopies.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Replace a stored file by a private copy before it is modified, so that
+	 * its blob is not modified.
+	 *
+	 * @param file
+	 *            Original path of the file about to be modified
+	 * @param truncate
+	 *            <code>true</code> if the file is about to be truncated, so
+	 *            its content need not be copied
+	 */
+	public void beforeModify(Path file, boolean truncate) throws IOException {
+		String hex = index.remove(key(file));
+		if (hex == null) {
+			return;
+		}
+		Path temp = file.resolveSibling(TEMP_PREFIX + UUID.randomUUID());
+		try {
+			if (truncate) {
+				Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE).close();
+			} else {
+				Files.copy(file, temp, StandardCopyOption.COPY_ATTRIBUTES);
+			}
+			replace(temp, file);
+		} catch (NoSuchFileException e) {
+			// Deleted meanwhile, nothing to protect
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Forget a file that has been deleted.
+	 */
+	public void deleted(Path file) {
+		index.remove(key(file));
+	}
+
+	/**
+	 * Move the index entries of a file or directory that has been moved.
+	 */
+	public void moved(Path source, Path target) {
+		Path sourceKey = key(source);
+		Path targetKey = key(target);
+		// Anything replaced at the target is gone
+		for (Path path : new ArrayList<Path>(index.keySet())) {
+			if (path.startsWith(targetKey)) {
+				index.remove(path);
+			}
+		}
+		for (Path path : new ArrayList<Path>(index.keySet())) {
+			if (path.startsWith(sourceKey)) {
+				String hex = index.remove(path);
+				if (hex != null) {
+					index.put(targetKey.resolve(sourceKey.relativize(path)),
+							hex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete the blobs no longer linked to by any file.
+	 * <p>
+	 * This needs the <code>unix:nlink</code> attribute; where that is not
+	 * supported nothing is deleted.
+	 *
+	 * @return The number of blobs deleted
+	 */
+	public int collectGarbage() throws IOException {
+		List<Path> blobs = new ArrayList<Path>();
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(storeDir)) {
+			for (Path dir : dirs) {
+				if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+					continue;
+				}
+				try (DirectoryStream<Path> stream = Files
+						.newDirectoryStream(dir)) {
+					for (Path blob : stream) {
+						blobs.add(blob);
+					}
+				}
+			}
+		}
+		int deleted = 0;
+		try {
+			for (Path blob : blobs) {
+				Object links = Files.getAttribute(blob, "unix:nlink",
+						LinkOption.NOFOLLOW_LINKS);
+				if (((Number) links).intValue() <= 1) {
+					Files.delete(blob);
+					deleted++;
+				}
+			}
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			// No link counts
+		}
+		return deleted;
+	}
+
+	private void readIndex() throws IOException {
+		Path indexFile = storeDir.resolve(INDEX);
+		if (!Files.exists(indexFile)) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(indexFile, UTF8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					index.put(storeDir.getFileSystem().getPath(
+							line.substring(tab + 1)), line.substring(0, tab));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the index to the store directory, replacing the previous one.
+	 * <p>
+	 * The index is only written when the file system is closed; if it is
+	 * lost, stored files are still shared, but copied as usual.
+	 */
+	public void writeIndex() throws IOException {
+		Path temp = storeDir.resolve(TEMP_PREFIX + INDEX);
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, UTF8)) {
+			for (Map.Entry<Path, String> entry : index.entrySet()) {
+				writer.write(entry.getValue());
+				writer.write('\t');
+				writer.write(entry.getKey().toString());
+				writer.write('\n');
+			}
+		}
+		replace(temp, storeDir.resolve(INDEX));
+	}
+
+}
@@ -0,0 +1,319 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A captured call to a {@link FileSystemEventListener}, so that it can be
+ * queued and delivered later using {@link #deliverTo(FileSystemEventListener)}.
+ *
+ */
+public final class FileSystemEvent {
+
+	public enum Kind {
+		CHANNEL_CLOSED, COPIED, CREATED_DIRECTORY, DELETED, DIGEST_COMPUTED, MOVED, NEW_BYTE_CHANNEL, NEW_FILE_SYSTEM, SET_ATTRIBUTE
+	}
+
+	private final Kind kind;
+	private final Path path;
+	private final Path target;
+	private CopyOption[] copyOptions;
+	private FileAttribute<?>[] attrs;
+	private Set<? extends OpenOption> openOptions;
+	private SeekableByteChannel byteChannel;
+	private WrappedFileSystem fileSystem;
+	private Map<String, ?> env;
+	private String attribute;
+	private Object value;
+	private LinkOption[] linkOptions;
+	private long bytesRead;
+	private long bytesWritten;
+	private long durationNanos;
+	private String algorithm;
+	private byte[] digest;
+
+	private FileSystemEvent(Kind kind, Path path, Path target) {
+		this.kind = kind;
+		this.path = path;
+		this.target = target;
+	}
+
+	public static FileSystemEvent channelClosed(Path path, long bytesRead,
+			long bytesWritten, long durationNanos) {
+		FileSystemEvent event = new FileSystemEvent(Kind.CHANNEL_CLOSED, path,
+				null);
+		event.bytesRead = bytesRead;
+		event.bytesWritten = bytesWritten;
+		event.durationNanos = durationNanos;
+		return event;
+	}
+
+	public static FileSystemEvent copied(Path source, Path target,
+			CopyOption[] options) {
+		FileSystemEvent event = new FileSystemEvent(Kind.COPIED, source,
+				target);
+		event.copyOptions = options;
+		return event;
+	}
+
+	public static FileSystemEvent createdDirectory(Path dir,
+			FileAttribute<?>[] attrs) {
+		FileSystemEvent event = new FileSystemEvent(Kind.CREATED_DIRECTORY,
+				dir, null);
+		event.attrs = attrs;
+		return event;
+	}
+
+	public static FileSystemEvent deleted(Path path) {
+		return new FileSystemEvent(Kind.DELETED, path, null);
+	}
+
+	public static FileSystemEvent digestComputed(Path path,
+			String algorithm, byte[] digest) {
+		FileSystemEvent event = new FileSystemEvent(Kind.DIGEST_COMPUTED,
+				path, null);
+		event.algorithm = algorithm;
+		event.digest = digest;
+		return event;
+	}
+
+	public static FileSystemEvent moved(Path source, Path target,
+			CopyOption[] options) {
+		FileSystemEvent event = new FileSystemEvent(Kind.MOVED, source, target);
+		event.copyOptions = options;
+		return event;
+	}
+
+	public static FileSystemEvent newByteChannel(Path path,
+			Set<? extends OpenOption> options, FileAttribute<?>[] attrs,
+			SeekableByteChannel byteChannel) {
+		FileSystemEvent event = new FileSystemEvent(Kind.NEW_BYTE_CHANNEL,
+				path, null);
+		event.openOptions = options;
+		event.attrs = attrs;
+		event.byteChannel = byteChannel;
+		return event;
+	}
+
+	public static FileSystemEvent newFileSystem(WrappedFileSystem fs,
+			Map<String, ?> env) {
+		FileSystemEvent event = new FileSystemEvent(Kind.NEW_FILE_SYSTEM, null,
+				null);
+		event.fileSystem = fs;
+		event.env = env;
+		return event;
+	}
+
+	public static FileSystemEvent setAttribute(Path path, String attribute,
+			Object value, LinkOption[] options) {
+		FileSystemEvent event = new FileSystemEvent(Kind.SET_ATTRIBUTE, path,
+				null);
+		event.attribute = attribute;
+		event.value = value;
+		event.linkOptions = options;
+		return event;
+	}
+
+	/**
+	 * A copy of this event, with its path or target replaced by
+	 * <code>to</code> where it was <code>from</code>.
+	 */
+	FileSystemEvent renamed(Path from, Path to) {
+		FileSystemEvent event = new FileSystemEvent(kind,
+				from.equals(path) ? to : path, from.equals(target) ? to
+						: target);
+		event.copyOptions = copyOptions;
+		event.attrs = attrs;
+		event.openOptions = openOptions;
+		event.byteChannel = byteChannel;
+		event.fileSystem = fileSystem;
+		event.env = env;
+		event.attribute = attribute;
+		event.value = value;
+		event.linkOptions = linkOptions;
+		event.bytesRead = bytesRead;
+		event.bytesWritten = bytesWritten;
+		event.durationNanos = durationNanos;
+		event.algorithm = algorithm;
+		event.digest = digest;
+		return event;
+	}
+
+	/**
+	 * Call the listener method corresponding to this event.
+	 */
+	public void deliverTo(FileSystemEventListener listener) {
+		switch (kind) {
+		case CHANNEL_CLOSED:
+			if (listener instanceof ChannelEventListener) {
+				((ChannelEventListener) listener).channelClosed(path,
+						bytesRead, bytesWritten, durationNanos);
+			}
+			break;
+		case COPIED:
+			listener.copied(path, target, copyOptions);
+			break;
+		case CREATED_DIRECTORY:
+			listener.createdDirectory(path, attrs);
+			break;
+		case DELETED:
+			listener.deleted(path);
+			break;
+		case DIGEST_COMPUTED:
+			if (listener instanceof ChannelEventListener) {
+				((ChannelEventListener) listener).digestComputed(path,
+						algorithm, digest);
+			}
+			break;
+		case MOVED:
+			listener.moved(path, target, copyOptions);
+			break;
+		case NEW_BYTE_CHANNEL:
+			listener.newByteChannel(path, openOptions, attrs, byteChannel);
+			break;
+		case NEW_FILE_SYSTEM:
+			listener.newFileSystem(fileSystem, env);
+			break;
+		case SET_ATTRIBUTE:
+			listener.setAttribute(path, attribute, value, linkOptions);
+			break;
+		default:
+			throw new IllegalStateException("Unknown event kind " + kind);
+		}
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * The path the event occurred on, or the source path of a copy or move.
+	 * <code>null</code> for {@link Kind#NEW_FILE_SYSTEM}.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * The target path of a copy or move, otherwise <code>null</code>.
+	 */
+	public Path getTarget() {
+		return target;
+	}
+
+	public Set<? extends OpenOption> getOpenOptions() {
+		return openOptions;
+	}
+
+	public String getAttribute() {
+		return attribute;
+	}
+
+	/**
+	 * The algorithm of a computed digest, otherwise <code>null</code>.
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * A computed digest, otherwise <code>null</code>.
+	 */
+	public byte[] getDigest() {
+		return digest == null ? null : digest.clone();
+	}
+
+	/**
+	 * Bytes read through a closed channel, otherwise 0.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Bytes written through a closed channel, otherwise 0.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * How long a closed channel was open, in nanoseconds, otherwise 0.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * Check if the other event is of the same kind and concerns the same
+	 * paths (and attribute) as this event, and so could replace it if
+	 * only the latest such event is of interest.
+	 */
+	public boolean isSameSubject(FileSystemEvent other) {
+		return kind == other.kind && kind != Kind.NEW_FILE_SYSTEM
+				&& Objects.equals(path, other.path)
+				&& Objects.equals(target, other.target)
+				&& Objects.equals(attribute, other.attribute);
+	}
+
+	/**
+	 * Check if the other event occurred on any of the paths of this event.
+	 */
+	boolean sharesPath(FileSystemEvent other) {
+		return path != null
+				&& (path.equals(other.path) || path.equals(other.target))
+				|| target != null
+				&& (target.equals(other.path) || target.equals(other.target));
+	}
+
+	/**
+	 * Merge a later event of the same subject into this one, where the
+	 * result tells a listener the same as the two events did: the latest
+	 * attribute value, digest or copy, a single deletion, or the total bytes
+	 * of closed channels.
+	 *
+	 * @return The merged event, or <code>null</code> if they cannot be merged
+	 */
+	FileSystemEvent mergedWith(FileSystemEvent later) {
+		if (!isSameSubject(later)) {
+			return null;
+		}
+		switch (kind) {
+		case CHANNEL_CLOSED:
+			return channelClosed(later.path, bytesRead + later.bytesRead,
+					bytesWritten + later.bytesWritten, durationNanos
+							+ later.durationNanos);
+		case DIGEST_COMPUTED:
+			return Objects.equals(algorithm, later.algorithm) ? later : null;
+		case COPIED:
+		case DELETED:
+		case SET_ATTRIBUTE:
+			return later;
+		default:
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(kind.toString());
+		if (path != null) {
+			sb.append(' ').append(path);
+		}
+		if (target != null) {
+			sb.append(" -> ").append(target);
+		}
+		if (attribute != null) {
+			sb.append(' ').append(attribute);
+		}
+		return sb.toString();
+	}
+
+}
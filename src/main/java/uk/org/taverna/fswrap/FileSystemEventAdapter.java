@@ -9,7 +9,12 @@ import java.nio.file.attribute.FileAttribute;
 import java.util.Map;
 import java.util.Set;
 
-public class FileSystemEventAdapter implements FileSystemEventListener {
+public class FileSystemEventAdapter implements ChannelEventListener {
+	@Override
+	public void channelClosed(Path path, long bytesRead, long bytesWritten,
+			long durationNanos) {
+	}
+
 	@Override
 	public void copied(Path source, Path target, CopyOption[] options) {
 	}
@@ -22,6 +27,10 @@ public class FileSystemEventAdapter implements FileSystemEventListener {
 	public void deleted(Path path) {
 	}
 
+	@Override
+	public void digestComputed(Path path, String algorithm, byte[] digest) {
+	}
+
 	@Override
 	public void moved(Path source, Path target, CopyOption[] options) {
 	}
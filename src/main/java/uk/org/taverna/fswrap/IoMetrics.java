@@ -0,0 +1,209 @@
+package uk.org.taverna.fswrap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * I/O counters of the {@link WrappedSeekableByteChannel}s of a path or a
+ * whole file system.
+ * <p>
+ * Recording is lock-free and does not allocate; use {@link #snapshot()} to
+ * get a consistent-enough copy for reporting.
+ *
+ */
+public class IoMetrics {
+
+	/**
+	 * An immutable copy of {@link IoMetrics}.
+	 */
+	public static class Snapshot {
+		private final long bytesRead;
+		private final long bytesWritten;
+		private final long readCount;
+		private final long writeCount;
+		private final long seekCount;
+		private final long backwardSeekCount;
+		private final long seekDistance;
+		private final long channelCount;
+		private final long[] readLatencies;
+		private final long[] writeLatencies;
+
+		private Snapshot(IoMetrics metrics) {
+			bytesRead = metrics.bytesRead.get();
+			bytesWritten = metrics.bytesWritten.get();
+			readCount = metrics.readCount.get();
+			writeCount = metrics.writeCount.get();
+			seekCount = metrics.seekCount.get();
+			backwardSeekCount = metrics.backwardSeekCount.get();
+			seekDistance = metrics.seekDistance.get();
+			channelCount = metrics.channelCount.get();
+			readLatencies = metrics.readLatency.getCounts();
+			writeLatencies = metrics.writeLatency.getCounts();
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		/**
+		 * The number of channels opened.
+		 */
+		public long getChannelCount() {
+			return channelCount;
+		}
+
+		public long getReadCount() {
+			return readCount;
+		}
+
+		public long getWriteCount() {
+			return writeCount;
+		}
+
+		/**
+		 * The number of times the position of a channel was changed to
+		 * somewhere else than where the last read or write ended.
+		 */
+		public long getSeekCount() {
+			return seekCount;
+		}
+
+		/**
+		 * The number of seeks towards the start of the file.
+		 */
+		public long getBackwardSeekCount() {
+			return backwardSeekCount;
+		}
+
+		/**
+		 * The total number of bytes skipped over by seeks, in either
+		 * direction.
+		 */
+		public long getSeekDistance() {
+			return seekDistance;
+		}
+
+		/**
+		 * Read latencies in buckets, as {@link LatencyHistogram#getCounts()}.
+		 */
+		public long[] getReadLatencies() {
+			return readLatencies.clone();
+		}
+
+		/**
+		 * Write latencies in buckets, as {@link LatencyHistogram#getCounts()}.
+		 */
+		public long[] getWriteLatencies() {
+			return writeLatencies.clone();
+		}
+
+		/**
+		 * @see LatencyHistogram#getPercentile(double)
+		 */
+		public long getReadLatencyPercentile(double percentile) {
+			return LatencyHistogram.percentile(readLatencies, percentile);
+		}
+
+		/**
+		 * @see LatencyHistogram#getPercentile(double)
+		 */
+		public long getWriteLatencyPercentile(double percentile) {
+			return LatencyHistogram.percentile(writeLatencies, percentile);
+		}
+
+		@Override
+		public String toString() {
+			return "read " + bytesRead + " bytes in " + readCount
+					+ " ops, wrote " + bytesWritten + " bytes in "
+					+ writeCount + " ops, " + seekCount + " seeks";
+		}
+	}
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong readCount = new AtomicLong();
+	private final AtomicLong writeCount = new AtomicLong();
+	private final AtomicLong seekCount = new AtomicLong();
+	private final AtomicLong backwardSeekCount = new AtomicLong();
+	private final AtomicLong seekDistance = new AtomicLong();
+	private final AtomicLong channelCount = new AtomicLong();
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	public LatencyHistogram getReadLatency() {
+		return readLatency;
+	}
+
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	/**
+	 * The number of bytes read and written.
+	 */
+	public long getBytesTransferred() {
+		return bytesRead.get() + bytesWritten.get();
+	}
+
+	public void recordOpen() {
+		channelCount.incrementAndGet();
+	}
+
+	/**
+	 * @param bytes
+	 *            Bytes read, or -1 at end of file
+	 * @param nanos
+	 *            Time taken
+	 */
+	public void recordRead(long bytes, long nanos) {
+		readCount.incrementAndGet();
+		if (bytes > 0) {
+			bytesRead.addAndGet(bytes);
+		}
+		readLatency.record(nanos);
+	}
+
+	public void recordWrite(long bytes, long nanos) {
+		writeCount.incrementAndGet();
+		if (bytes > 0) {
+			bytesWritten.addAndGet(bytes);
+		}
+		writeLatency.record(nanos);
+	}
+
+	/**
+	 * @param distance
+	 *            Bytes moved from the previous position, negative if
+	 *            backwards
+	 */
+	public void recordSeek(long distance) {
+		seekCount.incrementAndGet();
+		if (distance < 0) {
+			backwardSeekCount.incrementAndGet();
+			seekDistance.addAndGet(-distance);
+		} else {
+			seekDistance.addAndGet(distance);
+		}
+	}
+
+	public void reset() {
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		readCount.set(0);
+		writeCount.set(0);
+		seekCount.set(0);
+		backwardSeekCount.set(0);
+		seekDistance.set(0);
+		channelCount.set(0);
+		readLatency.reset();
+		writeLatency.reset();
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+}
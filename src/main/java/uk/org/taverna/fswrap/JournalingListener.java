@@ -0,0 +1,679 @@
+package uk.org.taverna.fswrap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A listener that appends the events it is told about to a journal on disk,
+ * so that whatever the listeners of a file system have built from the
+ * events, such as a manifest of the files, can be rebuilt after a crash by
+ * {@link #replay(Path, FileSystem, FileSystemEventListener)} instead of by
+ * scanning the whole tree.
+ * <p>
+ * The journal is a directory of segment files, each of a fixed size, which
+ * are memory-mapped and filled with records one after the other. Each
+ * record is a compact binary encoding of an event, preceded by its length
+ * and a CRC-32 checksum. Appending a record is just a copy into the mapped
+ * segment, so it is cheap enough to be done by the thread firing the event.
+ * <p>
+ * Records written to a mapped segment survive a crash of the JVM, but not
+ * of the operating system, until they are forced to disk. {@link #commit()}
+ * does that, and is done every <code>commitInterval</code> milliseconds in
+ * the background. Threads calling {@link #commit()} while another thread is
+ * forcing the journal wait for it and are then committed together by one
+ * force, so frequent commits from many threads stay cheap.
+ * <p>
+ * {@link FileSystemEventListener#newFileSystem(WrappedFileSystem, Map)}
+ * events are not journaled. The value of a
+ * {@link FileSystemEventListener#setAttribute(Path, String, Object, LinkOption[])}
+ * event is journaled as its string form. Byte channels and file attributes
+ * of events are not journaled.
+ * <p>
+ * The journal should be in a directory of an original file system, not of
+ * the wrapped file system it is listening to.
+ *
+ */
+public class JournalingListener implements ChannelEventListener,
+		Closeable {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+	private static final String SEGMENT_FORMAT = "journal-%012d.log";
+	private static final Pattern SEGMENT_NAME = Pattern
+			.compile("journal-(\\d+)\\.log");
+	/** "FSWJ", at the start of each segment */
+	private static final int MAGIC = 0x4653574A;
+	private static final int VERSION = 1;
+	private static final int SEGMENT_HEADER = 8;
+	/** Length and checksum before each record */
+	private static final int RECORD_HEADER = 8;
+
+	private static final byte CHANNEL_CLOSED = 1;
+	private static final byte COPIED = 2;
+	private static final byte CREATED_DIRECTORY = 3;
+	private static final byte DELETED = 4;
+	private static final byte DIGEST_COMPUTED = 5;
+	private static final byte MOVED = 6;
+	private static final byte NEW_BYTE_CHANNEL = 7;
+	private static final byte SET_ATTRIBUTE = 8;
+
+	private static final StandardCopyOption[] COPY_OPTIONS = StandardCopyOption
+			.values();
+	private static final StandardOpenOption[] OPEN_OPTIONS = StandardOpenOption
+			.values();
+	/** Bit for {@link LinkOption#NOFOLLOW_LINKS}, after the other options */
+	private static final int NOFOLLOW_BIT = 1 << 30;
+
+	/**
+	 * Growable buffer a record is encoded in before it is appended, one per
+	 * thread, so the journal is only locked for the copy.
+	 */
+	private static final class Encoder {
+		private byte[] bytes = new byte[256];
+		private int length;
+		private final CRC32 crc = new CRC32();
+
+		private Encoder reset(byte type) {
+			length = 0;
+			putByte(type);
+			return this;
+		}
+
+		private void ensure(int more) {
+			if (length + more > bytes.length) {
+				bytes = Arrays.copyOf(bytes,
+						Math.max(bytes.length * 2, length + more));
+			}
+		}
+
+		private void putByte(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		private void putVarLong(long value) {
+			// Seven bits at a time, lowest first, as in protocol buffers
+			while ((value & ~0x7fL) != 0) {
+				putByte((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			putByte((int) value);
+		}
+
+		private void putBytes(byte[] value) {
+			putVarLong(value.length);
+			ensure(value.length);
+			System.arraycopy(value, 0, bytes, length, value.length);
+			length += value.length;
+		}
+
+		private void putString(String value) {
+			putBytes(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private void putPath(Path path) {
+			putString(path.toString());
+		}
+
+		private int checksum() {
+			crc.reset();
+			crc.update(bytes, 0, length);
+			return (int) crc.getValue();
+		}
+	}
+
+	private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ScheduledExecutorService committer;
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+	// Guarded by this
+	private long segmentIndex;
+	private MappedByteBuffer segment;
+	/** Segments filled since the last commit, still to be forced */
+	private final List<MappedByteBuffer> filled = new ArrayList<MappedByteBuffer>();
+	private long appended;
+	private boolean closed;
+
+	// Guarded by commitLock
+	private final Object commitLock = new Object();
+	private boolean forcing;
+	private long committed;
+
+	/**
+	 * Journal to a directory, in segments of the default size, committing
+	 * every {@value #DEFAULT_COMMIT_INTERVAL} milliseconds.
+	 */
+	public JournalingListener(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * @param directory
+	 *            Directory of the journal, which is created if needed. Any
+	 *            segments already there are kept, and new records are
+	 *            appended in a new segment after them.
+	 * @param segmentSize
+	 *            Size in bytes of each segment file
+	 * @param commitInterval
+	 *            Milliseconds between background commits, or 0 to only
+	 *            commit when {@link #commit()} is called
+	 */
+	public JournalingListener(Path directory, int segmentSize,
+			long commitInterval) throws IOException {
+		if (segmentSize < SEGMENT_HEADER + RECORD_HEADER + 64) {
+			throw new IllegalArgumentException("Segment size too small: "
+					+ segmentSize);
+		}
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		TreeMap<Long, Path> existing = segments(directory);
+		segmentIndex = existing.isEmpty() ? 0 : existing.lastKey();
+		nextSegment();
+		if (commitInterval > 0) {
+			committer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "fswrap-journal");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			committer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						commit();
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+		} else {
+			committer = null;
+		}
+	}
+
+	/**
+	 * The segment files of a journal directory, by their index.
+	 */
+	private static TreeMap<Long, Path> segments(Path directory)
+			throws IOException {
+		TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+		try (DirectoryStream<Path> entries = Files
+				.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				Matcher matcher = SEGMENT_NAME.matcher(entry.getFileName()
+						.toString());
+				if (matcher.matches()) {
+					segments.put(Long.parseLong(matcher.group(1)), entry);
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Start a new segment file, with the segment filled so far left to be
+	 * forced by the next commit. Must hold the lock of this.
+	 */
+	private void nextSegment() throws IOException {
+		Path file = directory.resolve(String.format(SEGMENT_FORMAT,
+				segmentIndex + 1));
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// The mapping stays valid after the channel is closed
+			MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0,
+					segmentSize);
+			mapped.putInt(MAGIC).putInt(VERSION);
+			if (segment != null) {
+				filled.add(segment);
+			}
+			segment = mapped;
+			segmentIndex++;
+		}
+	}
+
+	private void append(Encoder encoder) {
+		if (encoder.length > segmentSize - SEGMENT_HEADER - RECORD_HEADER) {
+			failure.compareAndSet(null, new IOException("Record of "
+					+ encoder.length + " bytes does not fit in a segment"));
+			return;
+		}
+		int checksum = encoder.checksum();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			try {
+				if (segment.remaining() < RECORD_HEADER + encoder.length) {
+					nextSegment();
+				}
+			} catch (IOException e) {
+				failure.compareAndSet(null, e);
+				return;
+			}
+			int start = segment.position();
+			segment.position(start + RECORD_HEADER);
+			segment.put(encoder.bytes, 0, encoder.length);
+			segment.putInt(start + 4, checksum);
+			// The length last, so a record is not seen until complete
+			segment.putInt(start, encoder.length);
+			appended++;
+		}
+	}
+
+	/**
+	 * Force all records appended so far to disk.
+	 *
+	 * @throws IOException
+	 *             If forcing failed, or the first failure to append a record
+	 *             since the last commit
+	 */
+	public void commit() throws IOException {
+		long target;
+		synchronized (this) {
+			target = appended;
+		}
+		while (true) {
+			synchronized (commitLock) {
+				while (forcing && committed < target) {
+					try {
+						commitLock.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException(
+								"Interrupted while waiting for commit");
+					}
+				}
+				if (committed >= target) {
+					break;
+				}
+				forcing = true;
+			}
+			long upTo = -1;
+			try {
+				List<MappedByteBuffer> toForce;
+				synchronized (this) {
+					upTo = appended;
+					toForce = new ArrayList<MappedByteBuffer>(filled);
+					filled.clear();
+					toForce.add(segment);
+				}
+				for (MappedByteBuffer buffer : toForce) {
+					buffer.force();
+				}
+			} finally {
+				synchronized (commitLock) {
+					forcing = false;
+					committed = Math.max(committed, upTo);
+					commitLock.notifyAll();
+				}
+			}
+		}
+		IOException failed = failure.getAndSet(null);
+		if (failed != null) {
+			throw failed;
+		}
+	}
+
+	/**
+	 * Commit, and stop journaling. Later events are ignored.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (committer != null) {
+			committer.shutdown();
+		}
+		try {
+			commit();
+		} finally {
+			synchronized (this) {
+				closed = true;
+			}
+		}
+	}
+
+	/**
+	 * The number of records appended since this listener was created.
+	 */
+	public synchronized long getAppendedCount() {
+		return appended;
+	}
+
+	/**
+	 * The number of records forced to disk since this listener was created.
+	 */
+	public long getCommittedCount() {
+		synchronized (commitLock) {
+			return committed;
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	private static int copyOptionBits(CopyOption[] options) {
+		int bits = 0;
+		if (options != null) {
+			for (CopyOption option : options) {
+				if (option instanceof StandardCopyOption) {
+					bits |= 1 << ((StandardCopyOption) option).ordinal();
+				} else if (option == LinkOption.NOFOLLOW_LINKS) {
+					bits |= NOFOLLOW_BIT;
+				}
+			}
+		}
+		return bits;
+	}
+
+	private static int linkOptionBits(LinkOption[] options) {
+		return options != null
+				&& Arrays.asList(options).contains(LinkOption.NOFOLLOW_LINKS) ? NOFOLLOW_BIT
+				: 0;
+	}
+
+	@Override
+	public void channelClosed(Path path, long bytesRead, long bytesWritten,
+			long durationNanos) {
+		Encoder encoder = encoders.get().reset(CHANNEL_CLOSED);
+		encoder.putPath(path);
+		encoder.putVarLong(bytesRead);
+		encoder.putVarLong(bytesWritten);
+		encoder.putVarLong(durationNanos);
+		append(encoder);
+	}
+
+	@Override
+	public void copied(Path source, Path target, CopyOption[] options) {
+		Encoder encoder = encoders.get().reset(COPIED);
+		encoder.putPath(source);
+		encoder.putPath(target);
+		encoder.putVarLong(copyOptionBits(options));
+		append(encoder);
+	}
+
+	@Override
+	public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+		Encoder encoder = encoders.get().reset(CREATED_DIRECTORY);
+		encoder.putPath(dir);
+		append(encoder);
+	}
+
+	@Override
+	public void deleted(Path path) {
+		Encoder encoder = encoders.get().reset(DELETED);
+		encoder.putPath(path);
+		append(encoder);
+	}
+
+	@Override
+	public void digestComputed(Path path, String algorithm, byte[] digest) {
+		Encoder encoder = encoders.get().reset(DIGEST_COMPUTED);
+		encoder.putPath(path);
+		encoder.putString(algorithm);
+		encoder.putBytes(digest);
+		append(encoder);
+	}
+
+	@Override
+	public void moved(Path source, Path target, CopyOption[] options) {
+		Encoder encoder = encoders.get().reset(MOVED);
+		encoder.putPath(source);
+		encoder.putPath(target);
+		encoder.putVarLong(copyOptionBits(options));
+		append(encoder);
+	}
+
+	@Override
+	public void newByteChannel(Path path, Set<? extends OpenOption> options,
+			FileAttribute<?>[] attrs, SeekableByteChannel byteChannel) {
+		Encoder encoder = encoders.get().reset(NEW_BYTE_CHANNEL);
+		encoder.putPath(path);
+		int bits = 0;
+		for (OpenOption option : options) {
+			if (option instanceof StandardOpenOption) {
+				bits |= 1 << ((StandardOpenOption) option).ordinal();
+			} else if (option == LinkOption.NOFOLLOW_LINKS) {
+				bits |= NOFOLLOW_BIT;
+			}
+		}
+		encoder.putVarLong(bits);
+		append(encoder);
+	}
+
+	@Override
+	public void newFileSystem(WrappedFileSystem fs, Map<String, ?> env) {
+		// Not about a path, and the file system is gone after a crash anyway
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value,
+			LinkOption[] options) {
+		Encoder encoder = encoders.get().reset(SET_ATTRIBUTE);
+		encoder.putPath(path);
+		encoder.putString(attribute);
+		encoder.putString(String.valueOf(value));
+		encoder.putVarLong(linkOptionBits(options));
+		append(encoder);
+	}
+
+	/**
+	 * Decoder of the records of a mapped segment.
+	 */
+	private static final class Decoder {
+		private final ByteBuffer buffer;
+		private final FileSystem fs;
+
+		private Decoder(ByteBuffer buffer, FileSystem fs) {
+			this.buffer = buffer;
+			this.fs = fs;
+		}
+
+		private long getVarLong() {
+			long value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = buffer.get();
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+
+		private byte[] getBytes() {
+			byte[] bytes = new byte[(int) getVarLong()];
+			buffer.get(bytes);
+			return bytes;
+		}
+
+		private String getString() {
+			return new String(getBytes(), StandardCharsets.UTF_8);
+		}
+
+		private Path getPath() {
+			return fs.getPath(getString());
+		}
+
+		private CopyOption[] getCopyOptions() {
+			int bits = (int) getVarLong();
+			List<CopyOption> options = new ArrayList<CopyOption>();
+			for (StandardCopyOption option : COPY_OPTIONS) {
+				if ((bits & (1 << option.ordinal())) != 0) {
+					options.add(option);
+				}
+			}
+			if ((bits & NOFOLLOW_BIT) != 0) {
+				options.add(LinkOption.NOFOLLOW_LINKS);
+			}
+			return options.toArray(new CopyOption[options.size()]);
+		}
+
+		private Set<OpenOption> getOpenOptions() {
+			int bits = (int) getVarLong();
+			Set<OpenOption> options = new HashSet<OpenOption>();
+			for (StandardOpenOption option : OPEN_OPTIONS) {
+				if ((bits & (1 << option.ordinal())) != 0) {
+					options.add(option);
+				}
+			}
+			if ((bits & NOFOLLOW_BIT) != 0) {
+				options.add(LinkOption.NOFOLLOW_LINKS);
+			}
+			return options;
+		}
+
+		private LinkOption[] getLinkOptions() {
+			if ((getVarLong() & NOFOLLOW_BIT) != 0) {
+				return new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+			}
+			return new LinkOption[0];
+		}
+
+		private void deliver(byte type, FileSystemEventListener listener)
+				throws IOException {
+			Path path = getPath();
+			switch (type) {
+			case CHANNEL_CLOSED:
+				long bytesRead = getVarLong();
+				long bytesWritten = getVarLong();
+				long durationNanos = getVarLong();
+				if (listener instanceof ChannelEventListener) {
+					((ChannelEventListener) listener).channelClosed(path,
+							bytesRead, bytesWritten, durationNanos);
+				}
+				break;
+			case COPIED:
+				listener.copied(path, getPath(), getCopyOptions());
+				break;
+			case CREATED_DIRECTORY:
+				listener.createdDirectory(path, new FileAttribute<?>[0]);
+				break;
+			case DELETED:
+				listener.deleted(path);
+				break;
+			case DIGEST_COMPUTED:
+				String algorithm = getString();
+				byte[] digest = getBytes();
+				if (listener instanceof ChannelEventListener) {
+					((ChannelEventListener) listener).digestComputed(path,
+							algorithm, digest);
+				}
+				break;
+			case MOVED:
+				listener.moved(path, getPath(), getCopyOptions());
+				break;
+			case NEW_BYTE_CHANNEL:
+				listener.newByteChannel(path, getOpenOptions(),
+						new FileAttribute<?>[0], null);
+				break;
+			case SET_ATTRIBUTE:
+				listener.setAttribute(path, getString(), getString(),
+						getLinkOptions());
+				break;
+			default:
+				throw new IOException("Unknown journal record type " + type);
+			}
+		}
+	}
+
+	/**
+	 * Deliver the journaled events of a journal directory to a listener, in
+	 * the order they were journaled.
+	 * <p>
+	 * Paths are given as paths of the given file system, which should be the
+	 * one the events were journaled for. Byte channels are
+	 * <code>null</code>, file attributes are empty, and attribute values are
+	 * strings.
+	 * <p>
+	 * A record that is incomplete or fails its checksum, as the last record
+	 * of a segment written when the JVM crashed may, ends the replay of that
+	 * segment; the replay continues with the next segment.
+	 *
+	 * @return The number of events replayed
+	 * @throws IOException
+	 *             If a segment could not be read, or is not a journal segment
+	 */
+	public static long replay(Path directory, FileSystem fs,
+			FileSystemEventListener listener) throws IOException {
+		long replayed = 0;
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[256];
+		for (Path file : segments(directory).values()) {
+			MappedByteBuffer segment;
+			try (FileChannel channel = FileChannel.open(file,
+					StandardOpenOption.READ)) {
+				segment = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (segment.remaining() < SEGMENT_HEADER
+					|| segment.getInt() != MAGIC
+					|| segment.getInt() != VERSION) {
+				throw new IOException("Not a journal segment: " + file);
+			}
+			while (segment.remaining() >= RECORD_HEADER) {
+				int length = segment.getInt();
+				int checksum = segment.getInt();
+				if (length <= 0 || length > segment.remaining()) {
+					break;
+				}
+				if (payload.length < length) {
+					payload = new byte[Math.max(length, payload.length * 2)];
+				}
+				segment.get(payload, 0, length);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+				byte type = record.get();
+				new Decoder(record, fs).deliver(type, listener);
+				replayed++;
+			}
+		}
+		return replayed;
+	}
+
+}
@@ -0,0 +1,106 @@
+package uk.org.taverna.fswrap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, in buckets of powers of two.
+ * <p>
+ * Like an HdrHistogram with a single significant bit: recording a value only
+ * increments a counter, without locking or allocating, so it can be done on
+ * every I/O operation. Percentiles are reported as the upper bound of the
+ * bucket they fall in, so are accurate to within a factor of two.
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Bucket <code>i</code> counts values from <code>2^(i-1)</code> to
+	 * <code>2^i - 1</code>; bucket 0 counts 0.
+	 */
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private static int bucket(long nanos) {
+		if (nanos <= 0) {
+			return 0;
+		}
+		return BUCKETS - Long.numberOfLeadingZeros(nanos);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket == 0) {
+			return 0;
+		}
+		if (bucket >= BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		return (1L << bucket) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Get the counts of each bucket, where bucket <code>i</code> counts
+	 * latencies below <code>2^i</code> nanoseconds.
+	 */
+	public long[] getCounts() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get an upper bound of the latency below which the given percentage of
+	 * the recorded latencies fall.
+	 *
+	 * @param percentile
+	 *            Percentile, from 0 to 100
+	 * @return Latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		return percentile(getCounts(), percentile);
+	}
+
+	static long percentile(long[] counts, double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Invalid percentile: "
+					+ percentile);
+		}
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long wanted = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= wanted && seen > 0) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(counts.length - 1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package uk.org.taverna.fswrap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map in access order, which removes its least recently used entry when
+ * it grows beyond the maximum size.
+ * <p>
+ * Not thread-safe; callers must synchronize access, including
+ * {@link #get(Object)}, which reorders entries.
+ */
+class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int maxSize;
+
+	LruMap(int maxSize) {
+		super(16, 0.75f, true);
+		this.maxSize = maxSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+		return size() > maxSize;
+	}
+
+}
@@ -0,0 +1,127 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A byte channel of a file of a {@link MemoryFileSystem}.
+ * <p>
+ * The channel keeps its own position, so several channels of the same file
+ * can be used at once; the file itself takes care of concurrent reads and
+ * writes.
+ *
+ */
+class MemoryByteChannel implements SeekableByteChannel {
+
+	private final MemoryNode.RegularFile file;
+	private final MemoryPath path;
+	private final boolean readable;
+	private final boolean writable;
+	private final boolean append;
+	private final boolean deleteOnClose;
+	private long position;
+	private boolean open = true;
+
+	MemoryByteChannel(MemoryNode.RegularFile file, MemoryPath path,
+			boolean readable, boolean writable, boolean append,
+			boolean deleteOnClose) {
+		this.file = file;
+		this.path = path;
+		this.readable = readable;
+		this.writable = writable;
+		this.append = append;
+		this.deleteOnClose = deleteOnClose;
+		file.opened();
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		file.closed();
+		if (deleteOnClose) {
+			path.getFileSystem().provider().deleteIfExists(path);
+		}
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition)
+			throws IOException {
+		checkOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position "
+					+ newPosition);
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		if (!readable) {
+			throw new NonReadableChannelException();
+		}
+		int read = file.read(position, dst);
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		checkOpen();
+		return file.size();
+	}
+
+	@Override
+	public synchronized SeekableByteChannel truncate(long size)
+			throws IOException {
+		checkOpen();
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative size " + size);
+		}
+		file.truncate(size);
+		position = Math.min(position, size);
+		return this;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		checkOpen();
+		if (!writable) {
+			throw new NonWritableChannelException();
+		}
+		int written = src.remaining();
+		position = file.write(position, src, append);
+		return written;
+	}
+
+}
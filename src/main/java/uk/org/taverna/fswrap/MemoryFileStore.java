@@ -0,0 +1,119 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The store of a {@link MemoryFileSystem}, which counts the bytes allocated
+ * to files, and refuses to allocate more than its total space.
+ *
+ */
+public class MemoryFileStore extends FileStore {
+
+	private final String name;
+	private final long totalSpace;
+	private final AtomicLong allocated = new AtomicLong();
+
+	MemoryFileStore(String name, long totalSpace) {
+		this.name = name;
+		this.totalSpace = totalSpace;
+	}
+
+	/**
+	 * Allocate bytes for a file.
+	 *
+	 * @throws FileSystemException
+	 *             If that would be more than the total space
+	 */
+	void allocate(long bytes) throws FileSystemException {
+		while (true) {
+			long current = allocated.get();
+			if (current + bytes > totalSpace) {
+				throw new FileSystemException(name, null,
+						"No space left on device");
+			}
+			if (allocated.compareAndSet(current, current + bytes)) {
+				return;
+			}
+		}
+	}
+
+	void release(long bytes) {
+		allocated.addAndGet(-bytes);
+	}
+
+	/**
+	 * The number of bytes allocated to files, in whole blocks.
+	 */
+	public long getAllocatedSpace() {
+		return allocated.get();
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws IOException {
+		switch (attribute) {
+		case "totalSpace":
+			return getTotalSpace();
+		case "usableSpace":
+			return getUsableSpace();
+		case "unallocatedSpace":
+			return getUnallocatedSpace();
+		default:
+			throw new UnsupportedOperationException("Attribute " + attribute
+					+ " not supported");
+		}
+	}
+
+	@Override
+	public <V extends FileStoreAttributeView> V getFileStoreAttributeView(
+			Class<V> type) {
+		return null;
+	}
+
+	@Override
+	public long getTotalSpace() {
+		return totalSpace;
+	}
+
+	@Override
+	public long getUnallocatedSpace() {
+		return Math.max(0, totalSpace - allocated.get());
+	}
+
+	@Override
+	public long getUsableSpace() {
+		return getUnallocatedSpace();
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+
+	@Override
+	public String name() {
+		return name;
+	}
+
+	@Override
+	public boolean supportsFileAttributeView(
+			Class<? extends FileAttributeView> type) {
+		return type == BasicFileAttributeView.class;
+	}
+
+	@Override
+	public boolean supportsFileAttributeView(String name) {
+		return name.equals("basic");
+	}
+
+	@Override
+	public String type() {
+		return MemoryFileSystemProvider.SCHEME;
+	}
+
+}
@@ -0,0 +1,329 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import uk.org.taverna.fswrap.MemoryNode.Directory;
+
+/**
+ * A file system kept in memory, served by the
+ * {@link MemoryFileSystemProvider} for URIs like <code>mem:///name</code>,
+ * and so also wrappable as <code>wrap:mem:///name</code>.
+ * <p>
+ * File content is kept in blocks of heap buffers, or of direct buffers with
+ * the {@link #DIRECT} option, so that a large scratch file system need not
+ * be on the heap. The content of the file system is lost when it is closed.
+ * <p>
+ * Only the <code>basic</code> file attribute view is supported, and there are
+ * no symbolic links.
+ *
+ */
+public class MemoryFileSystem extends FileSystem {
+
+	/**
+	 * Key for the <code>env</code> map: if <code>true</code>, file content is
+	 * kept in direct buffers instead of on the heap.
+	 */
+	public static final String DIRECT = "direct";
+	/**
+	 * Key for the <code>env</code> map: the size of the blocks file content
+	 * is kept in.
+	 */
+	public static final String BLOCK_SIZE = "blockSize";
+	public static final int DEFAULT_BLOCK_SIZE = 8 * 1024;
+	/**
+	 * Key for the <code>env</code> map: the maximum number of bytes of file
+	 * content, in whole blocks. Unlimited by default.
+	 */
+	public static final String MAX_SIZE = "maxSize";
+
+	private static final String GLOB_SYNTAX = "glob";
+	private static final String REGEX_SYNTAX = "regex";
+
+	private final MemoryFileSystemProvider provider;
+	private final String name;
+	private final Directory rootDirectory = new Directory();
+	private final MemoryPath root = MemoryPath.root(this);
+	private final MemoryFileStore store;
+	private final int blockSize;
+	private final boolean direct;
+	private volatile boolean open = true;
+
+	MemoryFileSystem(MemoryFileSystemProvider provider, String name,
+			Map<String, ?> env) {
+		this.provider = provider;
+		this.name = name;
+		blockSize = (int) WrappedFileSystem.longOption(env, BLOCK_SIZE,
+				DEFAULT_BLOCK_SIZE);
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("Invalid " + BLOCK_SIZE + ": "
+					+ blockSize);
+		}
+		direct = WrappedFileSystem.booleanOption(env, DIRECT);
+		store = new MemoryFileStore(name, WrappedFileSystem.longOption(env,
+				MAX_SIZE, Long.MAX_VALUE));
+	}
+
+	/**
+	 * The name of the file system, as in <code>mem:///name</code>.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	MemoryPath getRoot() {
+		return root;
+	}
+
+	Directory getRootDirectory() {
+		return rootDirectory;
+	}
+
+	MemoryFileStore getStore() {
+		return store;
+	}
+
+	MemoryNode.RegularFile newFile() {
+		return new MemoryNode.RegularFile(store, blockSize, direct);
+	}
+
+	void checkOpen() {
+		if (!open) {
+			throw new ClosedFileSystemException();
+		}
+	}
+
+	/**
+	 * Find the node of an absolute, normalized path.
+	 *
+	 * @return The node, or <code>null</code> if not found
+	 */
+	MemoryNode lookup(MemoryPath path) {
+		checkOpen();
+		MemoryNode node = rootDirectory;
+		for (String name : path.names()) {
+			if (!(node instanceof Directory)) {
+				return null;
+			}
+			node = ((Directory) node).entries.get(name);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Find the node of a path, which must exist.
+	 */
+	MemoryNode lookupExisting(MemoryPath path) throws NoSuchFileException {
+		MemoryNode node = lookup(path);
+		if (node == null) {
+			throw new NoSuchFileException(path.toString());
+		}
+		return node;
+	}
+
+	/**
+	 * Find the directory a path is in, which must exist.
+	 */
+	Directory lookupParent(MemoryPath path) throws IOException {
+		MemoryPath parent = path.getParent();
+		if (parent == null) {
+			parent = root;
+		}
+		MemoryNode node = lookupExisting(parent);
+		if (!(node instanceof Directory)) {
+			throw new NotDirectoryException(parent.toString());
+		}
+		return (Directory) node;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		provider.closed(this);
+		rootDirectory.entries.clear();
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.<FileStore> singleton(store);
+	}
+
+	@Override
+	public MemoryPath getPath(String first, String... more) {
+		StringBuilder path = new StringBuilder(first);
+		for (String name : more) {
+			if (!name.isEmpty()) {
+				if (path.length() > 0) {
+					path.append('/');
+				}
+				path.append(name);
+			}
+		}
+		return MemoryPath.parse(this, path.toString());
+	}
+
+	@Override
+	public PathMatcher getPathMatcher(String syntaxAndPattern) {
+		int colon = syntaxAndPattern.indexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Invalid syntax and pattern "
+					+ syntaxAndPattern);
+		}
+		String syntax = syntaxAndPattern.substring(0, colon);
+		String pattern = syntaxAndPattern.substring(colon + 1);
+		final Pattern regex;
+		if (syntax.equalsIgnoreCase(GLOB_SYNTAX)) {
+			regex = Pattern.compile(globToRegex(pattern));
+		} else if (syntax.equalsIgnoreCase(REGEX_SYNTAX)) {
+			regex = Pattern.compile(pattern);
+		} else {
+			throw new UnsupportedOperationException("Syntax " + syntax
+					+ " not supported");
+		}
+		return new PathMatcher() {
+			@Override
+			public boolean matches(Path path) {
+				return regex.matcher(path.toString()).matches();
+			}
+		};
+	}
+
+	/**
+	 * Translate a glob pattern, as described for
+	 * {@link FileSystem#getPathMatcher(String)}, to a regular expression.
+	 */
+	static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		boolean inGroup = false;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+			case '\\':
+				if (++i >= glob.length()) {
+					throw new IllegalArgumentException("Trailing \\ in "
+							+ glob);
+				}
+				regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+				break;
+			case '*':
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+				break;
+			case '?':
+				regex.append("[^/]");
+				break;
+			case '[':
+				int end = glob.indexOf(']', i + 1);
+				if (end < 0) {
+					throw new IllegalArgumentException("Missing ] in " + glob);
+				}
+				String set = glob.substring(i + 1, end);
+				regex.append('[');
+				if (set.startsWith("!")) {
+					regex.append('^');
+					set = set.substring(1);
+				}
+				regex.append(set.replace("\\", "\\\\").replace("[", "\\[")
+						.replace("&", "\\&"));
+				regex.append(']');
+				i = end;
+				break;
+			case '{':
+				if (inGroup) {
+					throw new IllegalArgumentException("Nested { in " + glob);
+				}
+				regex.append("(?:");
+				inGroup = true;
+				break;
+			case '}':
+				if (inGroup) {
+					regex.append(')');
+					inGroup = false;
+				} else {
+					regex.append("\\}");
+				}
+				break;
+			case ',':
+				regex.append(inGroup ? "|" : ",");
+				break;
+			default:
+				if (Character.isLetterOrDigit(c) || c == '/') {
+					regex.append(c);
+				} else {
+					regex.append('\\').append(c);
+				}
+			}
+		}
+		if (inGroup) {
+			throw new IllegalArgumentException("Missing } in " + glob);
+		}
+		return regex.toString();
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		return Collections.<Path> singleton(root);
+	}
+
+	@Override
+	public String getSeparator() {
+		return "/";
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException(
+				"User principals are not supported by "
+						+ MemoryFileSystemProvider.SCHEME);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+
+	@Override
+	public WatchService newWatchService() throws IOException {
+		throw new UnsupportedOperationException(
+				"Watching is not supported by "
+						+ MemoryFileSystemProvider.SCHEME);
+	}
+
+	@Override
+	public MemoryFileSystemProvider provider() {
+		return provider;
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+
+}
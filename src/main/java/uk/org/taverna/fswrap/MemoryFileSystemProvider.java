@@ -0,0 +1,702 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.DirectoryStream.Filter;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import uk.org.taverna.fswrap.MemoryNode.Directory;
+import uk.org.taverna.fswrap.MemoryNode.RegularFile;
+
+/**
+ * Provider of {@link MemoryFileSystem}s, for URIs like
+ * <code>mem:///name/path/to/file</code>, where <code>name</code> is the name
+ * of the file system.
+ * <p>
+ * The provider is installed as a service, so that
+ * <code>wrap:mem:///name</code> can be used with
+ * {@link WrappedFileSystemProvider} like any other file system, and is
+ * created on first use.
+ * <p>
+ * Paths are looked up without locking. Changes to a directory are made
+ * holding one of a fixed set of locks, chosen by the identity of the
+ * directory, so that changes to different directories rarely wait for each
+ * other. Operations changing two directories, like moves, take both locks
+ * in a fixed order.
+ * <p>
+ * {@link #newFileChannel(Path, Set, FileAttribute...)} is not supported.
+ *
+ */
+public class MemoryFileSystemProvider extends FileSystemProvider {
+
+	public static final String SCHEME = "mem";
+
+	private static final int STRIPES = 64;
+	private static final String[] BASIC_ATTRIBUTES = { "size",
+			"lastModifiedTime", "lastAccessTime", "creationTime",
+			"isRegularFile", "isDirectory", "isSymbolicLink", "isOther",
+			"fileKey" };
+
+	private final ConcurrentMap<String, MemoryFileSystem> fileSystems = new ConcurrentHashMap<String, MemoryFileSystem>();
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+	public MemoryFileSystemProvider() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Lock the given directories, ignoring any <code>null</code>s.
+	 *
+	 * @return The locks to give to {@link #unlock(ReentrantLock[])}
+	 */
+	ReentrantLock[] lock(Directory... dirs) {
+		// In order of stripe, so that no two threads wait for each other
+		Set<Integer> indexes = new TreeSet<Integer>();
+		for (Directory dir : dirs) {
+			if (dir != null) {
+				indexes.add((System.identityHashCode(dir) & 0x7fffffff)
+						% STRIPES);
+			}
+		}
+		ReentrantLock[] locks = new ReentrantLock[indexes.size()];
+		int i = 0;
+		for (int index : indexes) {
+			locks[i] = stripes[index];
+			locks[i++].lock();
+		}
+		return locks;
+	}
+
+	void unlock(ReentrantLock[] locks) {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].unlock();
+		}
+	}
+
+	void closed(MemoryFileSystem fs) {
+		fileSystems.remove(fs.getName(), fs);
+	}
+
+	private static String fileSystemName(URI uri) {
+		if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+			throw new IllegalArgumentException("Not a " + SCHEME + " URI: "
+					+ uri);
+		}
+		String path = uri.getPath();
+		if (path == null || !path.startsWith("/") || path.length() < 2) {
+			throw new IllegalArgumentException(
+					"No file system name in URI " + uri);
+		}
+		int slash = path.indexOf('/', 1);
+		return slash < 0 ? path.substring(1) : path.substring(1, slash);
+	}
+
+	private static MemoryPath toMemoryPath(Path path) {
+		if (!(path instanceof MemoryPath)) {
+			throw new ProviderMismatchException("Wrong Path type "
+					+ (path == null ? null : path.getClass()));
+		}
+		return ((MemoryPath) path).toAbsolutePath().normalize();
+	}
+
+	private static String nameOf(MemoryPath path) {
+		return path.getFileName().toString();
+	}
+
+	private static void checkNoAttributes(FileAttribute<?>... attrs) {
+		if (attrs.length > 0) {
+			throw new UnsupportedOperationException("Attribute "
+					+ attrs[0].name() + " can not be set on creation");
+		}
+	}
+
+	@Override
+	public void checkAccess(Path path, AccessMode... modes) throws IOException {
+		MemoryPath memoryPath = toMemoryPath(path);
+		memoryPath.getFileSystem().lookupExisting(memoryPath);
+	}
+
+	@Override
+	public void copy(Path source, Path target, CopyOption... options)
+			throws IOException {
+		MemoryPath from = toMemoryPath(source);
+		MemoryPath to = toMemoryPath(target);
+		List<CopyOption> optionList = Arrays.asList(options);
+		if (optionList.contains(StandardCopyOption.ATOMIC_MOVE)) {
+			throw new UnsupportedOperationException(
+					"Atomic move is not a copy option");
+		}
+		MemoryNode node = from.getFileSystem().lookupExisting(from);
+		if (from.equals(to)) {
+			return;
+		}
+		MemoryNode copy;
+		if (node instanceof Directory) {
+			copy = new Directory();
+		} else {
+			RegularFile file = to.getFileSystem().newFile();
+			// Copied before taking any lock, as it may take a while
+			file.copyFrom((RegularFile) node);
+			copy = file;
+		}
+		if (optionList.contains(StandardCopyOption.COPY_ATTRIBUTES)) {
+			copy.copyTimes(node);
+		}
+		try {
+			insert(to, copy,
+					optionList.contains(StandardCopyOption.REPLACE_EXISTING));
+		} catch (IOException e) {
+			removed(copy);
+			throw e;
+		}
+	}
+
+	/**
+	 * Add a new node at the path, replacing any file or empty directory that
+	 * is there if asked to.
+	 */
+	private void insert(MemoryPath path, MemoryNode node, boolean replace)
+			throws IOException {
+		if (path.getNameCount() == 0) {
+			throw new FileAlreadyExistsException(path.toString());
+		}
+		MemoryFileSystem fs = path.getFileSystem();
+		String name = nameOf(path);
+		while (true) {
+			Directory parent = fs.lookupParent(path);
+			MemoryNode existing = parent.entries.get(name);
+			ReentrantLock[] locks = lock(parent, asDirectory(existing));
+			try {
+				checkNotDeleted(parent, path);
+				if (parent.entries.get(name) != existing) {
+					// Changed meanwhile
+					continue;
+				}
+				if (existing != null) {
+					if (!replace) {
+						throw new FileAlreadyExistsException(path.toString());
+					}
+					remove(parent, name, existing, path);
+				}
+				parent.entries.put(name, node);
+				parent.modified = System.currentTimeMillis();
+				return;
+			} finally {
+				unlock(locks);
+			}
+		}
+	}
+
+	private static Directory asDirectory(MemoryNode node) {
+		return node instanceof Directory ? (Directory) node : null;
+	}
+
+	private static void checkNotDeleted(Directory parent, MemoryPath path)
+			throws NoSuchFileException {
+		if (parent.deleted) {
+			throw new NoSuchFileException(String.valueOf(path.getParent()));
+		}
+	}
+
+	/**
+	 * Remove an entry from its directory, which must be locked, as must the
+	 * entry if it is a directory.
+	 */
+	private static void remove(Directory parent, String name, MemoryNode node,
+			MemoryPath path) throws DirectoryNotEmptyException {
+		if (node instanceof Directory
+				&& !((Directory) node).entries.isEmpty()) {
+			throw new DirectoryNotEmptyException(path.toString());
+		}
+		parent.entries.remove(name, node);
+		parent.modified = System.currentTimeMillis();
+		removed(node);
+	}
+
+	private static void removed(MemoryNode node) {
+		if (node instanceof Directory) {
+			((Directory) node).deleted = true;
+		} else {
+			((RegularFile) node).deleted();
+		}
+	}
+
+	@Override
+	public void createDirectory(Path dir, FileAttribute<?>... attrs)
+			throws IOException {
+		checkNoAttributes(attrs);
+		MemoryPath path = toMemoryPath(dir);
+		if (path.getNameCount() == 0) {
+			throw new FileAlreadyExistsException(path.toString());
+		}
+		Directory parent = path.getFileSystem().lookupParent(path);
+		ReentrantLock[] locks = lock(parent);
+		try {
+			checkNotDeleted(parent, path);
+			if (parent.entries.putIfAbsent(nameOf(path), new Directory()) != null) {
+				throw new FileAlreadyExistsException(path.toString());
+			}
+			parent.modified = System.currentTimeMillis();
+		} finally {
+			unlock(locks);
+		}
+	}
+
+	@Override
+	public void delete(Path path) throws IOException {
+		MemoryPath memoryPath = toMemoryPath(path);
+		if (memoryPath.getNameCount() == 0) {
+			throw new FileSystemException(memoryPath.toString(), null,
+					"Root directory can not be deleted");
+		}
+		MemoryFileSystem fs = memoryPath.getFileSystem();
+		String name = nameOf(memoryPath);
+		while (true) {
+			Directory parent = fs.lookupParent(memoryPath);
+			MemoryNode node = parent.entries.get(name);
+			if (node == null) {
+				throw new NoSuchFileException(memoryPath.toString());
+			}
+			ReentrantLock[] locks = lock(parent, asDirectory(node));
+			try {
+				if (parent.entries.get(name) != node) {
+					continue;
+				}
+				remove(parent, name, node, memoryPath);
+				return;
+			} finally {
+				unlock(locks);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <V extends FileAttributeView> V getFileAttributeView(Path path,
+			Class<V> type, LinkOption... options) {
+		if (type != BasicFileAttributeView.class) {
+			return null;
+		}
+		final MemoryPath memoryPath = toMemoryPath(path);
+		return (V) new BasicFileAttributeView() {
+			@Override
+			public String name() {
+				return "basic";
+			}
+
+			@Override
+			public BasicFileAttributes readAttributes() throws IOException {
+				return memoryPath.getFileSystem().lookupExisting(memoryPath)
+						.readAttributes();
+			}
+
+			@Override
+			public void setTimes(FileTime lastModifiedTime,
+					FileTime lastAccessTime, FileTime createTime)
+					throws IOException {
+				memoryPath.getFileSystem().lookupExisting(memoryPath)
+						.setTimes(lastModifiedTime, lastAccessTime, createTime);
+			}
+		};
+	}
+
+	@Override
+	public FileStore getFileStore(Path path) throws IOException {
+		MemoryPath memoryPath = toMemoryPath(path);
+		memoryPath.getFileSystem().lookupExisting(memoryPath);
+		return memoryPath.getFileSystem().getStore();
+	}
+
+	@Override
+	public MemoryFileSystem getFileSystem(URI uri) {
+		MemoryFileSystem fs = fileSystems.get(fileSystemName(uri));
+		if (fs == null) {
+			throw new FileSystemNotFoundException(uri.toString());
+		}
+		return fs;
+	}
+
+	@Override
+	public MemoryPath getPath(URI uri) {
+		MemoryFileSystem fs = getFileSystem(uri);
+		String path = uri.getPath().substring(fs.getName().length() + 1);
+		return fs.getPath(path.isEmpty() ? "/" : path);
+	}
+
+	@Override
+	public String getScheme() {
+		return SCHEME;
+	}
+
+	@Override
+	public boolean isHidden(Path path) throws IOException {
+		MemoryPath fileName = toMemoryPath(path).getFileName();
+		return fileName != null && fileName.toString().startsWith(".");
+	}
+
+	@Override
+	public boolean isSameFile(Path path, Path path2) throws IOException {
+		if (path.equals(path2)) {
+			return true;
+		}
+		if (!(path2 instanceof MemoryPath)) {
+			return false;
+		}
+		MemoryPath first = toMemoryPath(path);
+		MemoryPath second = toMemoryPath(path2);
+		return first.getFileSystem().lookupExisting(first) == second
+				.getFileSystem().lookupExisting(second);
+	}
+
+	@Override
+	public void move(Path source, Path target, CopyOption... options)
+			throws IOException {
+		MemoryPath from = toMemoryPath(source);
+		MemoryPath to = toMemoryPath(target);
+		boolean replace = Arrays.asList(options).contains(
+				StandardCopyOption.REPLACE_EXISTING);
+		if (from.getFileSystem() != to.getFileSystem()) {
+			moveBetween(from, to, replace);
+			return;
+		}
+		MemoryFileSystem fs = from.getFileSystem();
+		MemoryNode node = fs.lookupExisting(from);
+		if (from.equals(to)) {
+			return;
+		}
+		if (from.getNameCount() == 0 || to.startsWith(from)) {
+			throw new FileSystemException(from.toString(), to.toString(),
+					"Directory can not be moved into itself");
+		}
+		if (to.getNameCount() == 0) {
+			throw new FileAlreadyExistsException(to.toString());
+		}
+		String fromName = nameOf(from);
+		String toName = nameOf(to);
+		while (true) {
+			Directory fromParent = fs.lookupParent(from);
+			Directory toParent = fs.lookupParent(to);
+			node = fromParent.entries.get(fromName);
+			if (node == null) {
+				throw new NoSuchFileException(from.toString());
+			}
+			MemoryNode existing = toParent.entries.get(toName);
+			ReentrantLock[] locks = lock(fromParent, toParent,
+					asDirectory(existing));
+			try {
+				checkNotDeleted(toParent, to);
+				if (fromParent.deleted
+						|| fromParent.entries.get(fromName) != node
+						|| toParent.entries.get(toName) != existing) {
+					continue;
+				}
+				if (existing != null) {
+					if (!replace) {
+						throw new FileAlreadyExistsException(to.toString());
+					}
+					remove(toParent, toName, existing, to);
+				}
+				fromParent.entries.remove(fromName, node);
+				toParent.entries.put(toName, node);
+				long now = System.currentTimeMillis();
+				fromParent.modified = now;
+				toParent.modified = now;
+				return;
+			} finally {
+				unlock(locks);
+			}
+		}
+	}
+
+	/**
+	 * Move between different memory file systems, by copying and deleting,
+	 * which for a directory only works if it is empty.
+	 */
+	private void moveBetween(MemoryPath from, MemoryPath to, boolean replace)
+			throws IOException {
+		MemoryNode node = from.getFileSystem().lookupExisting(from);
+		if (node instanceof Directory
+				&& !((Directory) node).entries.isEmpty()) {
+			throw new DirectoryNotEmptyException(from.toString());
+		}
+		if (replace) {
+			copy(from, to, StandardCopyOption.COPY_ATTRIBUTES,
+					StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+		}
+		delete(from);
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(Path path,
+			Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		checkNoAttributes(attrs);
+		MemoryPath memoryPath = toMemoryPath(path);
+		boolean append = options.contains(StandardOpenOption.APPEND);
+		boolean write = append || options.contains(StandardOpenOption.WRITE);
+		boolean read = options.contains(StandardOpenOption.READ) || !write;
+		if (append
+				&& (options.contains(StandardOpenOption.READ) || options
+						.contains(StandardOpenOption.TRUNCATE_EXISTING))) {
+			throw new IllegalArgumentException(
+					"APPEND not allowed with READ or TRUNCATE_EXISTING");
+		}
+		boolean createNew = write
+				&& options.contains(StandardOpenOption.CREATE_NEW);
+		boolean create = createNew || write
+				&& options.contains(StandardOpenOption.CREATE);
+		MemoryFileSystem fs = memoryPath.getFileSystem();
+		MemoryNode node = createNew ? null : fs.lookup(memoryPath);
+		if (node == null) {
+			if (!create) {
+				throw new NoSuchFileException(memoryPath.toString());
+			}
+			if (memoryPath.getNameCount() == 0) {
+				throw new FileAlreadyExistsException(memoryPath.toString());
+			}
+			Directory parent = fs.lookupParent(memoryPath);
+			String name = nameOf(memoryPath);
+			ReentrantLock[] locks = lock(parent);
+			try {
+				checkNotDeleted(parent, memoryPath);
+				node = parent.entries.get(name);
+				if (node == null) {
+					node = fs.newFile();
+					parent.entries.put(name, node);
+					parent.modified = System.currentTimeMillis();
+				} else if (createNew) {
+					throw new FileAlreadyExistsException(memoryPath.toString());
+				}
+			} finally {
+				unlock(locks);
+			}
+		}
+		if (node instanceof Directory) {
+			throw new FileSystemException(memoryPath.toString(), null,
+					"Is a directory");
+		}
+		RegularFile file = (RegularFile) node;
+		if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+			file.truncate(0);
+		}
+		return new MemoryByteChannel(file, memoryPath, read, write, append,
+				options.contains(StandardOpenOption.DELETE_ON_CLOSE));
+	}
+
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path dir,
+			final Filter<? super Path> filter) throws IOException {
+		final MemoryPath memoryPath = toMemoryPath(dir);
+		MemoryNode node = memoryPath.getFileSystem().lookupExisting(
+				memoryPath);
+		if (!(node instanceof Directory)) {
+			throw new NotDirectoryException(memoryPath.toString());
+		}
+		// Entries are resolved against the path as given, as by other
+		// providers
+		final Path given = dir;
+		final Iterator<String> names = new ArrayList<String>(
+				((Directory) node).entries.keySet()).iterator();
+		return new DirectoryStream<Path>() {
+			private boolean open = true;
+			private boolean iterated;
+
+			@Override
+			public void close() {
+				open = false;
+			}
+
+			@Override
+			public Iterator<Path> iterator() {
+				if (!open || iterated) {
+					throw new IllegalStateException(
+							"Directory stream closed or already iterated");
+				}
+				iterated = true;
+				return new Iterator<Path>() {
+					private Path next;
+
+					@Override
+					public boolean hasNext() {
+						while (next == null && open && names.hasNext()) {
+							Path entry = given.resolve(names.next());
+							try {
+								if (filter.accept(entry)) {
+									next = entry;
+								}
+							} catch (IOException e) {
+								throw new DirectoryIteratorException(e);
+							}
+						}
+						return next != null;
+					}
+
+					@Override
+					public Path next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						Path entry = next;
+						next = null;
+						return entry;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public MemoryFileSystem newFileSystem(URI uri, Map<String, ?> env)
+			throws IOException {
+		String name = fileSystemName(uri);
+		MemoryFileSystem fs = new MemoryFileSystem(this, name, env);
+		if (fileSystems.putIfAbsent(name, fs) != null) {
+			throw new FileSystemAlreadyExistsException(uri.toString());
+		}
+		return fs;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <A extends BasicFileAttributes> A readAttributes(Path path,
+			Class<A> type, LinkOption... options) throws IOException {
+		if (type != BasicFileAttributes.class) {
+			throw new UnsupportedOperationException("Attributes " + type
+					+ " not supported");
+		}
+		MemoryPath memoryPath = toMemoryPath(path);
+		return (A) memoryPath.getFileSystem().lookupExisting(memoryPath)
+				.readAttributes();
+	}
+
+	@Override
+	public Map<String, Object> readAttributes(Path path, String attributes,
+			LinkOption... options) throws IOException {
+		String names = basicAttributeNames(attributes);
+		BasicFileAttributes read = readAttributes(path,
+				BasicFileAttributes.class, options);
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (String name : names.split(",")) {
+			if (name.equals("*")) {
+				for (String each : BASIC_ATTRIBUTES) {
+					map.put(each, basicAttribute(read, each));
+				}
+			} else {
+				map.put(name, basicAttribute(read, name));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * The attribute names of a <code>basic</code> view attribute string, like
+	 * <code>basic:size,lastModifiedTime</code>.
+	 */
+	private static String basicAttributeNames(String attributes) {
+		int colon = attributes.indexOf(':');
+		if (colon < 0) {
+			return attributes;
+		}
+		String view = attributes.substring(0, colon);
+		if (!view.equals("basic")) {
+			throw new UnsupportedOperationException("View " + view
+					+ " not supported");
+		}
+		return attributes.substring(colon + 1);
+	}
+
+	private static Object basicAttribute(BasicFileAttributes attributes,
+			String name) {
+		switch (name) {
+		case "size":
+			return attributes.size();
+		case "lastModifiedTime":
+			return attributes.lastModifiedTime();
+		case "lastAccessTime":
+			return attributes.lastAccessTime();
+		case "creationTime":
+			return attributes.creationTime();
+		case "isRegularFile":
+			return attributes.isRegularFile();
+		case "isDirectory":
+			return attributes.isDirectory();
+		case "isSymbolicLink":
+			return attributes.isSymbolicLink();
+		case "isOther":
+			return attributes.isOther();
+		case "fileKey":
+			return attributes.fileKey();
+		default:
+			throw new IllegalArgumentException("Unknown attribute " + name);
+		}
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value,
+			LinkOption... options) throws IOException {
+		String name = basicAttributeNames(attribute);
+		MemoryPath memoryPath = toMemoryPath(path);
+		MemoryNode node = memoryPath.getFileSystem().lookupExisting(
+				memoryPath);
+		switch (name) {
+		case "lastModifiedTime":
+			node.setTimes((FileTime) value, null, null);
+			break;
+		case "lastAccessTime":
+			node.setTimes(null, (FileTime) value, null);
+			break;
+		case "creationTime":
+			node.setTimes(null, null, (FileTime) value);
+			break;
+		default:
+			throw new IllegalArgumentException("Attribute " + name
+					+ " can not be set");
+		}
+	}
+
+}
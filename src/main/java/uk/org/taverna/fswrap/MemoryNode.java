@@ -0,0 +1,373 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A file or directory of a {@link MemoryFileSystem}.
+ * <p>
+ * Nodes know nothing of their names or parents, so a node can be moved by
+ * adding it to another directory. Opened channels keep the node, so they can
+ * still be used after the file is deleted or moved.
+ *
+ */
+abstract class MemoryNode {
+
+	/**
+	 * A directory, with its entries in a concurrent map, so that looking up
+	 * paths takes no locks.
+	 * <p>
+	 * Entries are added or removed only while holding the lock of the
+	 * directory from {@link MemoryFileSystemProvider#lock(Directory...)}.
+	 */
+	static final class Directory extends MemoryNode {
+		final ConcurrentMap<String, MemoryNode> entries = new ConcurrentHashMap<String, MemoryNode>();
+		/**
+		 * Set when the directory is removed, so nothing can be added to it
+		 * by someone who looked it up before.
+		 */
+		volatile boolean deleted;
+
+		@Override
+		boolean isDirectory() {
+			return true;
+		}
+
+		@Override
+		long size() {
+			return 0;
+		}
+	}
+
+	/**
+	 * A regular file, with its content in blocks of heap or direct buffers,
+	 * which are allocated from its {@link MemoryFileStore} as the file grows.
+	 * <p>
+	 * Reads of a file can run concurrently; writes are exclusive.
+	 */
+	static final class RegularFile extends MemoryNode {
+		private final MemoryFileStore store;
+		private final int blockSize;
+		private final boolean direct;
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+		private volatile long size;
+		private int openChannels;
+		private boolean deleted;
+
+		RegularFile(MemoryFileStore store, int blockSize, boolean direct) {
+			this.store = store;
+			this.blockSize = blockSize;
+			this.direct = direct;
+		}
+
+		@Override
+		boolean isDirectory() {
+			return false;
+		}
+
+		@Override
+		long size() {
+			return size;
+		}
+
+		MemoryFileStore getStore() {
+			return store;
+		}
+
+		/**
+		 * Read bytes from the position into the buffer.
+		 *
+		 * @return The number of bytes read, or -1 at the end of the file
+		 */
+		int read(long position, ByteBuffer dst) {
+			lock.readLock().lock();
+			try {
+				if (position >= size) {
+					return dst.hasRemaining() ? -1 : 0;
+				}
+				int length = (int) Math.min(dst.remaining(), size - position);
+				int done = 0;
+				while (done < length) {
+					long at = position + done;
+					int offset = (int) (at % blockSize);
+					int count = Math.min(length - done, blockSize - offset);
+					// A duplicate, as other readers use the block too
+					ByteBuffer block = blocks.get((int) (at / blockSize))
+							.duplicate();
+					block.limit(offset + count).position(offset);
+					dst.put(block);
+					done += count;
+				}
+				accessed = System.currentTimeMillis();
+				return length;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Write the bytes of the buffer at the position, or at the end of
+		 * the file if appending, growing the file if needed.
+		 *
+		 * @return The position after the bytes written
+		 * @throws IOException
+		 *             If the store has no space left
+		 */
+		long write(long position, ByteBuffer src, boolean append)
+				throws IOException {
+			lock.writeLock().lock();
+			try {
+				if (append) {
+					position = size;
+				}
+				int length = src.remaining();
+				allocate(position + length);
+				int done = 0;
+				while (done < length) {
+					long at = position + done;
+					int offset = (int) (at % blockSize);
+					int count = Math.min(length - done, blockSize - offset);
+					ByteBuffer block = blocks.get((int) (at / blockSize))
+							.duplicate();
+					block.position(offset);
+					ByteBuffer part = src.duplicate();
+					part.limit(part.position() + count);
+					block.put(part);
+					src.position(src.position() + count);
+					done += count;
+				}
+				size = Math.max(size, position + length);
+				modified = System.currentTimeMillis();
+				return position + length;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Ensure there are blocks for the given size. New blocks are all
+		 * zeros, so a gap written over reads as zeros.
+		 */
+		private void allocate(long newSize) throws IOException {
+			long needed = (newSize + blockSize - 1) / blockSize;
+			if (needed > blocks.size()) {
+				store.allocate((needed - blocks.size()) * blockSize);
+				while (blocks.size() < needed) {
+					blocks.add(direct ? ByteBuffer.allocateDirect(blockSize)
+							: ByteBuffer.allocate(blockSize));
+				}
+			}
+		}
+
+		void truncate(long newSize) {
+			lock.writeLock().lock();
+			try {
+				if (newSize >= size) {
+					return;
+				}
+				int keep = (int) ((newSize + blockSize - 1) / blockSize);
+				release(keep);
+				int tail = (int) (newSize % blockSize);
+				if (tail > 0) {
+					// Zero the rest of the last block, in case it is extended
+					ByteBuffer block = blocks.get(keep - 1).duplicate();
+					block.position(tail);
+					while (block.hasRemaining()) {
+						block.put((byte) 0);
+					}
+				}
+				size = newSize;
+				modified = System.currentTimeMillis();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		private void release(int keep) {
+			if (blocks.size() > keep) {
+				store.release((long) (blocks.size() - keep) * blockSize);
+				blocks.subList(keep, blocks.size()).clear();
+			}
+		}
+
+		/**
+		 * Replace the content of this (new) file with that of another file.
+		 */
+		void copyFrom(RegularFile other) throws IOException {
+			other.lock.readLock().lock();
+			lock.writeLock().lock();
+			try {
+				allocate(other.size);
+				ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+				for (long position = 0; position < other.size; position += blockSize) {
+					buffer.clear();
+					// Already holding the read lock, which is reentrant
+					other.read(position, buffer);
+					buffer.flip();
+					ByteBuffer block = blocks.get((int) (position / blockSize))
+							.duplicate();
+					block.clear();
+					block.put(buffer);
+				}
+				size = other.size;
+			} finally {
+				lock.writeLock().unlock();
+				other.lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Called when a channel is opened on the file.
+		 */
+		void opened() {
+			lock.writeLock().lock();
+			try {
+				openChannels++;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Called when a channel of the file is closed; frees the content of a
+		 * deleted file once no channel is open.
+		 */
+		void closed() {
+			lock.writeLock().lock();
+			try {
+				openChannels--;
+				if (deleted && openChannels == 0) {
+					release(0);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Called when the file has been removed from its directory; frees the
+		 * content unless a channel is still open.
+		 */
+		void deleted() {
+			lock.writeLock().lock();
+			try {
+				deleted = true;
+				if (openChannels == 0) {
+					release(0);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * A snapshot of the attributes of a node.
+	 */
+	private static final class Attributes implements BasicFileAttributes {
+		private final MemoryNode node;
+		private final long created;
+		private final long modified;
+		private final long accessed;
+		private final long size;
+
+		private Attributes(MemoryNode node) {
+			this.node = node;
+			created = node.created;
+			modified = node.modified;
+			accessed = node.accessed;
+			size = node.size();
+		}
+
+		@Override
+		public FileTime creationTime() {
+			return FileTime.fromMillis(created);
+		}
+
+		@Override
+		public Object fileKey() {
+			return node;
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return node.isDirectory();
+		}
+
+		@Override
+		public boolean isOther() {
+			return false;
+		}
+
+		@Override
+		public boolean isRegularFile() {
+			return !node.isDirectory();
+		}
+
+		@Override
+		public boolean isSymbolicLink() {
+			return false;
+		}
+
+		@Override
+		public FileTime lastAccessTime() {
+			return FileTime.fromMillis(accessed);
+		}
+
+		@Override
+		public FileTime lastModifiedTime() {
+			return FileTime.fromMillis(modified);
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+	}
+
+	volatile long created = System.currentTimeMillis();
+	volatile long modified = created;
+	volatile long accessed = created;
+
+	abstract boolean isDirectory();
+
+	abstract long size();
+
+	BasicFileAttributes readAttributes() {
+		return new Attributes(this);
+	}
+
+	void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime,
+			FileTime createTime) {
+		if (lastModifiedTime != null) {
+			modified = lastModifiedTime.to(TimeUnit.MILLISECONDS);
+		}
+		if (lastAccessTime != null) {
+			accessed = lastAccessTime.to(TimeUnit.MILLISECONDS);
+		}
+		if (createTime != null) {
+			created = createTime.to(TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Copy the times of another node, as for
+	 * {@link java.nio.file.StandardCopyOption#COPY_ATTRIBUTES}.
+	 */
+	void copyTimes(MemoryNode other) {
+		created = other.created;
+		modified = other.modified;
+		accessed = other.accessed;
+	}
+
+}
@@ -0,0 +1,351 @@
+package uk.org.taverna.fswrap;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchEvent.Modifier;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path of a {@link MemoryFileSystem}, which like a Unix path has the
+ * separator <code>/</code> and one root, <code>/</code>.
+ * <p>
+ * Paths are immutable: the names are kept as an array, which is never
+ * modified after construction.
+ *
+ */
+public class MemoryPath implements Path {
+
+	private static final String[] NO_NAMES = new String[0];
+
+	private final MemoryFileSystem fileSystem;
+	private final boolean absolute;
+	private final String[] names;
+
+	MemoryPath(MemoryFileSystem fileSystem, boolean absolute, String... names) {
+		this.fileSystem = fileSystem;
+		this.absolute = absolute;
+		this.names = names;
+	}
+
+	/**
+	 * Parse a path string, ignoring empty names, as in <code>a//b/</code>.
+	 */
+	static MemoryPath parse(MemoryFileSystem fileSystem, String path) {
+		if (path.indexOf('\0') >= 0) {
+			throw new InvalidPathException(path, "Nul character not allowed");
+		}
+		List<String> names = new ArrayList<String>();
+		for (String name : path.split("/")) {
+			if (!name.isEmpty()) {
+				names.add(name);
+			}
+		}
+		return new MemoryPath(fileSystem, path.startsWith("/"),
+				names.toArray(new String[names.size()]));
+	}
+
+	private MemoryPath toMemoryPath(Path other) {
+		if (!(other instanceof MemoryPath)) {
+			throw new ProviderMismatchException("Wrong Path type "
+					+ (other == null ? null : other.getClass()));
+		}
+		return (MemoryPath) other;
+	}
+
+	String[] names() {
+		return names;
+	}
+
+	@Override
+	public int compareTo(Path other) {
+		return toString().compareTo(toMemoryPath(other).toString());
+	}
+
+	@Override
+	public boolean endsWith(Path other) {
+		MemoryPath path = toMemoryPath(other);
+		if (path.absolute) {
+			return equals(path);
+		}
+		if (path.names.length > names.length) {
+			return false;
+		}
+		int offset = names.length - path.names.length;
+		for (int i = 0; i < path.names.length; i++) {
+			if (!names[offset + i].equals(path.names[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endsWith(String other) {
+		return endsWith(parse(fileSystem, other));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof MemoryPath)) {
+			return false;
+		}
+		MemoryPath other = (MemoryPath) obj;
+		return fileSystem == other.fileSystem && absolute == other.absolute
+				&& Arrays.equals(names, other.names);
+	}
+
+	@Override
+	public MemoryPath getFileName() {
+		if (names.length == 0) {
+			return null;
+		}
+		return new MemoryPath(fileSystem, false, names[names.length - 1]);
+	}
+
+	@Override
+	public MemoryFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	@Override
+	public MemoryPath getName(int index) {
+		if (index < 0 || index >= names.length) {
+			throw new IllegalArgumentException("Invalid name index " + index);
+		}
+		return new MemoryPath(fileSystem, false, names[index]);
+	}
+
+	@Override
+	public int getNameCount() {
+		return names.length;
+	}
+
+	@Override
+	public MemoryPath getParent() {
+		if (names.length == 0 || (names.length == 1 && !absolute)) {
+			return null;
+		}
+		return new MemoryPath(fileSystem, absolute, Arrays.copyOf(names,
+				names.length - 1));
+	}
+
+	@Override
+	public MemoryPath getRoot() {
+		return absolute ? fileSystem.getRoot() : null;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(names) + (absolute ? 1 : 0);
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return absolute;
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		List<Path> paths = new ArrayList<Path>(names.length);
+		for (String name : names) {
+			paths.add(new MemoryPath(fileSystem, false, name));
+		}
+		return paths.iterator();
+	}
+
+	@Override
+	public MemoryPath normalize() {
+		List<String> normal = new ArrayList<String>(names.length);
+		for (String name : names) {
+			if (name.equals(".")) {
+				continue;
+			}
+			if (name.equals("..")) {
+				if (!normal.isEmpty()
+						&& !normal.get(normal.size() - 1).equals("..")) {
+					normal.remove(normal.size() - 1);
+					continue;
+				}
+				if (absolute) {
+					// Parent of the root is the root
+					continue;
+				}
+			}
+			normal.add(name);
+		}
+		return new MemoryPath(fileSystem, absolute,
+				normal.toArray(new String[normal.size()]));
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, Kind<?>... events)
+			throws IOException {
+		return register(watcher, events, new Modifier[0]);
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, Kind<?>[] events,
+			Modifier... modifiers) throws IOException {
+		throw new UnsupportedOperationException(
+				"Watching is not supported by " + MemoryFileSystemProvider.SCHEME);
+	}
+
+	@Override
+	public MemoryPath relativize(Path other) {
+		MemoryPath path = toMemoryPath(other);
+		if (absolute != path.absolute) {
+			throw new IllegalArgumentException(
+					"Only paths of the same type can be relativized");
+		}
+		int common = 0;
+		while (common < names.length && common < path.names.length
+				&& names[common].equals(path.names[common])) {
+			common++;
+		}
+		List<String> relative = new ArrayList<String>();
+		for (int i = common; i < names.length; i++) {
+			relative.add("..");
+		}
+		relative.addAll(Arrays.asList(path.names).subList(common,
+				path.names.length));
+		return new MemoryPath(fileSystem, false,
+				relative.toArray(new String[relative.size()]));
+	}
+
+	@Override
+	public MemoryPath resolve(Path other) {
+		MemoryPath path = toMemoryPath(other);
+		if (path.absolute) {
+			return path;
+		}
+		if (path.names.length == 0) {
+			return this;
+		}
+		String[] resolved = Arrays.copyOf(names, names.length
+				+ path.names.length);
+		System.arraycopy(path.names, 0, resolved, names.length,
+				path.names.length);
+		return new MemoryPath(fileSystem, absolute, resolved);
+	}
+
+	@Override
+	public MemoryPath resolve(String other) {
+		return resolve(parse(fileSystem, other));
+	}
+
+	@Override
+	public MemoryPath resolveSibling(Path other) {
+		MemoryPath parent = getParent();
+		if (parent == null) {
+			return toMemoryPath(other);
+		}
+		return parent.resolve(other);
+	}
+
+	@Override
+	public MemoryPath resolveSibling(String other) {
+		return resolveSibling(parse(fileSystem, other));
+	}
+
+	@Override
+	public boolean startsWith(Path other) {
+		if (!(other instanceof MemoryPath)) {
+			return false;
+		}
+		MemoryPath path = (MemoryPath) other;
+		if (path.fileSystem != fileSystem || path.absolute != absolute
+				|| path.names.length > names.length) {
+			return false;
+		}
+		for (int i = 0; i < path.names.length; i++) {
+			if (!names[i].equals(path.names[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startsWith(String other) {
+		return startsWith(parse(fileSystem, other));
+	}
+
+	@Override
+	public MemoryPath subpath(int beginIndex, int endIndex) {
+		if (beginIndex < 0 || endIndex > names.length
+				|| beginIndex >= endIndex) {
+			throw new IllegalArgumentException("Invalid subpath "
+					+ beginIndex + " to " + endIndex);
+		}
+		return new MemoryPath(fileSystem, false, Arrays.copyOfRange(names,
+				beginIndex, endIndex));
+	}
+
+	@Override
+	public MemoryPath toAbsolutePath() {
+		if (absolute) {
+			return this;
+		}
+		// The working directory is the root
+		return new MemoryPath(fileSystem, true, names);
+	}
+
+	@Override
+	public File toFile() {
+		throw new UnsupportedOperationException(
+				"Not a path of the default file system");
+	}
+
+	@Override
+	public MemoryPath toRealPath(LinkOption... options) throws IOException {
+		MemoryPath real = toAbsolutePath().normalize();
+		// Fails unless it exists
+		fileSystem.provider().readAttributes(real, BasicFileAttributes.class,
+				options);
+		return real;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		if (absolute) {
+			s.append('/');
+		}
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				s.append('/');
+			}
+			s.append(names[i]);
+		}
+		return s.toString();
+	}
+
+	@Override
+	public URI toUri() {
+		try {
+			return new URI(MemoryFileSystemProvider.SCHEME, null, "/"
+					+ fileSystem.getName() + toAbsolutePath(), null);
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException("Could not make URI for " + this,
+					e);
+		}
+	}
+
+	static MemoryPath root(MemoryFileSystem fileSystem) {
+		return new MemoryPath(fileSystem, true, NO_NAMES);
+	}
+
+}
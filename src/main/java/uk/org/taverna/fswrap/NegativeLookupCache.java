@@ -0,0 +1,114 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of original paths that were found not to exist, so that repeated
+ * lookups of missing paths through a {@link WrappedFileSystem} do not need
+ * to ask the original file system.
+ * <p>
+ * Entries expire after a time-to-live, and the least recently used paths are
+ * evicted when the cache is full. The provider invalidates the entries of
+ * paths that are created through the wrapped file system; paths created
+ * directly in the original file system are only noticed when entries
+ * expire.
+ *
+ */
+public class NegativeLookupCache {
+
+	private final LruMap<Path, Long> missing;
+	private final long ttlNanos;
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of missing paths to remember
+	 * @param ttl
+	 *            How long to remember a missing path, in milliseconds
+	 */
+	public NegativeLookupCache(int maxSize, long ttl) {
+		missing = new LruMap<Path, Long>(maxSize);
+		ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath();
+	}
+
+	/**
+	 * Remember that the original path does not exist.
+	 */
+	public void add(Path path) {
+		Path key = key(path);
+		long expires = System.nanoTime() + ttlNanos;
+		synchronized (this) {
+			missing.put(key, expires);
+		}
+	}
+
+	public synchronized void clear() {
+		missing.clear();
+	}
+
+	/**
+	 * The number of lookups answered by the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Forget that the original path does not exist.
+	 */
+	public void invalidate(Path path) {
+		Path key = key(path);
+		synchronized (this) {
+			missing.remove(key);
+		}
+	}
+
+	/**
+	 * Forget that the original path, or any path within it, does not exist.
+	 */
+	public void invalidateTree(Path path) {
+		Path key = key(path);
+		synchronized (this) {
+			Iterator<Path> it = missing.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(key)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if the original path is known not to exist.
+	 */
+	public boolean isMissing(Path path) {
+		Path key = key(path);
+		synchronized (this) {
+			Long expires = missing.get(key);
+			if (expires == null) {
+				return false;
+			}
+			if (expires - System.nanoTime() <= 0) {
+				missing.remove(key);
+				return false;
+			}
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * The number of missing paths remembered.
+	 */
+	public synchronized int size() {
+		return missing.size();
+	}
+
+}
@@ -0,0 +1,575 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A copy-on-write overlay of a writable upper directory over a read-only
+ * lower directory, possibly of another file system, such as a zip file.
+ * <p>
+ * Paths within the upper directory show the merged content of both: a file
+ * is read from the upper directory if it is there, and otherwise from the
+ * lower directory. A file of the lower directory is copied up to the upper
+ * directory before it is modified, and so are its parent directories.
+ * Nothing is ever written to the lower directory.
+ * <p>
+ * Deleting a file or directory that is in the lower directory leaves a
+ * <em>whiteout</em> in the upper directory, an empty file named
+ * {@value #WHITEOUT_PREFIX} followed by its name, which hides it. A
+ * directory created where one was deleted is marked {@value #OPAQUE}, so
+ * the entries of the lower directory are not shown in it. Whiteouts are not
+ * listed in directory streams.
+ * <p>
+ * Directories with entries in the lower directory can not be moved.
+ * <p>
+ * All paths given to and returned by this class are original paths of the
+ * upper file system, except for those returned by {@link #resolve(Path)}.
+ *
+ */
+public class Overlay {
+
+	public static final String WHITEOUT_PREFIX = ".wh.";
+	public static final String OPAQUE = WHITEOUT_PREFIX + WHITEOUT_PREFIX
+			+ ".opq";
+
+	private static final LinkOption[] NOFOLLOW = { LinkOption.NOFOLLOW_LINKS };
+
+	/**
+	 * Merged directory stream: upper entries other than whiteouts, then the
+	 * lower entries not hidden by them.
+	 */
+	private final class MergedDirectoryStream implements
+			DirectoryStream<Path> {
+		private final Path dir;
+		private final DirectoryStream<Path> upper;
+		private final DirectoryStream<Path> lower;
+		private final Filter<? super Path> filter;
+		private boolean iterated;
+
+		private MergedDirectoryStream(Path dir, DirectoryStream<Path> upper,
+				DirectoryStream<Path> lower, Filter<? super Path> filter) {
+			this.dir = dir;
+			this.upper = upper;
+			this.lower = lower;
+			this.filter = filter;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (upper != null) {
+					upper.close();
+				}
+			} finally {
+				if (lower != null) {
+					lower.close();
+				}
+			}
+		}
+
+		@Override
+		public Iterator<Path> iterator() {
+			if (iterated) {
+				throw new IllegalStateException("Already iterated");
+			}
+			iterated = true;
+			final Iterator<Path> upperIt = upper == null ? null : upper
+					.iterator();
+			final Iterator<Path> lowerIt = lower == null ? null : lower
+					.iterator();
+			return new Iterator<Path>() {
+				/**
+				 * Names in the upper directory, including whiteouts, which
+				 * hide lower entries of the same name.
+				 */
+				private final Set<String> upperNames = new HashSet<String>();
+				private Path next;
+
+				@Override
+				public boolean hasNext() {
+					try {
+						while (next == null && upperIt != null
+								&& upperIt.hasNext()) {
+							String name = upperIt.next().getFileName()
+									.toString();
+							if (name.startsWith(WHITEOUT_PREFIX)) {
+								upperNames.add(name.substring(WHITEOUT_PREFIX
+										.length()));
+							} else {
+								upperNames.add(name);
+								next = accept(dir.resolve(name));
+							}
+						}
+						while (next == null && lowerIt != null
+								&& lowerIt.hasNext()) {
+							String name = lowerIt.next().getFileName()
+									.toString();
+							if (!upperNames.contains(name)) {
+								next = accept(dir.resolve(name));
+							}
+						}
+					} catch (IOException e) {
+						throw new DirectoryIteratorException(e);
+					}
+					return next != null;
+				}
+
+				private Path accept(Path entry) throws IOException {
+					return filter.accept(entry) ? entry : null;
+				}
+
+				@Override
+				public Path next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					Path entry = next;
+					next = null;
+					return entry;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	private final Path upperRoot;
+	private final Path lowerRoot;
+
+	/**
+	 * @param upperRoot
+	 *            Writable directory
+	 * @param lowerRoot
+	 *            Directory to show beneath it, which is never modified
+	 */
+	public Overlay(Path upperRoot, Path lowerRoot) throws IOException {
+		this.upperRoot = upperRoot.toAbsolutePath().normalize();
+		this.lowerRoot = lowerRoot.toAbsolutePath().normalize();
+		Files.createDirectories(this.upperRoot);
+		if (!Files.isDirectory(this.lowerRoot)) {
+			throw new NoSuchFileException(lowerRoot.toString(), null,
+					"Lower directory of overlay not found");
+		}
+	}
+
+	public Path getLowerRoot() {
+		return lowerRoot;
+	}
+
+	public Path getUpperRoot() {
+		return upperRoot;
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+
+	private static boolean exists(Path path) {
+		return Files.exists(path, NOFOLLOW);
+	}
+
+	private static Path whiteout(Path upper) {
+		return upper.resolveSibling(WHITEOUT_PREFIX + upper.getFileName());
+	}
+
+	/**
+	 * Check if the original path is within the upper directory, where the
+	 * lower directory shows through.
+	 */
+	public boolean covers(Path path) {
+		return key(path).startsWith(upperRoot);
+	}
+
+	/**
+	 * The path in the lower directory corresponding to the path within the
+	 * upper directory, whether it exists or not.
+	 */
+	public Path toLowerPath(Path path) {
+		Path lower = lowerRoot;
+		// Name by name, as the lower directory may be of another file system
+		for (Path name : upperRoot.relativize(key(path))) {
+			lower = lower.resolve(name.toString());
+		}
+		return lower;
+	}
+
+	/**
+	 * The path in the lower directory corresponding to the path within the
+	 * upper directory, if it exists and is not hidden by a whiteout or an
+	 * opaque directory in the upper directory.
+	 *
+	 * @return The lower path, or <code>null</code> if not found
+	 */
+	public Path toVisibleLowerPath(Path path) {
+		Path upper = key(path);
+		if (!upper.startsWith(upperRoot)) {
+			return null;
+		}
+		Path lower = lowerRoot;
+		Path upperDir = upperRoot;
+		// Whiteouts can only be in directories that exist in the upper
+		// directory, so stop looking as soon as one does not
+		boolean checkUpper = true;
+		for (Path name : upperRoot.relativize(upper)) {
+			if (name.toString().isEmpty()) {
+				break;
+			}
+			if (checkUpper) {
+				if (exists(upperDir.resolve(WHITEOUT_PREFIX + name))) {
+					return null;
+				}
+				upperDir = upperDir.resolve(name);
+				if (Files.isDirectory(upperDir, NOFOLLOW)) {
+					if (exists(upperDir.resolve(OPAQUE))) {
+						return null;
+					}
+				} else {
+					checkUpper = false;
+				}
+			}
+			lower = lower.resolve(name.toString());
+		}
+		return exists(lower) ? lower : null;
+	}
+
+	/**
+	 * The path to read: the upper path if it exists, otherwise the visible
+	 * lower path, otherwise the upper path, so that reading it fails as
+	 * usual.
+	 */
+	public Path resolve(Path path) {
+		if (!covers(path) || exists(path)) {
+			return path;
+		}
+		Path lower = toVisibleLowerPath(path);
+		return lower != null ? lower : path;
+	}
+
+	/**
+	 * Create the parent directories of the path in the upper directory, if
+	 * they only exist in the lower directory.
+	 *
+	 * @throws NoSuchFileException
+	 *             If the parent directory does not exist in either
+	 */
+	private void copyUpParent(Path upper) throws IOException {
+		Path parent = upper.getParent();
+		if (parent == null || !parent.startsWith(upperRoot)
+				|| Files.isDirectory(parent)) {
+			return;
+		}
+		Path lowerParent = toVisibleLowerPath(parent);
+		if (lowerParent == null || !Files.isDirectory(lowerParent)) {
+			throw new NoSuchFileException(parent.toString());
+		}
+		copyUpParent(parent);
+		try {
+			Files.createDirectory(parent);
+		} catch (FileAlreadyExistsException e) {
+			// Created meanwhile
+		}
+	}
+
+	/**
+	 * Prepare the path to be opened for writing with the given options, by
+	 * copying it and its parents up from the lower directory if needed.
+	 */
+	public void copyUp(Path path, Set<? extends OpenOption> options)
+			throws IOException {
+		Path upper = key(path);
+		if (!upper.startsWith(upperRoot) || exists(upper)) {
+			return;
+		}
+		boolean create = options.contains(StandardOpenOption.CREATE)
+				|| options.contains(StandardOpenOption.CREATE_NEW);
+		Path lower = toVisibleLowerPath(upper);
+		if (lower == null) {
+			if (create) {
+				copyUpParent(upper);
+				// Opened as usual, then the whiteout (if any) removed
+			}
+			return;
+		}
+		if (options.contains(StandardOpenOption.CREATE_NEW)) {
+			throw new FileAlreadyExistsException(path.toString());
+		}
+		copyUpParent(upper);
+		if (options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+				&& !options.contains(StandardOpenOption.APPEND)) {
+			createEmpty(upper);
+		} else {
+			copyFile(lower, upper);
+		}
+	}
+
+	private static void createEmpty(Path upper) throws IOException {
+		try {
+			Files.createFile(upper);
+		} catch (FileAlreadyExistsException e) {
+			// Copied up meanwhile
+		}
+	}
+
+	private static void copyFile(Path lower, Path upper) throws IOException {
+		try {
+			if (lower.getFileSystem() == upper.getFileSystem()) {
+				Files.copy(lower, upper, StandardCopyOption.COPY_ATTRIBUTES);
+			} else {
+				CrossProviderCopy.copy(lower, upper,
+						StandardCopyOption.COPY_ATTRIBUTES);
+			}
+		} catch (FileAlreadyExistsException e) {
+			// Copied up meanwhile
+		}
+	}
+
+	/**
+	 * Copy the path up from the lower directory, if it is only there, so its
+	 * attributes can be modified.
+	 */
+	public void copyUp(Path path) throws IOException {
+		Path upper = key(path);
+		if (!upper.startsWith(upperRoot) || exists(upper)) {
+			return;
+		}
+		Path lower = toVisibleLowerPath(upper);
+		if (lower == null) {
+			return;
+		}
+		copyUpParent(upper);
+		if (Files.isDirectory(lower, NOFOLLOW)) {
+			try {
+				Files.createDirectory(upper);
+			} catch (FileAlreadyExistsException e) {
+			}
+		} else {
+			copyFile(lower, upper);
+		}
+	}
+
+	/**
+	 * Prepare for a file or directory to be created at the path by a copy
+	 * or move.
+	 *
+	 * @throws FileAlreadyExistsException
+	 *             If the path is only in the lower directory and is not to
+	 *             be replaced
+	 */
+	public void beforeCreate(Path path, CopyOption... options)
+			throws IOException {
+		Path upper = key(path);
+		if (!upper.startsWith(upperRoot)) {
+			return;
+		}
+		if (!exists(upper)
+				&& toVisibleLowerPath(upper) != null
+				&& !Arrays.asList(options).contains(
+						StandardCopyOption.REPLACE_EXISTING)) {
+			throw new FileAlreadyExistsException(path.toString());
+		}
+		copyUpParent(upper);
+	}
+
+	/**
+	 * Called after a file or directory has been created at the path in the
+	 * upper directory, to remove any whiteout that would hide it.
+	 */
+	public void created(Path path) throws IOException {
+		Path upper = key(path);
+		if (!upper.startsWith(upperRoot) || upper.equals(upperRoot)) {
+			return;
+		}
+		Path whiteout = whiteout(upper);
+		if (!exists(whiteout)) {
+			return;
+		}
+		if (Files.isDirectory(upper, NOFOLLOW)
+				&& exists(toLowerPath(upper))) {
+			// Replaces the deleted directory, so hide what was in it
+			createEmpty(upper.resolve(OPAQUE));
+		}
+		Files.deleteIfExists(whiteout);
+	}
+
+	/**
+	 * Create a directory, which may exist only in the lower directory.
+	 */
+	public void createDirectory(Path dir, FileAttribute<?>... attrs)
+			throws IOException {
+		Path upper = key(dir);
+		if (!exists(upper) && toVisibleLowerPath(upper) != null) {
+			throw new FileAlreadyExistsException(dir.toString());
+		}
+		copyUpParent(upper);
+		Files.createDirectory(upper, attrs);
+		created(upper);
+	}
+
+	/**
+	 * Delete the path from the merged view: from the upper directory, and by
+	 * a whiteout if it is also in the lower directory.
+	 */
+	public void delete(Path path) throws IOException {
+		Path upper = key(path);
+		Path lower = toVisibleLowerPath(upper);
+		boolean inUpper = exists(upper);
+		if (!inUpper && lower == null) {
+			throw new NoSuchFileException(path.toString());
+		}
+		boolean dir = Files.isDirectory(inUpper ? upper : lower, NOFOLLOW);
+		if (dir) {
+			try (DirectoryStream<Path> entries = newDirectoryStream(upper,
+					ACCEPT_ALL)) {
+				if (entries.iterator().hasNext()) {
+					throw new DirectoryNotEmptyException(path.toString());
+				}
+			}
+		}
+		if (lower != null) {
+			// Whiteout first, so the lower path never shows through
+			copyUpParent(upper);
+			createEmpty(whiteout(upper));
+		}
+		if (inUpper) {
+			if (dir) {
+				// Only whiteouts left
+				try (DirectoryStream<Path> entries = Files
+						.newDirectoryStream(upper)) {
+					for (Path entry : entries) {
+						Files.delete(entry);
+					}
+				}
+			}
+			Files.delete(upper);
+		}
+	}
+
+	/**
+	 * Hide the path if it is still visible in the lower directory after its
+	 * upper path was moved away.
+	 */
+	private void hide(Path upper) throws IOException {
+		if (toVisibleLowerPath(upper) != null) {
+			copyUpParent(upper);
+			createEmpty(whiteout(upper));
+		}
+	}
+
+	/**
+	 * Move a path, either of which may be covered by this overlay.
+	 * <p>
+	 * A file only in the lower directory is copied to the target and then
+	 * hidden.
+	 *
+	 * @throws FileSystemException
+	 *             If the source is a directory with entries in the lower
+	 *             directory
+	 */
+	public void move(Path source, Path target, CopyOption... options)
+			throws IOException {
+		boolean sourceCovered = covers(source);
+		Path from = sourceCovered ? resolve(source) : source;
+		if (!exists(from)) {
+			throw new NoSuchFileException(source.toString());
+		}
+		if (sourceCovered && Files.isDirectory(from, NOFOLLOW)) {
+			Path lower = toVisibleLowerPath(source);
+			if (lower != null && Files.isDirectory(lower, NOFOLLOW)) {
+				try (DirectoryStream<Path> entries = Files
+						.newDirectoryStream(lower)) {
+					if (entries.iterator().hasNext()) {
+						throw new FileSystemException(source.toString(),
+								target.toString(),
+								"Directory of the lower layer can not be moved");
+					}
+				}
+			}
+		}
+		beforeCreate(target, options);
+		if (from != source) {
+			// Only in the lower directory
+			CopyOption[] copyOptions = Arrays.copyOf(options,
+					options.length + 1);
+			copyOptions[options.length] = StandardCopyOption.COPY_ATTRIBUTES;
+			if (Files.isDirectory(from, NOFOLLOW)) {
+				Files.createDirectory(target);
+			} else if (from.getFileSystem() == target.getFileSystem()) {
+				Files.copy(from, target, copyOptions);
+			} else {
+				CrossProviderCopy.copy(from, target, copyOptions);
+			}
+		} else if (source.getFileSystem() == target.getFileSystem()) {
+			Files.move(source, target, options);
+		} else {
+			CrossProviderCopy.move(source, target, options);
+		}
+		if (sourceCovered) {
+			hide(key(source));
+		}
+		created(target);
+	}
+
+	/**
+	 * Open a merged directory stream of the upper and lower directories.
+	 * <p>
+	 * Entries of both directories are returned as paths within the given
+	 * directory, and given to the filter as such.
+	 */
+	public DirectoryStream<Path> newDirectoryStream(Path dir,
+			DirectoryStream.Filter<? super Path> filter) throws IOException {
+		Path upper = key(dir);
+		Path lower = toVisibleLowerPath(upper);
+		boolean inUpper = Files.isDirectory(upper);
+		if (!inUpper && lower == null) {
+			// Fail as usual
+			return Files.newDirectoryStream(dir, filter);
+		}
+		DirectoryStream<Path> upperStream = null;
+		DirectoryStream<Path> lowerStream = null;
+		try {
+			if (inUpper) {
+				upperStream = Files.newDirectoryStream(upper);
+			}
+			if (lower != null && Files.isDirectory(lower)) {
+				lowerStream = Files.newDirectoryStream(lower);
+			}
+		} catch (IOException e) {
+			if (upperStream != null) {
+				upperStream.close();
+			}
+			throw e;
+		}
+		// Entries relative to the given directory, like the original streams
+		return new MergedDirectoryStream(dir, upperStream, lowerStream,
+				filter);
+	}
+
+	private static final DirectoryStream.Filter<Path> ACCEPT_ALL = new DirectoryStream.Filter<Path>() {
+		@Override
+		public boolean accept(Path entry) {
+			return true;
+		}
+	};
+
+}
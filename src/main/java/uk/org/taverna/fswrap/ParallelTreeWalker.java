@@ -0,0 +1,279 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walk a file tree of a {@link WrappedFileSystem} like
+ * {@link Files#walkFileTree(Path, java.util.Set, int, FileVisitor)}, but with
+ * subdirectories visited in parallel by the tasks of a {@link ForkJoinPool}.
+ * <p>
+ * The {@link FileVisitor} is called from several threads at once, and so
+ * must be thread-safe. For each directory,
+ * {@link FileVisitor#postVisitDirectory(Object, IOException)} is called after
+ * all its entries have been visited. Symbolic links are not followed.
+ * <p>
+ * {@link FileVisitResult#SKIP_SIBLINGS} skips the remaining entries of the
+ * directory being listed, but subdirectories already being walked are
+ * completed. {@link FileVisitResult#TERMINATE}, or an {@link IOException}
+ * thrown by the visitor, stops the walk as soon as possible.
+ *
+ */
+public class ParallelTreeWalker {
+
+	public enum Order {
+		/**
+		 * Entries of a directory are visited in the order they are listed.
+		 */
+		UNORDERED,
+		/**
+		 * Entries of a directory are visited, and their subdirectories
+		 * started, in the order of their paths. Subdirectories are still
+		 * walked in parallel.
+		 */
+		SORTED
+	}
+
+	private static final class Walk {
+		private final WrappedFileSystemProvider provider;
+		private final FileVisitor<? super Path> visitor;
+		private final int maxDepth;
+		private final Order order;
+		private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		private volatile boolean terminated;
+
+		private Walk(WrappedFileSystemProvider provider,
+				FileVisitor<? super Path> visitor, int maxDepth, Order order) {
+			this.provider = provider;
+			this.visitor = visitor;
+			this.maxDepth = maxDepth;
+			this.order = order;
+		}
+
+		/**
+		 * Handle the result of a visitor call.
+		 *
+		 * @return <code>true</code> if the walk should continue with the next
+		 *         sibling
+		 */
+		private boolean proceed(FileVisitResult result) {
+			if (result == FileVisitResult.TERMINATE) {
+				terminated = true;
+			}
+			return result == FileVisitResult.CONTINUE
+					|| result == FileVisitResult.SKIP_SUBTREE;
+		}
+
+		private void fail(IOException e) {
+			failure.compareAndSet(null, e);
+			terminated = true;
+		}
+
+		/**
+		 * Visit an entry, or return a task to walk it if it is a directory.
+		 *
+		 * @return <code>true</code> if the walk should continue with the next
+		 *         sibling
+		 */
+		private boolean visitEntry(Path entry, int depth,
+				List<DirectoryTask> subtasks) throws IOException {
+			BasicFileAttributes attrs;
+			try {
+				attrs = provider.readAttributes(entry,
+						BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				return proceed(visitor.visitFileFailed(entry, e));
+			}
+			if (attrs.isDirectory() && depth < maxDepth) {
+				subtasks.add(new DirectoryTask(this, entry, attrs, depth));
+				return true;
+			}
+			return proceed(visitor.visitFile(entry, attrs));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class DirectoryTask extends RecursiveAction {
+		private final Walk walk;
+		private final Path dir;
+		private final BasicFileAttributes attrs;
+		private final int depth;
+
+		private DirectoryTask(Walk walk, Path dir, BasicFileAttributes attrs,
+				int depth) {
+			this.walk = walk;
+			this.dir = dir;
+			this.attrs = attrs;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+			if (walk.terminated) {
+				return;
+			}
+			List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+			try {
+				FileVisitResult pre = walk.visitor.preVisitDirectory(dir,
+						attrs);
+				if (pre != FileVisitResult.CONTINUE) {
+					walk.proceed(pre);
+					return;
+				}
+				IOException exc = null;
+				try (DirectoryStream<Path> stream = openDirectory()) {
+					if (stream == null) {
+						return;
+					}
+					visitEntries(stream, subtasks);
+				} catch (DirectoryIteratorException e) {
+					exc = e.getCause();
+				}
+				joinAll(subtasks);
+				if (!walk.terminated) {
+					walk.proceed(walk.visitor.postVisitDirectory(dir, exc));
+				}
+			} catch (IOException e) {
+				// Thrown by the visitor
+				walk.fail(e);
+			} finally {
+				// Subdirectories already started must finish before this
+				joinAll(subtasks);
+			}
+		}
+
+		private void joinAll(List<DirectoryTask> subtasks) {
+			for (DirectoryTask task : subtasks) {
+				task.join();
+			}
+			subtasks.clear();
+		}
+
+		/**
+		 * Open the directory, or tell the visitor it could not be opened.
+		 *
+		 * @return The opened stream, or <code>null</code> if it could not be
+		 *         opened
+		 */
+		private DirectoryStream<Path> openDirectory() throws IOException {
+			try {
+				return walk.provider.newDirectoryStream(dir, ACCEPT_ALL);
+			} catch (IOException e) {
+				walk.proceed(walk.visitor.visitFileFailed(dir, e));
+				return null;
+			}
+		}
+
+		private void visitEntries(DirectoryStream<Path> stream,
+				List<DirectoryTask> subtasks) throws IOException {
+			Iterable<Path> entries = stream;
+			if (walk.order == Order.SORTED) {
+				List<Path> sorted = new ArrayList<Path>();
+				for (Path entry : stream) {
+					sorted.add(entry);
+				}
+				Collections.sort(sorted);
+				entries = sorted;
+			}
+			for (Path entry : entries) {
+				if (walk.terminated) {
+					return;
+				}
+				int forked = subtasks.size();
+				boolean proceed = walk.visitEntry(entry, depth + 1, subtasks);
+				if (subtasks.size() > forked) {
+					// Let another worker take the subdirectory
+					subtasks.get(forked).fork();
+				}
+				if (!proceed) {
+					return;
+				}
+			}
+		}
+	}
+
+	private static final DirectoryStream.Filter<Path> ACCEPT_ALL = new DirectoryStream.Filter<Path>() {
+		@Override
+		public boolean accept(Path entry) {
+			return true;
+		}
+	};
+
+	private final ForkJoinPool pool;
+	private final Order order;
+
+	/**
+	 * Create a walker using its own {@link ForkJoinPool}, with parallelism
+	 * equal to the number of processors.
+	 */
+	public ParallelTreeWalker() {
+		this(new ForkJoinPool(), Order.UNORDERED);
+	}
+
+	public ParallelTreeWalker(ForkJoinPool pool, Order order) {
+		this.pool = pool;
+		this.order = order;
+	}
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Walk the file tree starting at the given path.
+	 *
+	 * @see Files#walkFileTree(Path, FileVisitor)
+	 */
+	public void walk(Path start, FileVisitor<? super Path> visitor)
+			throws IOException {
+		walk(start, Integer.MAX_VALUE, visitor);
+	}
+
+	/**
+	 * Walk the file tree starting at the given path, visiting at most
+	 * <code>maxDepth</code> levels of directories.
+	 *
+	 * @see Files#walkFileTree(Path, java.util.Set, int, FileVisitor)
+	 */
+	public void walk(Path start, int maxDepth,
+			FileVisitor<? super Path> visitor) throws IOException {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("'maxDepth' is negative");
+		}
+		if (!(start instanceof WrappedPath)) {
+			throw new ProviderMismatchException("Wrong Path type "
+					+ start.getClass());
+		}
+		WrappedFileSystemProvider provider = ((WrappedPath) start)
+				.getFileSystem().provider();
+		Walk walk = new Walk(provider, visitor, maxDepth, order);
+		List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>(1);
+		walk.visitEntry(start, 0, subtasks);
+		for (DirectoryTask task : subtasks) {
+			pool.invoke(task);
+		}
+		IOException failure = walk.failure.get();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+}
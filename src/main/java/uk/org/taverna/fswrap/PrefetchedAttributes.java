@@ -0,0 +1,128 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attributes read ahead by the {@link WrappedDirectoryStream}s of a
+ * {@link WrappedFileSystem}, by original path, until they are taken by the
+ * next read of the attributes of the entry.
+ * <p>
+ * They are kept apart from the {@link WrappedPath}s, which may be shared
+ * through the path cache of the file system, and in a concurrent map, as
+ * they are added by the threads reading ahead while others take them.
+ * Attributes which are never taken are dropped once they have expired and
+ * enough others have been added.
+ *
+ */
+class PrefetchedAttributes {
+
+	/**
+	 * How long prefetched attributes can be used, in nanoseconds, as changes
+	 * made other than through the file system are not seen.
+	 */
+	static final long TTL = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Number of attributes kept before expired ones are looked for.
+	 */
+	private static final int PURGE_SIZE = 4096;
+
+	private static final class Prefetched {
+		private final BasicFileAttributes attributes;
+		private final long nanos = System.nanoTime();
+
+		private Prefetched(BasicFileAttributes attributes) {
+			this.attributes = attributes;
+		}
+
+		private boolean isExpired(long now) {
+			return now - nanos > TTL;
+		}
+	}
+
+	private final ConcurrentMap<Path, Prefetched> prefetched = new ConcurrentHashMap<Path, Prefetched>();
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath();
+	}
+
+	/**
+	 * Keep attributes of the original path, read not following links.
+	 */
+	void put(Path path, BasicFileAttributes attributes) {
+		if (prefetched.size() >= PURGE_SIZE) {
+			purge();
+		}
+		prefetched.put(key(path), new Prefetched(attributes));
+	}
+
+	/**
+	 * Take the attributes prefetched for the original path, if any and if
+	 * suitable. They are only returned once.
+	 *
+	 * @param followLinks
+	 *            If the attributes are to be read following symbolic links
+	 * @return The prefetched attributes, or <code>null</code>
+	 */
+	BasicFileAttributes take(Path path, boolean followLinks) {
+		if (prefetched.isEmpty()) {
+			return null;
+		}
+		Prefetched taken = prefetched.remove(key(path));
+		if (taken == null || taken.isExpired(System.nanoTime())
+				|| followLinks && taken.attributes.isSymbolicLink()) {
+			return null;
+		}
+		return taken.attributes;
+	}
+
+	/**
+	 * Check if attributes are kept for the original path.
+	 */
+	boolean contains(Path path) {
+		return prefetched.containsKey(key(path));
+	}
+
+	/**
+	 * Forget the attributes of the original path, as it was modified.
+	 */
+	void invalidate(Path path) {
+		if (!prefetched.isEmpty()) {
+			prefetched.remove(key(path));
+		}
+	}
+
+	/**
+	 * Forget the attributes of the original path and anything within it.
+	 */
+	void invalidateTree(Path path) {
+		if (prefetched.isEmpty()) {
+			return;
+		}
+		Path key = key(path);
+		Iterator<Path> it = prefetched.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(key)) {
+				it.remove();
+			}
+		}
+	}
+
+	private void purge() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path, Prefetched>> it = prefetched.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+
+}
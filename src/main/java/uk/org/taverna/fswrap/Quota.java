@@ -0,0 +1,137 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A logical quota of the bytes in the files of a {@link WrappedFileSystem},
+ * as set with {@link WrappedFileSystem#QUOTA}.
+ * <p>
+ * The bytes used are counted as files are written, truncated, copied,
+ * moved and deleted through the wrapped file system, rather than by
+ * scanning its directories, so changes made other than through the wrapper
+ * are not seen. Bytes already in use when the file system is created can be
+ * given with {@link WrappedFileSystem#QUOTA_USED}, or later with
+ * {@link #setUsed(long)}. A write that would go over the limit fails before
+ * anything is written, with a {@link FileSystemException}.
+ * <p>
+ * The limit can be changed at any time, and one quota can be shared by
+ * several file systems, to limit them together.
+ *
+ */
+public class Quota {
+
+	private volatile long limit;
+	private final AtomicLong used;
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param limit
+	 *            Bytes that can be used
+	 */
+	public Quota(long limit) {
+		this(limit, 0);
+	}
+
+	/**
+	 * @param limit
+	 *            Bytes that can be used
+	 * @param used
+	 *            Bytes already used
+	 */
+	public Quota(long limit, long used) {
+		setLimit(limit);
+		if (used < 0) {
+			throw new IllegalArgumentException("Negative bytes used " + used);
+		}
+		this.used = new AtomicLong(used);
+	}
+
+	/**
+	 * Allocate bytes for a file.
+	 *
+	 * @throws FileSystemException
+	 *             If that would be more than the limit
+	 */
+	public void allocate(Path path, long bytes) throws FileSystemException {
+		if (bytes <= 0) {
+			return;
+		}
+		while (true) {
+			long current = used.get();
+			if (current + bytes > limit) {
+				rejectedCount.incrementAndGet();
+				throw new FileSystemException(String.valueOf(path), null,
+						"Disk quota exceeded");
+			}
+			if (used.compareAndSet(current, current + bytes)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Release bytes no longer used by a file. The bytes used never drop below
+	 * 0, as files existing before the quota was set may be deleted.
+	 */
+	public void release(long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		while (true) {
+			long current = used.get();
+			if (used.compareAndSet(current, Math.max(0, current - bytes))) {
+				return;
+			}
+		}
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public void setLimit(long limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("Negative limit " + limit);
+		}
+		this.limit = limit;
+	}
+
+	public long getUsed() {
+		return used.get();
+	}
+
+	/**
+	 * Correct the bytes used, e.g. from a count of the files made while
+	 * nothing is written.
+	 */
+	public void setUsed(long used) {
+		if (used < 0) {
+			throw new IllegalArgumentException("Negative bytes used " + used);
+		}
+		this.used.set(used);
+	}
+
+	/**
+	 * The bytes that can still be allocated, which is 0 if the limit was
+	 * lowered below the bytes used.
+	 */
+	public long getRemaining() {
+		return Math.max(0, limit - used.get());
+	}
+
+	/**
+	 * The number of allocations that failed as they would have gone over the
+	 * limit.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Quota " + getUsed() + " of " + getLimit() + " bytes used";
+	}
+
+}
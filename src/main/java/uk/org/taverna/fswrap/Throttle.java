@@ -0,0 +1,183 @@
+package uk.org.taverna.fswrap;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets limiting the bytes and the operations per second of a
+ * {@link WrappedFileSystem}, or of the paths within it starting with a
+ * prefix, as set by
+ * {@link WrappedFileSystem#setThrottle(java.nio.file.Path, Throttle)}.
+ * <p>
+ * Each bucket holds up to one second's worth of tokens, so short bursts are
+ * allowed. Bytes are taken after they are read or written, as how many is
+ * only known then, so a large transfer goes through at once and the
+ * transfers after it wait for the bucket to refill. A limit of 0 means
+ * unlimited. Limits can be changed at any time, and apply from the next
+ * transfer or operation.
+ * <p>
+ * One throttle can be shared by several file systems, to limit them
+ * together.
+ *
+ */
+public class Throttle {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private static final class Bucket {
+		private long rate;
+		private double tokens;
+		private long filled = System.nanoTime();
+
+		private synchronized long getRate() {
+			return rate;
+		}
+
+		private synchronized void setRate(long rate) {
+			if (rate < 0) {
+				throw new IllegalArgumentException("Negative rate " + rate);
+			}
+			refill(System.nanoTime());
+			// A new limit starts with a full bucket
+			tokens = this.rate == 0 ? rate : Math.min(tokens, rate);
+			this.rate = rate;
+		}
+
+		private void refill(long now) {
+			if (rate > 0) {
+				tokens = Math.min(rate, tokens + (double) (now - filled)
+						* rate / SECOND);
+			}
+			filled = now;
+		}
+
+		/**
+		 * Take tokens, going into debt if there are not enough.
+		 *
+		 * @return Nanoseconds to wait for the debt to be paid off
+		 */
+		private synchronized long take(long count) {
+			if (rate == 0) {
+				return 0;
+			}
+			refill(System.nanoTime());
+			tokens -= count;
+			if (tokens >= 0) {
+				return 0;
+			}
+			return (long) (-tokens * SECOND / rate);
+		}
+	}
+
+	private final Bucket bytes = new Bucket();
+	private final Bucket operations = new Bucket();
+	private final AtomicLong bytesTaken = new AtomicLong();
+	private final AtomicLong operationsTaken = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+
+	/**
+	 * @param bytesPerSecond
+	 *            Bytes that can be read or written per second, or 0 for no
+	 *            limit
+	 * @param operationsPerSecond
+	 *            Operations per second, or 0 for no limit
+	 */
+	public Throttle(long bytesPerSecond, long operationsPerSecond) {
+		setBytesPerSecond(bytesPerSecond);
+		setOperationsPerSecond(operationsPerSecond);
+	}
+
+	/**
+	 * Wait until the bytes just read or written are within the limit.
+	 *
+	 * @throws InterruptedIOException
+	 *             If interrupted while waiting
+	 */
+	public void bytes(long count) throws InterruptedIOException {
+		if (count <= 0) {
+			return;
+		}
+		bytesTaken.addAndGet(count);
+		await(bytes.take(count));
+	}
+
+	/**
+	 * Wait until an operation is within the limit.
+	 *
+	 * @throws InterruptedIOException
+	 *             If interrupted while waiting
+	 */
+	public void operation() throws InterruptedIOException {
+		operationsTaken.incrementAndGet();
+		await(operations.take(1));
+	}
+
+	private void await(long nanos) throws InterruptedIOException {
+		if (nanos <= 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
+		} finally {
+			throttledCount.incrementAndGet();
+			throttledNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	public long getBytesPerSecond() {
+		return bytes.getRate();
+	}
+
+	public void setBytesPerSecond(long bytesPerSecond) {
+		bytes.setRate(bytesPerSecond);
+	}
+
+	public long getOperationsPerSecond() {
+		return operations.getRate();
+	}
+
+	public void setOperationsPerSecond(long operationsPerSecond) {
+		operations.setRate(operationsPerSecond);
+	}
+
+	/**
+	 * The number of bytes read or written through this throttle.
+	 */
+	public long getBytes() {
+		return bytesTaken.get();
+	}
+
+	/**
+	 * The number of operations done through this throttle.
+	 */
+	public long getOperations() {
+		return operationsTaken.get();
+	}
+
+	/**
+	 * The number of times a thread had to wait.
+	 */
+	public long getThrottledCount() {
+		return throttledCount.get();
+	}
+
+	/**
+	 * The total time threads spent waiting, in nanoseconds.
+	 */
+	public long getThrottledNanos() {
+		return throttledNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Throttle " + getBytesPerSecond() + " bytes/s, "
+				+ getOperationsPerSecond() + " operations/s";
+	}
+
+}
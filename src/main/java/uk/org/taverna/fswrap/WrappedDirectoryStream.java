@@ -1,34 +1,193 @@
 package uk.org.taverna.fswrap;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.ProviderMismatchException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * A {@link DirectoryStream} of {@link WrappedPath}s.
+ * <p>
+ * In read-ahead mode, entries are read from the original directory stream by
+ * a background thread into a bounded queue, optionally along with their
+ * {@link BasicFileAttributes}, which are then returned by the first
+ * {@link WrappedFileSystemProvider#readAttributes(Path, Class, LinkOption...)}
+ * of that path for {@link BasicFileAttributes}, unless the path has been
+ * modified through the wrapped file system since, or they are more than a
+ * second old.
+ *
+ */
 public class WrappedDirectoryStream implements DirectoryStream<Path> {
 
+	private final class ReadAheadIterator implements Iterator<Path>, Runnable {
+		private final Iterator<Path> origIt;
+		private final BlockingQueue<Object> queue;
+		private Object next;
+
+		private ReadAheadIterator(Iterator<Path> origIt) {
+			this.origIt = origIt;
+			this.queue = new ArrayBlockingQueue<Object>(readAhead);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null) {
+				try {
+					next = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DirectoryIteratorException(
+							new InterruptedIOException(
+									"Interrupted while reading directory"));
+				}
+				if (next == null && closed) {
+					// Entries not read ahead before closing are not returned
+					return false;
+				}
+			}
+			// Failed reading ahead, e.g. with a DirectoryIteratorException
+			if (next instanceof RuntimeException) {
+				throw (RuntimeException) next;
+			}
+			if (next instanceof Error) {
+				throw (Error) next;
+			}
+			if (next instanceof Throwable) {
+				throw new IllegalStateException("Could not read directory",
+						(Throwable) next);
+			}
+			return next != END;
+		}
+
+		private boolean put(Object entry) throws InterruptedException {
+			// Give up if the stream is closed while the queue is full
+			while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public Path next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Path path = (Path) next;
+			next = null;
+			return path;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Object last = END;
+				try {
+					while (!closed && origIt.hasNext()) {
+						WrappedPath path = fileSystem.toWrappedPath(origIt
+								.next());
+						if (prefetchAttributes) {
+							prefetchAttributes(path);
+						}
+						if (!put(path)) {
+							return;
+						}
+					}
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable e) {
+					// Rethrown by the iterator, which would otherwise wait
+					// for the end forever
+					last = e;
+				}
+				put(last);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final Object END = new Object();
+
+	private static final ExecutorService readAheadExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r,
+							"fswrap-directory-read-ahead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
 	private WrappedFileSystem fileSystem;
 	private DirectoryStream<Path> originalDirectoryStream;
+	private final int readAhead;
+	private final boolean prefetchAttributes;
+	private volatile boolean closed;
 
 	public WrappedDirectoryStream(Path dir,
 			DirectoryStream<Path> originalDirectoryStream) {
+		this(dir, originalDirectoryStream, 0, false);
+	}
+
+	/**
+	 * @param dir
+	 *            Directory the stream is for
+	 * @param originalDirectoryStream
+	 *            Stream of the original directory
+	 * @param readAhead
+	 *            Maximum number of entries to read ahead in a background
+	 *            thread, or 0 to read entries as they are iterated over
+	 * @param prefetchAttributes
+	 *            If <code>true</code>, in read-ahead mode also read the
+	 *            {@link BasicFileAttributes} of each entry
+	 */
+	public WrappedDirectoryStream(Path dir,
+			DirectoryStream<Path> originalDirectoryStream, int readAhead,
+			boolean prefetchAttributes) {
 		if (!(dir instanceof WrappedPath)) {
 			throw new ProviderMismatchException("Wrong Path type "
 					+ dir.getClass());
 		}
 		this.originalDirectoryStream = originalDirectoryStream;
 		this.fileSystem = (WrappedFileSystem) dir.getFileSystem();
+		this.readAhead = readAhead;
+		this.prefetchAttributes = prefetchAttributes;
 	}
 
 	@Override
 	public void close() throws IOException {
+		closed = true;
 		originalDirectoryStream.close();
 	}
 
 	@Override
 	public Iterator<Path> iterator() {
 		final Iterator<Path> origIt = originalDirectoryStream.iterator();
+		if (readAhead > 0) {
+			ReadAheadIterator it = new ReadAheadIterator(origIt);
+			readAheadExecutor.execute(it);
+			return it;
+		}
 		return new Iterator<Path>() {
 			@Override
 			public boolean hasNext() {
@@ -48,4 +207,21 @@ public class WrappedDirectoryStream implements DirectoryStream<Path> {
 		};
 	}
 
+	private void prefetchAttributes(WrappedPath path) {
+		try {
+			// Not following links, as Files.walkFileTree() does by default;
+			// for anything but links these are the same attributes anyway
+			fileSystem.throttleOperation(path);
+			Path readable = fileSystem.toReadablePath(path.originalPath);
+			fileSystem.getPrefetchedAttributes().put(
+					path.originalPath,
+					readable.getFileSystem().provider()
+							.readAttributes(readable,
+									BasicFileAttributes.class,
+									LinkOption.NOFOLLOW_LINKS));
+		} catch (IOException e) {
+			// Leave it to the consumer to read them and get the exception
+		}
+	}
+
 }
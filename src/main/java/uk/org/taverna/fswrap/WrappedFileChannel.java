@@ -0,0 +1,249 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FileChannel} returned by
+ * {@link WrappedFileSystemProvider#newFileChannel(java.nio.file.Path, java.util.Set, java.nio.file.attribute.FileAttribute...)}
+ * when the wrapped file system needs to know what happens to the channel.
+ * <p>
+ * Calls are passed on to the original file channel, so that
+ * {@link #map(MapMode, long, long)}, locks and transfers work as usual. Reads,
+ * writes and closing are recorded by a {@link WrappedSeekableByteChannel}
+ * for the original channel, as for byte channels. Bytes accessed through a
+ * mapped buffer are not counted, but any growth of the file by mapping it
+ * is allocated from the {@link Quota}, if any.
+ *
+ */
+public class WrappedFileChannel extends FileChannel {
+
+	private final WrappedSeekableByteChannel channel;
+	private final FileChannel originalChannel;
+
+	/**
+	 * @param channel
+	 *            Wrapped byte channel of the original channel, to record I/O
+	 *            with
+	 */
+	public WrappedFileChannel(WrappedSeekableByteChannel channel) {
+		this.channel = channel;
+		this.originalChannel = (FileChannel) channel.getOriginalChannel();
+	}
+
+	/**
+	 * Get the channel to transfer to or from directly, so the original
+	 * provider can use its fastest way.
+	 */
+	private static Object unwrap(Object other) {
+		if (other instanceof WrappedFileChannel) {
+			return ((WrappedFileChannel) other).originalChannel;
+		}
+		if (other instanceof WrappedSeekableByteChannel) {
+			return ((WrappedSeekableByteChannel) other).getOriginalChannel();
+		}
+		return other;
+	}
+
+	private static WrappedSeekableByteChannel recorder(Object other) {
+		if (other instanceof WrappedFileChannel) {
+			return ((WrappedFileChannel) other).channel;
+		}
+		if (other instanceof WrappedSeekableByteChannel) {
+			return (WrappedSeekableByteChannel) other;
+		}
+		return null;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		originalChannel.force(metaData);
+	}
+
+	public FileChannel getOriginalChannel() {
+		return originalChannel;
+	}
+
+	public WrappedPath getPath() {
+		return channel.getPath();
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared)
+			throws IOException {
+		return originalChannel.lock(position, size, shared);
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size)
+			throws IOException {
+		if (mode == MapMode.READ_ONLY) {
+			return originalChannel.map(mode, position, size);
+		}
+		long allocated = channel.allocate(position, size);
+		channel.modifiedElsewhere();
+		try {
+			return originalChannel.map(mode, position, size);
+		} catch (IOException | RuntimeException e) {
+			channel.allocated(allocated, size, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		return channel.position();
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		channel.position(newPosition);
+		return this;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return channel.read(dst);
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		long start = channel.startTiming();
+		int read = originalChannel.read(dst, position);
+		channel.readDone(read, start, false);
+		return read;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length)
+			throws IOException {
+		long start = channel.startTiming();
+		long read = originalChannel.read(dsts, offset, length);
+		channel.readDone(read, start, true);
+		return read;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position,
+			long count) throws IOException {
+		ReadableByteChannel originalSrc = (ReadableByteChannel) unwrap(src);
+		if (channel.isAccounted()
+				&& originalSrc instanceof SeekableByteChannel) {
+			// Only allocate what the source has left
+			SeekableByteChannel seekable = (SeekableByteChannel) originalSrc;
+			count = Math.min(count,
+					Math.max(0, seekable.size() - seekable.position()));
+		}
+		count = channel.allowed(position, count);
+		long allocated = channel.allocate(position, count);
+		long start = channel.startTiming();
+		long transferred = 0;
+		try {
+			transferred = originalChannel.transferFrom(originalSrc, position,
+					count);
+		} finally {
+			channel.allocated(allocated, count, transferred);
+		}
+		channel.writeDone(transferred, start, false, false);
+		WrappedSeekableByteChannel source = recorder(src);
+		if (source != null) {
+			source.readDone(transferred, start, true);
+		}
+		return transferred;
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		WrappedSeekableByteChannel recorder = recorder(target);
+		long allocated = 0;
+		if (recorder != null && recorder.isAccounted()) {
+			count = recorder.allowed(-1,
+					Math.min(count, Math.max(0, size() - position)));
+			allocated = recorder.allocate(-1, count);
+		}
+		long start = channel.startTiming();
+		long transferred = 0;
+		try {
+			transferred = originalChannel.transferTo(position, count,
+					(WritableByteChannel) unwrap(target));
+		} finally {
+			if (recorder != null) {
+				recorder.allocated(allocated, count, transferred);
+			}
+		}
+		channel.readDone(transferred, start, false);
+		if (recorder != null) {
+			recorder.writeDone(transferred, start, true, false);
+		}
+		return transferred;
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		channel.truncate(size);
+		return this;
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared)
+			throws IOException {
+		return originalChannel.tryLock(position, size, shared);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return channel.write(src);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		int count = src.remaining();
+		long allocated = channel.allocate(position, count);
+		long start = channel.startTiming();
+		int written = 0;
+		try {
+			written = originalChannel.write(src, position);
+		} finally {
+			channel.allocated(allocated, count, written);
+		}
+		channel.writeDone(written, start, false, false);
+		return written;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		long remaining = 0;
+		for (int i = offset; i < offset + length; i++) {
+			remaining += srcs[i].remaining();
+		}
+		long allocated = channel.allocate(-1, remaining);
+		long start = channel.startTiming();
+		long written = 0;
+		try {
+			written = originalChannel.write(srcs, offset, length);
+		} finally {
+			channel.allocated(allocated, remaining, written);
+		}
+		channel.writeDone(written, start, true, false);
+		return written;
+	}
+
+}
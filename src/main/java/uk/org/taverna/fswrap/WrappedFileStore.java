@@ -5,15 +5,44 @@ import java.nio.file.FileStore;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
 
+/**
+ * The store of a path in a {@link WrappedFileSystem}, passing calls on to
+ * the store of the original path.
+ * <p>
+ * If the file system has a {@link Quota}, the total space is its limit, and
+ * the usable and unallocated space is what remains of it, unless the
+ * original store has less.
+ *
+ */
 public class WrappedFileStore extends FileStore {
 
 	private FileStore originalFileStore;
+	private final Quota quota;
 
 	public WrappedFileStore(FileStore zipFileStore) {
-		this.originalFileStore = zipFileStore;
+		this(zipFileStore, null);
+	}
+
+	/**
+	 * @param quota
+	 *            Quota of the file system, or <code>null</code>
+	 */
+	public WrappedFileStore(FileStore originalFileStore, Quota quota) {
+		this.originalFileStore = originalFileStore;
+		this.quota = quota;
 	}
 
 	public Object getAttribute(String attribute) throws IOException {
+		if (quota != null) {
+			switch (attribute) {
+			case "totalSpace":
+				return getTotalSpace();
+			case "usableSpace":
+				return getUsableSpace();
+			case "unallocatedSpace":
+				return getUnallocatedSpace();
+			}
+		}
 		return originalFileStore.getAttribute(attribute);
 	}
 
@@ -22,15 +51,33 @@ public class WrappedFileStore extends FileStore {
 		return originalFileStore.getFileStoreAttributeView(type);
 	}
 
+	/**
+	 * The quota of the file system, or <code>null</code> if it has none.
+	 */
+	public Quota getQuota() {
+		return quota;
+	}
+
 	public long getTotalSpace() throws IOException {
+		if (quota != null) {
+			return quota.getLimit();
+		}
 		return originalFileStore.getTotalSpace();
 	}
 
 	public long getUnallocatedSpace() throws IOException {
+		if (quota != null) {
+			return Math.min(quota.getRemaining(),
+					originalFileStore.getUnallocatedSpace());
+		}
 		return originalFileStore.getUnallocatedSpace();
 	}
 
 	public long getUsableSpace() throws IOException {
+		if (quota != null) {
+			return Math.min(quota.getRemaining(),
+					originalFileStore.getUsableSpace());
+		}
 		return originalFileStore.getUsableSpace();
 	}
 
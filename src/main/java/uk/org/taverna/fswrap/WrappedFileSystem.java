@@ -1,36 +1,703 @@
 package uk.org.taverna.fswrap;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import uk.org.taverna.fswrap.WrappedFileSystemProvider.Listeners;
 
 public class WrappedFileSystem extends FileSystem {
 
+	/**
+	 * Key for the <code>env</code> map of
+	 * {@link WrappedFileSystemProvider#newFileSystem(URI, Map)}: if
+	 * <code>true</code>, events are delivered to listeners from a separate
+	 * thread by an {@link AsynchronousEventDispatcher}.
+	 */
+	public static final String ASYNC_EVENTS = "asyncEvents";
+	/**
+	 * Key for the <code>env</code> map: the number of events the
+	 * {@link AsynchronousEventDispatcher} can queue.
+	 */
+	public static final String EVENT_BUFFER_SIZE = "eventBufferSize";
+	/**
+	 * Key for the <code>env</code> map: the
+	 * {@link AsynchronousEventDispatcher.Backpressure} policy, as an enum
+	 * value or its name.
+	 */
+	public static final String EVENT_BACKPRESSURE = "eventBackpressure";
+	/**
+	 * Key for the <code>env</code> map: if positive, the number of
+	 * milliseconds a {@link CoalescingEventListener} holds events for, to
+	 * fold them into their net change before they are delivered to
+	 * listeners. Disabled (0) by default.
+	 */
+	public static final String COALESCE_WINDOW = "coalesceWindow";
+	/**
+	 * Key for the <code>env</code> map: the maximum number of
+	 * {@link WrappedPath}s to keep in a cache, so that repeated path
+	 * operations can return the same instance. Disabled (0) by default.
+	 */
+	public static final String PATH_CACHE_SIZE = "pathCacheSize";
+	/**
+	 * Key for the <code>env</code> map: the maximum number of paths to cache
+	 * attributes for in an {@link AttributeCache}. Disabled (0) by default.
+	 */
+	public static final String ATTRIBUTE_CACHE_SIZE = "attributeCacheSize";
+	/**
+	 * Key for the <code>env</code> map: how long the {@link AttributeCache}
+	 * keeps attributes, in milliseconds.
+	 */
+	public static final String ATTRIBUTE_CACHE_TTL = "attributeCacheTtl";
+	public static final long DEFAULT_ATTRIBUTE_CACHE_TTL = 5000;
+	/**
+	 * Key for the <code>env</code> map: the maximum number of missing paths
+	 * to remember in a {@link NegativeLookupCache}. Disabled (0) by default.
+	 */
+	public static final String NEGATIVE_LOOKUP_CACHE_SIZE = "negativeLookupCacheSize";
+	/**
+	 * Key for the <code>env</code> map: how long the
+	 * {@link NegativeLookupCache} remembers missing paths, in milliseconds.
+	 */
+	public static final String NEGATIVE_LOOKUP_CACHE_TTL = "negativeLookupCacheTtl";
+	public static final long DEFAULT_NEGATIVE_LOOKUP_CACHE_TTL = 5000;
+	/**
+	 * Key for the <code>env</code> map: the number of entries a
+	 * {@link WrappedDirectoryStream} reads ahead in a background thread.
+	 * Disabled (0) by default.
+	 */
+	public static final String DIRECTORY_READ_AHEAD = "directoryReadAhead";
+	/**
+	 * Key for the <code>env</code> map: if <code>true</code>, a
+	 * {@link WrappedDirectoryStream} reading ahead also reads the basic
+	 * attributes of each entry.
+	 */
+	public static final String DIRECTORY_PREFETCH_ATTRIBUTES = "directoryPrefetchAttributes";
+	/**
+	 * Key for the <code>env</code> map: if <code>true</code>, byte channels
+	 * record {@link ChannelMetrics}, which are also registered with JMX.
+	 */
+	public static final String CHANNEL_METRICS = "channelMetrics";
+	/**
+	 * Key for the <code>env</code> map: the maximum number of paths to keep
+	 * {@link ChannelMetrics} for.
+	 */
+	public static final String CHANNEL_METRICS_SIZE = "channelMetricsSize";
+	public static final int DEFAULT_CHANNEL_METRICS_SIZE = 1000;
+	/**
+	 * Key for the <code>env</code> map: the {@link MessageDigest} algorithm,
+	 * e.g. <code>SHA-256</code>, to compute digests of files written with, to
+	 * be reported to listeners of
+	 * {@link ChannelEventListener#digestComputed(Path, String, byte[])}.
+	 * Disabled by default.
+	 */
+	public static final String DIGEST = "digest";
+	/**
+	 * Key for the <code>env</code> map: a directory of the original file
+	 * system to keep a {@link DeduplicatingStore} in. Files are stored by
+	 * their {@link #DIGEST}, SHA-256 unless specified. Disabled by default.
+	 */
+	public static final String DEDUP_STORE = "dedupStore";
+	public static final String DEFAULT_DEDUP_DIGEST = "SHA-256";
+	/**
+	 * Key for the <code>env</code> map: if <code>true</code>, new files are
+	 * written to memory and then written to the original file system in the
+	 * background by {@link WriteBehind}.
+	 */
+	public static final String WRITE_BEHIND = "writeBehind";
+	/**
+	 * Key for the <code>env</code> map: the size in bytes of the largest
+	 * file {@link WriteBehind} keeps in memory.
+	 */
+	public static final String WRITE_BEHIND_MAX_FILE_SIZE = "writeBehindMaxFileSize";
+	/**
+	 * Key for the <code>env</code> map: the number of bytes that can wait to
+	 * be written by {@link WriteBehind}.
+	 */
+	public static final String WRITE_BEHIND_MAX_PENDING = "writeBehindMaxPending";
+	/**
+	 * Key for the <code>env</code> map: the number of threads
+	 * {@link WriteBehind} writes files with.
+	 */
+	public static final String WRITE_BEHIND_THREADS = "writeBehindThreads";
+	/**
+	 * Key for the <code>env</code> map: the number of bytes of files read to
+	 * keep in a {@link BlockCache}. Disabled (0) by default.
+	 */
+	public static final String BLOCK_CACHE_SIZE = "blockCacheSize";
+	/**
+	 * Key for the <code>env</code> map: the size of the blocks of the
+	 * {@link BlockCache}.
+	 */
+	public static final String BLOCK_CACHE_BLOCK_SIZE = "blockCacheBlockSize";
+	/**
+	 * Key for the <code>env</code> map: if <code>true</code>, the
+	 * {@link BlockCache} keeps blocks in direct buffers.
+	 */
+	public static final String BLOCK_CACHE_DIRECT = "blockCacheDirect";
+	/**
+	 * Key for the <code>env</code> map: the number of blocks the
+	 * {@link BlockCache} reads at a time when a file is read in order.
+	 */
+	public static final String BLOCK_CACHE_READ_AHEAD = "blockCacheReadAhead";
+	/**
+	 * Key for the <code>env</code> map: a {@link BlockCache} to share with
+	 * other file systems, instead of creating one of
+	 * {@link #BLOCK_CACHE_SIZE}.
+	 */
+	public static final String BLOCK_CACHE = "blockCache";
+	/**
+	 * Key for the <code>env</code> map: a directory of the original file
+	 * system to write to, over the {@link #OVERLAY_LOWER} directory, as an
+	 * {@link Overlay}. Disabled by default.
+	 */
+	public static final String OVERLAY_UPPER = "overlayUpper";
+	/**
+	 * Key for the <code>env</code> map: the read-only directory shown in the
+	 * {@link #OVERLAY_UPPER} directory, either a {@link Path} or {@link URI}
+	 * of any file system, or the name of a directory of the original file
+	 * system.
+	 */
+	public static final String OVERLAY_LOWER = "overlayLower";
+	/**
+	 * Key for the <code>env</code> map: the bytes per second that can be
+	 * read or written through this file system, as by a {@link Throttle}.
+	 * Unlimited (0) by default.
+	 */
+	public static final String BYTES_PER_SECOND = "bytesPerSecond";
+	/**
+	 * Key for the <code>env</code> map: the operations per second that can be
+	 * done through this file system, as by a {@link Throttle}. Unlimited (0)
+	 * by default.
+	 */
+	public static final String OPERATIONS_PER_SECOND = "operationsPerSecond";
+	/**
+	 * Key for the <code>env</code> map: a {@link Throttle} to share with
+	 * other file systems, instead of creating one of
+	 * {@link #BYTES_PER_SECOND} and {@link #OPERATIONS_PER_SECOND}.
+	 */
+	public static final String THROTTLE = "throttle";
+	/**
+	 * Key for the <code>env</code> map: the {@link Quota} of the bytes in the
+	 * files of this file system, either a number of bytes or a
+	 * {@link Quota} to share with other file systems. Disabled by default.
+	 */
+	public static final String QUOTA = "quota";
+	/**
+	 * Key for the <code>env</code> map: the bytes already used by the files
+	 * of this file system, counted against a {@link #QUOTA} given as a number
+	 * of bytes. 0 by default.
+	 */
+	public static final String QUOTA_USED = "quotaUsed";
+
+	private static final ChannelEventListener NO_LISTENERS = new FileSystemEventAdapter();
+	private static final Throttle[] NO_THROTTLES = new Throttle[0];
+	/**
+	 * Maximum number of stripes of the path cache.
+	 */
+	private static final int PATH_CACHE_STRIPES = 16;
+	/**
+	 * Minimum number of paths in each stripe of the path cache.
+	 */
+	private static final int PATH_CACHE_STRIPE_SIZE = 256;
+	private static final AtomicInteger fileSystemCount = new AtomicInteger();
+
 	private final FileSystem originalFilesystem;
+	private final FileSystemProvider originalProvider;
 	private final WrappedFileSystemProvider provider;
-	private WrappedFileStore wrappedFileStore;
 	private URI uri;
 	private boolean closeOriginalOnClose;
+	private final Listeners listeners;
+	private final ChannelEventListener eventDispatcher;
+	private AsynchronousEventDispatcher asyncDispatcher;
+	private CoalescingEventListener coalescer;
+	/**
+	 * Paths by original path, in stripes chosen by the hash code of the
+	 * original path so that threads looking up different paths seldom wait
+	 * for each other, or <code>null</code> if disabled.
+	 */
+	private LruMap<Path, WrappedPath>[] pathCache;
+	private final PrefetchedAttributes prefetchedAttributes = new PrefetchedAttributes();
+	private AttributeCache attributeCache;
+	private NegativeLookupCache negativeLookupCache;
+	private final int directoryReadAhead;
+	private final boolean directoryPrefetchAttributes;
+	private ChannelMetrics channelMetrics;
+	private ObjectName channelMetricsName;
+	private String digestAlgorithm;
+	private DeduplicatingStore dedupStore;
+	private WriteBehind writeBehind;
+	private BlockCache blockCache;
+	private Overlay overlay;
+	/**
+	 * Throttles by the absolute original path they apply to, or
+	 * <code>null</code> for the whole file system; replaced when modified.
+	 */
+	private volatile Map<Path, Throttle> throttles = Collections.emptyMap();
+	private Quota quota;
 
 	public WrappedFileSystem(WrappedFileSystemProvider provider, URI uri,
 			FileSystem originalFs, boolean closeOriginalOnClose) {
+		this(provider, uri, originalFs, closeOriginalOnClose, Collections
+				.<String, Object> emptyMap());
+	}
+
+	public WrappedFileSystem(WrappedFileSystemProvider provider, URI uri,
+			FileSystem originalFs, boolean closeOriginalOnClose,
+			Map<String, ?> env) {
 		this.provider = provider;
 		this.originalFilesystem = originalFs;
+		this.originalProvider = originalFs.provider();
 		this.uri = uri;
 		this.closeOriginalOnClose = closeOriginalOnClose;
+		// Our own listeners first, then the provider's
+		listeners = new Listeners(provider.getListeners(), this);
+		try {
+			ChannelEventListener dispatcher = listeners;
+			if (booleanOption(env, ASYNC_EVENTS)) {
+				int bufferSize = (int) longOption(env, EVENT_BUFFER_SIZE,
+						AsynchronousEventDispatcher.DEFAULT_CAPACITY);
+				asyncDispatcher = new AsynchronousEventDispatcher(listeners,
+						bufferSize, backpressureOption(env));
+				dispatcher = asyncDispatcher;
+			}
+			long coalesceWindow = longOption(env, COALESCE_WINDOW, 0);
+			if (coalesceWindow > 0) {
+				// In front of any asynchronous dispatch, so it has less to do
+				coalescer = new CoalescingEventListener(dispatcher,
+						coalesceWindow);
+				dispatcher = coalescer;
+			}
+			eventDispatcher = dispatcher;
+			int pathCacheSize = (int) longOption(env, PATH_CACHE_SIZE, 0);
+			if (pathCacheSize > 0) {
+				pathCache = newPathCache(pathCacheSize);
+			}
+			int attributeCacheSize = (int) longOption(env, ATTRIBUTE_CACHE_SIZE,
+					0);
+			if (attributeCacheSize > 0) {
+				attributeCache = new AttributeCache(attributeCacheSize,
+						longOption(env, ATTRIBUTE_CACHE_TTL,
+								DEFAULT_ATTRIBUTE_CACHE_TTL));
+			}
+			directoryReadAhead = (int) longOption(env, DIRECTORY_READ_AHEAD, 0);
+			directoryPrefetchAttributes = booleanOption(env,
+					DIRECTORY_PREFETCH_ATTRIBUTES);
+			int negativeLookupCacheSize = (int) longOption(env,
+					NEGATIVE_LOOKUP_CACHE_SIZE, 0);
+			if (negativeLookupCacheSize > 0) {
+				negativeLookupCache = new NegativeLookupCache(
+						negativeLookupCacheSize, longOption(env,
+								NEGATIVE_LOOKUP_CACHE_TTL,
+								DEFAULT_NEGATIVE_LOOKUP_CACHE_TTL));
+			}
+			if (env.get(DIGEST) != null) {
+				digestAlgorithm = env.get(DIGEST).toString();
+			} else if (env.get(DEDUP_STORE) != null) {
+				digestAlgorithm = DEFAULT_DEDUP_DIGEST;
+			}
+			if (digestAlgorithm != null) {
+				// Fail early if the algorithm is not supported
+				newDigest();
+			}
+			if (env.get(DEDUP_STORE) != null) {
+				Path storeDir = originalFs.getPath(env.get(DEDUP_STORE)
+						.toString());
+				try {
+					dedupStore = new DeduplicatingStore(storeDir,
+							digestAlgorithm);
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Could not open "
+							+ DEDUP_STORE + " " + storeDir, e);
+				}
+			}
+			if (booleanOption(env, CHANNEL_METRICS)) {
+				channelMetrics = new ChannelMetrics((int) longOption(env,
+						CHANNEL_METRICS_SIZE, DEFAULT_CHANNEL_METRICS_SIZE));
+				registerChannelMetrics();
+			}
+			if (booleanOption(env, WRITE_BEHIND)) {
+				writeBehind = new WriteBehind(this, (int) longOption(env,
+						WRITE_BEHIND_MAX_FILE_SIZE,
+						WriteBehind.DEFAULT_MAX_FILE_SIZE), longOption(env,
+						WRITE_BEHIND_MAX_PENDING,
+						WriteBehind.DEFAULT_MAX_PENDING), (int) longOption(
+						env, WRITE_BEHIND_THREADS,
+						WriteBehind.DEFAULT_THREADS));
+			}
+			if (env.get(BLOCK_CACHE) instanceof BlockCache) {
+				blockCache = (BlockCache) env.get(BLOCK_CACHE);
+			} else {
+				long blockCacheSize = longOption(env, BLOCK_CACHE_SIZE, 0);
+				if (blockCacheSize > 0) {
+					blockCache = new BlockCache(blockCacheSize,
+							(int) longOption(env, BLOCK_CACHE_BLOCK_SIZE,
+									BlockCache.DEFAULT_BLOCK_SIZE),
+							booleanOption(env, BLOCK_CACHE_DIRECT),
+							(int) longOption(env, BLOCK_CACHE_READ_AHEAD,
+									BlockCache.DEFAULT_READ_AHEAD));
+				}
+			}
+			if (env.get(OVERLAY_UPPER) != null) {
+				Path upper = originalFs.getPath(env.get(OVERLAY_UPPER)
+						.toString());
+				Object lowerOption = env.get(OVERLAY_LOWER);
+				Path lower;
+				if (lowerOption instanceof Path) {
+					lower = (Path) lowerOption;
+				} else if (lowerOption instanceof URI) {
+					lower = Paths.get((URI) lowerOption);
+				} else if (lowerOption != null) {
+					lower = originalFs.getPath(lowerOption.toString());
+				} else {
+					throw new IllegalArgumentException(OVERLAY_UPPER
+							+ " requires " + OVERLAY_LOWER);
+				}
+				try {
+					overlay = new Overlay(upper, lower);
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Could not open "
+							+ OVERLAY_UPPER + " " + upper + " over " + lower,
+							e);
+				}
+			}
+			if (env.get(THROTTLE) instanceof Throttle) {
+				setThrottle(null, (Throttle) env.get(THROTTLE));
+			} else {
+				long bytesPerSecond = longOption(env, BYTES_PER_SECOND, 0);
+				long operationsPerSecond = longOption(env,
+						OPERATIONS_PER_SECOND, 0);
+				if (bytesPerSecond > 0 || operationsPerSecond > 0) {
+					setThrottle(null, new Throttle(bytesPerSecond,
+							operationsPerSecond));
+				}
+			}
+			if (env.get(QUOTA) instanceof Quota) {
+				quota = (Quota) env.get(QUOTA);
+			} else if (env.get(QUOTA) != null) {
+				quota = new Quota(longOption(env, QUOTA, 0), longOption(env,
+						QUOTA_USED, 0));
+			}
+		} catch (RuntimeException | Error e) {
+			closeAfterFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Release what the constructor made before it failed, including the
+	 * original file system if it was to be closed with this one.
+	 */
+	private void closeAfterFailure(Throwable failure) {
+		if (writeBehind != null) {
+			try {
+				writeBehind.close();
+			} catch (IOException e) {
+				failure.addSuppressed(e);
+			}
+		}
+		if (coalescer != null) {
+			coalescer.close();
+		}
+		if (asyncDispatcher != null) {
+			asyncDispatcher.close();
+		}
+		unregisterChannelMetrics();
+		if (closeOriginalOnClose) {
+			try {
+				originalFilesystem.close();
+			} catch (IOException | UnsupportedOperationException e) {
+				failure.addSuppressed(e);
+			}
+		}
+	}
+
+	private void registerChannelMetrics() {
+		try {
+			channelMetricsName = new ObjectName(
+					"uk.org.taverna.fswrap:type=ChannelMetrics,name="
+							+ ObjectName.quote(uri + " #"
+									+ fileSystemCount.incrementAndGet()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					channelMetrics, channelMetricsName);
+		} catch (JMException e) {
+			throw new IllegalStateException(
+					"Could not register channel metrics with JMX", e);
+		}
+	}
+
+	private void unregisterChannelMetrics() {
+		if (channelMetricsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						channelMetricsName);
+			} catch (JMException e) {
+				// Already unregistered
+			}
+			channelMetricsName = null;
+		}
+	}
+
+	/**
+	 * Add a listener for events occurring through this file system only.
+	 * <p>
+	 * Listeners added with
+	 * {@link WrappedFileSystemProvider#addFileSystemEventListener(FileSystemEventListener)}
+	 * are told about events in every wrapped file system.
+	 */
+	public void addFileSystemEventListener(FileSystemEventListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Add a listener for some kinds of events occurring through this file
+	 * system, for paths starting with the given prefix.
+	 * <p>
+	 * If the listener was already added, its subscription is replaced.
+	 *
+	 * @param listener
+	 *            Listener to add
+	 * @param prefix
+	 *            Path in this file system that event paths must start with,
+	 *            or <code>null</code> for all paths
+	 * @param kinds
+	 *            Kinds of events to receive, or none for all kinds
+	 */
+	public void addFileSystemEventListener(FileSystemEventListener listener,
+			Path prefix, FileSystemEvent.Kind... kinds) {
+		if (prefix != null && prefix.getFileSystem() != this) {
+			throw new IllegalArgumentException("Prefix " + prefix
+					+ " is not a path of " + this);
+		}
+		listeners.add(listener, prefix, kinds);
+	}
+
+	protected static boolean booleanOption(Map<String, ?> env, String key) {
+		Object value = env.get(key);
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+		return value != null && Boolean.parseBoolean(value.toString());
+	}
+
+	protected static long longOption(Map<String, ?> env, String key,
+			long defaultValue) {
+		Object value = env.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number for " + key
+					+ ": " + value);
+		}
+	}
+
+	private static AsynchronousEventDispatcher.Backpressure backpressureOption(
+			Map<String, ?> env) {
+		Object value = env.get(EVENT_BACKPRESSURE);
+		if (value == null) {
+			return AsynchronousEventDispatcher.Backpressure.BLOCK;
+		}
+		if (value instanceof AsynchronousEventDispatcher.Backpressure) {
+			return (AsynchronousEventDispatcher.Backpressure) value;
+		}
+		return AsynchronousEventDispatcher.Backpressure.valueOf(value
+				.toString().trim().toUpperCase());
+	}
+
+	/**
+	 * Called by a {@link WrappedSeekableByteChannel} when it is closed.
+	 */
+	protected void closedByteChannel(WrappedSeekableByteChannel channel)
+			throws IOException {
+		Path originalPath = channel.getPath().originalPath;
+		byte[] digest = null;
+		ChannelEventListener digestDispatcher = getEventDispatcher(
+				FileSystemEvent.Kind.DIGEST_COMPUTED);
+		if (channel.isDigesting()
+				&& (dedupStore != null || digestDispatcher != NO_LISTENERS)) {
+			digest = channel.getSequentialDigest();
+			if (digest == null) {
+				digest = computeDigest(originalPath);
+			}
+			if (dedupStore != null
+					&& !(writeBehind != null && writeBehind
+							.isPending(originalPath))) {
+				// Otherwise stored once written
+				dedupStore.stored(originalPath, digest);
+			}
+		}
+		if (channel.isWritable()) {
+			invalidate(originalPath);
+		}
+		getEventDispatcher(FileSystemEvent.Kind.CHANNEL_CLOSED)
+				.channelClosed(channel.getPath(), channel.getBytesRead(),
+						channel.getBytesWritten(),
+						channel.getDurationNanos());
+		if (digest != null) {
+			digestDispatcher.digestComputed(channel.getPath(),
+					digestAlgorithm, digest);
+		}
+	}
+
+	/**
+	 * Called by {@link WriteBehind} after the original file has been written
+	 * from memory.
+	 */
+	protected void writtenBehind(Path originalPath, byte[] content,
+			int length) throws IOException {
+		invalidate(originalPath);
+		Path parent = originalPath.getParent();
+		if (parent != null) {
+			invalidate(parent);
+		}
+		if (dedupStore != null) {
+			MessageDigest digest = newDigest();
+			digest.update(content, 0, length);
+			dedupStore.stored(originalPath, digest.digest());
+		}
+	}
+
+	/**
+	 * Called by the provider before the path is opened for writing or its
+	 * attributes are modified.
+	 */
+	protected void beforeModify(WrappedPath path,
+			Set<? extends OpenOption> options) throws IOException {
+		if (dedupStore != null) {
+			dedupStore.beforeModify(path.originalPath,
+					options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+							&& !options.contains(StandardOpenOption.APPEND));
+		}
+	}
+
+	/**
+	 * Copy the path within this file system without copying its content, if
+	 * possible.
+	 *
+	 * @return <code>false</code> if the path has to be copied as usual
+	 */
+	protected boolean copyWithoutContent(WrappedPath source,
+			WrappedPath target, CopyOption... options) throws IOException {
+		if (dedupStore == null || target.getFileSystem() != this) {
+			return false;
+		}
+		return dedupStore.copy(source.originalPath, target.originalPath,
+				options);
+	}
+
+	/**
+	 * Called by the provider after the path was deleted.
+	 */
+	protected void deleted(WrappedPath path) {
+		if (dedupStore != null) {
+			dedupStore.deleted(path.originalPath);
+		}
+		if (writeBehind != null) {
+			writeBehind.forgetDirectories(path.originalPath, false);
+		}
+	}
+
+	/**
+	 * Called by the provider after the path was moved within this file
+	 * system.
+	 */
+	protected void moved(WrappedPath source, WrappedPath target) {
+		if (dedupStore != null && target.getFileSystem() == this) {
+			dedupStore.moved(source.originalPath, target.originalPath);
+		}
+		if (writeBehind != null) {
+			writeBehind.forgetDirectories(source.originalPath, true);
+		}
+	}
+
+	/**
+	 * Compute the digest of the original file by reading it, when it was not
+	 * written sequentially.
+	 */
+	protected byte[] computeDigest(Path originalPath) throws IOException {
+		if (writeBehind != null) {
+			writeBehind.await(originalPath);
+		}
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		try (SeekableByteChannel channel = originalProvider.newByteChannel(
+				originalPath, Collections.singleton(StandardOpenOption.READ))) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return digest.digest();
+	}
+
+	private MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(digestAlgorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unsupported " + DIGEST
+					+ " algorithm: " + digestAlgorithm, e);
+		}
+	}
+
+	/**
+	 * The algorithm digests of written files are computed with, or
+	 * <code>null</code> unless enabled with {@link #DIGEST}.
+	 */
+	public String getDigestAlgorithm() {
+		return digestAlgorithm;
 	}
 
 	@Override
 	public void close() throws IOException {
+		if (writeBehind != null) {
+			writeBehind.close();
+		}
+		if (dedupStore != null) {
+			dedupStore.writeIndex();
+		}
+		if (coalescer != null) {
+			coalescer.close();
+		}
+		if (asyncDispatcher != null) {
+			// Deliver any outstanding events before closing
+			asyncDispatcher.close();
+		}
+		unregisterChannelMetrics();
 		if (closeOriginalOnClose) {
 			originalFilesystem.close();
 		}
@@ -39,17 +706,263 @@ public class WrappedFileSystem extends FileSystem {
 
 	@Override
 	public Iterable<FileStore> getFileStores() {
-		if (wrappedFileStore == null) {
-			wrappedFileStore = new WrappedFileStore(getOriginalFilesystem()
-					.getFileStores().iterator().next());
+		return new WrappingIterable<FileStore, FileStore>(
+				getOriginalFilesystem().getFileStores()) {
+			@Override
+			protected FileStore wrap(FileStore original) {
+				return new WrappedFileStore(original, quota);
+			}
+		};
+	}
+
+	/**
+	 * The coalescing of events, or <code>null</code> unless enabled with
+	 * {@link #COALESCE_WINDOW}.
+	 */
+	public CoalescingEventListener getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * The cache of attributes, or <code>null</code> unless enabled with
+	 * {@link #ATTRIBUTE_CACHE_SIZE}.
+	 */
+	public AttributeCache getAttributeCache() {
+		return attributeCache;
+	}
+
+	/**
+	 * The attributes read ahead by the directory streams of this file
+	 * system, until they are taken.
+	 */
+	PrefetchedAttributes getPrefetchedAttributes() {
+		return prefetchedAttributes;
+	}
+
+	/**
+	 * The store of written files, or <code>null</code> unless enabled with
+	 * {@link #DEDUP_STORE}.
+	 */
+	public DeduplicatingStore getDeduplicatingStore() {
+		return dedupStore;
+	}
+
+	/**
+	 * The I/O metrics of byte channels, or <code>null</code> unless enabled
+	 * with {@link #CHANNEL_METRICS}.
+	 */
+	public ChannelMetrics getChannelMetrics() {
+		return channelMetrics;
+	}
+
+	/**
+	 * The cache of blocks of files read, or <code>null</code> unless enabled
+	 * with {@link #BLOCK_CACHE_SIZE} or {@link #BLOCK_CACHE}.
+	 */
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	/**
+	 * The overlay of a writable directory over a read-only one, or
+	 * <code>null</code> unless enabled with {@link #OVERLAY_UPPER}.
+	 */
+	public Overlay getOverlay() {
+		return overlay;
+	}
+
+	/**
+	 * The original path to read the given original path from, which for a
+	 * path within the {@link Overlay} may be of its lower directory.
+	 */
+	protected Path toReadablePath(Path originalPath) {
+		if (overlay == null) {
+			return originalPath;
+		}
+		return overlay.resolve(originalPath);
+	}
+
+	/**
+	 * The quota of the bytes in the files of this file system, or
+	 * <code>null</code> unless enabled with {@link #QUOTA}.
+	 */
+	public Quota getQuota() {
+		return quota;
+	}
+
+	/**
+	 * The throttle of the given prefix, or <code>null</code> if it has none.
+	 *
+	 * @param prefix
+	 *            A path of this file system, or <code>null</code> for the
+	 *            throttle of the whole file system
+	 */
+	public Throttle getThrottle(Path prefix) {
+		return throttles.get(throttleKey(prefix));
+	}
+
+	/**
+	 * Limit the I/O of paths starting with the prefix. A path is limited by
+	 * the throttle of every prefix it starts with, and by that of the whole
+	 * file system. Byte channels are limited by the throttles set when they
+	 * were opened.
+	 *
+	 * @param prefix
+	 *            A path of this file system, or <code>null</code> to limit
+	 *            the whole file system
+	 * @param throttle
+	 *            The throttle, or <code>null</code> to remove it
+	 */
+	public synchronized void setThrottle(Path prefix, Throttle throttle) {
+		Map<Path, Throttle> modified = new HashMap<Path, Throttle>(throttles);
+		if (throttle == null) {
+			modified.remove(throttleKey(prefix));
+		} else {
+			modified.put(throttleKey(prefix), throttle);
+		}
+		throttles = modified;
+	}
+
+	private Path throttleKey(Path prefix) {
+		if (prefix == null) {
+			return null;
+		}
+		if (prefix.getFileSystem() != this) {
+			throw new IllegalArgumentException("Prefix " + prefix
+					+ " is not a path of " + this);
+		}
+		return ((WrappedPath) prefix).toAbsolutePath().originalPath;
+	}
+
+	/**
+	 * The throttles limiting the I/O of the path.
+	 */
+	protected Throttle[] getThrottles(WrappedPath path) {
+		Map<Path, Throttle> current = throttles;
+		if (current.isEmpty()) {
+			return NO_THROTTLES;
+		}
+		Path absolute = path.originalPath.toAbsolutePath();
+		List<Throttle> matching = new ArrayList<Throttle>(current.size());
+		for (Map.Entry<Path, Throttle> entry : current.entrySet()) {
+			if (entry.getKey() == null || absolute.startsWith(entry.getKey())) {
+				matching.add(entry.getValue());
+			}
+		}
+		return matching.toArray(new Throttle[matching.size()]);
+	}
+
+	/**
+	 * Wait until an operation on the path is within the limits of its
+	 * throttles.
+	 */
+	protected void throttleOperation(WrappedPath path)
+			throws InterruptedIOException {
+		for (Throttle throttle : getThrottles(path)) {
+			throttle.operation();
+		}
+	}
+
+	/**
+	 * Wait until the bytes read or written for the path are within the
+	 * limits of its throttles.
+	 */
+	protected void throttleBytes(WrappedPath path, long bytes)
+			throws InterruptedIOException {
+		for (Throttle throttle : getThrottles(path)) {
+			throttle.bytes(bytes);
 		}
-		return Collections.singleton((FileStore) wrappedFileStore);
+	}
+
+	/**
+	 * The write-behind of new files, or <code>null</code> unless enabled with
+	 * {@link #WRITE_BEHIND}.
+	 */
+	public WriteBehind getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * The cache of missing paths, or <code>null</code> unless enabled with
+	 * {@link #NEGATIVE_LOOKUP_CACHE_SIZE}.
+	 */
+	public NegativeLookupCache getNegativeLookupCache() {
+		return negativeLookupCache;
+	}
+
+	/**
+	 * Wait until all events for this file system have been delivered to the
+	 * listeners. Returns immediately unless {@link #ASYNC_EVENTS} or
+	 * {@link #COALESCE_WINDOW} is enabled.
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public void flushEvents() throws InterruptedException {
+		if (coalescer != null) {
+			coalescer.flush();
+		}
+		if (asyncDispatcher != null) {
+			asyncDispatcher.flush();
+		}
+	}
+
+	/**
+	 * Wait until all files closed so far have been written to the original
+	 * file system. Returns immediately unless {@link #WRITE_BEHIND} is
+	 * enabled. The files are not forced to the storage device.
+	 *
+	 * @throws IOException
+	 *             If a file written behind since the last flush could not be
+	 *             written
+	 */
+	public void flushWrites() throws IOException {
+		if (writeBehind != null) {
+			writeBehind.flush();
+		}
+	}
+
+	/**
+	 * The listener that events of the given kind for this file system should
+	 * be fired on. If no listener is interested in that kind of event, a
+	 * listener that does nothing is returned.
+	 */
+	protected ChannelEventListener getEventDispatcher(
+			FileSystemEvent.Kind kind) {
+		if (!listeners.isListening(kind)) {
+			return NO_LISTENERS;
+		}
+		return eventDispatcher;
+	}
+
+	/**
+	 * Open a directory stream for a directory of this file system.
+	 */
+	protected WrappedDirectoryStream toWrappedDirectoryStream(WrappedPath dir,
+			DirectoryStream<Path> originalDirectoryStream) {
+		return new WrappedDirectoryStream(dir, originalDirectoryStream,
+				directoryReadAhead, directoryPrefetchAttributes);
+	}
+
+	/**
+	 * Listeners for events occurring through this file system only.
+	 */
+	public List<FileSystemEventListener> getFileSystemEventListeners() {
+		return listeners.all();
 	}
 
 	public FileSystem getOriginalFilesystem() {
 		return originalFilesystem;
 	}
 
+	/**
+	 * The provider of the original file system, resolved once when this file
+	 * system was created.
+	 */
+	public FileSystemProvider getOriginalProvider() {
+		return originalProvider;
+	}
+
 	@Override
 	public Path getPath(String first, String... more) {
 		Path origPath = getOriginalFilesystem().getPath(first, more);
@@ -96,7 +1009,7 @@ public class WrappedFileSystem extends FileSystem {
 
 	@Override
 	public WatchService newWatchService() throws IOException {
-		return getOriginalFilesystem().newWatchService();
+		return new WrappedWatchService(this);
 	}
 
 	@Override
@@ -104,25 +1017,159 @@ public class WrappedFileSystem extends FileSystem {
 		return provider;
 	}
 
+	/**
+	 * Forget anything cached about the original path, which has been
+	 * created, modified or deleted through this file system.
+	 */
+	protected void invalidate(Path originalPath) {
+		prefetchedAttributes.invalidate(originalPath);
+		if (blockCache != null) {
+			blockCache.invalidate(originalPath);
+		}
+		if (attributeCache != null) {
+			attributeCache.invalidate(originalPath);
+		}
+		if (negativeLookupCache != null) {
+			negativeLookupCache.invalidate(originalPath);
+		}
+	}
+
+	/**
+	 * Forget anything cached about the original path and anything within it,
+	 * as the path has been moved or replaced through this file system.
+	 */
+	protected void invalidateTree(Path originalPath) {
+		prefetchedAttributes.invalidateTree(originalPath);
+		if (blockCache != null) {
+			blockCache.invalidateTree(originalPath);
+		}
+		if (attributeCache != null) {
+			attributeCache.invalidateTree(originalPath);
+		}
+		if (negativeLookupCache != null) {
+			negativeLookupCache.invalidateTree(originalPath);
+		}
+	}
+
+	public void removeFileSystemEventListener(FileSystemEventListener listener) {
+		listeners.remove(listener);
+	}
+
 	@Override
 	public Set<String> supportedFileAttributeViews() {
 		return getOriginalFilesystem().supportedFileAttributeViews();
 	}
 
+	/**
+	 * Wrap the channel opened for the path, if this file system or its
+	 * listeners need to know what happens to it.
+	 */
+	protected SeekableByteChannel toWrappedByteChannel(WrappedPath path,
+			Set<? extends OpenOption> options, SeekableByteChannel channel)
+			throws IOException {
+		boolean append = options.contains(StandardOpenOption.APPEND);
+		boolean writable = options.contains(StandardOpenOption.WRITE)
+				|| append;
+		boolean digest = writable && digestAlgorithm != null;
+		Throttle[] channelThrottles = getThrottles(path);
+		if (channelMetrics == null && !digest
+				&& !(writable && (attributeCache != null || blockCache != null
+						|| quota != null))
+				&& !listeners.isListening(FileSystemEvent.Kind.CHANNEL_CLOSED)
+				&& channelThrottles.length == 0) {
+			return channel;
+		}
+		WrappedSeekableByteChannel wrapped;
+		if (channelMetrics != null) {
+			wrapped = new WrappedSeekableByteChannel(path, channel, writable,
+					channelMetrics.forPath(path.originalPath),
+					channelMetrics.getTotal());
+		} else {
+			wrapped = new WrappedSeekableByteChannel(path, channel, writable);
+		}
+		if (append) {
+			wrapped.positionUnknown();
+		}
+		wrapped.throttle(channelThrottles);
+		if (writable && quota != null) {
+			wrapped.account(quota, channel.size());
+		}
+		if (digest) {
+			// Only a file that starts empty can be digested as it is written
+			boolean empty = !append
+					&& (options.contains(StandardOpenOption.TRUNCATE_EXISTING) || options
+							.contains(StandardOpenOption.CREATE_NEW));
+			wrapped.startDigest(newDigest(), empty);
+		}
+		return wrapped;
+	}
+
+	/**
+	 * Wrap the file channel opened for the path, if this file system or its
+	 * listeners need to know what happens to it.
+	 */
+	protected FileChannel toWrappedFileChannel(WrappedPath path,
+			Set<? extends OpenOption> options, FileChannel channel)
+			throws IOException {
+		SeekableByteChannel wrapped = toWrappedByteChannel(path, options,
+				channel);
+		if (wrapped instanceof WrappedSeekableByteChannel) {
+			return new WrappedFileChannel((WrappedSeekableByteChannel) wrapped);
+		}
+		return channel;
+	}
+
 	protected WrappedPath toWrappedPath(Path origPath) {
 		if (origPath == null) {
 			return null;
 		}
-		return new WrappedPath(this, origPath);
+		if (pathCache == null) {
+			return new WrappedPath(this, origPath);
+		}
+		// Not the low bits, which pick the bucket within the stripe
+		int hash = origPath.hashCode() * 0x9E3779B9;
+		LruMap<Path, WrappedPath> stripe = pathCache[hash >>> 16
+				& (pathCache.length - 1)];
+		synchronized (stripe) {
+			WrappedPath path = stripe.get(origPath);
+			if (path == null) {
+				path = new WrappedPath(this, origPath);
+				stripe.put(origPath, path);
+			}
+			return path;
+		}
 	}
 
-	protected Iterable<Path> toWrappedPaths(Iterable<Path> origPaths) {
-		List<Path> wrapped = new ArrayList<Path>();
-		for (Path orig : origPaths) {
-			// where's my yield !!??
-			wrapped.add(toWrappedPath(orig));
+	/**
+	 * Create the stripes of the path cache: a power of two, up to
+	 * {@link #PATH_CACHE_STRIPES}, each with room for at least
+	 * {@link #PATH_CACHE_STRIPE_SIZE} paths, so a small cache keeps its least
+	 * recently used order exactly.
+	 */
+	@SuppressWarnings("unchecked")
+	private static LruMap<Path, WrappedPath>[] newPathCache(int size) {
+		int stripes = Integer.highestOneBit(Math.max(1,
+				Math.min(PATH_CACHE_STRIPES, size / PATH_CACHE_STRIPE_SIZE)));
+		LruMap<Path, WrappedPath>[] cache = (LruMap<Path, WrappedPath>[]) new LruMap<?, ?>[stripes];
+		for (int i = 0; i < stripes; i++) {
+			// Rounded up, so the stripes hold at least the size together
+			cache[i] = new LruMap<Path, WrappedPath>((size + stripes - 1)
+					/ stripes);
 		}
-		return wrapped;
+		return cache;
+	}
+
+	/**
+	 * Wrap the original paths on demand, as the returned iterable is
+	 * iterated over.
+	 */
+	protected Iterable<Path> toWrappedPaths(Iterable<Path> origPaths) {
+		return new WrappingIterable<Path, Path>(origPaths) {
+			@Override
+			protected Path wrap(Path original) {
+				return toWrappedPath(original);
+			}
+		};
 	}
 
 	public URI getUri() {
@@ -1,9 +1,16 @@
 package uk.org.taverna.fswrap;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
 import java.nio.file.CopyOption;
@@ -15,22 +22,31 @@ import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import uk.org.taverna.fswrap.FileSystemEvent.Kind;
 
 public class WrappedFileSystemProvider extends FileSystemProvider {
 
@@ -62,51 +78,269 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 		}
 	}
 
-	public static class Listeners implements FileSystemEventListener,
+	/**
+	 * Registry of listeners, which passes on events to each of them in order
+	 * of registration, and then to the parent registry, if any.
+	 * <p>
+	 * A listener can subscribe to only some {@link FileSystemEvent.Kind}s of
+	 * events, and only to events for paths starting with a given prefix. For
+	 * copies and moves it is enough for either source or target to match.
+	 * <p>
+	 * The subscriptions are kept as immutable arrays, indexed by event kind,
+	 * which are replaced on {@link #add(FileSystemEventListener)} and
+	 * {@link #remove(FileSystemEventListener)}. Firing an event therefore
+	 * takes no lock and allocates nothing, and an event kind no listener has
+	 * subscribed to costs nothing but an array lookup.
+	 */
+	public static class Listeners implements ChannelEventListener,
 			Iterable<FileSystemEventListener> {
 
-		private Set<FileSystemEventListener> registered = new LinkedHashSet<FileSystemEventListener>();
+		private static final class Subscription {
+			private final FileSystemEventListener listener;
+			private final Path prefix;
+			private final Set<Kind> kinds;
+
+			private Subscription(FileSystemEventListener listener,
+					Path prefix, Set<Kind> kinds) {
+				this.listener = listener;
+				this.prefix = prefix;
+				this.kinds = kinds;
+			}
+
+			private boolean matches(Path path) {
+				return prefix == null
+						|| (path != null
+								&& path.getFileSystem() == prefix
+										.getFileSystem() && path
+									.startsWith(prefix));
+			}
+
+			private boolean matches(Path source, Path target) {
+				return matches(source) || matches(target);
+			}
+		}
+
+		private static final Subscription[] NONE = new Subscription[0];
+		private static final int KINDS = Kind.values().length;
+
+		private final Listeners parent;
+		private final FileSystem fileSystem;
+		private volatile Subscription[] registered = NONE;
+		private volatile Subscription[][] byKind = index(NONE);
+
+		public Listeners() {
+			this(null);
+		}
+
+		/**
+		 * @param parent
+		 *            Registry to pass events on to after this registry's own
+		 *            listeners, or <code>null</code>
+		 */
+		public Listeners(Listeners parent) {
+			this(parent, null);
+		}
+
+		/**
+		 * @param parent
+		 *            Registry to pass events on to after this registry's own
+		 *            listeners, or <code>null</code>
+		 * @param fileSystem
+		 *            File system the events occur through, or
+		 *            <code>null</code>. A copy or move between file systems
+		 *            is fired on the registries of both, and passed on to the
+		 *            parent only by that of the source.
+		 */
+		public Listeners(Listeners parent, FileSystem fileSystem) {
+			this.parent = parent;
+			this.fileSystem = fileSystem;
+		}
+
+		/**
+		 * Check if a copy or move from the source should be passed on to the
+		 * parent, as it is not passed on by another registry.
+		 */
+		private boolean passesOn(Path source) {
+			return parent != null
+					&& (fileSystem == null || source.getFileSystem() == fileSystem);
+		}
+
+		/**
+		 * Check if the kind of event is only fired on
+		 * {@link ChannelEventListener}s.
+		 */
+		private static boolean isChannelEvent(Kind kind) {
+			return kind == Kind.CHANNEL_CLOSED
+					|| kind == Kind.DIGEST_COMPUTED;
+		}
+
+		private static boolean isChannelListener(Subscription s) {
+			return s.listener instanceof ChannelEventListener;
+		}
+
+		private static Subscription[][] index(Subscription[] subscriptions) {
+			Subscription[][] index = new Subscription[KINDS][];
+			for (Kind kind : Kind.values()) {
+				List<Subscription> matching = new ArrayList<Subscription>();
+				for (Subscription s : subscriptions) {
+					if (s.kinds.contains(kind)
+							&& (!isChannelEvent(kind) || isChannelListener(s))) {
+						matching.add(s);
+					}
+				}
+				index[kind.ordinal()] = matching.isEmpty() ? NONE : matching
+						.toArray(new Subscription[matching.size()]);
+			}
+			return index;
+		}
+
+		public void add(FileSystemEventListener l) {
+			add(l, null);
+		}
+
+		/**
+		 * Add a listener which is only told about some kinds of events, and
+		 * only about events for paths starting with the given prefix. Events
+		 * about channels are only fired on a {@link ChannelEventListener}.
+		 * <p>
+		 * If the listener was already added, its subscription is replaced.
+		 *
+		 * @param l
+		 *            Listener to add
+		 * @param prefix
+		 *            Prefix of paths to receive events for, or
+		 *            <code>null</code> for all paths
+		 * @param kinds
+		 *            Kinds of events to receive, or none for all kinds
+		 */
+		public synchronized void add(FileSystemEventListener l, Path prefix,
+				Kind... kinds) {
+			Set<Kind> kindSet = kinds.length == 0 ? EnumSet
+					.allOf(Kind.class) : EnumSet.copyOf(Arrays
+					.asList(kinds));
+			Subscription subscription = new Subscription(l, prefix, kindSet);
+			Subscription[] current = registered;
+			Subscription[] updated = null;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i].listener.equals(l)) {
+					updated = current.clone();
+					updated[i] = subscription;
+				}
+			}
+			if (updated == null) {
+				updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = subscription;
+			}
+			byKind = index(updated);
+			registered = updated;
+		}
 
-		public synchronized void add(FileSystemEventListener l) {
-			registered.add(l);
+		public List<FileSystemEventListener> all() {
+			// The array is never modified, so this is a consistent snapshot
+			Subscription[] current = registered;
+			List<FileSystemEventListener> all = new ArrayList<FileSystemEventListener>(
+					current.length);
+			for (Subscription s : current) {
+				all.add(s.listener);
+			}
+			return all;
 		}
 
-		public synchronized List<FileSystemEventListener> all() {
-			// Make a thread-safe snapshot
-			return new ArrayList<FileSystemEventListener>(registered);
+		@Override
+		public void channelClosed(Path path, long bytesRead,
+				long bytesWritten, long durationNanos) {
+			for (Subscription s : byKind[Kind.CHANNEL_CLOSED.ordinal()]) {
+				if (s.matches(path)) {
+					((ChannelEventListener) s.listener).channelClosed(path,
+							bytesRead, bytesWritten, durationNanos);
+				}
+			}
+			if (parent != null) {
+				parent.channelClosed(path, bytesRead, bytesWritten,
+						durationNanos);
+			}
 		}
 
 		@Override
 		public void copied(Path source, Path target, CopyOption[] options) {
-			for (FileSystemEventListener l : this) {
-				l.copied(source, target, options);
+			for (Subscription s : byKind[Kind.COPIED.ordinal()]) {
+				if (s.matches(source, target)) {
+					s.listener.copied(source, target, options);
+				}
+			}
+			if (passesOn(source)) {
+				parent.copied(source, target, options);
 			}
 		}
 
 		@Override
 		public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
-			for (FileSystemEventListener l : this) {
-				l.createdDirectory(dir, attrs);
+			for (Subscription s : byKind[Kind.CREATED_DIRECTORY
+					.ordinal()]) {
+				if (s.matches(dir)) {
+					s.listener.createdDirectory(dir, attrs);
+				}
+			}
+			if (parent != null) {
+				parent.createdDirectory(dir, attrs);
 			}
 		}
 
 		@Override
 		public void deleted(Path path) {
-			for (FileSystemEventListener l : this) {
-				l.deleted(path);
+			for (Subscription s : byKind[Kind.DELETED.ordinal()]) {
+				if (s.matches(path)) {
+					s.listener.deleted(path);
+				}
+			}
+			if (parent != null) {
+				parent.deleted(path);
+			}
+		}
+
+		@Override
+		public void digestComputed(Path path, String algorithm, byte[] digest) {
+			for (Subscription s : byKind[Kind.DIGEST_COMPUTED.ordinal()]) {
+				if (s.matches(path)) {
+					((ChannelEventListener) s.listener).digestComputed(path,
+							algorithm, digest);
+				}
 			}
+			if (parent != null) {
+				parent.digestComputed(path, algorithm, digest);
+			}
+		}
+
+		/**
+		 * Check if no listeners are registered, not including the parent.
+		 */
+		public boolean isEmpty() {
+			return registered.length == 0;
+		}
+
+		/**
+		 * Check if any listener, including those of the parent, has
+		 * subscribed to the given kind of event.
+		 */
+		public boolean isListening(Kind kind) {
+			return byKind[kind.ordinal()].length > 0
+					|| (parent != null && parent.isListening(kind));
 		}
 
 		@Override
 		public Iterator<FileSystemEventListener> iterator() {
-			// iterate over a copy
-			return all().iterator();
+			return Collections.unmodifiableList(all()).iterator();
 		}
 
 		@Override
 		public void moved(Path source, Path target, CopyOption[] options) {
-			for (FileSystemEventListener l : this) {
-				l.moved(source, target, options);
+			for (Subscription s : byKind[Kind.MOVED.ordinal()]) {
+				if (s.matches(source, target)) {
+					s.listener.moved(source, target, options);
+				}
+			}
+			if (passesOn(source)) {
+				parent.moved(source, target, options);
 			}
 		}
 
@@ -114,27 +348,56 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 		public void newByteChannel(Path path,
 				Set<? extends OpenOption> options, FileAttribute<?>[] attrs,
 				SeekableByteChannel byteChannel) {
-			for (FileSystemEventListener l : this) {
-				l.newByteChannel(path, options, attrs, byteChannel);
+			for (Subscription s : byKind[Kind.NEW_BYTE_CHANNEL
+					.ordinal()]) {
+				if (s.matches(path)) {
+					s.listener.newByteChannel(path, options, attrs,
+							byteChannel);
+				}
+			}
+			if (parent != null) {
+				parent.newByteChannel(path, options, attrs, byteChannel);
 			}
 		}
 
 		@Override
 		public void newFileSystem(WrappedFileSystem fs, Map<String, ?> env) {
-			for (FileSystemEventListener l : this) {
-				l.newFileSystem(fs, env);
+			// Not related to a path, so the prefix does not apply
+			for (Subscription s : byKind[Kind.NEW_FILE_SYSTEM
+					.ordinal()]) {
+				s.listener.newFileSystem(fs, env);
+			}
+			if (parent != null) {
+				parent.newFileSystem(fs, env);
 			}
 		}
 
 		public synchronized void remove(FileSystemEventListener l) {
-			registered.remove(l);
+			Subscription[] current = registered;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i].listener.equals(l)) {
+					Subscription[] updated = new Subscription[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i,
+							updated.length - i);
+					byKind = index(updated);
+					registered = updated;
+					return;
+				}
+			}
 		}
 
 		@Override
 		public void setAttribute(Path path, String attribute, Object value,
 				LinkOption[] options) {
-			for (FileSystemEventListener l : this) {
-				l.setAttribute(path, attribute, value, options);
+			for (Subscription s : byKind[Kind.SET_ATTRIBUTE
+					.ordinal()]) {
+				if (s.matches(path)) {
+					s.listener.setAttribute(path, attribute, value, options);
+				}
+			}
+			if (parent != null) {
+				parent.setAttribute(path, attribute, value, options);
 			}
 		}
 
@@ -143,6 +406,7 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 	private Map<URI, WeakReference<WrappedFileSystem>> cache = Collections
 			.synchronizedMap(new HashMap<URI, WeakReference<WrappedFileSystem>>());
 	private Listeners listeners = new Listeners();
+	private ConcurrentMap<String, FileSystemProvider> providersByScheme = new ConcurrentHashMap<String, FileSystemProvider>();
 
 	private Map<FileSystem, WrappedFileSystem> origToWrappedFs = Collections.synchronizedMap(
 			new WeakHashMap<FileSystem, WrappedFileSystem>());
@@ -153,41 +417,436 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 
 	@Override
 	public void checkAccess(Path path, AccessMode... modes) throws IOException {
-		getOriginalProvider(path).checkAccess(toOriginalPath(path), modes);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		checkNotMissing(wrappedPath);
+		throttle(wrappedPath);
+		Path readable = toReadablePath(wrappedPath);
+		if (readable != wrappedPath.originalPath) {
+			// Written to the upper directory of the overlay instead
+			List<AccessMode> readModes = new ArrayList<AccessMode>(
+					Arrays.asList(modes));
+			readModes.remove(AccessMode.WRITE);
+			modes = readModes.toArray(new AccessMode[readModes.size()]);
+		}
+		try {
+			readable.getFileSystem().provider().checkAccess(readable, modes);
+		} catch (NoSuchFileException e) {
+			missing(wrappedPath);
+			throw e;
+		}
+	}
+
+	/**
+	 * Throw {@link NoSuchFileException} if the path is known not to exist by
+	 * the {@link NegativeLookupCache} of its file system.
+	 */
+	private void checkNotMissing(WrappedPath path) throws NoSuchFileException {
+		NegativeLookupCache negativeLookupCache = path.getFileSystem()
+				.getNegativeLookupCache();
+		if (negativeLookupCache != null
+				&& negativeLookupCache.isMissing(path.originalPath)) {
+			throw new NoSuchFileException(path.toString());
+		}
+	}
+
+	/**
+	 * Wait for the pending write of the path, if its file system has a
+	 * {@link WriteBehind}, so it can be used.
+	 */
+	private static void awaitWrite(WrappedPath path) {
+		WriteBehind writeBehind = path.getFileSystem().getWriteBehind();
+		if (writeBehind != null) {
+			writeBehind.await(path.originalPath);
+		}
+	}
+
+	/**
+	 * Wait until an operation on the path is within the limits of the
+	 * {@link Throttle}s of its file system.
+	 */
+	private static void throttle(WrappedPath path)
+			throws InterruptedIOException {
+		path.getFileSystem().throttleOperation(path);
+	}
+
+	/**
+	 * Wait for the pending writes of the path and anything within it.
+	 */
+	private static void awaitWrites(WrappedPath path) {
+		WriteBehind writeBehind = path.getFileSystem().getWriteBehind();
+		if (writeBehind != null) {
+			writeBehind.awaitTree(path.originalPath);
+		}
+	}
+
+	/**
+	 * The original path to read the path from, which may be in the lower
+	 * directory of the {@link Overlay} of its file system.
+	 */
+	private static Path toReadablePath(WrappedPath path) {
+		return path.getFileSystem().toReadablePath(path.originalPath);
+	}
+
+	/**
+	 * The {@link Overlay} of the file system of the path, if it covers the
+	 * path, otherwise <code>null</code>.
+	 */
+	private static Overlay overlayOf(WrappedPath path) {
+		Overlay overlay = path.getFileSystem().getOverlay();
+		if (overlay != null && overlay.covers(path.originalPath)) {
+			return overlay;
+		}
+		return null;
+	}
+
+	/**
+	 * Prepare the path to be opened with the given options: if it is to be
+	 * written to, copy it up from the lower directory of its {@link Overlay}
+	 * and unshare it.
+	 *
+	 * @return The original path to open
+	 */
+	private static Path beforeOpen(WrappedPath path,
+			Set<? extends OpenOption> options) throws IOException {
+		if (!options.contains(StandardOpenOption.WRITE)
+				&& !options.contains(StandardOpenOption.APPEND)) {
+			return toReadablePath(path);
+		}
+		Overlay overlay = overlayOf(path);
+		if (overlay != null) {
+			overlay.copyUp(path.originalPath, options);
+		}
+		path.getFileSystem().beforeModify(path, options);
+		return path.originalPath;
+	}
+
+	/**
+	 * Tell the {@link Overlay} of the file system of the path, if any, that
+	 * the path may have been created.
+	 */
+	private static void afterOpen(WrappedPath path,
+			Set<? extends OpenOption> options) throws IOException {
+		Overlay overlay = overlayOf(path);
+		if (overlay != null
+				&& (options.contains(StandardOpenOption.CREATE) || options
+						.contains(StandardOpenOption.CREATE_NEW))) {
+			overlay.created(path.originalPath);
+		}
+	}
+
+	/**
+	 * The bytes of the file counted against a {@link Quota}: the size of a
+	 * regular file, or 0 if the path is not one or does not exist. Read for
+	 * an operation which has already been throttled.
+	 */
+	private long quotaSize(Path path) throws IOException {
+		try {
+			BasicFileAttributes attrs = readAttributes(toWrappedPath(path),
+					BasicFileAttributes.class, false, LinkOption.NOFOLLOW_LINKS);
+			return attrs.isRegularFile() ? attrs.size() : 0;
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The bytes of the file to release from the {@link Quota} of its file
+	 * system when it is opened with the given options, as it is truncated.
+	 */
+	private long quotaTruncated(WrappedPath path,
+			Set<? extends OpenOption> options) throws IOException {
+		if (path.getFileSystem().getQuota() == null
+				|| !options.contains(StandardOpenOption.WRITE)
+				|| !options.contains(StandardOpenOption.TRUNCATE_EXISTING)
+				|| options.contains(StandardOpenOption.APPEND)
+				|| options.contains(StandardOpenOption.CREATE_NEW)) {
+			return 0;
+		}
+		return quotaSize(path);
+	}
+
+	private static boolean replacing(CopyOption... options) {
+		return Arrays.asList(options).contains(
+				StandardCopyOption.REPLACE_EXISTING);
 	}
 
 	@Override
 	public void copy(Path source, Path target, CopyOption... options)
 			throws IOException {
-		getOriginalProvider(source).copy(toOriginalPath(source),
-				toOriginalPath(target), options);
-		listeners.copied(source, target, options);
+		WrappedPath wrappedSource = toWrappedPath(source);
+		WrappedPath wrappedTarget = toWrappedPath(target);
+		awaitWrite(wrappedSource);
+		awaitWrite(wrappedTarget);
+		throttle(wrappedTarget);
+		Path readable = toReadablePath(wrappedSource);
+		Overlay targetOverlay = overlayOf(wrappedTarget);
+		if (targetOverlay != null) {
+			targetOverlay.beforeCreate(wrappedTarget.originalPath, options);
+		}
+		Quota quota = wrappedTarget.getFileSystem().getQuota();
+		long grown = 0;
+		long shrunk = 0;
+		if (quota != null) {
+			long added = quotaSize(source)
+					- (replacing(options) ? quotaSize(target) : 0);
+			grown = Math.max(0, added);
+			shrunk = Math.max(0, -added);
+			quota.allocate(target, grown);
+		}
+		try {
+			if (readable.getFileSystem() != wrappedTarget.originalPath
+					.getFileSystem()) {
+				CrossProviderCopy.copy(readable, wrappedTarget.originalPath,
+						options);
+			} else if (readable != wrappedSource.originalPath
+					|| !wrappedSource.getFileSystem().copyWithoutContent(
+							wrappedSource, wrappedTarget, options)) {
+				readable.getFileSystem().provider().copy(readable,
+						toOriginalPath(target), options);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (quota != null) {
+				quota.release(grown);
+			}
+			throw e;
+		}
+		if (quota != null) {
+			// Only once the larger file it replaced is gone
+			quota.release(shrunk);
+		}
+		if (targetOverlay != null) {
+			targetOverlay.created(wrappedTarget.originalPath);
+		}
+		modified(target);
+		throttleCopied(wrappedSource, wrappedTarget);
+		dispatcherFor(source, Kind.COPIED).copied(source, target, options);
+		if (!sameFileSystem(wrappedSource, wrappedTarget)) {
+			dispatcherFor(target, Kind.COPIED).copied(source, target, options);
+		}
+	}
+
+	/**
+	 * Wait until the bytes of a copied file, read from the source and
+	 * written to the target, are within the limits of their throttles.
+	 */
+	private static void throttleCopied(WrappedPath source, WrappedPath target)
+			throws IOException {
+		Throttle[] sourceThrottles = source.getFileSystem().getThrottles(
+				source);
+		Throttle[] targetThrottles = target.getFileSystem().getThrottles(
+				target);
+		if (sourceThrottles.length == 0 && targetThrottles.length == 0) {
+			return;
+		}
+		BasicFileAttributes copied = target.originalPath.getFileSystem()
+				.provider().readAttributes(target.originalPath,
+						BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		if (!copied.isRegularFile()) {
+			return;
+		}
+		for (Throttle throttle : sourceThrottles) {
+			throttle.bytes(copied.size());
+		}
+		for (Throttle throttle : targetThrottles) {
+			throttle.bytes(copied.size());
+		}
 	}
 
 	@Override
 	public void createDirectory(Path dir, FileAttribute<?>... attrs)
 			throws IOException {
-		getOriginalProvider(dir).createDirectory(toOriginalPath(dir), attrs);
-		listeners.createdDirectory(dir, attrs);
+		WrappedPath wrappedDir = toWrappedPath(dir);
+		awaitWrite(wrappedDir);
+		throttle(wrappedDir);
+		Overlay overlay = overlayOf(wrappedDir);
+		if (overlay != null) {
+			overlay.createDirectory(wrappedDir.originalPath, attrs);
+		} else {
+			getOriginalProvider(dir).createDirectory(wrappedDir.originalPath,
+					attrs);
+		}
+		modified(dir);
+		dispatcherFor(dir, Kind.CREATED_DIRECTORY).createdDirectory(dir,
+				attrs);
 	}
 
 	@Override
 	public void delete(Path path) throws IOException {
-		getOriginalProvider(path).delete(toOriginalPath(path));
-		listeners.deleted(path);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		// A directory is not empty if a file in it is pending
+		awaitWrites(wrappedPath);
+		throttle(wrappedPath);
+		Quota quota = wrappedPath.getFileSystem().getQuota();
+		long size = quota == null ? 0 : quotaSize(path);
+		Overlay overlay = overlayOf(wrappedPath);
+		if (overlay != null) {
+			overlay.delete(wrappedPath.originalPath);
+		} else {
+			getOriginalProvider(path).delete(wrappedPath.originalPath);
+		}
+		if (quota != null) {
+			quota.release(size);
+		}
+		wrappedPath.getFileSystem().deleted(wrappedPath);
+		modified(path);
+		dispatcherFor(path, Kind.DELETED).deleted(path);
+	}
+
+	private FileSystemEventListener dispatcherFor(Path path, Kind kind) {
+		return toWrappedPath(path).getFileSystem().getEventDispatcher(kind);
+	}
+
+	/**
+	 * Check if the paths are of the same wrapped file system, so its
+	 * listeners are told about a copy or move between them, otherwise those
+	 * of the target's file system must be told as well.
+	 */
+	private static boolean sameFileSystem(WrappedPath a, WrappedPath b) {
+		return a.getFileSystem() == b.getFileSystem();
+	}
+
+	/**
+	 * Remember that the path does not exist, if the file system of the path
+	 * has a {@link NegativeLookupCache}.
+	 */
+	private void missing(WrappedPath path) {
+		NegativeLookupCache negativeLookupCache = path.getFileSystem()
+				.getNegativeLookupCache();
+		if (negativeLookupCache != null) {
+			negativeLookupCache.add(path.originalPath);
+		}
+	}
+
+	/**
+	 * Check if the paths are of the same original file system, so that its
+	 * provider can copy and move between them.
+	 */
+	private static boolean sameOriginalFileSystem(WrappedPath a, WrappedPath b) {
+		return a.getFileSystem().getOriginalFilesystem() == b.getFileSystem()
+				.getOriginalFilesystem();
+	}
+
+	/**
+	 * Tell the file system of the path that the path has been created,
+	 * modified or deleted, which also modifies its parent directory.
+	 */
+	private void modified(Path path) {
+		WrappedPath wrappedPath = toWrappedPath(path);
+		WrappedFileSystem fs = wrappedPath.getFileSystem();
+		fs.invalidate(wrappedPath.originalPath);
+		Path parent = wrappedPath.originalPath.toAbsolutePath().getParent();
+		if (parent != null) {
+			fs.invalidate(parent);
+		}
+	}
+
+	/**
+	 * Tell the file system of the path that the path, and anything within
+	 * it, has been moved or replaced.
+	 */
+	private void modifiedTree(Path path) {
+		modified(path);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		wrappedPath.getFileSystem().invalidateTree(wrappedPath.originalPath);
 	}
 
 	@Override
 	public <V extends FileAttributeView> V getFileAttributeView(Path path,
 			Class<V> type, LinkOption... options) {
-		return getOriginalProvider(path).getFileAttributeView(
-				toOriginalPath(path), type, options);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		Path readable = toReadablePath(wrappedPath);
+		V view = readable.getFileSystem().provider()
+				.getFileAttributeView(readable, type, options);
+		if (view == null || !type.isInterface()) {
+			return view;
+		}
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new AttributeViewHandler(wrappedPath,
+						type, options)));
+	}
+
+	/**
+	 * Calls to a {@link FileAttributeView} of a wrapped path. Attributes are
+	 * read from the path to read, which may be in the lower directory of its
+	 * {@link Overlay}. Only when they are modified is the path copied up and
+	 * unshared, and the cached attributes of the path forgotten afterwards.
+	 */
+	private class AttributeViewHandler implements InvocationHandler {
+		private final WrappedPath path;
+		private final Class<? extends FileAttributeView> type;
+		private final LinkOption[] options;
+
+		AttributeViewHandler(WrappedPath path,
+				Class<? extends FileAttributeView> type, LinkOption[] options) {
+			this.path = path;
+			this.type = type;
+			this.options = options;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				}
+				if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				return type.getSimpleName() + " of " + path;
+			}
+			awaitWrite(path);
+			if (!isModifying(method)) {
+				return invokeOn(toReadablePath(path), method, args);
+			}
+			throttle(path);
+			Overlay overlay = overlayOf(path);
+			if (overlay != null) {
+				overlay.copyUp(path.originalPath);
+			}
+			// Attributes of a shared file are shared too
+			path.getFileSystem().beforeModify(path,
+					Collections.<OpenOption> emptySet());
+			try {
+				return invokeOn(path.originalPath, method, args);
+			} finally {
+				modified(path);
+			}
+		}
+
+		private Object invokeOn(Path original, Method method, Object[] args)
+				throws Throwable {
+			FileAttributeView view = original.getFileSystem().provider()
+					.getFileAttributeView(original, type, options);
+			try {
+				return method.invoke(view, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/**
+		 * Check if the method of the view modifies attributes, like
+		 * <code>setTimes</code> or <code>write</code> of user defined
+		 * attributes.
+		 */
+		private boolean isModifying(Method method) {
+			String name = method.getName();
+			return name.startsWith("set") || name.equals("write")
+					|| name.equals("delete");
+		}
 	}
 
 	@Override
 	public FileStore getFileStore(Path path) throws IOException {
-		return new WrappedFileStore(getOriginalProvider(path).getFileStore(
-				toOriginalPath(path)));
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		Path readable = toReadablePath(wrappedPath);
+		return new WrappedFileStore(readable.getFileSystem().provider()
+				.getFileStore(readable), wrappedPath.getFileSystem()
+				.getQuota());
 	}
 
 	@Override
@@ -213,15 +872,25 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 		return origToWrappedFs.get(originalFileSystem);
 	}
 
+	protected Listeners getListeners() {
+		return listeners;
+	}
+
 	protected FileSystemProvider getOriginalProvider(Path path) {
-		Path p = toOriginalPath(path);
-		return getOriginalProvider(p.toUri().getScheme());
+		// No need to build a URI and search installed providers, the wrapped
+		// file system already knows its original provider
+		return toWrappedPath(path).getFileSystem().getOriginalProvider();
 	}
 
 	protected FileSystemProvider getOriginalProvider(String originalScheme) {
+		FileSystemProvider found = providersByScheme.get(originalScheme);
+		if (found != null) {
+			return found;
+		}
 		for (FileSystemProvider provider : FileSystemProvider
 				.installedProviders()) {
 			if (provider.getScheme().equals(originalScheme)) {
+				providersByScheme.putIfAbsent(originalScheme, provider);
 				return provider;
 			}
 		}
@@ -231,8 +900,9 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 
 	@Override
 	public WrappedPath getPath(URI uri) {
-		Path originalPath = getOriginalProvider(uri.getScheme()).getPath(
-				toOrigUri(uri));
+		URI origUri = toOrigUri(uri);
+		Path originalPath = getOriginalProvider(origUri.getScheme()).getPath(
+				origUri);
 		WrappedFileSystem fs = getFileSystemWrapping(originalPath
 				.getFileSystem());
 		return fs.toWrappedPath(originalPath);
@@ -245,38 +915,257 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 
 	@Override
 	public boolean isHidden(Path path) throws IOException {
-		return getOriginalProvider(path).isHidden(toOriginalPath(path));
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		Path readable = toReadablePath(wrappedPath);
+		return readable.getFileSystem().provider().isHidden(readable);
 	}
 
 	@Override
 	public boolean isSameFile(Path path, Path path2) throws IOException {
-		return getOriginalProvider(path).isSameFile(toOriginalPath(path),
-				toOriginalPath(path2));
+		WrappedPath wrappedPath = toWrappedPath(path);
+		WrappedPath wrappedPath2 = toWrappedPath(path2);
+		awaitWrite(wrappedPath);
+		awaitWrite(wrappedPath2);
+		Path readable = toReadablePath(wrappedPath);
+		Path readable2 = toReadablePath(wrappedPath2);
+		if (readable.getFileSystem() != readable2.getFileSystem()) {
+			return false;
+		}
+		return readable.getFileSystem().provider().isSameFile(readable,
+				readable2);
 	}
 
 	@Override
 	public void move(Path source, Path target, CopyOption... options)
 			throws IOException {
-		getOriginalProvider(source).move(toOriginalPath(source),
-				toOriginalPath(target), options);
-		listeners.moved(source, target, options);
+		WrappedPath wrappedSource = toWrappedPath(source);
+		WrappedPath wrappedTarget = toWrappedPath(target);
+		awaitWrites(wrappedSource);
+		awaitWrites(wrappedTarget);
+		throttle(wrappedSource);
+		Quota sourceQuota = wrappedSource.getFileSystem().getQuota();
+		Quota targetQuota = wrappedTarget.getFileSystem().getQuota();
+		// Only a file moved between quotas moves its bytes
+		long size = 0;
+		if (sourceQuota != targetQuota) {
+			size = quotaSize(source);
+		}
+		long grown = 0;
+		long shrunk = 0;
+		if (targetQuota != null) {
+			long added = size - (replacing(options) ? quotaSize(target) : 0);
+			grown = Math.max(0, added);
+			shrunk = Math.max(0, -added);
+			targetQuota.allocate(target, grown);
+		}
+		try {
+			moveOriginal(wrappedSource, wrappedTarget, options);
+		} catch (IOException | RuntimeException e) {
+			if (targetQuota != null) {
+				targetQuota.release(grown);
+			}
+			throw e;
+		}
+		if (targetQuota != null) {
+			// Only once the larger file it replaced is gone
+			targetQuota.release(shrunk);
+		}
+		if (sourceQuota != null && sourceQuota != targetQuota) {
+			sourceQuota.release(size);
+		}
+		modifiedTree(source);
+		modifiedTree(target);
+		dispatcherFor(source, Kind.MOVED).moved(source, target, options);
+		if (!sameFileSystem(wrappedSource, wrappedTarget)) {
+			dispatcherFor(target, Kind.MOVED).moved(source, target, options);
+		}
+	}
+
+	private void moveOriginal(WrappedPath wrappedSource,
+			WrappedPath wrappedTarget, CopyOption... options)
+			throws IOException {
+		Overlay overlay = overlayOf(wrappedSource);
+		if (overlay == null) {
+			overlay = overlayOf(wrappedTarget);
+		}
+		if (overlay != null) {
+			overlay.move(wrappedSource.originalPath,
+					wrappedTarget.originalPath, options);
+			if (sameOriginalFileSystem(wrappedSource, wrappedTarget)) {
+				wrappedSource.getFileSystem().moved(wrappedSource,
+						wrappedTarget);
+			} else {
+				wrappedSource.getFileSystem().deleted(wrappedSource);
+			}
+		} else if (sameOriginalFileSystem(wrappedSource, wrappedTarget)) {
+			getOriginalProvider(wrappedSource).move(
+					wrappedSource.originalPath, wrappedTarget.originalPath,
+					options);
+			wrappedSource.getFileSystem().moved(wrappedSource, wrappedTarget);
+		} else {
+			CrossProviderCopy.move(wrappedSource.originalPath,
+					wrappedTarget.originalPath, options);
+			wrappedSource.getFileSystem().deleted(wrappedSource);
+		}
 	}
 
 	@Override
 	public SeekableByteChannel newByteChannel(Path path,
 			Set<? extends OpenOption> options, FileAttribute<?>... attrs)
 			throws IOException {
-		SeekableByteChannel byteChannel = getOriginalProvider(path)
-				.newByteChannel(toOriginalPath(path), options, attrs);
-		listeners.newByteChannel(path, options, attrs, byteChannel);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		throttle(wrappedPath);
+		long truncated = quotaTruncated(wrappedPath, options);
+		SeekableByteChannel byteChannel;
+		if (isWrittenBehind(wrappedPath, options, attrs)) {
+			byteChannel = wrappedPath.getFileSystem().getWriteBehind()
+					.open(wrappedPath.originalPath, options);
+		} else {
+			awaitWrite(wrappedPath);
+			Path opened = beforeOpen(wrappedPath, options);
+			FileSystemProvider openedProvider = opened.getFileSystem()
+					.provider();
+			BlockCache blockCache = wrappedPath.getFileSystem()
+					.getBlockCache();
+			if (blockCache != null && BlockCache.canCache(options)) {
+				// Attributes may be cached, so the file need not be opened
+				byteChannel = blockCache.open(opened, options,
+						openedProvider, readAttributes(wrappedPath,
+								BasicFileAttributes.class, false));
+			} else {
+				byteChannel = openedProvider.newByteChannel(opened, options,
+						attrs);
+			}
+			afterOpen(wrappedPath, options);
+		}
+		if (truncated > 0) {
+			wrappedPath.getFileSystem().getQuota().release(truncated);
+		}
+		if (options.contains(StandardOpenOption.WRITE)
+				|| options.contains(StandardOpenOption.APPEND)) {
+			modified(path);
+		}
+		byteChannel = wrappedPath.getFileSystem().toWrappedByteChannel(
+				wrappedPath, options, byteChannel);
+		dispatcherFor(path, Kind.NEW_BYTE_CHANNEL).newByteChannel(path,
+				options, attrs, byteChannel);
 		return byteChannel;
 	}
 
+	/**
+	 * Check if the file can be written to memory by the {@link WriteBehind}
+	 * of its file system: if it is a new file in an existing directory, or
+	 * one that is still pending and is truncated. A pending file opened
+	 * without truncating it is written first and opened as usual, as its
+	 * new content builds on the pending one.
+	 */
+	private boolean isWrittenBehind(WrappedPath path,
+			Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		WriteBehind writeBehind = path.getFileSystem().getWriteBehind();
+		if (writeBehind == null || !WriteBehind.canBuffer(options, attrs)
+				|| overlayOf(path) != null) {
+			return false;
+		}
+		if (writeBehind.isPending(path.originalPath)) {
+			return options.contains(StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		try {
+			readAttributes(path, BasicFileAttributes.class, false,
+					LinkOption.NOFOLLOW_LINKS);
+			// Opened as usual, so any failure is not deferred
+			return false;
+		} catch (NoSuchFileException e) {
+		}
+		WrappedPath parent = path.toAbsolutePath().getParent();
+		if (parent == null) {
+			return false;
+		}
+		if (writeBehind.isKnownDirectory(parent.originalPath)) {
+			return true;
+		}
+		try {
+			if (!readAttributes(parent, BasicFileAttributes.class, false)
+					.isDirectory()) {
+				return false;
+			}
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		writeBehind.knownDirectory(parent.originalPath);
+		return true;
+	}
+
+	@Override
+	public FileChannel newFileChannel(Path path,
+			Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		throttle(wrappedPath);
+		long truncated = quotaTruncated(wrappedPath, options);
+		Path opened = beforeOpen(wrappedPath, options);
+		FileChannel fileChannel = opened.getFileSystem().provider()
+				.newFileChannel(opened, options, attrs);
+		afterOpen(wrappedPath, options);
+		if (truncated > 0) {
+			wrappedPath.getFileSystem().getQuota().release(truncated);
+		}
+		if (options.contains(StandardOpenOption.WRITE)
+				|| options.contains(StandardOpenOption.APPEND)) {
+			modified(path);
+		}
+		fileChannel = wrappedPath.getFileSystem().toWrappedFileChannel(
+				wrappedPath, options, fileChannel);
+		dispatcherFor(path, Kind.NEW_BYTE_CHANNEL).newByteChannel(path,
+				options, attrs, fileChannel);
+		return fileChannel;
+	}
+
+	/**
+	 * Open an asynchronous file channel of the original provider.
+	 * <p>
+	 * The channel is not wrapped, so its reads and writes are not recorded,
+	 * no {@link FileSystemEventListener#newByteChannel} event is fired, and
+	 * no digest is computed. Attributes cached while it is open may be stale
+	 * until they expire. Its writes are not counted against a {@link Quota}.
+	 */
+	@Override
+	public AsynchronousFileChannel newAsynchronousFileChannel(Path path,
+			Set<? extends OpenOption> options, ExecutorService executor,
+			FileAttribute<?>... attrs) throws IOException {
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		throttle(wrappedPath);
+		Path opened = beforeOpen(wrappedPath, options);
+		AsynchronousFileChannel channel = opened.getFileSystem().provider()
+				.newAsynchronousFileChannel(opened, options, executor, attrs);
+		afterOpen(wrappedPath, options);
+		if (options.contains(StandardOpenOption.WRITE)
+				|| options.contains(StandardOpenOption.APPEND)) {
+			modified(path);
+		}
+		return channel;
+	}
+
 	@Override
 	public DirectoryStream<Path> newDirectoryStream(Path dir,
 			Filter<? super Path> filter) throws IOException {
-		return new WrappedDirectoryStream(dir, getOriginalProvider(dir)
-				.newDirectoryStream(toOriginalPath(dir), filter));
+		WrappedPath wrappedDir = toWrappedPath(dir);
+		awaitWrites(wrappedDir);
+		throttle(wrappedDir);
+		Overlay overlay = overlayOf(wrappedDir);
+		DirectoryStream<Path> originalStream;
+		if (overlay != null) {
+			originalStream = overlay.newDirectoryStream(
+					wrappedDir.originalPath, filter);
+		} else {
+			originalStream = getOriginalProvider(dir).newDirectoryStream(
+					wrappedDir.originalPath, filter);
+		}
+		return wrappedDir.getFileSystem().toWrappedDirectoryStream(
+				wrappedDir, originalStream);
 	}
 
 	@Override
@@ -297,25 +1186,106 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 			throw new FileSystemAlreadyExistsExceptionWithRef(
 					"File system exists for " + uri, fs);
 		}
-		WrappedFileSystem fs = new WrappedFileSystem(this, uri, originalFs, closeOriginal);
+		WrappedFileSystem fs = new WrappedFileSystem(this, uri, originalFs,
+				closeOriginal, env);
 		cache.put(uri, new WeakReference<WrappedFileSystem>(fs));
 		origToWrappedFs.put(originalFs, fs);
-		listeners.newFileSystem(fs, env);
+		fs.getEventDispatcher(Kind.NEW_FILE_SYSTEM)
+				.newFileSystem(fs, env);
 		return fs;
 	}
 
 	@Override
 	public <A extends BasicFileAttributes> A readAttributes(Path path,
 			Class<A> type, LinkOption... options) throws IOException {
-		return getOriginalProvider(path).readAttributes(toOriginalPath(path),
-				type, options);
+		return readAttributes(toWrappedPath(path), type, true, options);
 	}
 
+	/**
+	 * Read the attributes of the path, from the caches of its file system if
+	 * they have them.
+	 *
+	 * @param throttled
+	 *            <code>true</code> if reading them from the original file
+	 *            system is an operation of the {@link Throttle}s of the file
+	 *            system, <code>false</code> if they are read for another
+	 *            operation, which has already been counted
+	 */
+	private <A extends BasicFileAttributes> A readAttributes(
+			WrappedPath wrappedPath, Class<A> type, boolean throttled,
+			LinkOption... options) throws IOException {
+		awaitWrite(wrappedPath);
+		if (type == BasicFileAttributes.class) {
+			BasicFileAttributes prefetched = wrappedPath.getFileSystem()
+					.getPrefetchedAttributes().take(wrappedPath.originalPath,
+							!Arrays.asList(options).contains(
+									LinkOption.NOFOLLOW_LINKS));
+			if (prefetched != null) {
+				return type.cast(prefetched);
+			}
+		}
+		AttributeCache attributeCache = wrappedPath.getFileSystem()
+				.getAttributeCache();
+		if (attributeCache != null) {
+			Object cached = attributeCache.get(wrappedPath.originalPath, type,
+					options);
+			if (cached != null) {
+				return type.cast(cached);
+			}
+		}
+		checkNotMissing(wrappedPath);
+		if (throttled) {
+			throttle(wrappedPath);
+		}
+		A read;
+		try {
+			Path readable = toReadablePath(wrappedPath);
+			read = readable.getFileSystem().provider().readAttributes(
+					readable, type, options);
+		} catch (NoSuchFileException e) {
+			missing(wrappedPath);
+			throw e;
+		}
+		if (attributeCache != null) {
+			attributeCache.put(wrappedPath.originalPath, type, read, options);
+		}
+		return read;
+	}
+
+	@SuppressWarnings("unchecked")
 	@Override
 	public Map<String, Object> readAttributes(Path path, String attributes,
 			LinkOption... options) throws IOException {
-		return getOriginalProvider(path).readAttributes(toOriginalPath(path),
-				attributes, options);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		AttributeCache attributeCache = wrappedPath.getFileSystem()
+				.getAttributeCache();
+		if (attributeCache != null) {
+			Object cached = attributeCache.get(wrappedPath.originalPath,
+					attributes, options);
+			if (cached != null) {
+				return (Map<String, Object>) cached;
+			}
+		}
+		checkNotMissing(wrappedPath);
+		throttle(wrappedPath);
+		Map<String, Object> read;
+		try {
+			Path readable = toReadablePath(wrappedPath);
+			read = readable.getFileSystem().provider().readAttributes(
+					readable, attributes, options);
+		} catch (NoSuchFileException e) {
+			missing(wrappedPath);
+			throw e;
+		}
+		if (attributeCache != null) {
+			// Cached map is shared, so must not be modified by callers
+			read = Collections.unmodifiableMap(new HashMap<String, Object>(
+					read));
+			attributeCache.put(wrappedPath.originalPath, attributes, read,
+					options);
+		}
+		return read;
 	}
 
 	public void removeFileSystemEventListener(FileSystemEventListener listener) {
@@ -325,8 +1295,21 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 	@Override
 	public void setAttribute(Path path, String attribute, Object value,
 			LinkOption... options) throws IOException {
-		setAttribute(toOriginalPath(path), attribute, value, options);
-		listeners.setAttribute(path, attribute, value, options);
+		WrappedPath wrappedPath = toWrappedPath(path);
+		awaitWrite(wrappedPath);
+		throttle(wrappedPath);
+		Overlay overlay = overlayOf(wrappedPath);
+		if (overlay != null) {
+			overlay.copyUp(wrappedPath.originalPath);
+		}
+		// Attributes of a shared file are shared too
+		wrappedPath.getFileSystem().beforeModify(wrappedPath,
+				Collections.<OpenOption> emptySet());
+		getOriginalProvider(path).setAttribute(toOriginalPath(path), attribute,
+				value, options);
+		wrappedPath.getFileSystem().invalidate(wrappedPath.originalPath);
+		dispatcherFor(path, Kind.SET_ATTRIBUTE).setAttribute(path,
+				attribute, value, options);
 	}
 
 	protected Path toOriginalPath(Path other) {
@@ -342,6 +1325,14 @@ public class WrappedFileSystemProvider extends FileSystemProvider {
 		}
 	}
 
+	protected WrappedPath toWrappedPath(Path other) {
+		if (other instanceof WrappedPath) {
+			return (WrappedPath) other;
+		}
+		throw new ProviderMismatchException("Wrong Path type "
+				+ (other == null ? null : other.getClass()));
+	}
+
 	protected URI toOrigUri(URI uri) {
 		return URI.create(uri.getSchemeSpecificPart());
 	}
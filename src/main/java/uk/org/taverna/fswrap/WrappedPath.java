@@ -15,6 +15,10 @@ public class WrappedPath implements Path {
 
 	protected Path originalPath;
 	private WrappedFileSystem wrappedFileSystem;
+	/**
+	 * Cached hash code, 0 if not yet computed
+	 */
+	private int hash;
 
 	protected WrappedPath(WrappedFileSystem wrappedFilesystem, Path originalPath) {
 		this.wrappedFileSystem = wrappedFilesystem;
@@ -35,6 +39,9 @@ public class WrappedPath implements Path {
 	}
 
 	public boolean equals(Object other) {
+		if (other == this) {
+			return true;
+		}
 		if (!(other instanceof Path)) {
 			return false;
 		}
@@ -67,7 +74,12 @@ public class WrappedPath implements Path {
 	}
 
 	public int hashCode() {
-		return originalPath.hashCode();
+		int h = hash;
+		if (h == 0) {
+			h = originalPath.hashCode();
+			hash = h;
+		}
+		return h;
 	}
 
 	public boolean isAbsolute() {
@@ -85,11 +97,15 @@ public class WrappedPath implements Path {
 
 	public WatchKey register(WatchService watcher, Kind<?>... events)
 			throws IOException {
-		return originalPath.register(watcher, events);
+		return register(watcher, events, new Modifier[0]);
 	}
 
 	public WatchKey register(WatchService watcher, Kind<?>[] events,
 			Modifier... modifiers) throws IOException {
+		if (watcher instanceof WrappedWatchService) {
+			return ((WrappedWatchService) watcher).register(this, events,
+					modifiers);
+		}
 		return originalPath.register(watcher, events, modifiers);
 	}
 
@@ -139,6 +155,14 @@ public class WrappedPath implements Path {
 	}
 
 	public WrappedPath toRealPath(LinkOption... options) throws IOException {
+		if (wrappedFileSystem.getWriteBehind() != null) {
+			wrappedFileSystem.getWriteBehind().await(originalPath);
+		}
+		if (wrappedFileSystem.toReadablePath(originalPath) != originalPath) {
+			// Only in the lower directory of the overlay, so not in this file system yet
+			return wrappedFileSystem.toWrappedPath(originalPath
+					.toAbsolutePath().normalize());
+		}
 		return wrappedFileSystem
 				.toWrappedPath(originalPath.toRealPath(options));
 	}
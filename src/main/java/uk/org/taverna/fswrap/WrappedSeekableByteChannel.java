@@ -0,0 +1,472 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystemException;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SeekableByteChannel} returned by
+ * {@link WrappedFileSystemProvider#newByteChannel(java.nio.file.Path, java.util.Set, java.nio.file.attribute.FileAttribute...)}
+ * when the wrapped file system needs to know what happens to the channel.
+ * <p>
+ * Calls are passed on to the original channel, counting the bytes read and
+ * written, and the file system is told when the channel is closed. If
+ * {@link IoMetrics} are given, reads, writes and seeks are recorded to them.
+ * <p>
+ * When computing a digest, the bytes written are added to it as long as the
+ * file is written sequentially from the start by a single thread. Any seek,
+ * read or truncation stops this, and the file system then has to read the
+ * file to compute its digest.
+ * <p>
+ * If {@link Throttle}s are given, reads and writes wait until the bytes
+ * transferred are within their limits.
+ * <p>
+ * If a {@link Quota} is given, the bytes a write would add to the file are
+ * allocated from it before writing, and those removed by truncating the
+ * file are released. Writes by other channels of the same file are not
+ * seen, so the size of the file is as known to this channel.
+ *
+ */
+public class WrappedSeekableByteChannel implements SeekableByteChannel {
+
+	private final WrappedPath path;
+	private final SeekableByteChannel originalChannel;
+	private final boolean writable;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final long openedNanos = System.nanoTime();
+	private volatile long closedNanos;
+	private final IoMetrics pathMetrics;
+	private final IoMetrics totalMetrics;
+	/**
+	 * Where the last read or write ended, or -1 if not known, e.g. after
+	 * appending.
+	 */
+	private long lastPosition;
+	private MessageDigest digest;
+	private boolean sequential;
+	private byte[] sequentialDigest;
+	private Throttle[] throttles;
+	private Quota quota;
+	/**
+	 * Size of the file as allocated from the quota.
+	 */
+	private long quotaSize;
+	private boolean appending;
+
+	public WrappedSeekableByteChannel(WrappedPath path,
+			SeekableByteChannel originalChannel, boolean writable) {
+		this(path, originalChannel, writable, null, null);
+	}
+
+	/**
+	 * @param pathMetrics
+	 *            Metrics of the path, or <code>null</code>
+	 * @param totalMetrics
+	 *            Metrics of the file system, or <code>null</code>
+	 */
+	public WrappedSeekableByteChannel(WrappedPath path,
+			SeekableByteChannel originalChannel, boolean writable,
+			IoMetrics pathMetrics, IoMetrics totalMetrics) {
+		this.path = path;
+		this.originalChannel = originalChannel;
+		this.writable = writable;
+		this.pathMetrics = pathMetrics;
+		this.totalMetrics = totalMetrics;
+		if (pathMetrics != null) {
+			pathMetrics.recordOpen();
+			totalMetrics.recordOpen();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			originalChannel.close();
+		} finally {
+			if (closed.compareAndSet(false, true)) {
+				closedNanos = System.nanoTime();
+				path.getFileSystem().closedByteChannel(this);
+			}
+		}
+	}
+
+	/**
+	 * Limit the bytes read and written through the channel.
+	 */
+	void throttle(Throttle[] throttles) {
+		this.throttles = throttles.length == 0 ? null : throttles;
+	}
+
+	private void throttleBytes(long bytes) throws InterruptedIOException {
+		if (throttles != null && bytes > 0) {
+			for (Throttle throttle : throttles) {
+				throttle.bytes(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Tell the channel it does not know its position, as it was opened for
+	 * appending.
+	 */
+	void positionUnknown() {
+		lastPosition = -1;
+		appending = true;
+	}
+
+	/**
+	 * Count the bytes written through the channel against the quota.
+	 *
+	 * @param size
+	 *            Size of the file when opened, already counted
+	 */
+	void account(Quota quota, long size) {
+		this.quota = quota;
+		this.quotaSize = size;
+	}
+
+	/**
+	 * Check if the bytes written are counted against a quota.
+	 */
+	boolean isAccounted() {
+		return quota != null;
+	}
+
+	/**
+	 * Where a write at the given position starts.
+	 *
+	 * @param position
+	 *            Where the bytes are written, or -1 at the position of the
+	 *            channel
+	 */
+	private long writePosition(long position) throws IOException {
+		if (position >= 0) {
+			return position;
+		}
+		if (appending) {
+			return quotaSize;
+		}
+		if (lastPosition >= 0) {
+			return lastPosition;
+		}
+		return originalChannel.position();
+	}
+
+	/**
+	 * Limit the bytes of a transfer to what the quota allows, so it can
+	 * write some of them.
+	 *
+	 * @param position
+	 *            Where the bytes are written, or -1 at the position of the
+	 *            channel
+	 * @param count
+	 *            Bytes to transfer
+	 * @return The number of bytes to transfer, which is not reduced if the
+	 *         quota does not allow any
+	 */
+	synchronized long allowed(long position, long count) throws IOException {
+		if (quota == null || count <= 0) {
+			return count;
+		}
+		long growth = writePosition(position) + count - quotaSize;
+		long remaining = quota.getRemaining();
+		if (growth > remaining && remaining > 0) {
+			return count - (growth - remaining);
+		}
+		return count;
+	}
+
+	/**
+	 * Allocate from the quota what a write would add to the file, before
+	 * writing. Afterwards, whether or not it succeeded, call
+	 * {@link #allocated(long, long, long)} with what was written.
+	 *
+	 * @param position
+	 *            Where the bytes are written, or -1 at the position of the
+	 *            channel
+	 * @param count
+	 *            Bytes to write
+	 * @return The number of bytes allocated
+	 * @throws FileSystemException
+	 *             If the quota does not allow them
+	 */
+	synchronized long allocate(long position, long count) throws IOException {
+		if (quota == null || count <= 0) {
+			return 0;
+		}
+		long growth = writePosition(position) + count - quotaSize;
+		if (growth <= 0) {
+			return 0;
+		}
+		quota.allocate(path, growth);
+		quotaSize += growth;
+		return growth;
+	}
+
+	/**
+	 * Release what was allocated for a write that wrote fewer bytes than it
+	 * was to, or failed. The bytes not written are at the end of the write,
+	 * where the file would have grown.
+	 *
+	 * @param allocated
+	 *            Result of {@link #allocate(long, long)}
+	 * @param count
+	 *            Bytes to write
+	 * @param written
+	 *            Bytes written
+	 */
+	synchronized void allocated(long allocated, long count, long written) {
+		long unused = Math.min(allocated, count - Math.max(0, written));
+		if (unused > 0) {
+			quotaSize -= unused;
+			quota.release(unused);
+		}
+	}
+
+	private synchronized void truncated(long size) {
+		if (quota != null && size < quotaSize) {
+			quota.release(quotaSize - size);
+			quotaSize = size;
+		}
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * How long the channel has been open, or was open if it is closed, in
+	 * nanoseconds.
+	 */
+	public long getDurationNanos() {
+		long end = closed.get() ? closedNanos : System.nanoTime();
+		return end - openedNanos;
+	}
+
+	/**
+	 * Start computing a digest of the bytes written.
+	 *
+	 * @param sequential
+	 *            <code>true</code> if the file was empty when opened, so that
+	 *            sequential writes give all its content
+	 */
+	void startDigest(MessageDigest digest, boolean sequential) {
+		this.digest = digest;
+		this.sequential = sequential;
+	}
+
+	/**
+	 * Check if a digest is computed for the file written.
+	 */
+	public boolean isDigesting() {
+		return digest != null;
+	}
+
+	/**
+	 * Get the digest of the bytes written, if the file was written
+	 * sequentially. No more bytes are added to the digest after this.
+	 *
+	 * @return The digest, or <code>null</code> if it has to be computed from
+	 *         the file
+	 */
+	public byte[] getSequentialDigest() {
+		if (sequentialDigest == null) {
+			if (digest == null || !sequential) {
+				return null;
+			}
+			sequential = false;
+			sequentialDigest = digest.digest();
+		}
+		return sequentialDigest.clone();
+	}
+
+	public SeekableByteChannel getOriginalChannel() {
+		return originalChannel;
+	}
+
+	public WrappedPath getPath() {
+		return path;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return originalChannel.isOpen();
+	}
+
+	/**
+	 * Check if the channel was opened for writing.
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	@Override
+	public long position() throws IOException {
+		return originalChannel.position();
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		originalChannel.position(newPosition);
+		if (sequential && newPosition != bytesWritten.get()) {
+			sequential = false;
+		}
+		if (pathMetrics != null && newPosition != lastPosition) {
+			long distance = lastPosition < 0 ? 0 : newPosition - lastPosition;
+			pathMetrics.recordSeek(distance);
+			totalMetrics.recordSeek(distance);
+		}
+		lastPosition = newPosition;
+		return this;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		long start = startTiming();
+		int read = originalChannel.read(dst);
+		readDone(read, start, true);
+		return read;
+	}
+
+	/**
+	 * Get the time an operation starts, if it needs timing.
+	 */
+	long startTiming() {
+		return pathMetrics == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Record a read through this channel or its original channel.
+	 *
+	 * @param read
+	 *            Bytes read, or -1 at end of file
+	 * @param start
+	 *            Result of {@link #startTiming()}
+	 * @param advances
+	 *            <code>true</code> if the read moved the position of the
+	 *            channel
+	 * @throws InterruptedIOException
+	 *             If interrupted while throttled
+	 */
+	void readDone(long read, long start, boolean advances)
+			throws InterruptedIOException {
+		if (pathMetrics != null) {
+			long nanos = System.nanoTime() - start;
+			pathMetrics.recordRead(read, nanos);
+			totalMetrics.recordRead(read, nanos);
+		}
+		if (read > 0) {
+			bytesRead.addAndGet(read);
+			sequential = false;
+			if (advances && lastPosition >= 0) {
+				lastPosition += read;
+			}
+		}
+		throttleBytes(read);
+	}
+
+	@Override
+	public long size() throws IOException {
+		return originalChannel.size();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		originalChannel.truncate(size);
+		truncated(size);
+		if (size < bytesWritten.get()) {
+			sequential = false;
+			sequentialDigest = null;
+		}
+		if (lastPosition > size) {
+			lastPosition = size;
+		}
+		return this;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int position = src.position();
+		int count = src.remaining();
+		long allocated = allocate(-1, count);
+		long start = startTiming();
+		int written = 0;
+		try {
+			written = originalChannel.write(src);
+		} finally {
+			allocated(allocated, count, written);
+		}
+		if (sequential) {
+			updateDigest(src, position, written);
+		}
+		writeDone(written, start, true, true);
+		return written;
+	}
+
+	/**
+	 * Record a write through this channel or its original channel.
+	 *
+	 * @param written
+	 *            Bytes written
+	 * @param start
+	 *            Result of {@link #startTiming()}
+	 * @param advances
+	 *            <code>true</code> if the write moved the position of the
+	 *            channel
+	 * @param digested
+	 *            <code>true</code> if the bytes written were added to the
+	 *            digest, if sequential
+	 * @throws InterruptedIOException
+	 *             If interrupted while throttled
+	 */
+	void writeDone(long written, long start, boolean advances,
+			boolean digested) throws InterruptedIOException {
+		if (pathMetrics != null) {
+			long nanos = System.nanoTime() - start;
+			pathMetrics.recordWrite(written, nanos);
+			totalMetrics.recordWrite(written, nanos);
+		}
+		bytesWritten.addAndGet(written);
+		if (advances && lastPosition >= 0) {
+			lastPosition += written;
+		}
+		if (!digested) {
+			modifiedElsewhere();
+		} else if (!sequential) {
+			// Modified after the digest was taken
+			sequentialDigest = null;
+		}
+		throttleBytes(written);
+	}
+
+	/**
+	 * Tell the channel the file may have been modified other than by writing
+	 * through it, e.g. through a mapped buffer, so a sequential digest is no
+	 * longer valid.
+	 */
+	void modifiedElsewhere() {
+		sequential = false;
+		sequentialDigest = null;
+	}
+
+	private void updateDigest(ByteBuffer src, int position, int written) {
+		// Digest the bytes just written, leaving the buffer as it was
+		int limit = src.limit();
+		src.position(position);
+		src.limit(position + written);
+		digest.update(src);
+		src.limit(limit);
+	}
+
+}
@@ -0,0 +1,506 @@
+package uk.org.taverna.fswrap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.CopyOption;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Modifier;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.Watchable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link WatchService} of a {@link WrappedFileSystem}, which is told about
+ * changes made through the wrapped file system by its events, and so
+ * signals them as soon as they are made.
+ * <p>
+ * Changes made in other ways are picked up by a watch service of the
+ * original file system, if it has one, and signalled from a separate thread
+ * once it reports them. A change reported both by an event of the wrapped
+ * file system and by the original watch service, within
+ * {@link #DUPLICATE_WINDOW} milliseconds of each other, is only signalled
+ * once, by whichever comes first.
+ * <p>
+ * Events are signalled as by the default watch service on Linux: a move is
+ * an {@link java.nio.file.StandardWatchEventKinds#ENTRY_DELETE} of the
+ * source and an {@link java.nio.file.StandardWatchEventKinds#ENTRY_CREATE}
+ * of the target, and writing to a file or setting an attribute is an
+ * {@link java.nio.file.StandardWatchEventKinds#ENTRY_MODIFY}. A file opened
+ * with {@link StandardOpenOption#CREATE}, rather than
+ * {@link StandardOpenOption#CREATE_NEW}, may or may not have been created,
+ * so its creation is left for the original watch service to report.
+ * <p>
+ * The contexts of the events are relative paths of the wrapped file system,
+ * and the keys are registered by {@link WrappedPath#register(WatchService,
+ * WatchEvent.Kind[], Modifier...)}.
+ *
+ */
+public class WrappedWatchService implements WatchService {
+
+	/**
+	 * Milliseconds within which an event reported by the original watch
+	 * service is taken to be the same as one already signalled.
+	 */
+	public static final long DUPLICATE_WINDOW = 5000;
+	/**
+	 * Number of events a key holds before they are replaced by an
+	 * {@link java.nio.file.StandardWatchEventKinds#OVERFLOW}.
+	 */
+	public static final int MAX_EVENTS = 512;
+
+	private static final class Event<T> implements WatchEvent<T> {
+		private final Kind<T> kind;
+		private final T context;
+		private int count = 1;
+
+		private Event(Kind<T> kind, T context) {
+			this.kind = kind;
+			this.context = context;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Event<T> of(Kind<T> kind, Object context) {
+			return new Event<T>(kind, (T) context);
+		}
+
+		@Override
+		public T context() {
+			return context;
+		}
+
+		@Override
+		public int count() {
+			return count;
+		}
+
+		@Override
+		public Kind<T> kind() {
+			return kind;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + context;
+		}
+	}
+
+	private final class Key implements WatchKey {
+		private final WrappedPath dir;
+		private final WatchKey originalKey;
+		private volatile Set<WatchEvent.Kind<?>> kinds;
+		private List<Event<?>> events = new ArrayList<Event<?>>();
+		private boolean signalled;
+		private volatile boolean valid = true;
+
+		private Key(WrappedPath dir, Set<WatchEvent.Kind<?>> kinds,
+				WatchKey originalKey) {
+			this.dir = dir;
+			this.kinds = kinds;
+			this.originalKey = originalKey;
+		}
+
+		@Override
+		public void cancel() {
+			if (!valid) {
+				return;
+			}
+			valid = false;
+			if (originalKey != null) {
+				originalKey.cancel();
+			}
+			cancelled(this);
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid && !closed;
+		}
+
+		private synchronized void post(WatchEvent.Kind<?> kind,
+				Object context) {
+			if (!valid || (kind != OVERFLOW && !kinds.contains(kind))) {
+				return;
+			}
+			if (!events.isEmpty()) {
+				Event<?> last = events.get(events.size() - 1);
+				if (last.kind == OVERFLOW) {
+					last.count++;
+					return;
+				}
+				if (last.kind == kind && last.context.equals(context)) {
+					last.count++;
+					return;
+				}
+			}
+			if (events.size() >= MAX_EVENTS) {
+				events.clear();
+				kind = OVERFLOW;
+				context = null;
+			}
+			events.add(Event.of(kind, context));
+			signal();
+		}
+
+		private void signal() {
+			if (!signalled) {
+				signalled = true;
+				signalledKeys.offer(this);
+			}
+		}
+
+		@Override
+		public synchronized List<WatchEvent<?>> pollEvents() {
+			List<WatchEvent<?>> polled = Collections
+					.<WatchEvent<?>> unmodifiableList(events);
+			events = new ArrayList<Event<?>>();
+			return polled;
+		}
+
+		@Override
+		public synchronized boolean reset() {
+			if (!isValid()) {
+				return false;
+			}
+			signalled = false;
+			if (!events.isEmpty()) {
+				signal();
+			}
+			return true;
+		}
+
+		@Override
+		public Watchable watchable() {
+			return dir;
+		}
+	}
+
+	private static final Object CLOSED = new Object();
+
+	private final WrappedFileSystem fileSystem;
+	private final WatchService originalWatcher;
+	private final Thread poller;
+	private final LinkedBlockingDeque<Object> signalledKeys = new LinkedBlockingDeque<Object>();
+	/**
+	 * Keys by the absolute original path of their directory.
+	 */
+	private final Map<Path, Key> keys = new HashMap<Path, Key>();
+	private final Map<WatchKey, Key> byOriginalKey = new HashMap<WatchKey, Key>();
+	/**
+	 * When changes signalled from events expire, by the absolute original
+	 * path and kind.
+	 */
+	private final Map<Map.Entry<Path, WatchEvent.Kind<?>>, Long> signalledByEvents = new HashMap<Map.Entry<Path, WatchEvent.Kind<?>>, Long>();
+	/**
+	 * When changes signalled from the original watch service expire, as it
+	 * may report a change before the event for it is fired.
+	 */
+	private final Map<Map.Entry<Path, WatchEvent.Kind<?>>, Long> signalledByOriginal = new HashMap<Map.Entry<Path, WatchEvent.Kind<?>>, Long>();
+	private final FileSystemEventListener listener = new FileSystemEventAdapter() {
+		@Override
+		public void channelClosed(Path path, long bytesRead,
+				long bytesWritten, long durationNanos) {
+			if (bytesWritten > 0) {
+				changed(path, ENTRY_MODIFY);
+			}
+		}
+
+		@Override
+		public void copied(Path source, Path target, CopyOption[] options) {
+			changed(target, ENTRY_CREATE);
+		}
+
+		@Override
+		public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+			changed(dir, ENTRY_CREATE);
+		}
+
+		@Override
+		public void deleted(Path path) {
+			changed(path, ENTRY_DELETE);
+		}
+
+		@Override
+		public void moved(Path source, Path target, CopyOption[] options) {
+			changed(source, ENTRY_DELETE);
+			changed(target, ENTRY_CREATE);
+		}
+
+		@Override
+		public void newByteChannel(Path path,
+				Set<? extends OpenOption> options, FileAttribute<?>[] attrs,
+				SeekableByteChannel byteChannel) {
+			if (options.contains(StandardOpenOption.CREATE_NEW)) {
+				changed(path, ENTRY_CREATE);
+			}
+		}
+
+		@Override
+		public void setAttribute(Path path, String attribute, Object value,
+				LinkOption[] options) {
+			changed(path, ENTRY_MODIFY);
+		}
+	};
+	private volatile boolean closed;
+
+	public WrappedWatchService(WrappedFileSystem fileSystem)
+			throws IOException {
+		this.fileSystem = fileSystem;
+		WatchService original;
+		try {
+			original = fileSystem.getOriginalFilesystem().newWatchService();
+		} catch (UnsupportedOperationException e) {
+			// Only changes made through the wrapped file system
+			original = null;
+		}
+		originalWatcher = original;
+		if (originalWatcher != null) {
+			poller = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					pollOriginal();
+				}
+			}, "fswrap-watch");
+			poller.setDaemon(true);
+			poller.start();
+		} else {
+			poller = null;
+		}
+		fileSystem.addFileSystemEventListener(listener, null,
+				FileSystemEvent.Kind.CHANNEL_CLOSED,
+				FileSystemEvent.Kind.COPIED,
+				FileSystemEvent.Kind.CREATED_DIRECTORY,
+				FileSystemEvent.Kind.DELETED, FileSystemEvent.Kind.MOVED,
+				FileSystemEvent.Kind.NEW_BYTE_CHANNEL,
+				FileSystemEvent.Kind.SET_ATTRIBUTE);
+	}
+
+	/**
+	 * Signal a change made through the wrapped file system.
+	 */
+	private void changed(Path path, WatchEvent.Kind<Path> kind) {
+		if (!(path instanceof WrappedPath)) {
+			return;
+		}
+		WrappedPath absolute = ((WrappedPath) path).toAbsolutePath();
+		WrappedPath dir = absolute.getParent();
+		if (dir == null) {
+			return;
+		}
+		Key key;
+		synchronized (this) {
+			key = keys.get(dir.originalPath);
+		}
+		if (key != null
+				&& (key.originalKey == null || isFirst(signalledByEvents,
+						signalledByOriginal, absolute.originalPath, kind))) {
+			key.post(kind, absolute.getFileName());
+		}
+	}
+
+	private static void expire(Map<?, Long> expiries) {
+		long now = System.nanoTime();
+		Iterator<Long> values = expiries.values().iterator();
+		while (values.hasNext()) {
+			if (values.next() - now < 0) {
+				values.remove();
+			}
+		}
+	}
+
+	/**
+	 * Check if a change is the first to be signalled, either from an event
+	 * or from the original watch service, and if so remember it in
+	 * <code>mine</code> so that the same change from the other is not
+	 * signalled again.
+	 */
+	private synchronized boolean isFirst(
+			Map<Map.Entry<Path, WatchEvent.Kind<?>>, Long> mine,
+			Map<Map.Entry<Path, WatchEvent.Kind<?>>, Long> other,
+			Path original, WatchEvent.Kind<?> kind) {
+		Map.Entry<Path, WatchEvent.Kind<?>> change = new SimpleImmutableEntry<Path, WatchEvent.Kind<?>>(
+				original, kind);
+		long now = System.nanoTime();
+		Long expiry = other.get(change);
+		if (expiry != null) {
+			boolean live = expiry - now >= 0;
+			if (!live || kind != ENTRY_MODIFY) {
+				// A file can be modified many times, but only created once
+				other.remove(change);
+			}
+			if (live) {
+				return false;
+			}
+		}
+		if (mine.size() >= MAX_EVENTS) {
+			expire(mine);
+		}
+		mine.put(change,
+				now + TimeUnit.MILLISECONDS.toNanos(DUPLICATE_WINDOW));
+		return true;
+	}
+
+	/**
+	 * Pass on changes reported by the original watch service.
+	 */
+	private void pollOriginal() {
+		while (true) {
+			WatchKey originalKey;
+			try {
+				originalKey = originalWatcher.take();
+			} catch (ClosedWatchServiceException e) {
+				return;
+			} catch (InterruptedException e) {
+				return;
+			}
+			Key key;
+			synchronized (this) {
+				key = byOriginalKey.get(originalKey);
+			}
+			for (WatchEvent<?> event : originalKey.pollEvents()) {
+				if (key == null) {
+					continue;
+				}
+				if (event.kind() == OVERFLOW) {
+					key.post(OVERFLOW, null);
+					continue;
+				}
+				Path context = (Path) event.context();
+				if (isFirst(signalledByOriginal, signalledByEvents,
+						key.dir.originalPath.resolve(context), event.kind())) {
+					key.post(event.kind(), fileSystem.toWrappedPath(context));
+				}
+			}
+			if (!originalKey.reset() && key != null) {
+				key.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Watch a directory of the wrapped file system.
+	 */
+	protected WatchKey register(WrappedPath dir, WatchEvent.Kind<?>[] events,
+			Modifier... modifiers) throws IOException {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+		if (!fileSystem.provider()
+				.readAttributes(dir, BasicFileAttributes.class).isDirectory()) {
+			throw new NotDirectoryException(dir.toString());
+		}
+		WrappedPath absolute = dir.toAbsolutePath();
+		Set<WatchEvent.Kind<?>> kinds = new HashSet<WatchEvent.Kind<?>>(
+				Arrays.asList(events));
+		WatchKey originalKey = null;
+		if (originalWatcher != null) {
+			originalKey = absolute.originalPath.register(originalWatcher,
+					events, modifiers);
+		}
+		synchronized (this) {
+			Key key = keys.get(absolute.originalPath);
+			if (key != null && key.valid) {
+				key.kinds = kinds;
+				return key;
+			}
+			key = new Key(absolute, kinds, originalKey);
+			keys.put(absolute.originalPath, key);
+			if (originalKey != null) {
+				byOriginalKey.put(originalKey, key);
+			}
+			return key;
+		}
+	}
+
+	private synchronized void cancelled(Key key) {
+		if (keys.get(key.dir.originalPath) == key) {
+			keys.remove(key.dir.originalPath);
+		}
+		if (key.originalKey != null) {
+			byOriginalKey.remove(key.originalKey);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		fileSystem.removeFileSystemEventListener(listener);
+		if (originalWatcher != null) {
+			originalWatcher.close();
+		}
+		synchronized (this) {
+			keys.clear();
+			byOriginalKey.clear();
+			signalledByEvents.clear();
+			signalledByOriginal.clear();
+		}
+		// Wake up any waiting threads
+		signalledKeys.offer(CLOSED);
+	}
+
+	private WatchKey checkKey(Object key) {
+		if (key == CLOSED || closed) {
+			if (key == CLOSED) {
+				// For any other waiting threads
+				signalledKeys.offer(CLOSED);
+			}
+			throw new ClosedWatchServiceException();
+		}
+		return (WatchKey) key;
+	}
+
+	@Override
+	public WatchKey poll() {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+		Object key = signalledKeys.poll();
+		return key == null ? null : checkKey(key);
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+		Object key = signalledKeys.poll(timeout, unit);
+		return key == null ? null : checkKey(key);
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+		return checkKey(signalledKeys.take());
+	}
+
+}
@@ -0,0 +1,45 @@
+package uk.org.taverna.fswrap;
+
+import java.util.Iterator;
+
+/**
+ * An {@link Iterable} which wraps the elements of an original iterable on
+ * demand, as they are iterated over, instead of copying them all up front.
+ *
+ * @param <O>
+ *            Type of original elements
+ * @param <W>
+ *            Type of wrapped elements
+ */
+abstract class WrappingIterable<O, W> implements Iterable<W> {
+
+	private final Iterable<? extends O> originals;
+
+	WrappingIterable(Iterable<? extends O> originals) {
+		this.originals = originals;
+	}
+
+	@Override
+	public Iterator<W> iterator() {
+		final Iterator<? extends O> origIt = originals.iterator();
+		return new Iterator<W>() {
+			@Override
+			public boolean hasNext() {
+				return origIt.hasNext();
+			}
+
+			@Override
+			public W next() {
+				return wrap(origIt.next());
+			}
+
+			@Override
+			public void remove() {
+				origIt.remove();
+			}
+		};
+	}
+
+	protected abstract W wrap(O original);
+
+}
@@ -0,0 +1,570 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Write-behind of small files written through a {@link WrappedFileSystem}.
+ * <p>
+ * A new file opened just for writing is written to a buffer in memory, and
+ * when its channel is closed, the file is written to the original file
+ * system by a background thread. Closing the channel therefore returns
+ * without waiting for the original file system to create, write and close
+ * the file. A file that grows beyond the maximum file size is written to
+ * the original file system as usual.
+ * <p>
+ * Any other operation on the path through the wrapped file system, such as
+ * reading it, reading its attributes, or listing, moving or deleting its
+ * directory, first waits for its pending write, so the file is seen as
+ * soon as its channel is closed. Events are fired when the file is opened
+ * and closed, as without write-behind.
+ * <p>
+ * {@link #flush()} waits for all files closed so far to be written, and
+ * throws the first failure of a pending write since the last flush. Such
+ * failures are not reported otherwise, so call
+ * {@link WrappedFileSystem#flushWrites()} or close the file system where
+ * the files must be known to be written. The files are then written to the
+ * original file system, but not forced to its storage device, just like
+ * files written without write-behind.
+ *
+ */
+public class WriteBehind {
+
+	public static final int DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+	public static final long DEFAULT_MAX_PENDING = 16 * 1024 * 1024;
+	public static final int DEFAULT_THREADS = 4;
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final int KNOWN_DIRECTORIES = 1024;
+
+	/**
+	 * A closed file waiting to be written. It is written by whoever claims
+	 * it first; a write that is superseded by a later one for the same path
+	 * is claimed by the later one and skipped.
+	 */
+	private final class Pending implements Runnable {
+		private final Path key;
+		private final Set<? extends OpenOption> options;
+		private final byte[] content;
+		private final int length;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Pending previous;
+
+		private Pending(Path key, Set<? extends OpenOption> options,
+				byte[] content, int length) {
+			this.key = key;
+			this.options = options;
+			this.content = content;
+			this.length = length;
+		}
+
+		private boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+
+		private void awaitDone() {
+			boolean interrupted = false;
+			while (done.getCount() > 0) {
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (claim()) {
+				try {
+					write(this);
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The channel of a file being written, which keeps the content in memory
+	 * until it is closed or too large.
+	 */
+	private final class BufferChannel implements SeekableByteChannel {
+		private final Path path;
+		private final Set<? extends OpenOption> options;
+		private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+		private int size;
+		private long position;
+		private SeekableByteChannel spilled;
+		private boolean open = true;
+
+		private BufferChannel(Path path, Set<? extends OpenOption> options) {
+			this.path = path;
+			this.options = replacing(options);
+		}
+
+		private void checkOpen() throws ClosedChannelException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (!open) {
+				return;
+			}
+			open = false;
+			if (spilled != null) {
+				spilled.close();
+			} else {
+				enqueue(path, options, buffer, size);
+				buffer = null;
+			}
+		}
+
+		@Override
+		public synchronized boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public synchronized long position() throws IOException {
+			checkOpen();
+			return spilled != null ? spilled.position() : position;
+		}
+
+		@Override
+		public synchronized SeekableByteChannel position(long newPosition)
+				throws IOException {
+			checkOpen();
+			if (newPosition < 0) {
+				throw new IllegalArgumentException("Negative position");
+			}
+			if (spilled != null) {
+				spilled.position(newPosition);
+			} else {
+				position = newPosition;
+			}
+			return this;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			throw new NonReadableChannelException();
+		}
+
+		@Override
+		public synchronized long size() throws IOException {
+			checkOpen();
+			return spilled != null ? spilled.size() : size;
+		}
+
+		/**
+		 * Write the buffered content to the original file system, and use
+		 * its channel from now on.
+		 */
+		private void spill() throws IOException {
+			// An earlier pending write must not overwrite the spilled file
+			retire(pending.get(key(path)));
+			spilled = fs.getOriginalProvider().newByteChannel(path, options);
+			ByteBuffer content = ByteBuffer.wrap(buffer, 0, size);
+			while (content.hasRemaining()) {
+				spilled.write(content);
+			}
+			spilled.position(position);
+			buffer = null;
+			spilledCount.incrementAndGet();
+		}
+
+		@Override
+		public synchronized SeekableByteChannel truncate(long newSize)
+				throws IOException {
+			checkOpen();
+			if (newSize < 0) {
+				throw new IllegalArgumentException("Negative size");
+			}
+			if (spilled != null) {
+				spilled.truncate(newSize);
+				return this;
+			}
+			if (newSize < size) {
+				// Any later write beyond the new size must find zeroes
+				Arrays.fill(buffer, (int) newSize, size, (byte) 0);
+				size = (int) newSize;
+			}
+			position = Math.min(position, newSize);
+			return this;
+		}
+
+		@Override
+		public synchronized int write(ByteBuffer src) throws IOException {
+			checkOpen();
+			if (spilled == null && position + src.remaining() > maxFileSize) {
+				spill();
+			}
+			if (spilled != null) {
+				return spilled.write(src);
+			}
+			int written = src.remaining();
+			int end = (int) position + written;
+			if (end > buffer.length) {
+				buffer = Arrays.copyOf(buffer,
+						Math.min(Math.max(end, buffer.length * 2), maxFileSize));
+			}
+			src.get(buffer, (int) position, written);
+			position = end;
+			size = Math.max(size, end);
+			return written;
+		}
+	}
+
+	private final WrappedFileSystem fs;
+	private final int maxFileSize;
+	private final long maxPending;
+	private final ExecutorService executor;
+	/**
+	 * Latest pending write, by absolute original path.
+	 */
+	private final ConcurrentMap<Path, Pending> pending = new ConcurrentHashMap<Path, Pending>();
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicLong bufferedCount = new AtomicLong();
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+	/**
+	 * Absolute original paths of directories recently found to exist, so
+	 * that new files in them need not check again.
+	 */
+	private final LruMap<Path, Boolean> directories = new LruMap<Path, Boolean>(
+			KNOWN_DIRECTORIES);
+
+	/**
+	 * @param fs
+	 *            File system to write to the original file system of
+	 * @param maxFileSize
+	 *            Size of the largest file to keep in memory
+	 * @param maxPending
+	 *            Number of bytes that can wait to be written; beyond this,
+	 *            closing a channel writes its file before returning
+	 * @param threads
+	 *            Number of threads writing files in the background
+	 */
+	public WriteBehind(WrappedFileSystem fs, int maxFileSize, long maxPending,
+			int threads) {
+		if (maxFileSize < 1 || threads < 1) {
+			throw new IllegalArgumentException(
+					"File size and threads must be positive");
+		}
+		this.fs = fs;
+		this.maxFileSize = maxFileSize;
+		this.maxPending = maxPending;
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fswrap-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static Path key(Path path) {
+		return path.toAbsolutePath();
+	}
+
+	/**
+	 * Options to write a buffered file with, replacing any content written
+	 * since it was opened, as it was new or truncated then.
+	 */
+	private static Set<OpenOption> replacing(
+			Set<? extends OpenOption> options) {
+		Set<OpenOption> replacing = new HashSet<OpenOption>(options);
+		replacing.add(StandardOpenOption.TRUNCATE_EXISTING);
+		return replacing;
+	}
+
+	/**
+	 * Check if a file opened with these options can be written behind,
+	 * provided it does not exist yet: opened just for writing from the
+	 * start, with no attributes to set, and with no need to sync.
+	 * <p>
+	 * A file opened with {@link StandardOpenOption#CREATE_NEW} is not, as
+	 * only the original file system can tell which of several such opens
+	 * created it.
+	 */
+	public static boolean canBuffer(Set<? extends OpenOption> options,
+			FileAttribute<?>... attrs) {
+		return attrs.length == 0
+				&& options.contains(StandardOpenOption.WRITE)
+				&& options.contains(StandardOpenOption.CREATE)
+				&& !options.contains(StandardOpenOption.CREATE_NEW)
+				&& !options.contains(StandardOpenOption.READ)
+				&& !options.contains(StandardOpenOption.APPEND)
+				&& !options.contains(StandardOpenOption.SYNC)
+				&& !options.contains(StandardOpenOption.DSYNC)
+				&& !options.contains(StandardOpenOption.DELETE_ON_CLOSE)
+				&& !options.contains(LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/**
+	 * Check if the original directory is known to exist, as it did not
+	 * change through the wrapped file system since it was found to exist.
+	 */
+	public boolean isKnownDirectory(Path originalPath) {
+		Path key = key(originalPath);
+		synchronized (directories) {
+			return directories.get(key) != null;
+		}
+	}
+
+	/**
+	 * Remember that the original directory exists.
+	 */
+	public void knownDirectory(Path originalPath) {
+		Path key = key(originalPath);
+		synchronized (directories) {
+			directories.put(key, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Forget the original directory, or any directories within it as well,
+	 * as it has been deleted or moved.
+	 */
+	public void forgetDirectories(Path originalPath, boolean tree) {
+		Path key = key(originalPath);
+		synchronized (directories) {
+			if (!tree) {
+				directories.remove(key);
+				return;
+			}
+			Iterator<Path> it = directories.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(key)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open a channel writing the original file to memory.
+	 * <p>
+	 * The caller must have checked that the file does not exist, or is
+	 * pending.
+	 */
+	public SeekableByteChannel open(Path originalPath,
+			Set<? extends OpenOption> options) {
+		bufferedCount.incrementAndGet();
+		return new BufferChannel(originalPath, options);
+	}
+
+	/**
+	 * Check if the original file is waiting to be written.
+	 */
+	public boolean isPending(Path originalPath) {
+		return !pending.isEmpty() && pending.containsKey(key(originalPath));
+	}
+
+	private void enqueue(Path path, Set<? extends OpenOption> options,
+			byte[] content, int length) throws IOException {
+		Pending write = new Pending(key(path), options, content, length);
+		pendingBytes.addAndGet(length);
+		synchronized (write) {
+			// Before anyone can claim it from the map
+			write.previous = pending.put(write.key, write);
+		}
+		if (pendingBytes.get() > maxPending) {
+			// Too much waiting already, write it now
+			await(write);
+			return;
+		}
+		try {
+			executor.execute(write);
+		} catch (RejectedExecutionException e) {
+			// Closed meanwhile
+			await(write);
+		}
+	}
+
+	/**
+	 * Write the file, after any earlier write of the same path.
+	 */
+	private void write(Pending write) throws IOException {
+		try {
+			Pending previous;
+			synchronized (write) {
+				previous = write.previous;
+				write.previous = null;
+			}
+			retire(previous);
+			ByteBuffer content = ByteBuffer.wrap(write.content, 0,
+					write.length);
+			try (SeekableByteChannel channel = fs.getOriginalProvider()
+					.newByteChannel(write.key, write.options)) {
+				while (content.hasRemaining()) {
+					channel.write(content);
+				}
+			}
+			fs.writtenBehind(write.key, write.content, write.length);
+		} finally {
+			done(write);
+		}
+	}
+
+	/**
+	 * Skip a superseded write, or wait for it if it is being written.
+	 */
+	private void retire(Pending superseded) {
+		if (superseded == null) {
+			return;
+		}
+		if (superseded.claim()) {
+			Pending previous;
+			synchronized (superseded) {
+				previous = superseded.previous;
+				superseded.previous = null;
+			}
+			retire(previous);
+			done(superseded);
+		} else {
+			superseded.awaitDone();
+		}
+	}
+
+	private void done(Pending write) {
+		pending.remove(write.key, write);
+		pendingBytes.addAndGet(-write.length);
+		write.done.countDown();
+	}
+
+	/**
+	 * Write the pending file now, or wait until it has been written.
+	 */
+	private void await(Pending write) throws IOException {
+		if (write.claim()) {
+			write(write);
+		} else {
+			write.awaitDone();
+		}
+	}
+
+	private void awaitQuietly(Pending write) {
+		try {
+			await(write);
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		}
+	}
+
+	/**
+	 * Wait until the original file has been written, if it is pending. A
+	 * failure to write it is left to be thrown by {@link #flush()}.
+	 */
+	public void await(Path originalPath) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Pending write = pending.get(key(originalPath));
+		if (write != null) {
+			awaitQuietly(write);
+		}
+	}
+
+	/**
+	 * Wait until any pending files within the original path have been
+	 * written, as well as the path itself.
+	 */
+	public void awaitTree(Path originalPath) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Path prefix = key(originalPath);
+		for (Pending write : new ArrayList<Pending>(pending.values())) {
+			if (write.key.startsWith(prefix)) {
+				awaitQuietly(write);
+			}
+		}
+	}
+
+	/**
+	 * Wait until all files closed so far have been written.
+	 *
+	 * @throws IOException
+	 *             The first failure to write a file since the last flush
+	 */
+	public void flush() throws IOException {
+		List<Pending> writes = new ArrayList<Pending>(pending.values());
+		for (Pending write : writes) {
+			// Help the background threads rather than wait for them
+			awaitQuietly(write);
+		}
+		IOException failed = failure.getAndSet(null);
+		if (failed != null) {
+			throw failed;
+		}
+	}
+
+	/**
+	 * Flush, then stop the background threads. Files closed afterwards are
+	 * written by the thread closing them.
+	 */
+	public void close() throws IOException {
+		executor.shutdown();
+		flush();
+	}
+
+	/**
+	 * The number of files written to memory, including those spilled.
+	 */
+	public long getBufferedCount() {
+		return bufferedCount.get();
+	}
+
+	/**
+	 * The number of files that grew too large to keep in memory.
+	 */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/**
+	 * The number of bytes of closed files still waiting to be written.
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	public int getMaxFileSize() {
+		return maxFileSize;
+	}
+
+}
@@ -0,0 +1,73 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Read random 4 KiB regions of an entry of a wrapped zip file system, each
+ * through a new channel, with and without a {@link BlockCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlockCacheBenchmark {
+
+	private static final int ENTRY_SIZE = 4 * 1024 * 1024;
+
+	@Param({ "0", "8388608" })
+	public long blockCacheSize;
+
+	private Path origTemp;
+	private WrappedFileSystem zipFs;
+	private Path entry;
+	private final Random random = new Random(1);
+	private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	@Setup
+	public void createEntry() throws IOException {
+		origTemp = Files.createTempDirectory("fswrap-bench");
+		Map<String, Object> env = new HashMap<>();
+		env.put("create", "true");
+		env.put(WrappedFileSystem.BLOCK_CACHE_SIZE, blockCacheSize);
+		zipFs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:jar:" + origTemp.resolve("bench.zip").toUri()),
+				env);
+		byte[] content = new byte[ENTRY_SIZE];
+		new Random(1).nextBytes(content);
+		entry = Files.write(zipFs.getPath("/entry"), content);
+	}
+
+	@TearDown
+	public void deleteFiles() throws IOException {
+		zipFs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Benchmark
+	public int randomRead() throws IOException {
+		buffer.clear();
+		try (SeekableByteChannel channel = Files.newByteChannel(entry)) {
+			channel.position(random.nextInt(ENTRY_SIZE - buffer.capacity()));
+			return channel.read(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Copy a file from a wrapped zip file system to a wrapped default file
+ * system, with {@link Files#copy(Path, Path, java.nio.file.CopyOption...)}
+ * through {@link WrappedFileSystemProvider} (using {@link CrossProviderCopy}
+ * ), and by copying an input stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CrossProviderCopyBenchmark {
+
+	@Param({ "65536", "67108864" })
+	public int fileSize;
+
+	private Path origTemp;
+	private WrappedFileSystem fs;
+	private WrappedFileSystem zipFs;
+	private Path source;
+	private Path target;
+
+	@Setup
+	public void createFiles() throws IOException {
+		WrappedFileSystemProvider provider = new WrappedFileSystemProvider();
+		origTemp = Files.createTempDirectory("fswrap-bench");
+		fs = provider.newFileSystem(URI.create("wrap:file:///"),
+				new HashMap<String, Object>());
+		Map<String, Object> env = new HashMap<>();
+		env.put("create", "true");
+		zipFs = provider.newFileSystem(
+				URI.create("wrap:jar:" + origTemp.resolve("bench.zip").toUri()),
+				env);
+		byte[] content = new byte[fileSize];
+		// Random, so deflating takes as long as it would for real data
+		new Random(1).nextBytes(content);
+		source = Files.write(zipFs.getPath("/source"), content);
+		target = fs.getPath(origTemp.toString(), "target");
+	}
+
+	@TearDown
+	public void deleteFiles() throws IOException {
+		zipFs.close();
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Benchmark
+	public Path providerCopy() throws IOException {
+		return Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Benchmark
+	public long streamCopy() throws IOException {
+		try (InputStream in = Files.newInputStream(source)) {
+			return Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
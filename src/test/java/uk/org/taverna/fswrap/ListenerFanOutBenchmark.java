@@ -0,0 +1,87 @@
+package uk.org.taverna.fswrap;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import uk.org.taverna.fswrap.WrappedFileSystemProvider.Listeners;
+
+/**
+ * Fire events from several threads through
+ * {@link WrappedFileSystemProvider.Listeners}, compared with the previous
+ * implementation which locked and copied the registered listeners for every
+ * event.
+ * <p>
+ * Run with <code>-prof gc</code> to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class ListenerFanOutBenchmark {
+
+	/**
+	 * The previous implementation of {@link Listeners}.
+	 */
+	private static class SnapshotListeners extends FileSystemEventAdapter {
+		private Set<FileSystemEventListener> registered = new LinkedHashSet<FileSystemEventListener>();
+
+		public synchronized void add(FileSystemEventListener l) {
+			registered.add(l);
+		}
+
+		public synchronized List<FileSystemEventListener> all() {
+			return new ArrayList<FileSystemEventListener>(registered);
+		}
+
+		@Override
+		public void deleted(Path path) {
+			for (FileSystemEventListener l : all()) {
+				l.deleted(path);
+			}
+		}
+	}
+
+	@Param({ "1", "4" })
+	public int listenerCount;
+
+	private Listeners listeners;
+	private SnapshotListeners snapshotListeners;
+	private Path path = Paths.get("file.txt");
+
+	@Setup
+	public void addListeners() {
+		listeners = new Listeners();
+		snapshotListeners = new SnapshotListeners();
+		for (int i = 0; i < listenerCount; i++) {
+			FileSystemEventListener l = new FileSystemEventAdapter();
+			listeners.add(l);
+			snapshotListeners.add(l);
+		}
+	}
+
+	@Benchmark
+	public void copyOnWrite() {
+		listeners.deleted(path);
+	}
+
+	@Benchmark
+	public void lockAndSnapshot() {
+		snapshotListeners.deleted(path);
+	}
+
+}
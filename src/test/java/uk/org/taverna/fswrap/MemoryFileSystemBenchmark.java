@@ -0,0 +1,86 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Write, read and delete many small files in a wrapped temporary directory
+ * of the default file system, and in a wrapped {@link MemoryFileSystem}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MemoryFileSystemBenchmark {
+
+	private static final int FILES = 10000;
+
+	@Param({ "file", "mem" })
+	public String scheme;
+
+	@Param({ "4096" })
+	public int fileSize;
+
+	private Path origTemp;
+	private FileSystem fs;
+	private Path dir;
+	private byte[] content;
+	private int invocation;
+
+	@Setup(Level.Invocation)
+	public void createFileSystem() throws IOException {
+		Map<String, Object> env = new HashMap<>();
+		if (scheme.equals("mem")) {
+			fs = FileSystems.newFileSystem(
+					URI.create("wrap:mem:///bench" + invocation++), env);
+			dir = Files.createDirectory(fs.getPath("/bench"));
+		} else {
+			origTemp = Files.createTempDirectory("fswrap-bench");
+			fs = new WrappedFileSystemProvider().newFileSystem(
+					URI.create("wrap:file:///"), env);
+			dir = fs.getPath(origTemp.toString());
+		}
+		content = new byte[fileSize];
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteFiles() throws IOException {
+		fs.close();
+		if (origTemp != null) {
+			Files.walkFileTree(origTemp, new DeleterVisitor());
+		}
+	}
+
+	@Benchmark
+	public long writeReadDelete() throws IOException {
+		long read = 0;
+		for (int i = 0; i < FILES; i++) {
+			Files.write(dir.resolve("file" + i), content);
+		}
+		for (int i = 0; i < FILES; i++) {
+			read += Files.readAllBytes(dir.resolve("file" + i)).length;
+		}
+		for (int i = 0; i < FILES; i++) {
+			Files.delete(dir.resolve("file" + i));
+		}
+		return read;
+	}
+
+}
@@ -0,0 +1,97 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Repeated path operations with and without
+ * {@link WrappedFileSystem#PATH_CACHE_SIZE}: on a few hot paths from one
+ * thread, and on a large tree, larger than the smaller cache, from many
+ * threads at once, to see how often they contend for the cache.
+ * <p>
+ * Run with <code>-prof gc</code> to compare the allocation rate
+ * (<code>gc.alloc.rate.norm</code>) with the cache disabled (0) and enabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathCacheBenchmark {
+
+	/**
+	 * Where each thread is in the large tree.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = ThreadLocalRandom.current().nextInt(TREE_SIZE);
+	}
+
+	private static final int TREE_SIZE = 100000;
+
+	@Param({ "0", "4096", "131072" })
+	public int pathCacheSize;
+
+	private WrappedFileSystem fs;
+	private Path[] files;
+	/**
+	 * Original paths of the large tree, 1000 directories of 100 files each
+	 */
+	private Path[] tree;
+
+	@Setup
+	public void newFileSystem() throws IOException {
+		Map<String, ?> env = Collections.singletonMap(
+				WrappedFileSystem.PATH_CACHE_SIZE, pathCacheSize);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		files = new Path[100];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = fs.getPath("/data/run" + (i % 10), "file" + i + ".txt");
+		}
+		tree = new Path[TREE_SIZE];
+		for (int i = 0; i < tree.length; i++) {
+			tree[i] = Paths.get("/data/run" + (i / 100), "file" + i + ".txt");
+		}
+	}
+
+	@TearDown
+	public void closeFileSystem() throws IOException {
+		fs.close();
+	}
+
+	@Benchmark
+	public void parentAndSibling(Blackhole bh) {
+		for (Path file : files) {
+			Path parent = file.getParent();
+			bh.consume(parent.resolve("summary.txt"));
+			bh.consume(file.getFileName());
+		}
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void largeTree(Cursor cursor, Blackhole bh) {
+		Path original = tree[cursor.next];
+		cursor.next = (cursor.next + 1) % TREE_SIZE;
+		WrappedPath file = fs.toWrappedPath(original);
+		bh.consume(file.getParent());
+	}
+
+}
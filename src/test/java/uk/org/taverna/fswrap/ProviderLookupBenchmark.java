@@ -0,0 +1,76 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compare the overhead of going through {@link WrappedFileSystemProvider}
+ * with calling the original provider directly.
+ * <p>
+ * {@link #uriSchemeLookup()} measures the lookup as it used to be done, by
+ * building a URI and scanning the installed providers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProviderLookupBenchmark {
+
+	private WrappedFileSystem fs;
+	private Path origFile;
+	private WrappedPath file;
+
+	@Setup
+	public void createFile() throws IOException {
+		fs = WrappedFileSystemProvider.wrapDefaultFs();
+		origFile = Files.createTempFile("fswrap-bench", ".txt");
+		file = fs.toWrappedPath(origFile);
+	}
+
+	@TearDown
+	public void deleteFile() throws IOException {
+		Files.delete(origFile);
+		fs.close();
+	}
+
+	@Benchmark
+	public FileSystemProvider providerLookup() {
+		return fs.provider().getOriginalProvider(file);
+	}
+
+	@Benchmark
+	public FileSystemProvider uriSchemeLookup() {
+		String scheme = origFile.toUri().getScheme();
+		for (FileSystemProvider provider : FileSystemProvider
+				.installedProviders()) {
+			if (provider.getScheme().equals(scheme)) {
+				return provider;
+			}
+		}
+		throw new IllegalStateException("No provider for " + scheme);
+	}
+
+	@Benchmark
+	public BasicFileAttributes rawReadAttributes() throws IOException {
+		return origFile.getFileSystem().provider()
+				.readAttributes(origFile, BasicFileAttributes.class);
+	}
+
+	@Benchmark
+	public BasicFileAttributes wrappedReadAttributes() throws IOException {
+		return fs.provider().readAttributes(file, BasicFileAttributes.class);
+	}
+
+}
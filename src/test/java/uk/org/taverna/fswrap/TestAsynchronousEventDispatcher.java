@@ -0,0 +1,187 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.taverna.fswrap.AsynchronousEventDispatcher.Backpressure;
+
+public class TestAsynchronousEventDispatcher {
+
+	private final class SlowListener extends FileSystemEventAdapter {
+		List<Path> deleted = Collections.synchronizedList(new ArrayList<Path>());
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(0);
+
+		@Override
+		public void deleted(Path path) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			deleted.add(path);
+			log.add("deleted " + path);
+		}
+
+		@Override
+		public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+			log.add("createdDirectory " + dir);
+		}
+
+		@Override
+		public void setAttribute(Path path, String attribute, Object value,
+				LinkOption[] options) {
+			log.add("setAttribute " + path + " " + attribute + " " + value);
+		}
+	}
+
+	private SlowListener listener;
+	private Path origTemp;
+
+	@Before
+	public void makeListener() throws IOException {
+		listener = new SlowListener();
+		origTemp = Files.createTempDirectory("fswrap-test");
+	}
+
+	@After
+	public void deleteTempFolder() throws IOException {
+		listener.release = new CountDownLatch(0);
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void deliveredInOrder() throws Exception {
+		AsynchronousEventDispatcher dispatcher = new AsynchronousEventDispatcher(
+				listener);
+		for (int i = 0; i < 1000; i++) {
+			dispatcher.deleted(Paths.get("file" + i));
+		}
+		dispatcher.flush();
+		assertEquals(1000, listener.deleted.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Paths.get("file" + i), listener.deleted.get(i));
+		}
+		dispatcher.close();
+	}
+
+	@Test
+	public void drop() throws Exception {
+		listener.release = new CountDownLatch(1);
+		AsynchronousEventDispatcher dispatcher = new AsynchronousEventDispatcher(
+				listener, 2, Backpressure.DROP);
+		dispatcher.deleted(Paths.get("first"));
+		// Wait for the dispatcher to be stuck in the listener
+		listener.started.await();
+		dispatcher.deleted(Paths.get("a"));
+		dispatcher.deleted(Paths.get("b"));
+		dispatcher.deleted(Paths.get("c"));
+		assertEquals(1, dispatcher.getDroppedEvents());
+		listener.release.countDown();
+		dispatcher.close();
+		assertEquals(Arrays.asList(Paths.get("first"), Paths.get("a"),
+				Paths.get("b")), listener.deleted);
+	}
+
+	@Test
+	public void coalesce() throws Exception {
+		listener.release = new CountDownLatch(1);
+		AsynchronousEventDispatcher dispatcher = new AsynchronousEventDispatcher(
+				listener, 2, Backpressure.COALESCE);
+		dispatcher.deleted(Paths.get("first"));
+		listener.started.await();
+		dispatcher.deleted(Paths.get("a"));
+		dispatcher.deleted(Paths.get("b"));
+		// Same as one already in the buffer
+		dispatcher.deleted(Paths.get("a"));
+		assertEquals(1, dispatcher.getDroppedEvents());
+		listener.release.countDown();
+		dispatcher.close();
+		assertEquals(3, listener.deleted.size());
+	}
+
+	@Test
+	public void coalesceKeepsLatestValue() throws Exception {
+		listener.release = new CountDownLatch(1);
+		AsynchronousEventDispatcher dispatcher = new AsynchronousEventDispatcher(
+				listener, 2, Backpressure.COALESCE);
+		dispatcher.deleted(Paths.get("first"));
+		listener.started.await();
+		dispatcher.setAttribute(Paths.get("a"), "size", 1, null);
+		dispatcher.setAttribute(Paths.get("b"), "size", 1, null);
+		dispatcher.setAttribute(Paths.get("a"), "size", 2, null);
+		assertEquals(1, dispatcher.getDroppedEvents());
+		listener.release.countDown();
+		dispatcher.close();
+		assertEquals(Arrays.asList("deleted first", "setAttribute a size 2",
+				"setAttribute b size 1"), listener.log);
+	}
+
+	@Test
+	public void coalesceKeepsOrder() throws Exception {
+		listener.release = new CountDownLatch(1);
+		final AsynchronousEventDispatcher dispatcher = new AsynchronousEventDispatcher(
+				listener, 2, Backpressure.COALESCE);
+		dispatcher.deleted(Paths.get("first"));
+		listener.started.await();
+		dispatcher.deleted(Paths.get("a"));
+		dispatcher.createdDirectory(Paths.get("a"), null);
+		// Not merged with the first deletion, as it would come before the
+		// creation, so waits for space instead
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				dispatcher.deleted(Paths.get("a"));
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());
+		listener.release.countDown();
+		producer.join();
+		dispatcher.close();
+		assertEquals(0, dispatcher.getDroppedEvents());
+		assertEquals(Arrays.asList("deleted first", "deleted a",
+				"createdDirectory a", "deleted a"), listener.log);
+	}
+
+	@Test
+	public void flushedOnClose() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.ASYNC_EVENTS, true);
+		env.put(WrappedFileSystem.EVENT_BACKPRESSURE, "drop");
+		WrappedFileSystemProvider provider = new WrappedFileSystemProvider();
+		provider.addFileSystemEventListener(listener);
+		WrappedFileSystem fs = provider.newFileSystem(
+				URI.create("wrap:file:///"), env);
+		try {
+			Path file = fs.getPath(origTemp.toString(), "file.txt");
+			Files.createFile(file);
+			Files.delete(file);
+		} finally {
+			fs.close();
+		}
+		assertEquals(1, listener.deleted.size());
+	}
+
+}
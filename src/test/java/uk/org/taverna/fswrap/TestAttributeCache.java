@@ -0,0 +1,117 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAttributeCache {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private AttributeCache cache;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.ATTRIBUTE_CACHE_SIZE, 100);
+		env.put(WrappedFileSystem.ATTRIBUTE_CACHE_TTL, 60000);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		cache = fs.getAttributeCache();
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void hit() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		assertEquals(0, Files.size(file));
+		assertEquals(0, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0, Files.size(file));
+		assertEquals(1, cache.getHitCount());
+		// Not noticed until expired
+		Files.write(origTemp.resolve("file.txt"), new byte[10]);
+		assertEquals(0, Files.size(file));
+	}
+
+	@Test
+	public void invalidatedByWrite() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		assertEquals(0, Files.size(file));
+		Files.write(file, Arrays.asList("Hello"), Charset.forName("utf8"));
+		assertEquals(Files.size(origTemp.resolve("file.txt")), Files.size(file));
+	}
+
+	@Test
+	public void invalidatedByDelete() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		assertTrue(Files.isRegularFile(file));
+		Files.delete(file);
+		assertFalse(Files.exists(file));
+	}
+
+	@Test
+	public void invalidatedByMove() throws Exception {
+		Path folder = Files.createDirectory(temp.resolve("folder"));
+		Path file = Files.createFile(folder.resolve("file.txt"));
+		assertTrue(Files.isRegularFile(file));
+		Path moved = temp.resolve("moved");
+		Files.move(folder, moved);
+		// The file within the moved folder should be forgotten as well
+		assertFalse(Files.exists(file));
+		assertTrue(Files.isRegularFile(moved.resolve("file.txt")));
+	}
+
+	@Test
+	public void invalidatedBySetAttribute() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		Files.getLastModifiedTime(file);
+		FileTime time = FileTime.fromMillis(1000000000000l);
+		Files.setLastModifiedTime(file, time);
+		assertEquals(time, Files.getLastModifiedTime(file));
+		Files.setAttribute(file, "lastModifiedTime", FileTime.fromMillis(0));
+		assertEquals(FileTime.fromMillis(0), Files.getLastModifiedTime(file));
+	}
+
+	@Test
+	public void invalidatedByAttributeView() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		BasicFileAttributeView view = Files.getFileAttributeView(file,
+				BasicFileAttributeView.class);
+		Files.getLastModifiedTime(file);
+		FileTime time = FileTime.fromMillis(1000000000000l);
+		view.setTimes(time, null, null);
+		assertEquals(time, Files.getLastModifiedTime(file));
+		assertEquals(time, view.readAttributes().lastModifiedTime());
+	}
+
+	@Test
+	public void readAttributesMap() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		assertEquals(0l, Files.readAttributes(file, "size").get("size"));
+		assertEquals(0l, Files.readAttributes(file, "size").get("size"));
+		assertEquals(1, cache.getHitCount());
+	}
+
+}
@@ -0,0 +1,166 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlockCache {
+
+	private WrappedFileSystemProvider provider;
+	private WrappedFileSystem fs;
+	private WrappedFileSystem zipFs;
+	private Path origTemp;
+	private Path temp;
+	private BlockCache cache;
+
+	@Before
+	public void newFileSystems() throws Exception {
+		provider = new WrappedFileSystemProvider();
+		cache = new BlockCache(8 * 1024, 1024, true, 4);
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.BLOCK_CACHE, cache);
+		fs = provider.newFileSystem(URI.create("wrap:file:///"), env);
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+		env.put("create", "true");
+		zipFs = provider.newFileSystem(
+				URI.create("wrap:jar:" + origTemp.resolve("test.zip").toUri()),
+				env);
+	}
+
+	@After
+	public void closeFileSystems() throws IOException {
+		zipFs.close();
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * seed);
+		}
+		return content;
+	}
+
+	private static byte[] read(Path path, long position, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+			channel.position(position);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+		}
+		return buffer.array();
+	}
+
+	private static byte[] range(byte[] content, int position, int length) {
+		byte[] range = new byte[length];
+		System.arraycopy(content, position, range, 0, length);
+		return range;
+	}
+
+	@Test
+	public void repeatedReadHits() throws Exception {
+		byte[] content = content(3000, 7);
+		Path file = Files.write(temp.resolve("file"), content);
+		assertArrayEquals(content, Files.readAllBytes(file));
+		long misses = cache.getMissCount();
+		assertEquals(1, misses);
+		assertEquals(2, cache.getReadAheadCount());
+		assertArrayEquals(content, Files.readAllBytes(file));
+		assertEquals(misses, cache.getMissCount());
+		assertTrue(cache.getHitCount() >= 3);
+	}
+
+	@Test
+	public void randomReads() throws Exception {
+		byte[] content = content(5000, 3);
+		Path file = Files.write(temp.resolve("file"), content);
+		assertArrayEquals(range(content, 4000, 1000), read(file, 4000, 1000));
+		assertArrayEquals(range(content, 1000, 2500), read(file, 1000, 2500));
+		assertArrayEquals(range(content, 10, 20), read(file, 10, 20));
+		assertArrayEquals(range(content, 4000, 1000), read(file, 4000, 1000));
+	}
+
+	@Test
+	public void zipEntry() throws Exception {
+		byte[] content = content(6000, 5);
+		Path entry = Files.write(zipFs.getPath("/entry"), content);
+		assertArrayEquals(range(content, 5000, 1000), read(entry, 5000, 1000));
+		assertArrayEquals(range(content, 0, 1500), read(entry, 0, 1500));
+		long misses = cache.getMissCount();
+		assertArrayEquals(range(content, 100, 5000), read(entry, 100, 5000));
+		assertEquals(misses, cache.getMissCount());
+	}
+
+	@Test
+	public void evicted() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(20000, 1));
+		Files.readAllBytes(file);
+		assertEquals(8, cache.getBlockCount());
+	}
+
+	@Test
+	public void invalidatedByWrite() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(3000, 1));
+		Files.readAllBytes(file);
+		byte[] rewritten = content(3000, 2);
+		Files.write(file, rewritten);
+		assertArrayEquals(rewritten, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void invalidatedWhileOpen() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(3000, 1));
+		byte[] rewritten = content(3000, 2);
+		try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+			channel.read(ByteBuffer.allocate(10));
+			Files.write(file, rewritten);
+			ByteBuffer buffer = ByteBuffer.allocate(10);
+			channel.position(0).read(buffer);
+			assertArrayEquals(range(rewritten, 0, 10), buffer.array());
+		}
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void deletedFromOriginal() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.BLOCK_CACHE, cache);
+		env.put(WrappedFileSystem.ATTRIBUTE_CACHE_SIZE, 100);
+		try (WrappedFileSystem cachingFs = new WrappedFileSystemProvider()
+				.newFileSystem(URI.create("wrap:file:///"), env)) {
+			Path file = Files.write(
+					cachingFs.getPath(origTemp.toString(), "file"),
+					content(3000, 1));
+			Files.readAllBytes(file);
+			// Attributes and blocks are cached, the file is gone
+			Files.delete(origTemp.resolve("file"));
+			Files.newByteChannel(file).close();
+		}
+	}
+
+	@Test
+	public void invalidatedByMove() throws Exception {
+		Path a = Files.write(temp.resolve("a"), content(3000, 1));
+		byte[] other = content(3000, 2);
+		Path b = Files.write(temp.resolve("b"), other);
+		Files.readAllBytes(a);
+		Files.move(b, a, StandardCopyOption.REPLACE_EXISTING);
+		assertArrayEquals(other, Files.readAllBytes(a));
+	}
+
+}
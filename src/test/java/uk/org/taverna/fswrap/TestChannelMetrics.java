@@ -0,0 +1,177 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChannelMetrics {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.CHANNEL_METRICS, true);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void readAndWrite() throws Exception {
+		Path file = temp.resolve("file.txt");
+		Files.write(file, new byte[1024]);
+		assertEquals(1024, Files.readAllBytes(file).length);
+
+		IoMetrics.Snapshot metrics = fs.getChannelMetrics().getMetrics(
+				origTemp.resolve("file.txt"));
+		assertEquals(1024, metrics.getBytesWritten());
+		assertEquals(1024, metrics.getBytesRead());
+		assertEquals(2, metrics.getChannelCount());
+		assertTrue(metrics.getWriteCount() >= 1);
+		assertTrue(metrics.getReadCount() >= 1);
+		assertEquals(metrics.getWriteCount(), sum(metrics.getWriteLatencies()));
+		assertEquals(0, metrics.getSeekCount());
+
+		assertEquals(1024, fs.getChannelMetrics().getBytesRead());
+		assertEquals(1024, fs.getChannelMetrics().getBytesWritten());
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	@Test
+	public void seeks() throws Exception {
+		Path file = temp.resolve("file.txt");
+		Files.write(file, new byte[1024]);
+		try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+			ByteBuffer buf = ByteBuffer.allocate(100);
+			channel.read(buf);
+			// Sequential, not a seek
+			channel.position(100);
+			buf.clear();
+			channel.read(buf);
+			channel.position(500);
+			channel.position(50);
+		}
+		IoMetrics.Snapshot metrics = fs.getChannelMetrics().getMetrics(
+				origTemp.resolve("file.txt"));
+		assertEquals(2, metrics.getSeekCount());
+		assertEquals(1, metrics.getBackwardSeekCount());
+		assertEquals(300 + 450, metrics.getSeekDistance());
+	}
+
+	@Test
+	public void appendPositionUnknown() throws Exception {
+		Path file = temp.resolve("file.txt");
+		Files.write(file, new byte[10]);
+		try (SeekableByteChannel channel = Files.newByteChannel(file,
+				StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(10));
+			channel.position(0);
+		}
+		IoMetrics.Snapshot metrics = fs.getChannelMetrics().getMetrics(
+				origTemp.resolve("file.txt"));
+		assertEquals(1, metrics.getSeekCount());
+		assertEquals(0, metrics.getSeekDistance());
+	}
+
+	@Test
+	public void hotPaths() throws Exception {
+		Files.write(temp.resolve("small"), new byte[10]);
+		Files.write(temp.resolve("big"), new byte[1000]);
+		Files.write(temp.resolve("medium"), new byte[100]);
+		assertEquals(origTemp.resolve("big"), fs.getChannelMetrics()
+				.getHotPaths(1).get(0));
+		assertEquals(3, fs.getChannelMetrics().getHotPaths().size());
+	}
+
+	@Test
+	public void hotPathsKeepLeastRecentlyUsed() throws Exception {
+		ChannelMetrics metrics = new ChannelMetrics(2);
+		Path a = origTemp.resolve("a");
+		Path b = origTemp.resolve("b");
+		metrics.forPath(a).recordWrite(10, 1);
+		metrics.forPath(b).recordWrite(1000, 1);
+		assertEquals(2, metrics.getHotPaths().size());
+		// Still the least recently used, so the one to go
+		metrics.forPath(origTemp.resolve("c"));
+		Set<Path> kept = metrics.snapshot().keySet();
+		assertFalse(kept.contains(a));
+		assertTrue(kept.contains(b));
+	}
+
+	@Test
+	public void jmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName(
+				"uk.org.taverna.fswrap:type=ChannelMetrics,*"), null);
+		assertFalse(names.isEmpty());
+		Files.write(temp.resolve("file.txt"), new byte[10]);
+		long written = 0;
+		for (ObjectName name : names) {
+			written += (Long) server.getAttribute(name, "BytesWritten");
+		}
+		assertTrue(written >= 10);
+
+		int before = names.size();
+		fs.close();
+		assertEquals(before - 1, server.queryNames(new ObjectName(
+				"uk.org.taverna.fswrap:type=ChannelMetrics,*"), null).size());
+	}
+
+	@Test
+	public void disabledByDefault() throws Exception {
+		try (WrappedFileSystem plain = new WrappedFileSystemProvider()
+				.newFileSystem(URI.create("wrap:file:///"),
+						new HashMap<String, Object>())) {
+			assertNull(plain.getChannelMetrics());
+		}
+	}
+
+	@Test
+	public void percentile() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99));
+		for (int i = 0; i < 99; i++) {
+			histogram.record(100);
+		}
+		histogram.record(1000000);
+		assertEquals(100, histogram.getCount());
+		assertEquals(127, histogram.getPercentile(50));
+		assertEquals(127, histogram.getPercentile(99));
+		assertEquals((1 << 20) - 1, histogram.getPercentile(100));
+	}
+
+}
@@ -0,0 +1,235 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCoalescingEventListener {
+
+	private static final class RecordingListener extends
+			FileSystemEventAdapter {
+		final List<String> log = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void copied(Path source, Path target, CopyOption[] options) {
+			log.add("copied " + source + " " + target);
+		}
+
+		@Override
+		public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+			log.add("createdDirectory " + dir);
+		}
+
+		@Override
+		public void deleted(Path path) {
+			log.add("deleted " + path);
+		}
+
+		@Override
+		public void moved(Path source, Path target, CopyOption[] options) {
+			log.add("moved " + source + " " + target);
+		}
+
+		@Override
+		public void newByteChannel(Path path,
+				Set<? extends OpenOption> options, FileAttribute<?>[] attrs,
+				SeekableByteChannel byteChannel) {
+			log.add("newByteChannel " + path);
+		}
+
+		@Override
+		public void setAttribute(Path path, String attribute, Object value,
+				LinkOption[] options) {
+			log.add("setAttribute " + path + " " + attribute + " " + value);
+		}
+	}
+
+	private Path origTemp;
+	private WrappedFileSystem fs;
+	private Path temp;
+	private RecordingListener listener;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), Collections.singletonMap(
+						WrappedFileSystem.COALESCE_WINDOW, 60000));
+		temp = fs.getPath(origTemp.toString());
+		listener = new RecordingListener();
+		fs.addFileSystemEventListener(listener);
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private List<String> flush() throws InterruptedException {
+		fs.flushEvents();
+		List<String> events = new ArrayList<String>(listener.log);
+		listener.log.clear();
+		return events;
+	}
+
+	@Test
+	public void temporaryFileLeavesNothing() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.tmp"));
+		Files.write(file, new byte[] { 1, 2, 3 });
+		Path renamed = Files.move(file, temp.resolve("file.tmp2"));
+		Files.setAttribute(renamed, "lastModifiedTime",
+				FileTime.fromMillis(1000));
+		Files.delete(renamed);
+		assertEquals(Collections.emptyList(), flush());
+		assertTrue(fs.getCoalescer().getReceivedCount() >= 5);
+		assertEquals(0, fs.getCoalescer().getDeliveredCount());
+	}
+
+	@Test
+	public void temporaryDirectoryLeavesNothing() throws Exception {
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		// Not CREATE_NEW, but new as its directory is
+		Files.write(dir.resolve("a"), new byte[1]);
+		Files.move(dir.resolve("a"), dir.resolve("b"));
+		Files.delete(dir.resolve("b"));
+		Files.delete(dir);
+		assertEquals(Collections.emptyList(), flush());
+	}
+
+	@Test
+	public void createdAndMovedAsIfCreatedAtTarget() throws Exception {
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		Files.move(dir, temp.resolve("moved"));
+		assertEquals(
+				Arrays.asList("createdDirectory " + temp.resolve("moved")),
+				flush());
+	}
+
+	@Test
+	public void moveChain() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Files.move(temp.resolve("a"), temp.resolve("b"));
+		Files.move(temp.resolve("b"), temp.resolve("c"));
+		Files.move(temp.resolve("c"), temp.resolve("d"));
+		assertEquals(
+				Arrays.asList("moved " + temp.resolve("a") + " "
+						+ temp.resolve("d")), flush());
+	}
+
+	@Test
+	public void replacingMoveChain() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Files.write(origTemp.resolve("b"), new byte[2]);
+		Files.move(temp.resolve("a"), temp.resolve("b"),
+				StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temp.resolve("b"), temp.resolve("c"));
+		// The file that was at b is gone as well
+		assertEquals(
+				Arrays.asList("moved " + temp.resolve("a") + " "
+						+ temp.resolve("c"), "deleted " + temp.resolve("b")),
+				flush());
+	}
+
+	@Test
+	public void movedAndDeleted() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Files.move(temp.resolve("a"), temp.resolve("b"));
+		Files.delete(temp.resolve("b"));
+		assertEquals(Arrays.asList("deleted " + temp.resolve("a")), flush());
+	}
+
+	@Test
+	public void modifiedAndDeleted() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Path file = temp.resolve("a");
+		Files.write(file, new byte[2]);
+		Files.setAttribute(file, "lastModifiedTime", FileTime.fromMillis(1000));
+		Files.delete(file);
+		assertEquals(Arrays.asList("deleted " + file), flush());
+	}
+
+	@Test
+	public void latestAttributeValue() throws Exception {
+		Path file = Files.write(origTemp.resolve("a"), new byte[1]);
+		file = temp.resolve("a");
+		for (int i = 1; i <= 3; i++) {
+			Files.setAttribute(file, "lastModifiedTime",
+					FileTime.fromMillis(i * 1000));
+		}
+		assertEquals(
+				Arrays.asList("setAttribute " + file + " lastModifiedTime "
+						+ FileTime.fromMillis(3000)), flush());
+	}
+
+	@Test
+	public void copySourceIsKept() throws Exception {
+		Path file = Files.createFile(temp.resolve("a"));
+		Files.copy(file, temp.resolve("b"));
+		Files.delete(file);
+		assertEquals(
+				Arrays.asList("newByteChannel " + file, "copied " + file + " "
+						+ temp.resolve("b"), "deleted " + file), flush());
+	}
+
+	@Test
+	public void copiedIntoTemporaryDirectory() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		Files.copy(temp.resolve("a"), dir.resolve("a"));
+		Files.delete(dir.resolve("a"));
+		// Nothing pending is in the directory any more
+		Files.delete(dir);
+		assertEquals(Collections.emptyList(), flush());
+	}
+
+	@Test
+	public void entryMovedOut() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		// Moved in, but replacing a path that might have existed
+		Files.move(temp.resolve("a"), dir.resolve("a"),
+				StandardCopyOption.REPLACE_EXISTING);
+		Files.move(dir.resolve("a"), temp.resolve("b"));
+		Files.delete(dir);
+		assertEquals(
+				Arrays.asList("moved " + temp.resolve("a") + " "
+						+ temp.resolve("b")), flush());
+	}
+
+	@Test
+	public void orderKeptAndDirectAfterClose() throws Exception {
+		Files.write(origTemp.resolve("a"), new byte[1]);
+		Files.createDirectory(temp.resolve("x"));
+		Files.delete(temp.resolve("a"));
+		Files.createDirectory(temp.resolve("y"));
+		assertEquals(Arrays.asList("createdDirectory " + temp.resolve("x"),
+				"deleted " + temp.resolve("a"),
+				"createdDirectory " + temp.resolve("y")), flush());
+		fs.getCoalescer().close();
+		Files.delete(temp.resolve("y"));
+		assertEquals(Arrays.asList("deleted " + temp.resolve("y")),
+				listener.log);
+	}
+
+}
@@ -0,0 +1,139 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCrossProviderCopy {
+
+	private WrappedFileSystemProvider provider;
+	private WrappedFileSystem fs;
+	private WrappedFileSystem zipFs;
+	private Path origTemp;
+	private Path temp;
+	private final List<String> events = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void newFileSystems() throws Exception {
+		provider = new WrappedFileSystemProvider();
+		fs = provider.newFileSystem(URI.create("wrap:file:///"),
+				new HashMap<String, Object>());
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+		Map<String, Object> env = new HashMap<>();
+		env.put("create", "true");
+		zipFs = provider.newFileSystem(
+				URI.create("wrap:jar:" + origTemp.resolve("test.zip").toUri()),
+				env);
+		provider.addFileSystemEventListener(new FileSystemEventAdapter() {
+			@Override
+			public void copied(Path source, Path target, CopyOption[] options) {
+				events.add("copied " + target);
+			}
+
+			@Override
+			public void moved(Path source, Path target, CopyOption[] options) {
+				events.add("moved " + target);
+			}
+		});
+	}
+
+	@After
+	public void closeFileSystems() throws IOException {
+		zipFs.close();
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		return content;
+	}
+
+	@Test
+	public void copyToZipAndBack() throws Exception {
+		byte[] content = content(3 * CrossProviderCopy.BUFFER_SIZE + 17);
+		Path file = Files.write(temp.resolve("file"), content);
+		Path inZip = zipFs.getPath("/file");
+		Files.copy(file, inZip);
+		assertArrayEquals(content, Files.readAllBytes(inZip));
+
+		Path back = temp.resolve("back");
+		Files.copy(inZip, back);
+		assertArrayEquals(content, Files.readAllBytes(back));
+		assertEquals("[copied /file, copied " + back + "]", events.toString());
+	}
+
+	@Test(expected = FileAlreadyExistsException.class)
+	public void copyExisting() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(10));
+		Path inZip = Files.write(zipFs.getPath("/file"), content(5));
+		Files.copy(file, inZip);
+	}
+
+	@Test
+	public void copyReplaceExisting() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(10));
+		Path inZip = Files.write(zipFs.getPath("/file"), content(5));
+		Files.copy(file, inZip, StandardCopyOption.REPLACE_EXISTING);
+		assertArrayEquals(content(10), Files.readAllBytes(inZip));
+	}
+
+	@Test
+	public void copyDirectory() throws Exception {
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		Files.write(dir.resolve("file"), content(10));
+		Path inZip = Files.copy(dir, zipFs.getPath("/dir"));
+		assertTrue(Files.isDirectory(inZip));
+		// Like Files.copy(), entries are not copied
+		assertFalse(Files.exists(inZip.resolve("file")));
+	}
+
+	@Test
+	public void copyAttributes() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(10));
+		Files.setLastModifiedTime(file,
+				java.nio.file.attribute.FileTime.fromMillis(1000000000000L));
+		Path inZip = Files.copy(file, zipFs.getPath("/file"),
+				StandardCopyOption.COPY_ATTRIBUTES);
+		assertEquals(1000000000000L, Files.getLastModifiedTime(inZip)
+				.toMillis());
+	}
+
+	@Test
+	public void move() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(10));
+		Path inZip = Files.move(file, zipFs.getPath("/file"));
+		assertFalse(Files.exists(file));
+		assertArrayEquals(content(10), Files.readAllBytes(inZip));
+		assertEquals("[moved /file]", events.toString());
+	}
+
+	@Test(expected = AtomicMoveNotSupportedException.class)
+	public void atomicMove() throws Exception {
+		Path file = Files.write(temp.resolve("file"), content(10));
+		Files.move(file, zipFs.getPath("/file"),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
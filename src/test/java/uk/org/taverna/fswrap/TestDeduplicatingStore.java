@@ -0,0 +1,131 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDeduplicatingStore {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private DeduplicatingStore store;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		fs = newFileSystem(origTemp);
+		temp = fs.getPath(origTemp.toString());
+		store = fs.getDeduplicatingStore();
+	}
+
+	private static WrappedFileSystem newFileSystem(Path origTemp)
+			throws IOException {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.DEDUP_STORE, origTemp.resolve("store")
+				.toString());
+		return new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void identicalFilesShared() throws Exception {
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Path b = Files.write(temp.resolve("b"), "Hello".getBytes());
+		Path c = Files.write(temp.resolve("c"), "World".getBytes());
+		assertTrue(Files.isSameFile(a, b));
+		assertFalse(Files.isSameFile(a, c));
+		assertEquals(1, store.getSharedBlobCount());
+		String digest = store.getDigest(origTemp.resolve("a"));
+		assertEquals(64, digest.length());
+		assertTrue(Files.isSameFile(origTemp.resolve("a"),
+				store.getBlob(digest)));
+		assertEquals("Hello", new String(Files.readAllBytes(b)));
+	}
+
+	@Test
+	public void copyLinks() throws Exception {
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Path b = Files.copy(a, temp.resolve("b"));
+		assertEquals(1, store.getLinkedCopyCount());
+		assertTrue(Files.isSameFile(a, b));
+		assertEquals("Hello", new String(Files.readAllBytes(b)));
+	}
+
+	@Test
+	public void writeDoesNotModifyShared() throws Exception {
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Path b = Files.copy(a, temp.resolve("b"));
+		Files.write(b, " world".getBytes(), StandardOpenOption.APPEND);
+		assertEquals("Hello", new String(Files.readAllBytes(a)));
+		assertEquals("Hello world", new String(Files.readAllBytes(b)));
+
+		Files.write(a, "Bye".getBytes());
+		assertEquals("Bye", new String(Files.readAllBytes(a)));
+		assertEquals("Hello world", new String(Files.readAllBytes(b)));
+	}
+
+	@Test
+	public void setAttributeDoesNotModifyShared() throws Exception {
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Path b = Files.copy(a, temp.resolve("b"));
+		FileTime before = Files.getLastModifiedTime(a);
+		Files.setLastModifiedTime(b, FileTime.fromMillis(0));
+		assertEquals(before, Files.getLastModifiedTime(a));
+		assertEquals(FileTime.fromMillis(0), Files.getLastModifiedTime(b));
+		assertFalse(Files.isSameFile(a, b));
+	}
+
+	@Test
+	public void moveKeepsIndex() throws Exception {
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Path moved = Files.move(a, temp.resolve("moved"));
+		assertNull(store.getDigest(origTemp.resolve("a")));
+		assertNotNull(store.getDigest(origTemp.resolve("moved")));
+		Files.copy(moved, temp.resolve("b"));
+		assertEquals(1, store.getLinkedCopyCount());
+	}
+
+	@Test
+	public void indexWrittenOnClose() throws Exception {
+		Files.write(temp.resolve("a"), "Hello".getBytes());
+		fs.close();
+		assertTrue(Files.exists(origTemp.resolve("store").resolve(
+				DeduplicatingStore.INDEX)));
+		fs = newFileSystem(origTemp);
+		assertNotNull(fs.getDeduplicatingStore().getDigest(
+				origTemp.resolve("a")));
+	}
+
+	@Test
+	public void collectGarbage() throws Exception {
+		if (!origTemp.getFileSystem().supportedFileAttributeViews()
+				.contains("unix")) {
+			return;
+		}
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Files.copy(a, temp.resolve("b"));
+		assertEquals(0, store.collectGarbage());
+		Files.delete(a);
+		Files.delete(temp.resolve("b"));
+		assertEquals(1, store.collectGarbage());
+	}
+
+}
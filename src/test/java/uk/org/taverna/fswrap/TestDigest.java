@@ -0,0 +1,131 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDigest {
+
+	private final class DigestListener extends FileSystemEventAdapter {
+		List<byte[]> digests = new ArrayList<>();
+
+		@Override
+		public void digestComputed(Path path, String algorithm, byte[] digest) {
+			assertEquals("SHA-256", algorithm);
+			digests.add(digest);
+		}
+	}
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private DigestListener listener;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.DIGEST, "SHA-256");
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+		listener = new DigestListener();
+		fs.addFileSystemEventListener(listener);
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private static byte[] sha256(byte[] content) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(content);
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) i;
+		}
+		return content;
+	}
+
+	@Test
+	public void sequentialWrite() throws Exception {
+		byte[] content = content(100000);
+		Files.write(temp.resolve("file"), content);
+		assertEquals(1, listener.digests.size());
+		assertArrayEquals(sha256(content), listener.digests.get(0));
+	}
+
+	@Test
+	public void sequentialDigest() throws Exception {
+		Path file = temp.resolve("file");
+		try (WrappedSeekableByteChannel channel = (WrappedSeekableByteChannel) Files
+				.newByteChannel(file, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(content(10)));
+			assertArrayEquals(sha256(content(10)),
+					channel.getSequentialDigest());
+		}
+		assertArrayEquals(sha256(content(10)), listener.digests.get(0));
+	}
+
+	@Test
+	public void randomWrite() throws Exception {
+		Path file = temp.resolve("file");
+		try (SeekableByteChannel channel = Files.newByteChannel(file,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(content(10)));
+			channel.position(2);
+			channel.write(ByteBuffer.wrap(new byte[] { 42 }));
+		}
+		byte[] expected = content(10);
+		expected[2] = 42;
+		assertArrayEquals(sha256(expected), listener.digests.get(0));
+	}
+
+	@Test
+	public void append() throws Exception {
+		Path file = temp.resolve("file");
+		Files.write(file, content(10));
+		Files.write(file, content(5), StandardOpenOption.APPEND);
+		byte[] expected = Arrays.copyOf(content(10), 15);
+		System.arraycopy(content(5), 0, expected, 10, 5);
+		assertEquals(2, listener.digests.size());
+		assertArrayEquals(sha256(expected), listener.digests.get(1));
+	}
+
+	@Test
+	public void notForReading() throws Exception {
+		Files.write(temp.resolve("file"), content(10));
+		Files.readAllBytes(temp.resolve("file"));
+		assertEquals(1, listener.digests.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownAlgorithm() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.DIGEST, "NO-SUCH-DIGEST");
+		new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+	}
+
+}
@@ -0,0 +1,149 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectoryReadAhead {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.DIRECTORY_READ_AHEAD, 16);
+		env.put(WrappedFileSystem.DIRECTORY_PREFETCH_ATTRIBUTES, true);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+		for (int i = 0; i < 100; i++) {
+			Files.write(origTemp.resolve("file" + i), new byte[i]);
+		}
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private boolean isPrefetched(Path path) {
+		return fs.getPrefetchedAttributes().contains(
+				((WrappedPath) path).originalPath);
+	}
+
+	@Test
+	public void listAndStat() throws Exception {
+		Set<String> names = new HashSet<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(temp)) {
+			for (Path p : stream) {
+				assertTrue(p instanceof WrappedPath);
+				assertTrue(isPrefetched(p));
+				BasicFileAttributes attrs = Files.readAttributes(p,
+						BasicFileAttributes.class);
+				assertFalse(isPrefetched(p));
+				String name = p.getFileName().toString();
+				assertEquals(Integer.parseInt(name.substring(4)), attrs.size());
+				names.add(name);
+			}
+		}
+		assertEquals(100, names.size());
+	}
+
+	@Test
+	public void modifiedAfterListing() throws Exception {
+		List<Path> entries = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(temp)) {
+			for (Path p : stream) {
+				entries.add(p);
+			}
+		}
+		Path entry = entries.get(0);
+		assertTrue(isPrefetched(entry));
+		Files.write(entry, new byte[1000]);
+		assertEquals(1000, Files.size(entry));
+	}
+
+	@Test
+	public void closeEarly() throws Exception {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(temp);
+		Iterator<Path> it = stream.iterator();
+		assertTrue(it.hasNext());
+		it.next();
+		stream.close();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertTrue(count < 99);
+	}
+
+	@Test(timeout = 10000)
+	public void failureReadingAhead() throws Exception {
+		final Iterator<Path> failing = new Iterator<Path>() {
+			private int count;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Path next() {
+				if (count++ == 3) {
+					throw new IllegalStateException("Broken iterator");
+				}
+				return origTemp.resolve("file" + count);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		DirectoryStream<Path> original = new DirectoryStream<Path>() {
+			@Override
+			public Iterator<Path> iterator() {
+				return failing;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try (DirectoryStream<Path> stream = new WrappedDirectoryStream(temp,
+				original, 16, false)) {
+			Iterator<Path> it = stream.iterator();
+			for (int i = 0; i < 3; i++) {
+				it.next();
+			}
+			try {
+				it.hasNext();
+				fail("Failure not passed on");
+			} catch (IllegalStateException e) {
+				assertEquals("Broken iterator", e.getMessage());
+			}
+		}
+	}
+
+}
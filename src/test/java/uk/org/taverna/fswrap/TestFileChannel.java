@@ -0,0 +1,140 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileChannel {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private Path file;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.CHANNEL_METRICS, true);
+		env.put(WrappedFileSystem.DIGEST, "SHA-256");
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+		file = Files.write(temp.resolve("file"), content(1000));
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) i;
+		}
+		return content;
+	}
+
+	private IoMetrics.Snapshot metrics(String name) {
+		return fs.getChannelMetrics().getMetrics(origTemp.resolve(name));
+	}
+
+	@Test
+	public void notWrappedUnlessNeeded() throws Exception {
+		try (WrappedFileSystem plain = new WrappedFileSystemProvider()
+				.newFileSystem(URI.create("wrap:file:///"),
+						new HashMap<String, Object>());
+				FileChannel channel = FileChannel.open(plain.getPath(file
+						.toString()))) {
+			assertFalse(channel instanceof WrappedFileChannel);
+			assertEquals(1000, channel.size());
+		}
+	}
+
+	@Test
+	public void map() throws Exception {
+		try (FileChannel channel = FileChannel.open(file)) {
+			assertTrue(channel instanceof WrappedFileChannel);
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, 1000);
+			assertEquals(100, mapped.get(100));
+			assertEquals((byte) 999, mapped.get(999));
+		}
+	}
+
+	@Test
+	public void positionalRead() throws Exception {
+		try (FileChannel channel = FileChannel.open(file)) {
+			ByteBuffer buf = ByteBuffer.allocate(10);
+			channel.read(buf, 500);
+			assertEquals((byte) 500, buf.get(0));
+			assertEquals(0, channel.position());
+		}
+		assertEquals(10, metrics("file").getBytesRead());
+	}
+
+	@Test
+	public void transferTo() throws Exception {
+		Path target = temp.resolve("target");
+		try (FileChannel in = FileChannel.open(file);
+				FileChannel out = FileChannel.open(target,
+						StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long position = 0;
+			while (position < in.size()) {
+				position += in.transferTo(position, in.size() - position, out);
+			}
+		}
+		assertArrayEquals(content(1000), Files.readAllBytes(target));
+		assertEquals(1000, metrics("target").getBytesWritten());
+	}
+
+	@Test
+	public void digestAfterPositionalWrite() throws Exception {
+		final List<byte[]> digests = new ArrayList<>();
+		fs.addFileSystemEventListener(new FileSystemEventAdapter() {
+			@Override
+			public void digestComputed(Path path, String algorithm,
+					byte[] digest) {
+				digests.add(digest);
+			}
+		});
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 42 }), 10);
+		}
+		byte[] expected = content(1000);
+		expected[10] = 42;
+		assertArrayEquals(MessageDigest.getInstance("SHA-256")
+				.digest(expected), digests.get(0));
+	}
+
+	@Test
+	public void asynchronous() throws Exception {
+		try (AsynchronousFileChannel channel = AsynchronousFileChannel
+				.open(file)) {
+			ByteBuffer buf = ByteBuffer.allocate(10);
+			assertEquals(10, (int) channel.read(buf, 20).get());
+			assertEquals(20, buf.get(0));
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJournalingListener {
+
+	/**
+	 * Records events as strings, with options in a stable order.
+	 */
+	private static final class RecordingListener extends
+			FileSystemEventAdapter {
+		final List<String> log = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void channelClosed(Path path, long bytesRead,
+				long bytesWritten, long durationNanos) {
+			log.add("channelClosed " + path + " " + bytesRead + " "
+					+ bytesWritten);
+		}
+
+		@Override
+		public void copied(Path source, Path target, CopyOption[] options) {
+			log.add("copied " + source + " " + target + " "
+					+ Arrays.asList(options));
+		}
+
+		@Override
+		public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+			log.add("createdDirectory " + dir);
+		}
+
+		@Override
+		public void deleted(Path path) {
+			log.add("deleted " + path);
+		}
+
+		@Override
+		public void digestComputed(Path path, String algorithm, byte[] digest) {
+			log.add("digestComputed " + path + " " + algorithm + " "
+					+ digest.length);
+		}
+
+		@Override
+		public void moved(Path source, Path target, CopyOption[] options) {
+			log.add("moved " + source + " " + target + " "
+					+ Arrays.asList(options));
+		}
+
+		@Override
+		public void newByteChannel(Path path,
+				Set<? extends OpenOption> options, FileAttribute<?>[] attrs,
+				SeekableByteChannel byteChannel) {
+			Set<String> names = new TreeSet<>();
+			for (OpenOption option : options) {
+				names.add(option.toString());
+			}
+			log.add("newByteChannel " + path + " " + names);
+		}
+
+		@Override
+		public void setAttribute(Path path, String attribute, Object value,
+				LinkOption[] options) {
+			log.add("setAttribute " + path + " " + attribute + " " + value);
+		}
+	}
+
+	private Path origTemp;
+	private Path journalDir;
+	private WrappedFileSystem fs;
+	private Path temp;
+	private RecordingListener live;
+	private JournalingListener journal;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		journalDir = origTemp.resolve("journal");
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), Collections.singletonMap(
+						WrappedFileSystem.DIGEST, "SHA-256"));
+		temp = fs.getPath(origTemp.toString(), "data");
+		live = new RecordingListener();
+		fs.addFileSystemEventListener(live);
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private void operations() throws IOException {
+		Files.createDirectory(temp);
+		Path file = Files.write(temp.resolve("file"), new byte[] { 1, 2, 3 });
+		Files.copy(file, temp.resolve("copy"),
+				StandardCopyOption.COPY_ATTRIBUTES);
+		Files.move(temp.resolve("copy"), temp.resolve("moved"),
+				StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(1000));
+		Files.delete(temp.resolve("moved"));
+	}
+
+	private List<String> replay() throws IOException {
+		RecordingListener replayed = new RecordingListener();
+		long count = JournalingListener.replay(journalDir, fs, replayed);
+		assertEquals(replayed.log.size(), count);
+		return replayed.log;
+	}
+
+	@Test
+	public void journalAndReplay() throws Exception {
+		journal = new JournalingListener(journalDir, 64 * 1024, 0);
+		fs.addFileSystemEventListener(journal);
+		operations();
+		journal.commit();
+		assertEquals(journal.getAppendedCount(), journal.getCommittedCount());
+		assertFalse(live.log.isEmpty());
+		assertEquals(live.log, replay());
+	}
+
+	@Test
+	public void segmentsRoll() throws Exception {
+		journal = new JournalingListener(journalDir, 256, 0);
+		fs.addFileSystemEventListener(journal);
+		Files.createDirectory(temp);
+		for (int i = 0; i < 20; i++) {
+			Files.createDirectory(temp.resolve("directory" + i));
+		}
+		journal.close();
+		assertTrue(journalDir.toFile().list().length > 1);
+		assertEquals(live.log, replay());
+	}
+
+	@Test
+	public void reopenedJournalAppends() throws Exception {
+		journal = new JournalingListener(journalDir, 64 * 1024, 0);
+		fs.addFileSystemEventListener(journal);
+		Files.createDirectory(temp);
+		journal.close();
+		fs.removeFileSystemEventListener(journal);
+
+		journal = new JournalingListener(journalDir, 64 * 1024, 0);
+		fs.addFileSystemEventListener(journal);
+		Files.delete(temp);
+		journal.commit();
+		assertEquals(
+				Arrays.asList("createdDirectory " + temp, "deleted " + temp),
+				replay());
+	}
+
+	@Test
+	public void tornRecordEndsSegment() throws Exception {
+		journal = new JournalingListener(journalDir, 64 * 1024, 0);
+		fs.addFileSystemEventListener(journal);
+		Files.createDirectory(temp);
+		Files.createDirectory(temp.resolve("lost"));
+		journal.close();
+		fs.removeFileSystemEventListener(journal);
+		// Corrupt the last byte of the second record, as if torn by a crash
+		Path segment = journalDir.resolve("journal-000000000001.log");
+		try (FileChannel channel = FileChannel.open(segment,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(4);
+			channel.read(header, 8);
+			int firstLength = ((ByteBuffer) header.flip()).getInt();
+			header.clear();
+			long second = 8 + 8 + firstLength;
+			channel.read(header, second);
+			int secondLength = ((ByteBuffer) header.flip()).getInt();
+			channel.write(ByteBuffer.wrap(new byte[] { 42 }), second + 8
+					+ secondLength - 1);
+		}
+
+		journal = new JournalingListener(journalDir, 64 * 1024, 0);
+		fs.addFileSystemEventListener(journal);
+		Files.createDirectory(temp.resolve("after"));
+		journal.commit();
+		assertEquals(Arrays.asList("createdDirectory " + temp,
+				"createdDirectory " + temp.resolve("after")), replay());
+	}
+
+	@Test
+	public void groupCommit() throws Exception {
+		journal = new JournalingListener(journalDir, 1024 * 1024, 0);
+		fs.addFileSystemEventListener(journal);
+		Files.createDirectory(temp);
+		Thread[] threads = new Thread[8];
+		final List<Throwable> failures = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < threads.length; t++) {
+			final Path dir = temp.resolve("t" + t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Files.createDirectory(dir);
+						for (int i = 0; i < 50; i++) {
+							Files.write(dir.resolve("f" + i), new byte[i]);
+							journal.commit();
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(new ArrayList<Throwable>(), failures);
+		journal.commit();
+		assertEquals(journal.getAppendedCount(), journal.getCommittedCount());
+		List<String> replayed = replay();
+		assertEquals(live.log.size(), replayed.size());
+		assertEquals(new TreeSet<>(live.log), new TreeSet<>(replayed));
+	}
+
+}
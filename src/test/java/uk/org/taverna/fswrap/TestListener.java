@@ -20,9 +20,16 @@ import org.junit.Test;
 
 public class TestListener extends TestWrappedFS {
 	private final class LoggingListener implements
-			FileSystemEventListener {
+			ChannelEventListener {
 		List<String> log = new ArrayList<>();
 
+		@Override
+		public void channelClosed(Path path, long bytesRead,
+				long bytesWritten, long durationNanos) {
+			log.add("channelClosed " + path + " read " + bytesRead
+					+ " written " + bytesWritten);
+		}
+
 		@Override
 		public void copied(Path source, Path target, CopyOption[] options) {
 			log.add("copied " + source);
@@ -40,6 +47,12 @@ public class TestListener extends TestWrappedFS {
 			
 		}
 
+		@Override
+		public void digestComputed(Path path, String algorithm,
+				byte[] digest) {
+			log.add("digestComputed " + path);
+		}
+
 		@Override
 		public void moved(Path source, Path target, CopyOption[] options) {
 			log.add("moved " + source  + " to " + target);
@@ -99,6 +112,8 @@ public class TestListener extends TestWrappedFS {
 		super.createFile();		
 		assertTrue(
 				loggingListener.log.get(0).startsWith("newByteChannel"));
+		assertTrue(
+				loggingListener.log.get(1).startsWith("channelClosed"));
 	}
 	
 	@Override
@@ -115,7 +130,9 @@ public class TestListener extends TestWrappedFS {
 		assertTrue(
 				loggingListener.log.get(0).startsWith("newByteChannel"));
 		assertTrue(
-				loggingListener.log.get(1).startsWith("deleted"));
+				loggingListener.log.get(1).startsWith("channelClosed"));
+		assertTrue(
+				loggingListener.log.get(2).startsWith("deleted"));
 	}
 	
 	@Override
@@ -125,8 +142,13 @@ public class TestListener extends TestWrappedFS {
 		assertTrue(
 				loggingListener.log.get(0).startsWith("newByteChannel"));
 		assertTrue(
-				loggingListener.log.get(1).startsWith("newByteChannel"));
-	
+				loggingListener.log.get(1).startsWith("channelClosed"));
+		assertTrue(
+				loggingListener.log.get(1).endsWith("read 0 written 26"));
+		assertTrue(
+				loggingListener.log.get(2).startsWith("newByteChannel"));
+		assertTrue(
+				loggingListener.log.get(3).endsWith("read 26 written 0"));
 	}
 	
 	@Override
@@ -136,7 +158,7 @@ public class TestListener extends TestWrappedFS {
 		assertTrue(
 				loggingListener.log.get(0).startsWith("newByteChannel"));
 		assertTrue(
-				loggingListener.log.get(1).startsWith("copied"));
+				loggingListener.log.get(2).startsWith("copied"));
 	}
 	
 	@Override
@@ -146,7 +168,7 @@ public class TestListener extends TestWrappedFS {
 		assertTrue(
 				loggingListener.log.get(0).startsWith("newByteChannel"));
 		assertTrue(
-				loggingListener.log.get(1).startsWith("moved"));
+				loggingListener.log.get(2).startsWith("moved"));
 	}
 	
 	@After
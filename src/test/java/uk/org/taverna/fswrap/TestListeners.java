@@ -0,0 +1,224 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.org.taverna.fswrap.FileSystemEvent.Kind;
+import uk.org.taverna.fswrap.WrappedFileSystemProvider.Listeners;
+
+public class TestListeners {
+
+	private final class NamedListener extends FileSystemEventAdapter {
+		private final String name;
+
+		public NamedListener(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void deleted(Path path) {
+			log.add(name + " " + path);
+		}
+
+		@Override
+		public void copied(Path source, Path target, CopyOption[] options) {
+			log.add(name + " copied " + target.getFileName());
+		}
+
+		@Override
+		public void moved(Path source, Path target, CopyOption[] options) {
+			log.add(name + " moved " + target.getFileName());
+		}
+	}
+
+	/**
+	 * A listener implementing only {@link FileSystemEventListener}, as
+	 * written before channel events were added.
+	 */
+	private static class PlainListener implements FileSystemEventListener {
+		@Override
+		public void copied(Path source, Path target, CopyOption[] options) {
+		}
+
+		@Override
+		public void createdDirectory(Path dir, FileAttribute<?>[] attrs) {
+		}
+
+		@Override
+		public void deleted(Path path) {
+		}
+
+		@Override
+		public void moved(Path source, Path target, CopyOption[] options) {
+		}
+
+		@Override
+		public void newByteChannel(Path path,
+				Set<? extends OpenOption> options, FileAttribute<?>[] attrs,
+				SeekableByteChannel byteChannel) {
+		}
+
+		@Override
+		public void newFileSystem(WrappedFileSystem fs, Map<String, ?> env) {
+		}
+
+		@Override
+		public void setAttribute(Path path, String attribute, Object value,
+				LinkOption[] options) {
+		}
+	}
+
+	private List<String> log = new ArrayList<>();
+
+	@Test
+	public void addRemove() throws Exception {
+		Listeners listeners = new Listeners();
+		assertTrue(listeners.isEmpty());
+		NamedListener a = new NamedListener("a");
+		NamedListener b = new NamedListener("b");
+		NamedListener c = new NamedListener("c");
+		listeners.add(a);
+		listeners.add(b);
+		listeners.add(a);
+		listeners.add(c);
+		assertEquals(Arrays.asList(a, b, c), listeners.all());
+		listeners.remove(b);
+		assertEquals(Arrays.asList(a, c), listeners.all());
+		listeners.deleted(Paths.get("x"));
+		assertEquals(Arrays.asList("a x", "c x"), log);
+		listeners.remove(a);
+		listeners.remove(c);
+		listeners.remove(c);
+		assertTrue(listeners.isEmpty());
+	}
+
+	@Test
+	public void removeWhileFiring() throws Exception {
+		final Listeners listeners = new Listeners();
+		listeners.add(new FileSystemEventAdapter() {
+			@Override
+			public void deleted(Path path) {
+				listeners.remove(this);
+			}
+		});
+		NamedListener b = new NamedListener("b");
+		listeners.add(b);
+		listeners.deleted(Paths.get("x"));
+		// b still gets the event already being fired
+		assertEquals(Arrays.asList("b x"), log);
+		assertEquals(Arrays.asList(b), listeners.all());
+	}
+
+	@Test
+	public void kinds() throws Exception {
+		Listeners listeners = new Listeners();
+		assertFalse(listeners.isListening(Kind.DELETED));
+		listeners.add(new NamedListener("a"), null, Kind.COPIED);
+		assertFalse(listeners.isListening(Kind.DELETED));
+		listeners.deleted(Paths.get("x"));
+		listeners.add(new NamedListener("b"), null, Kind.DELETED);
+		assertTrue(listeners.isListening(Kind.DELETED));
+		listeners.deleted(Paths.get("y"));
+		assertEquals(Arrays.asList("b y"), log);
+	}
+
+	@Test
+	public void parent() throws Exception {
+		Listeners parent = new Listeners();
+		Listeners listeners = new Listeners(parent);
+		parent.add(new NamedListener("parent"));
+		listeners.add(new NamedListener("child"));
+		assertTrue(listeners.isListening(Kind.DELETED));
+		listeners.deleted(Paths.get("x"));
+		assertEquals(Arrays.asList("child x", "parent x"), log);
+	}
+
+	@Test
+	public void fileSystemPrefix() throws Exception {
+		Path origTemp = Files.createTempDirectory("fswrap-test");
+		try (WrappedFileSystem fs = WrappedFileSystemProvider.wrapDefaultFs()) {
+			Path temp = fs.getPath(origTemp.toString());
+			Path folder = Files.createDirectory(temp.resolve("folder"));
+			fs.addFileSystemEventListener(new NamedListener("folder"),
+					folder, Kind.DELETED);
+			Files.delete(Files.createFile(temp.resolve("outside.txt")));
+			Files.delete(Files.createFile(folder.resolve("inside.txt")));
+			assertEquals(
+					Arrays.asList("folder " + folder.resolve("inside.txt")),
+					log);
+		} finally {
+			Files.walkFileTree(origTemp, new DeleterVisitor());
+		}
+	}
+
+	@Test
+	public void channelsWrappedOnlyForChannelListeners() throws Exception {
+		Path origTemp = Files.createTempDirectory("fswrap-test");
+		try (WrappedFileSystem fs = WrappedFileSystemProvider.wrapDefaultFs()) {
+			Path file = fs.getPath(origTemp.toString(), "file.txt");
+			fs.addFileSystemEventListener(new PlainListener());
+			try (SeekableByteChannel channel = Files.newByteChannel(file,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				assertFalse(channel instanceof WrappedSeekableByteChannel);
+			}
+			fs.addFileSystemEventListener(new NamedListener("channels"));
+			try (SeekableByteChannel channel = Files.newByteChannel(file,
+					StandardOpenOption.WRITE)) {
+				assertTrue(channel instanceof WrappedSeekableByteChannel);
+			}
+		} finally {
+			Files.walkFileTree(origTemp, new DeleterVisitor());
+		}
+	}
+
+	@Test
+	public void betweenFileSystems() throws Exception {
+		Path origTemp = Files.createTempDirectory("fswrap-test");
+		Map<String, Object> env = new HashMap<>();
+		env.put("create", "true");
+		try (WrappedFileSystem fs = WrappedFileSystemProvider.wrapDefaultFs();
+				WrappedFileSystem zipFs = (WrappedFileSystem) FileSystems
+						.newFileSystem(URI.create("wrap:jar:"
+								+ origTemp.resolve("test.zip").toUri()), env)) {
+			fs.addFileSystemEventListener(new NamedListener("source"));
+			zipFs.addFileSystemEventListener(new NamedListener("target"));
+			NamedListener provider = new NamedListener("provider");
+			fs.provider().addFileSystemEventListener(provider);
+			try {
+				Path file = Files.createFile(fs.getPath(origTemp.toString(),
+						"file.txt"));
+				Files.copy(file, zipFs.getPath("/copied.txt"));
+				Files.move(file, zipFs.getPath("/moved.txt"));
+			} finally {
+				fs.provider().removeFileSystemEventListener(provider);
+			}
+			// Each registry once, and the provider's only through the source
+			assertEquals(Arrays.asList("source copied copied.txt",
+					"provider copied copied.txt", "target copied copied.txt",
+					"source moved moved.txt", "provider moved moved.txt",
+					"target moved moved.txt"), log);
+		} finally {
+			Files.walkFileTree(origTemp, new DeleterVisitor());
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMemoryFileSystem {
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private Map<String, Object> env;
+	private List<FileSystem> fileSystems;
+
+	@Before
+	public void newEnv() {
+		env = new HashMap<>();
+		fileSystems = new ArrayList<>();
+	}
+
+	@After
+	public void closeFileSystems() throws IOException {
+		for (FileSystem fs : fileSystems) {
+			fs.close();
+		}
+	}
+
+	private FileSystem newFileSystem(String scheme) throws IOException {
+		FileSystem fs = FileSystems.newFileSystem(URI.create(scheme
+				+ ":///test" + count.incrementAndGet()), env);
+		fileSystems.add(fs);
+		return fs;
+	}
+
+	private static Set<String> list(Path dir) throws IOException {
+		Set<String> names = new TreeSet<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				names.add(entry.getFileName().toString());
+			}
+		}
+		return names;
+	}
+
+	@Test
+	public void writeAndRead() throws Exception {
+		FileSystem fs = newFileSystem("mem");
+		assertTrue(fs instanceof MemoryFileSystem);
+		Path dir = Files.createDirectories(fs.getPath("/a/b"));
+		Path file = Files.write(dir.resolve("file.txt"),
+				"Hello".getBytes(StandardCharsets.UTF_8));
+		assertEquals("Hello", new String(Files.readAllBytes(file),
+				StandardCharsets.UTF_8));
+		assertEquals(5, Files.size(file));
+		assertTrue(Files.isRegularFile(file));
+		assertTrue(Files.isDirectory(fs.getPath("/a")));
+		assertEquals(file, Paths.get(file.toUri()));
+
+		Files.write(file, " world".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+		assertEquals("Hello world", new String(Files.readAllBytes(file),
+				StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void gapsReadAsZeros() throws Exception {
+		env.put(MemoryFileSystem.BLOCK_SIZE, 16);
+		FileSystem fs = newFileSystem("mem");
+		Path file = fs.getPath("/file");
+		try (SeekableByteChannel channel = Files.newByteChannel(file,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }));
+			channel.truncate(2);
+			channel.position(40);
+			channel.write(ByteBuffer.wrap(new byte[] { 9 }));
+		}
+		byte[] content = Files.readAllBytes(file);
+		assertEquals(41, content.length);
+		assertEquals(2, content[1]);
+		assertEquals(0, content[2]);
+		assertEquals(0, content[39]);
+		assertEquals(9, content[40]);
+	}
+
+	@Test
+	public void directoryStreamAndGlob() throws Exception {
+		FileSystem fs = newFileSystem("mem");
+		Path dir = Files.createDirectory(fs.getPath("/dir"));
+		Files.createFile(dir.resolve("a.txt"));
+		Files.createFile(dir.resolve("b.txt"));
+		Files.createDirectory(dir.resolve("c"));
+		Set<String> names = new TreeSet<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir,
+				"*.txt")) {
+			for (Path entry : entries) {
+				assertEquals(dir, entry.getParent());
+				names.add(entry.getFileName().toString());
+			}
+		}
+		assertEquals(new TreeSet<>(Arrays.asList("a.txt", "b.txt")),
+				names);
+		assertTrue(fs.getPathMatcher("glob:/dir/**").matches(
+				dir.resolve("c/d.txt")));
+		assertTrue(fs.getPathMatcher("glob:*.{txt,csv}").matches(
+				fs.getPath("x.csv")));
+		assertFalse(fs.getPathMatcher("glob:*.txt").matches(
+				fs.getPath("c/x.txt")));
+	}
+
+	@Test
+	public void deleteMoveAndCopy() throws Exception {
+		FileSystem fs = newFileSystem("mem");
+		Path dir = Files.createDirectory(fs.getPath("/dir"));
+		Path file = Files.write(dir.resolve("file"), new byte[] { 1, 2 });
+		try {
+			Files.delete(dir);
+			fail("Deleted non-empty directory");
+		} catch (DirectoryNotEmptyException e) {
+		}
+		Path moved = Files.move(file, fs.getPath("/moved"));
+		assertFalse(Files.exists(file));
+		assertArrayEquals(new byte[] { 1, 2 }, Files.readAllBytes(moved));
+		try {
+			Files.move(dir, dir.resolve("sub"));
+			fail("Moved directory into itself");
+		} catch (FileSystemException e) {
+		}
+		Files.delete(dir);
+		assertFalse(Files.exists(dir));
+
+		Path copy = Files.copy(moved, fs.getPath("/copy"));
+		Files.write(copy, new byte[] { 3 }, StandardOpenOption.APPEND);
+		assertArrayEquals(new byte[] { 1, 2 }, Files.readAllBytes(moved));
+		try {
+			Files.copy(moved, copy);
+			fail("Replaced without REPLACE_EXISTING");
+		} catch (FileAlreadyExistsException e) {
+		}
+		Files.copy(moved, copy, StandardCopyOption.REPLACE_EXISTING);
+		assertArrayEquals(new byte[] { 1, 2 }, Files.readAllBytes(copy));
+
+		FileSystem other = newFileSystem("mem");
+		Path there = Files.move(copy, other.getPath("/there"));
+		assertFalse(Files.exists(copy));
+		assertArrayEquals(new byte[] { 1, 2 }, Files.readAllBytes(there));
+	}
+
+	@Test
+	public void directStorageAndMaxSize() throws Exception {
+		env.put(MemoryFileSystem.DIRECT, true);
+		env.put(MemoryFileSystem.BLOCK_SIZE, 16);
+		env.put(MemoryFileSystem.MAX_SIZE, 64);
+		FileSystem fs = newFileSystem("mem");
+		MemoryFileStore store = (MemoryFileStore) Files.getFileStore(fs
+				.getPath("/"));
+		Path file = Files.write(fs.getPath("/file"), new byte[40]);
+		assertEquals(48, store.getAllocatedSpace());
+		assertEquals(16, store.getUsableSpace());
+		try {
+			Files.write(fs.getPath("/more"), new byte[40]);
+			fail("Wrote more than the maximum size");
+		} catch (FileSystemException e) {
+		}
+		Files.delete(file);
+		Files.delete(fs.getPath("/more"));
+		assertEquals(0, store.getAllocatedSpace());
+	}
+
+	@Test
+	public void concurrentWriters() throws Exception {
+		final FileSystem fs = newFileSystem("mem");
+		final Path shared = Files.createDirectory(fs.getPath("/shared"));
+		final int files = 200;
+		Thread[] threads = new Thread[8];
+		final List<Throwable> failures = new ArrayList<>();
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Path own = Files.createDirectory(fs.getPath("/t"
+								+ thread));
+						for (int i = 0; i < files; i++) {
+							byte[] content = { (byte) thread, (byte) i };
+							Files.write(own.resolve("f" + i), content);
+							Files.write(shared.resolve(thread + "-" + i),
+									content);
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(new ArrayList<Throwable>(), failures);
+		assertEquals(threads.length * files, list(shared).size());
+		assertEquals(files, list(fs.getPath("/t3")).size());
+		assertArrayEquals(new byte[] { 5, 7 },
+				Files.readAllBytes(shared.resolve("5-7")));
+	}
+
+	@Test
+	public void wrapped() throws Exception {
+		FileSystem fs = newFileSystem("wrap:mem");
+		assertTrue(fs instanceof WrappedFileSystem);
+		assertTrue(((WrappedFileSystem) fs).getOriginalFilesystem() instanceof MemoryFileSystem);
+		Path file = Files.write(fs.getPath("/file"),
+				"wrapped".getBytes(StandardCharsets.UTF_8));
+		assertEquals("wrapped", new String(Files.readAllBytes(file),
+				StandardCharsets.UTF_8));
+		assertEquals(file, Paths.get(file.toUri()));
+		assertEquals(new TreeSet<>(Arrays.asList("file")),
+				list(fs.getPath("/")));
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void closedWithContent() throws Exception {
+		FileSystem fs = newFileSystem("mem");
+		URI uri = Files.write(fs.getPath("/file"), new byte[1]).toUri();
+		fs.close();
+		// A new file system of the same name starts empty
+		FileSystem again = FileSystems.newFileSystem(uri, env);
+		fileSystems.add(again);
+		Files.readAllBytes(Paths.get(uri));
+	}
+
+	@Test
+	public void paths() throws Exception {
+		FileSystem fs = newFileSystem("mem");
+		Path path = fs.getPath("/a/./b/../c", "d");
+		assertEquals("/a/./b/../c/d", path.toString());
+		assertEquals(fs.getPath("/a/c/d"), path.normalize());
+		assertEquals(fs.getPath("../x"), fs.getPath("/a/b").relativize(
+				fs.getPath("/a/x")));
+		assertEquals(fs.getPath("/a/b/c"), fs.getPath("/a").resolve("b/c"));
+		assertEquals(fs.getPath("/a/z"), fs.getPath("/a/b").resolveSibling(
+				"z"));
+		assertTrue(path.startsWith("/a"));
+		assertTrue(path.endsWith("c/d"));
+		assertEquals(fs.getPath("b"), fs.getPath("/a/b/c").subpath(1, 2));
+		assertNull(fs.getPath("/").getFileName());
+	}
+
+}
@@ -0,0 +1,87 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNegativeLookupCache {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private NegativeLookupCache cache;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, ?> env = Collections.singletonMap(
+				WrappedFileSystem.NEGATIVE_LOOKUP_CACHE_SIZE, 100);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		cache = fs.getNegativeLookupCache();
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void repeatedMiss() throws Exception {
+		Path file = temp.resolve("missing.txt");
+		assertFalse(Files.exists(file));
+		assertEquals(0, cache.getHitCount());
+		assertFalse(Files.exists(file));
+		assertEquals(1, cache.getHitCount());
+		// Not noticed until expired
+		Files.createFile(origTemp.resolve("missing.txt"));
+		assertFalse(Files.exists(file));
+	}
+
+	@Test
+	public void invalidatedByCreate() throws Exception {
+		Path file = temp.resolve("file.txt");
+		assertFalse(Files.exists(file));
+		Files.createFile(file);
+		assertTrue(Files.exists(file));
+		Path dir = temp.resolve("dir");
+		assertFalse(Files.isDirectory(dir));
+		Files.createDirectory(dir);
+		assertTrue(Files.isDirectory(dir));
+	}
+
+	@Test
+	public void invalidatedByCopyAndMove() throws Exception {
+		Path file = Files.createFile(temp.resolve("file.txt"));
+		Path copy = temp.resolve("copy.txt");
+		Path moved = temp.resolve("moved.txt");
+		assertFalse(Files.exists(copy));
+		assertFalse(Files.exists(moved));
+		Files.copy(file, copy);
+		assertTrue(Files.exists(copy));
+		Files.move(file, moved);
+		assertTrue(Files.exists(moved));
+	}
+
+	@Test
+	public void invalidatedByMovedFolder() throws Exception {
+		Path folder = Files.createDirectory(temp.resolve("folder"));
+		Files.createFile(folder.resolve("file.txt"));
+		Path moved = temp.resolve("moved");
+		assertFalse(Files.exists(moved.resolve("file.txt")));
+		Files.move(folder, moved);
+		assertTrue(Files.exists(moved.resolve("file.txt")));
+	}
+
+}
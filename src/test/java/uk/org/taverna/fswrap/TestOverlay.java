@@ -0,0 +1,278 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOverlay {
+
+	private WrappedFileSystemProvider provider;
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path origUpper;
+	private Path origLower;
+	private Path upper;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		origLower = Files.createDirectory(origTemp.resolve("lower"));
+		write(origLower.resolve("a.txt"), "a");
+		Files.createDirectories(origLower.resolve("dir/sub"));
+		write(origLower.resolve("dir/b.txt"), "b");
+		write(origLower.resolve("dir/sub/c.txt"), "c");
+		origUpper = origTemp.resolve("upper");
+		provider = new WrappedFileSystemProvider();
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.OVERLAY_UPPER, origUpper.toString());
+		env.put(WrappedFileSystem.OVERLAY_LOWER, origLower.toString());
+		fs = provider.newFileSystem(URI.create("wrap:file:///"), env);
+		upper = fs.getPath(origUpper.toString());
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private static Path write(Path path, String content) throws IOException {
+		return Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(Path path) throws IOException {
+		return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+	}
+
+	private static Set<String> list(Path dir) throws IOException {
+		Set<String> names = new TreeSet<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				assertTrue(names.add(entry.getFileName().toString()));
+			}
+		}
+		return names;
+	}
+
+	private static Set<String> names(String... names) {
+		Set<String> set = new TreeSet<>();
+		for (String name : names) {
+			set.add(name);
+		}
+		return set;
+	}
+
+	@Test
+	public void readsThroughToLower() throws Exception {
+		assertTrue(fs.getOverlay().covers(origUpper.resolve("a.txt")));
+		assertEquals("a", read(upper.resolve("a.txt")));
+		assertEquals("c", read(upper.resolve("dir/sub/c.txt")));
+		assertTrue(Files.isDirectory(upper.resolve("dir/sub")));
+		assertEquals(1, Files.size(upper.resolve("dir/b.txt")));
+		assertFalse(Files.exists(upper.resolve("missing")));
+		// Nothing copied up by reading
+		assertEquals(names(), list(origUpper));
+	}
+
+	@Test
+	public void relativeDirectoryListed() throws Exception {
+		write(upper.resolve("x.txt"), "x");
+		final Path dir = Paths.get("").toAbsolutePath().relativize(origUpper);
+		final Set<Path> filtered = new HashSet<>();
+		Set<Path> listed = new HashSet<>();
+		try (DirectoryStream<Path> entries = fs.getOverlay()
+				.newDirectoryStream(dir, new DirectoryStream.Filter<Path>() {
+					@Override
+					public boolean accept(Path entry) {
+						filtered.add(entry);
+						return true;
+					}
+				})) {
+			for (Path entry : entries) {
+				listed.add(entry);
+			}
+		}
+		Set<Path> expected = new HashSet<>();
+		for (String name : names("a.txt", "dir", "x.txt")) {
+			expected.add(dir.resolve(name));
+		}
+		assertEquals(expected, listed);
+		assertEquals(expected, filtered);
+	}
+
+	@Test
+	public void writeCopiesUp() throws Exception {
+		Path b = upper.resolve("dir/b.txt");
+		Files.write(b, "2".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+		assertEquals("b2", read(b));
+		assertEquals("b2", read(origUpper.resolve("dir/b.txt")));
+		assertEquals("b", read(origLower.resolve("dir/b.txt")));
+
+		write(upper.resolve("a.txt"), "new");
+		assertEquals("new", read(upper.resolve("a.txt")));
+		assertEquals("a", read(origLower.resolve("a.txt")));
+	}
+
+	@Test
+	public void attributeViewCopiesUpOnlyToModify() throws Exception {
+		Path a = upper.resolve("a.txt");
+		BasicFileAttributeView view = Files.getFileAttributeView(a,
+				BasicFileAttributeView.class);
+		assertEquals(1, view.readAttributes().size());
+		Files.getLastModifiedTime(a);
+		assertFalse(Files.exists(origUpper.resolve("a.txt")));
+
+		FileTime time = FileTime.fromMillis(1000000000000l);
+		view.setTimes(time, null, null);
+		assertEquals(time,
+				Files.getLastModifiedTime(origUpper.resolve("a.txt")));
+		assertEquals(time, view.readAttributes().lastModifiedTime());
+		assertFalse(time.equals(Files.getLastModifiedTime(origLower
+				.resolve("a.txt"))));
+	}
+
+	@Test
+	public void attributeViewOfMissingFile() throws Exception {
+		BasicFileAttributeView view = Files.getFileAttributeView(
+				upper.resolve("missing.txt"), BasicFileAttributeView.class);
+		assertNotNull(view);
+		try {
+			view.readAttributes();
+			fail("Attributes of missing file");
+		} catch (NoSuchFileException e) {
+		}
+	}
+
+	@Test(expected = FileAlreadyExistsException.class)
+	public void createNewOfLowerFile() throws Exception {
+		Files.newByteChannel(upper.resolve("a.txt"),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+				.close();
+	}
+
+	@Test
+	public void directoryStreamMerges() throws Exception {
+		write(upper.resolve("dir/new.txt"), "new");
+		write(upper.resolve("dir/b.txt"), "b2");
+		assertEquals(names("b.txt", "new.txt", "sub"),
+				list(upper.resolve("dir")));
+		assertEquals(names("a.txt", "dir"), list(upper));
+	}
+
+	@Test
+	public void deleteWhitesOut() throws Exception {
+		Path a = upper.resolve("a.txt");
+		Files.delete(a);
+		assertFalse(Files.exists(a));
+		assertTrue(Files.exists(origLower.resolve("a.txt")));
+		assertTrue(Files.exists(origUpper.resolve(Overlay.WHITEOUT_PREFIX
+				+ "a.txt")));
+		assertEquals(names("dir"), list(upper));
+
+		write(a, "again");
+		assertEquals("again", read(a));
+		assertFalse(Files.exists(origUpper.resolve(Overlay.WHITEOUT_PREFIX
+				+ "a.txt")));
+	}
+
+	@Test
+	public void deleteAndRecreateDirectory() throws Exception {
+		Path dir = upper.resolve("dir");
+		try {
+			Files.delete(dir);
+			fail("Deleted directory with entries in the lower directory");
+		} catch (DirectoryNotEmptyException e) {
+		}
+		Files.delete(dir.resolve("sub/c.txt"));
+		Files.delete(dir.resolve("sub"));
+		Files.delete(dir.resolve("b.txt"));
+		Files.delete(dir);
+		assertFalse(Files.exists(dir));
+		assertFalse(Files.exists(dir.resolve("b.txt")));
+
+		Files.createDirectory(dir);
+		assertEquals(names(), list(dir));
+		assertFalse(Files.exists(dir.resolve("b.txt")));
+		assertTrue(Files.exists(origLower.resolve("dir/b.txt")));
+	}
+
+	@Test
+	public void moveLowerFile() throws Exception {
+		Path moved = upper.resolve("dir/moved.txt");
+		Files.move(upper.resolve("a.txt"), moved);
+		assertFalse(Files.exists(upper.resolve("a.txt")));
+		assertEquals("a", read(moved));
+		assertEquals(names("b.txt", "moved.txt", "sub"),
+				list(upper.resolve("dir")));
+		assertTrue(Files.exists(origLower.resolve("a.txt")));
+	}
+
+	@Test(expected = FileSystemException.class)
+	public void moveLowerDirectory() throws Exception {
+		Files.move(upper.resolve("dir"), upper.resolve("dir2"));
+	}
+
+	@Test
+	public void copyFromLower() throws Exception {
+		Path copy = fs.getPath(origTemp.toString(), "copy.txt");
+		Files.copy(upper.resolve("dir/sub/c.txt"), copy);
+		assertEquals("c", read(copy));
+		assertFalse(Files.exists(origUpper.resolve("dir")));
+	}
+
+	@Test
+	public void lowerInZip() throws Exception {
+		Map<String, String> env = new HashMap<>();
+		env.put("create", "true");
+		URI zipUri = URI.create("jar:" + origTemp.resolve("lower.zip").toUri());
+		try (FileSystem zip = FileSystems.newFileSystem(zipUri, env)) {
+			Files.createDirectory(zip.getPath("/data"));
+			write(zip.getPath("/data/z.txt"), "z");
+		}
+		try (FileSystem zip = FileSystems.newFileSystem(zipUri, env)) {
+			Map<String, Object> overlayEnv = new HashMap<>();
+			overlayEnv.put(WrappedFileSystem.OVERLAY_UPPER, origTemp
+					.resolve("zipUpper").toString());
+			overlayEnv.put(WrappedFileSystem.OVERLAY_LOWER, zip.getPath("/"));
+			fs.close();
+			fs = provider.newFileSystem(URI.create("wrap:file:///"),
+					overlayEnv);
+			Path zipUpper = fs.getPath(origTemp.resolve("zipUpper")
+					.toString());
+			Path z = zipUpper.resolve("data/z.txt");
+			assertEquals("z", read(z));
+			assertEquals(names("z.txt"), list(zipUpper.resolve("data")));
+
+			Files.write(z, "2".getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.APPEND);
+			assertEquals("z2", read(z));
+			assertEquals("z", read(zip.getPath("/data/z.txt")));
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.taverna.fswrap.ParallelTreeWalker.Order;
+
+public class TestParallelTreeWalker {
+
+	private static class CountingVisitor extends SimpleFileVisitor<Path> {
+		final AtomicInteger files = new AtomicInteger();
+		final AtomicInteger dirs = new AtomicInteger();
+		final AtomicInteger postVisits = new AtomicInteger();
+
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir,
+				BasicFileAttributes attrs) throws IOException {
+			assertTrue(dir instanceof WrappedPath);
+			dirs.incrementAndGet();
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException {
+			assertTrue(file instanceof WrappedPath);
+			files.incrementAndGet();
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+				throws IOException {
+			postVisits.incrementAndGet();
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private ParallelTreeWalker walker;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), new HashMap<String, Object>());
+		origTemp = Files.createTempDirectory("fswrap-test");
+		temp = fs.getPath(origTemp.toString());
+		// 4 directories of 3 subdirectories of 5 files
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 3; j++) {
+				Path dir = Files.createDirectories(origTemp.resolve("d" + i)
+						.resolve("e" + j));
+				for (int k = 0; k < 5; k++) {
+					Files.createFile(dir.resolve("f" + k));
+				}
+			}
+		}
+		walker = new ParallelTreeWalker(new ForkJoinPool(4), Order.UNORDERED);
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		walker.getPool().shutdown();
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void walk() throws Exception {
+		CountingVisitor visitor = new CountingVisitor();
+		walker.walk(temp, visitor);
+		assertEquals(60, visitor.files.get());
+		assertEquals(1 + 4 + 12, visitor.dirs.get());
+		assertEquals(1 + 4 + 12, visitor.postVisits.get());
+	}
+
+	@Test
+	public void maxDepth() throws Exception {
+		CountingVisitor visitor = new CountingVisitor();
+		walker.walk(temp, 1, visitor);
+		// d0..d3 are visited as files
+		assertEquals(4, visitor.files.get());
+		assertEquals(1, visitor.dirs.get());
+	}
+
+	@Test
+	public void startIsFile() throws Exception {
+		CountingVisitor visitor = new CountingVisitor();
+		walker.walk(temp.resolve("d0/e0/f0"), visitor);
+		assertEquals(1, visitor.files.get());
+		assertEquals(0, visitor.dirs.get());
+	}
+
+	@Test
+	public void postVisitAfterEntries() throws Exception {
+		final List<String> errors = Collections
+				.synchronizedList(new ArrayList<String>());
+		final HashMap<Path, AtomicInteger> pending = new HashMap<>();
+		walker.walk(temp, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				synchronized (pending) {
+					pending.put(dir, new AtomicInteger());
+					if (dir.getParent() != null
+							&& pending.containsKey(dir.getParent())) {
+						pending.get(dir.getParent()).incrementAndGet();
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir,
+					IOException exc) throws IOException {
+				synchronized (pending) {
+					if (pending.get(dir).get() != 0) {
+						errors.add(dir.toString());
+					}
+					if (pending.containsKey(dir.getParent())) {
+						pending.get(dir.getParent()).decrementAndGet();
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		assertEquals(Collections.emptyList(), errors);
+	}
+
+	@Test
+	public void sorted() throws Exception {
+		walker = new ParallelTreeWalker(new ForkJoinPool(1), Order.SORTED);
+		final List<String> files = new ArrayList<>();
+		walker.walk(temp.resolve("d0/e0"), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				files.add(file.getFileName().toString());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		assertEquals("[f0, f1, f2, f3, f4]", files.toString());
+	}
+
+	@Test
+	public void skipSubtree() throws Exception {
+		final Path skipped = temp.resolve("d1");
+		CountingVisitor visitor = new CountingVisitor() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				super.preVisitDirectory(dir, attrs);
+				if (dir.equals(skipped)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		};
+		walker.walk(temp, visitor);
+		assertEquals(45, visitor.files.get());
+		assertEquals(1 + 4 + 9, visitor.dirs.get());
+	}
+
+	@Test
+	public void terminate() throws Exception {
+		CountingVisitor visitor = new CountingVisitor() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				super.visitFile(file, attrs);
+				return FileVisitResult.TERMINATE;
+			}
+		};
+		walker.walk(temp, visitor);
+		// At most one file per directory being walked at the time
+		assertTrue(visitor.files.get() >= 1);
+		assertTrue(visitor.files.get() < 60);
+	}
+
+	@Test
+	public void visitorException() throws Exception {
+		try {
+			walker.walk(temp, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) throws IOException {
+					throw new IOException("Failed " + file);
+				}
+			});
+			fail("Did not throw IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Failed "));
+		}
+	}
+
+	@Test
+	public void visitorExceptionAfterSubdirectoriesStarted() throws Exception {
+		// Listed after the subdirectories e0-e2, which are walked meanwhile
+		Files.createFile(origTemp.resolve("d0").resolve("g"));
+		walker = new ParallelTreeWalker(new ForkJoinPool(4), Order.SORTED);
+		final AtomicInteger visits = new AtomicInteger();
+		final List<Path> failed = Collections
+				.synchronizedList(new ArrayList<Path>());
+		try {
+			walker.walk(temp, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) throws IOException {
+					visits.incrementAndGet();
+					if (file.getFileName().toString().equals("g")) {
+						throw new IOException("Failed " + file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file,
+						IOException exc) throws IOException {
+					failed.add(file);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			fail("Did not throw IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().endsWith("g"));
+		}
+		// Not mistaken for a directory that could not be listed
+		assertEquals(Collections.emptyList(), failed);
+		// Nothing still being walked
+		int visited = visits.get();
+		Thread.sleep(100);
+		assertEquals(visited, visits.get());
+	}
+
+	@Test(expected = java.nio.file.ProviderMismatchException.class)
+	public void notWrapped() throws Exception {
+		walker.walk(Paths.get("."), new CountingVisitor());
+	}
+
+}
@@ -0,0 +1,95 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPathCache {
+
+	private WrappedFileSystem fs;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		Map<String, ?> env = Collections.singletonMap(
+				WrappedFileSystem.PATH_CACHE_SIZE, 2);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+	}
+
+	@After
+	public void closeFileSystem() throws Exception {
+		fs.close();
+	}
+
+	@Test
+	public void sameInstance() throws Exception {
+		Path file = fs.getPath("/tmp/folder/file.txt");
+		assertSame(file, fs.getPath("/tmp/folder/file.txt"));
+		assertSame(file.getParent(), fs.getPath("/tmp/folder"));
+		assertSame(file, file.getParent().resolve("file.txt"));
+		assertEquals(file.hashCode(), fs.getPath("/tmp", "folder", "file.txt")
+				.hashCode());
+	}
+
+	@Test
+	public void striped() throws Exception {
+		try (WrappedFileSystem large = new WrappedFileSystemProvider()
+				.newFileSystem(URI.create("wrap:file:///"), Collections
+						.singletonMap(WrappedFileSystem.PATH_CACHE_SIZE, 4096))) {
+			List<Path> paths = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) {
+				paths.add(large.getPath("/data/run" + i % 10, "file" + i));
+			}
+			for (Path path : paths) {
+				assertSame(path, large.getPath(path.toString()));
+			}
+		}
+	}
+
+	@Test
+	public void sameInstanceAcrossThreads() throws Exception {
+		final Path file = fs.getPath("/tmp/folder/file.txt");
+		final List<Path> found = Collections
+				.synchronizedList(new ArrayList<Path>());
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						found.add(fs.getPath("/tmp/folder/file.txt"));
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(8000, found.size());
+		for (Path path : found) {
+			assertSame(file, path);
+		}
+	}
+
+	@Test
+	public void evicted() throws Exception {
+		Path a = fs.getPath("a");
+		fs.getPath("b");
+		fs.getPath("c");
+		Path a2 = fs.getPath("a");
+		assertNotSame(a, a2);
+		assertEquals(a, a2);
+	}
+
+}
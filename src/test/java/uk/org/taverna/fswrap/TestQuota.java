@@ -0,0 +1,191 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestQuota {
+
+	private Path origTemp;
+	private WrappedFileSystem fs;
+	private Path temp;
+	private Quota quota;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.QUOTA, 100);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		temp = fs.getPath(origTemp.toString());
+		quota = fs.getQuota();
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void writeOverQuotaFailsFast() throws Exception {
+		assertEquals(100, quota.getLimit());
+		Files.write(temp.resolve("a"), new byte[60]);
+		assertEquals(60, quota.getUsed());
+		try {
+			Files.write(temp.resolve("b"), new byte[50]);
+			fail("Quota not enforced");
+		} catch (FileSystemException e) {
+			assertEquals("Disk quota exceeded", e.getReason());
+		}
+		// Nothing written
+		assertEquals(0, Files.size(origTemp.resolve("b")));
+		assertEquals(60, quota.getUsed());
+		assertEquals(1, quota.getRejectedCount());
+
+		quota.setLimit(1000);
+		Files.write(temp.resolve("b"), new byte[50]);
+		assertEquals(110, quota.getUsed());
+	}
+
+	@Test
+	public void overwrittenTruncatedAndAppended() throws Exception {
+		Path file = Files.write(temp.resolve("a"), new byte[60]);
+		Files.write(file, new byte[30]);
+		assertEquals(30, quota.getUsed());
+		try (SeekableByteChannel channel = Files.newByteChannel(file,
+				StandardOpenOption.WRITE)) {
+			channel.truncate(10);
+			assertEquals(10, quota.getUsed());
+			// Overwriting what is there takes nothing more
+			channel.write(ByteBuffer.allocate(5));
+			assertEquals(10, quota.getUsed());
+			channel.position(20).write(ByteBuffer.allocate(5));
+			assertEquals(25, quota.getUsed());
+		}
+		Files.write(file, new byte[5], StandardOpenOption.APPEND);
+		assertEquals(30, quota.getUsed());
+	}
+
+	@Test
+	public void copiedMovedAndDeleted() throws Exception {
+		Path a = Files.write(temp.resolve("a"), new byte[40]);
+		Files.copy(a, temp.resolve("b"));
+		assertEquals(80, quota.getUsed());
+		Files.copy(a, temp.resolve("b"), StandardCopyOption.REPLACE_EXISTING);
+		assertEquals(80, quota.getUsed());
+		try {
+			Files.copy(a, temp.resolve("c"));
+			fail("Quota not enforced");
+		} catch (FileSystemException e) {
+		}
+		assertFalse(Files.exists(origTemp.resolve("c")));
+		assertEquals(80, quota.getUsed());
+
+		Files.move(a, temp.resolve("b"), StandardCopyOption.REPLACE_EXISTING);
+		assertEquals(40, quota.getUsed());
+		Files.delete(temp.resolve("b"));
+		assertEquals(0, quota.getUsed());
+	}
+
+	@Test
+	public void fileChannel() throws Exception {
+		try (FileChannel channel = FileChannel.open(temp.resolve("a"),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(10), 50);
+			assertEquals(60, quota.getUsed());
+			channel.map(MapMode.READ_WRITE, 0, 80);
+			assertEquals(80, quota.getUsed());
+			try {
+				channel.map(MapMode.READ_WRITE, 0, 200);
+				fail("Quota not enforced");
+			} catch (FileSystemException e) {
+			}
+		}
+		assertEquals(80, Files.size(origTemp.resolve("a")));
+	}
+
+	@Test
+	public void failedAndShortTransfers() throws Exception {
+		ReadableByteChannel failing = new ReadableByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				throw new IOException("Broken");
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try (FileChannel channel = FileChannel.open(temp.resolve("a"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			try {
+				channel.transferFrom(failing, 0, 50);
+				fail("Transferred from broken channel");
+			} catch (IOException e) {
+			}
+			assertEquals(0, quota.getUsed());
+			assertEquals(10, channel.transferFrom(Channels
+					.newChannel(new ByteArrayInputStream(new byte[10])), 0,
+					50));
+			assertEquals(10, quota.getUsed());
+		}
+		assertEquals(10, Files.size(origTemp.resolve("a")));
+	}
+
+	@Test
+	public void fileStoreReportsQuota() throws Exception {
+		Files.write(temp.resolve("a"), new byte[30]);
+		FileStore store = Files.getFileStore(temp);
+		assertEquals(100, store.getTotalSpace());
+		assertEquals(70, store.getUsableSpace());
+		assertEquals(70, store.getUnallocatedSpace());
+		assertEquals(100L, store.getAttribute("totalSpace"));
+		for (FileStore each : fs.getFileStores()) {
+			assertEquals(100, each.getTotalSpace());
+		}
+	}
+
+	@Test
+	public void movedBetweenQuotas() throws Exception {
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.QUOTA, 1000);
+		env.put(WrappedFileSystem.QUOTA_USED, 500);
+		try (WrappedFileSystem other = new WrappedFileSystemProvider()
+				.newFileSystem(URI.create("wrap:file:///"), env)) {
+			assertEquals(500, other.getQuota().getUsed());
+			Path a = Files.write(temp.resolve("a"), new byte[40]);
+			Files.move(a, other.getPath(origTemp.toString(), "b"));
+			assertEquals(0, quota.getUsed());
+			assertEquals(540, other.getQuota().getUsed());
+		}
+	}
+
+}
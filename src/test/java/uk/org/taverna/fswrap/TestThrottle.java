@@ -0,0 +1,197 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestThrottle {
+
+	private Path origTemp;
+	private Map<String, Object> env;
+	private WrappedFileSystem fs;
+	private Path temp;
+
+	@Before
+	public void makeTemp() throws IOException {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		env = new HashMap<>();
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		if (fs != null) {
+			fs.close();
+		}
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	private void newFileSystem() throws IOException {
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		temp = fs.getPath(origTemp.toString());
+	}
+
+	private static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	@Test
+	public void bytesPerSecond() throws Exception {
+		env.put(WrappedFileSystem.BYTES_PER_SECOND, 1000000);
+		newFileSystem();
+		Throttle throttle = fs.getThrottle(null);
+		assertEquals(1000000, throttle.getBytesPerSecond());
+		long start = System.nanoTime();
+		// A second's worth as a burst, then half a second more
+		Files.write(temp.resolve("file"), new byte[1500000]);
+		assertTrue(millisSince(start) >= 400);
+		assertEquals(1500000, throttle.getBytes());
+		assertTrue(throttle.getThrottledCount() > 0);
+		assertTrue(throttle.getThrottledNanos() >= TimeUnit.MILLISECONDS
+				.toNanos(400));
+	}
+
+	@Test
+	public void operationsPerSecond() throws Exception {
+		env.put(WrappedFileSystem.OPERATIONS_PER_SECOND, 50);
+		newFileSystem();
+		Path file = Files.createFile(temp.resolve("file"));
+		long start = System.nanoTime();
+		for (int i = 0; i < 75; i++) {
+			Files.getLastModifiedTime(file);
+		}
+		assertTrue(millisSince(start) >= 400);
+		assertTrue(fs.getThrottle(null).getOperations() >= 76);
+	}
+
+	@Test
+	public void prefixes() throws Exception {
+		newFileSystem();
+		Path slow = Files.createDirectory(temp.resolve("slow"));
+		Path fast = Files.createDirectory(temp.resolve("fast"));
+		Throttle throttle = new Throttle(0, 1000);
+		fs.setThrottle(slow, throttle);
+		assertSame(throttle, fs.getThrottle(slow));
+		assertNull(fs.getThrottle(null));
+
+		Files.write(fast.resolve("file"), new byte[10]);
+		Files.readAllBytes(fast.resolve("file"));
+		assertEquals(0, throttle.getOperations());
+		Files.write(slow.resolve("file"), new byte[10]);
+		Files.copy(slow.resolve("file"), slow.resolve("copy"));
+		try (DirectoryStream<Path> entries = Files
+				.newDirectoryStream(slow)) {
+			for (Path entry : entries) {
+				Files.size(entry);
+			}
+		}
+		assertTrue(throttle.getOperations() >= 5);
+		// Read and written by the copy, and written by the channel
+		assertEquals(30, throttle.getBytes());
+
+		fs.setThrottle(slow, null);
+		assertNull(fs.getThrottle(slow));
+	}
+
+	@Test
+	public void adjustedAtRuntime() throws Exception {
+		newFileSystem();
+		Throttle throttle = new Throttle(0, 2);
+		fs.setThrottle(null, throttle);
+		Path file = Files.createFile(temp.resolve("file"));
+		assertEquals(0, throttle.getThrottledCount());
+		throttle.setOperationsPerSecond(0);
+		for (int i = 0; i < 100; i++) {
+			Files.getLastModifiedTime(file);
+		}
+		assertEquals(0, throttle.getThrottledCount());
+
+		throttle.setOperationsPerSecond(10);
+		long start = System.nanoTime();
+		for (int i = 0; i < 15; i++) {
+			Files.getLastModifiedTime(file);
+		}
+		assertTrue(millisSince(start) >= 400);
+		assertTrue(throttle.getThrottledCount() > 0);
+	}
+
+	@Test
+	public void oneOperationPerCall() throws Exception {
+		Throttle throttle = new Throttle(0, 0);
+		env.put(WrappedFileSystem.THROTTLE, throttle);
+		env.put(WrappedFileSystem.QUOTA, 1000000);
+		env.put(WrappedFileSystem.WRITE_BEHIND, true);
+		env.put(WrappedFileSystem.BLOCK_CACHE_SIZE, 1024 * 1024);
+		env.put(WrappedFileSystem.DIRECTORY_READ_AHEAD, 16);
+		env.put(WrappedFileSystem.DIRECTORY_PREFETCH_ATTRIBUTES, true);
+		newFileSystem();
+		Path file = temp.resolve("file");
+		long operations = throttle.getOperations();
+		// Written behind
+		Files.write(file, new byte[10]);
+		assertEquals(++operations, throttle.getOperations());
+		fs.flushWrites();
+		// Through the block cache, twice to read it from a warm cache
+		Files.readAllBytes(file);
+		assertEquals(++operations, throttle.getOperations());
+		Files.readAllBytes(file);
+		assertEquals(++operations, throttle.getOperations());
+		// Truncated, so its size is released from the quota
+		Files.newByteChannel(file, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING).close();
+		assertEquals(++operations, throttle.getOperations());
+		Files.copy(file, temp.resolve("copy"));
+		assertEquals(++operations, throttle.getOperations());
+		Files.move(temp.resolve("copy"), file,
+				StandardCopyOption.REPLACE_EXISTING);
+		assertEquals(++operations, throttle.getOperations());
+
+		Files.createFile(temp.resolve("other"));
+		operations++;
+		// Listed with their attributes, read as they are prefetched
+		int listed = 0;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(temp)) {
+			for (Path entry : entries) {
+				Files.readAttributes(entry, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				listed++;
+			}
+		}
+		assertEquals(2, listed);
+		operations += 1 + listed;
+		assertEquals(operations, throttle.getOperations());
+		Files.delete(file);
+		assertEquals(++operations, throttle.getOperations());
+	}
+
+	@Test
+	public void sharedBetweenFileSystems() throws Exception {
+		Throttle shared = new Throttle(0, 0);
+		env.put(WrappedFileSystem.THROTTLE, shared);
+		newFileSystem();
+		Files.createFile(temp.resolve("file"));
+		long operations = shared.getOperations();
+		assertTrue(operations > 0);
+		try (WrappedFileSystem other = new WrappedFileSystemProvider()
+				.newFileSystem(URI.create("wrap:file:///"), env)) {
+			Files.size(other.getPath(origTemp.toString(), "file"));
+		}
+		assertTrue(shared.getOperations() > operations);
+	}
+
+}
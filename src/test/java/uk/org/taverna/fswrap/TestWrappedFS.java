@@ -7,8 +7,11 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
 
 import org.junit.After;
 import org.junit.Before;
@@ -184,6 +187,33 @@ public class TestWrappedFS {
 		assertTrue(Files.isRegularFile(origTo));
 
 	}
-	
-	
+
+	@Test
+	public void setAttribute() throws Exception {
+		Path file = Files.createFile(temp.resolve("attrib.txt"));
+		FileTime time = FileTime.fromMillis(1000000000000l);
+		Files.setAttribute(file, "lastModifiedTime", time);
+		assertEquals(time, Files.getLastModifiedTime(origTemp.resolve("attrib.txt")));
+	}
+
+	@Test
+	public void rootDirectories() throws Exception {
+		int count = 0;
+		for (Path root : fs.getRootDirectories()) {
+			assertTrue(root instanceof WrappedPath);
+			assertTrue(Files.isDirectory(root));
+			count++;
+		}
+		assertTrue(count > 0);
+	}
+
+	@Test
+	public void fileStores() throws Exception {
+		Iterator<FileStore> stores = fs.getFileStores().iterator();
+		assertTrue(stores.hasNext());
+		FileStore store = stores.next();
+		assertTrue(store instanceof WrappedFileStore);
+		assertEquals("wrap", store.type());
+	}
+
 }
@@ -2,14 +2,22 @@ package uk.org.taverna.fswrap;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.After;
 import org.junit.Test;
 
@@ -59,6 +67,37 @@ public class TestWrappedFSProvider {
 		}
 	}
 
+	@Test
+	public void failedNewFileSystemReleased() throws Exception {
+		Path temp = Files.createTempDirectory("fswrap-test");
+		URI zipUri = URI.create("jar:" + temp.resolve("test.zip").toUri());
+		ObjectName metrics = new ObjectName(
+				"uk.org.taverna.fswrap:type=ChannelMetrics,*");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		int registered = server.queryNames(metrics, null).size();
+		Map<String, Object> env = new HashMap<>();
+		env.put("create", "true");
+		env.put(WrappedFileSystem.ASYNC_EVENTS, true);
+		env.put(WrappedFileSystem.COALESCE_WINDOW, 100);
+		env.put(WrappedFileSystem.CHANNEL_METRICS, true);
+		env.put(WrappedFileSystem.WRITE_BEHIND, true);
+		// Missing OVERLAY_LOWER
+		env.put(WrappedFileSystem.OVERLAY_UPPER, "/upper");
+		try {
+			new WrappedFileSystemProvider().newFileSystem(
+					URI.create("wrap:" + zipUri), env);
+			fail("Invalid options accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(registered, server.queryNames(metrics, null).size());
+		try {
+			FileSystems.getFileSystem(zipUri);
+			fail("Original file system left open");
+		} catch (FileSystemNotFoundException e) {
+		}
+		Files.walkFileTree(temp, new DeleterVisitor());
+	}
+
 	@Test
 	public void wrapDefaultFs() throws Exception {
 		try (WrappedFileSystem fs = WrappedFileSystemProvider.wrapDefaultFs()) {
@@ -67,6 +106,19 @@ public class TestWrappedFSProvider {
 		}
 	}
 
+	@Test
+	public void originalProvider() throws Exception {
+		try (WrappedFileSystem fs = WrappedFileSystemProvider.wrapDefaultFs()) {
+			FileSystemProvider defaultProvider = FileSystems.getDefault()
+					.provider();
+			assertSame(defaultProvider, fs.getOriginalProvider());
+			assertSame(defaultProvider,
+					fs.provider().getOriginalProvider(fs.getPath("/")));
+			assertSame(defaultProvider, fs.provider()
+					.getOriginalProvider("file"));
+		}
+	}
+
 	@Test
 	public void toWrappedUri() throws Exception {
 		WrappedFileSystemProvider fsp = new WrappedFileSystemProvider();
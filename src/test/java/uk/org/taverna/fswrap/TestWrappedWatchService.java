@@ -0,0 +1,142 @@
+package uk.org.taverna.fswrap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWrappedWatchService {
+
+	private Path origTemp;
+	private WrappedFileSystem fs;
+	private Path temp;
+	private WatchService watcher;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"),
+				Collections.<String, Object> emptyMap());
+		temp = fs.getPath(origTemp.toString());
+		watcher = fs.newWatchService();
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		watcher.close();
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	/**
+	 * Events of a signalled key, as "kind context", then reset it.
+	 */
+	private static List<String> events(WatchKey key) {
+		assertNotNull("No key signalled", key);
+		List<String> events = new ArrayList<String>();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			assertTrue(event.context() instanceof WrappedPath);
+			events.add(event.kind().name() + " " + event.context());
+		}
+		key.reset();
+		return events;
+	}
+
+	@Test
+	public void changesThroughWrapperAtOnce() throws Exception {
+		WatchKey registered = temp.register(watcher, ENTRY_CREATE,
+				ENTRY_DELETE, ENTRY_MODIFY);
+		Path file = Files.createFile(temp.resolve("file"));
+		Files.write(file, new byte[] { 1, 2, 3 });
+		Files.move(file, temp.resolve("moved"));
+		Files.delete(temp.resolve("moved"));
+		// No waiting for the original watch service
+		WatchKey key = watcher.poll();
+		assertSame(registered, key);
+		assertEquals(temp, key.watchable());
+		List<String> expected = new ArrayList<String>();
+		expected.add("ENTRY_CREATE file");
+		expected.add("ENTRY_MODIFY file");
+		expected.add("ENTRY_DELETE file");
+		expected.add("ENTRY_CREATE moved");
+		expected.add("ENTRY_DELETE moved");
+		assertEquals(expected, events(key));
+
+		// Not signalled again when the original watch service reports them
+		Thread.sleep(500);
+		assertNull(watcher.poll());
+	}
+
+	@Test
+	public void changesOutsideWrapper() throws Exception {
+		temp.register(watcher, ENTRY_CREATE);
+		Files.createFile(origTemp.resolve("outside"));
+		WatchKey key = watcher.poll(10, TimeUnit.SECONDS);
+		assertEquals(Collections.singletonList("ENTRY_CREATE outside"),
+				events(key));
+		assertEquals(temp, key.watchable());
+	}
+
+	@Test
+	public void onlyRegisteredKinds() throws Exception {
+		temp.register(watcher, ENTRY_DELETE);
+		Files.createDirectory(temp.resolve("dir"));
+		assertNull(watcher.poll());
+		Files.delete(temp.resolve("dir"));
+		assertEquals(Collections.singletonList("ENTRY_DELETE dir"),
+				events(watcher.poll()));
+	}
+
+	@Test
+	public void cancelled() throws Exception {
+		WatchKey key = temp.register(watcher, ENTRY_CREATE);
+		key.cancel();
+		assertFalse(key.isValid());
+		Files.createDirectory(temp.resolve("dir"));
+		assertNull(watcher.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void withoutOriginalWatchService() throws Exception {
+		FileSystem memFs = FileSystems.newFileSystem(
+				URI.create("wrap:mem:///watched"),
+				Collections.<String, Object> emptyMap());
+		try (WatchService memWatcher = memFs.newWatchService()) {
+			Path dir = Files.createDirectory(memFs.getPath("/dir"));
+			dir.register(memWatcher, ENTRY_CREATE);
+			Files.write(dir.resolve("file"), new byte[1]);
+			Files.copy(dir.resolve("file"), dir.resolve("copy"));
+			assertEquals(Collections.singletonList("ENTRY_CREATE copy"),
+					events(memWatcher.poll()));
+		} finally {
+			memFs.close();
+		}
+	}
+
+	@Test(expected = ClosedWatchServiceException.class)
+	public void closed() throws Exception {
+		watcher.close();
+		watcher.take();
+	}
+
+}
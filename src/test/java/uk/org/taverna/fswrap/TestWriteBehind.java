@@ -0,0 +1,287 @@
+package uk.org.taverna.fswrap;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWriteBehind {
+
+	private WrappedFileSystem fs;
+	private Path origTemp;
+	private Path temp;
+	private WriteBehind writeBehind;
+
+	@Before
+	public void newFileSystem() throws Exception {
+		origTemp = Files.createTempDirectory("fswrap-test");
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.WRITE_BEHIND, true);
+		env.put(WrappedFileSystem.WRITE_BEHIND_MAX_FILE_SIZE, 1024);
+		env.put(WrappedFileSystem.DEDUP_STORE, origTemp.resolve("store")
+				.toString());
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		temp = fs.getPath(origTemp.toString());
+		writeBehind = fs.getWriteBehind();
+	}
+
+	@After
+	public void closeFileSystem() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Test
+	public void readAfterWrite() throws Exception {
+		Path file = Files.write(temp.resolve("file"), "Hello".getBytes());
+		assertEquals(1, writeBehind.getBufferedCount());
+		assertTrue(Files.exists(file));
+		assertEquals(5, Files.size(file));
+		assertEquals("Hello", new String(Files.readAllBytes(file)));
+	}
+
+	@Test
+	public void flushWrites() throws Exception {
+		Files.write(temp.resolve("file"), "Hello".getBytes());
+		fs.flushWrites();
+		assertEquals(0, writeBehind.getPendingBytes());
+		assertEquals("Hello",
+				new String(Files.readAllBytes(origTemp.resolve("file"))));
+	}
+
+	@Test
+	public void overwritePending() throws Exception {
+		Path file = temp.resolve("file");
+		for (int i = 0; i < 100; i++) {
+			Files.write(file, Integer.toString(i).getBytes());
+		}
+		// Buffered while pending, written directly once written
+		assertTrue(writeBehind.getBufferedCount() >= 1);
+		assertEquals("99", new String(Files.readAllBytes(file)));
+	}
+
+	@Test
+	public void existingFileNotBuffered() throws Exception {
+		Path file = Files.write(temp.resolve("file"), "Hello".getBytes());
+		fs.flushWrites();
+		Files.write(file, "Bye".getBytes());
+		assertEquals(1, writeBehind.getBufferedCount());
+		assertEquals("Bye",
+				new String(Files.readAllBytes(origTemp.resolve("file"))));
+	}
+
+	@Test
+	public void missingDirectoryNotBuffered() throws Exception {
+		try {
+			Files.write(temp.resolve("missing/file"), "Hello".getBytes());
+			fail("Wrote to missing directory");
+		} catch (IOException e) {
+		}
+		assertEquals(0, writeBehind.getBufferedCount());
+	}
+
+	@Test
+	public void reopenPendingWithoutTruncating() throws Exception {
+		// Many files, so some are still pending when reopened
+		List<Path> files = new ArrayList<Path>();
+		for (int i = 0; i < 200; i++) {
+			files.add(Files.write(temp.resolve("file" + i),
+					"abcdef".getBytes()));
+		}
+		// Latest first, as those are the most likely to be pending
+		Collections.reverse(files);
+		for (Path file : files) {
+			Files.write(file, "XY".getBytes(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+		}
+		fs.flushWrites();
+		for (int i = 0; i < files.size(); i++) {
+			assertEquals("XYcdef", new String(Files.readAllBytes(origTemp
+					.resolve("file" + i))));
+		}
+	}
+
+	@Test(expected = FileAlreadyExistsException.class)
+	public void createNewPending() throws Exception {
+		Path file = Files.write(temp.resolve("file"), "Hello".getBytes());
+		Files.write(file, "Bye".getBytes(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+	}
+
+	@Test
+	public void createNewExclusive() throws Exception {
+		Path file = temp.resolve("file");
+		try (SeekableByteChannel first = Files.newByteChannel(file,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			try {
+				Files.newByteChannel(file, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE).close();
+				fail("Created twice");
+			} catch (FileAlreadyExistsException e) {
+			}
+			first.write(ByteBuffer.wrap("one".getBytes()));
+		}
+		assertEquals(0, writeBehind.getBufferedCount());
+		assertEquals("one", new String(Files.readAllBytes(file)));
+	}
+
+	@Test
+	public void largeFileSpilled() throws Exception {
+		byte[] content = new byte[4000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		Path file = Files.write(temp.resolve("file"), content);
+		assertEquals(1, writeBehind.getSpilledCount());
+		assertEquals(0, writeBehind.getPendingBytes());
+		assertArrayEquals(content, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void pendingFileSpilled() throws Exception {
+		byte[] content = new byte[4000];
+		Arrays.fill(content, (byte) 'x');
+		List<Path> files = new ArrayList<Path>();
+		for (int i = 0; i < 200; i++) {
+			files.add(Files.write(temp.resolve("file" + i),
+					"old".getBytes()));
+		}
+		Collections.reverse(files);
+		for (Path file : files) {
+			Files.write(file, content);
+		}
+		fs.flushWrites();
+		for (int i = 0; i < files.size(); i++) {
+			assertArrayEquals(content,
+					Files.readAllBytes(origTemp.resolve("file" + i)));
+		}
+	}
+
+	@Test
+	public void seekAndTruncate() throws Exception {
+		Path file = temp.resolve("file");
+		Set<OpenOption> options = new HashSet<OpenOption>();
+		options.add(StandardOpenOption.CREATE);
+		options.add(StandardOpenOption.WRITE);
+		try (SeekableByteChannel channel = Files.newByteChannel(file, options)) {
+			channel.write(ByteBuffer.wrap("Hello world".getBytes()));
+			channel.truncate(5);
+			channel.position(7);
+			channel.write(ByteBuffer.wrap("!".getBytes()));
+			assertEquals(8, channel.size());
+		}
+		assertEquals("Hello\0\0!", new String(Files.readAllBytes(file)));
+	}
+
+	@Test
+	public void listPending() throws Exception {
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		for (int i = 0; i < 100; i++) {
+			Files.write(dir.resolve("file" + i), "Hello".getBytes());
+		}
+		int count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (@SuppressWarnings("unused")
+			Path entry : stream) {
+				count++;
+			}
+		}
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void deleteDirectory() throws Exception {
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		Path file = Files.write(dir.resolve("file"), "Hello".getBytes());
+		try {
+			Files.delete(dir);
+			fail("Deleted directory with pending file");
+		} catch (DirectoryNotEmptyException e) {
+		}
+		Files.delete(file);
+		Files.delete(dir);
+		assertFalse(Files.exists(origTemp.resolve("dir")));
+		try {
+			Files.write(dir.resolve("again"), "Hello".getBytes());
+			fail("Wrote to deleted directory");
+		} catch (NoSuchFileException e) {
+		}
+	}
+
+	@Test
+	public void moveDirectory() throws Exception {
+		Path dir = Files.createDirectory(temp.resolve("dir"));
+		Files.write(dir.resolve("file"), "Hello".getBytes());
+		Path moved = Files.move(dir, temp.resolve("moved"));
+		assertEquals("Hello",
+				new String(Files.readAllBytes(moved.resolve("file"))));
+	}
+
+	@Test
+	public void eventsInOrder() throws Exception {
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		fs.addFileSystemEventListener(new FileSystemEventAdapter() {
+			@Override
+			public void channelClosed(Path path, long bytesRead,
+					long bytesWritten, long durationNanos) {
+				events.add("closed " + path.getFileName() + " "
+						+ bytesWritten);
+			}
+
+			@Override
+			public void deleted(Path path) {
+				events.add("deleted " + path.getFileName());
+			}
+
+			@Override
+			public void newByteChannel(Path path,
+					Set<? extends OpenOption> options,
+					FileAttribute<?>[] attrs, SeekableByteChannel byteChannel) {
+				events.add("opened " + path.getFileName());
+			}
+		});
+		Path file = Files.write(temp.resolve("file"), "Hello".getBytes());
+		Files.delete(file);
+		assertEquals(
+				Arrays.asList("opened file", "closed file 5",
+						"deleted file"), events);
+		fs.flushWrites();
+		assertFalse(Files.exists(origTemp.resolve("file")));
+	}
+
+	@Test
+	public void deduplicatedWhenWritten() throws Exception {
+		Path a = Files.write(temp.resolve("a"), "Hello".getBytes());
+		Path b = Files.write(temp.resolve("b"), "Hello".getBytes());
+		fs.flushWrites();
+		assertTrue(Files.isSameFile(a, b));
+		assertNotNull(fs.getDeduplicatingStore().getDigest(
+				origTemp.resolve("b")));
+	}
+
+}
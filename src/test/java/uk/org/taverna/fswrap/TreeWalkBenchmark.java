@@ -0,0 +1,112 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.taverna.fswrap.ParallelTreeWalker.Order;
+
+/**
+ * Walk a generated tree through a {@link WrappedFileSystem} with
+ * {@link Files#walkFileTree(Path, java.nio.file.FileVisitor)} and with
+ * {@link ParallelTreeWalker}.
+ * <p>
+ * The tree is generated once in a temporary directory, 1000 files per
+ * directory; with the default of over a million files this needs a few GB of
+ * disk space (or inodes) and takes a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeWalkBenchmark {
+
+	private static final int FILES_PER_DIRECTORY = 1000;
+	private static final int DIRECTORIES_PER_DIRECTORY = 32;
+
+	private static class CountingVisitor extends SimpleFileVisitor<Path> {
+		private final AtomicLong files = new AtomicLong();
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException {
+			files.incrementAndGet();
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	@Param({ "1048576" })
+	public int fileCount;
+
+	private Path origTemp;
+	private WrappedFileSystem fs;
+	private Path temp;
+	private ParallelTreeWalker walker;
+
+	@Setup(Level.Trial)
+	public void generateTree() throws IOException {
+		origTemp = Files.createTempDirectory("fswrap-bench");
+		int directories = (fileCount + FILES_PER_DIRECTORY - 1)
+				/ FILES_PER_DIRECTORY;
+		int created = 0;
+		for (int d = 0; d < directories; d++) {
+			Path dir = origTemp.resolve("d" + d / DIRECTORIES_PER_DIRECTORY)
+					.resolve("d" + d);
+			Files.createDirectories(dir);
+			for (int f = 0; f < FILES_PER_DIRECTORY && created < fileCount; f++, created++) {
+				Files.createFile(dir.resolve("f" + f));
+			}
+		}
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"),
+				Collections.<String, Object> emptyMap());
+		temp = fs.getPath(origTemp.toString());
+		walker = new ParallelTreeWalker(new ForkJoinPool(), Order.UNORDERED);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteTree() throws IOException {
+		walker.getPool().shutdown();
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Benchmark
+	public long walkFileTree() throws IOException {
+		CountingVisitor visitor = new CountingVisitor();
+		Files.walkFileTree(temp, visitor);
+		return visitor.files.get();
+	}
+
+	@Benchmark
+	public long parallelTreeWalker() throws IOException {
+		CountingVisitor visitor = new CountingVisitor();
+		walker.walk(temp, visitor);
+		return visitor.files.get();
+	}
+
+}
@@ -0,0 +1,70 @@
+package uk.org.taverna.fswrap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Write many small new files through a wrapped default file system, with and
+ * without {@link WriteBehind}, including the
+ * {@link WrappedFileSystem#flushWrites()} that waits for them to be written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WriteBehindBenchmark {
+
+	private static final int FILES = 10000;
+
+	@Param({ "false", "true" })
+	public boolean writeBehind;
+
+	@Param({ "4096" })
+	public int fileSize;
+
+	private Path origTemp;
+	private WrappedFileSystem fs;
+	private Path dir;
+	private byte[] content;
+
+	@Setup(Level.Invocation)
+	public void createFileSystem() throws IOException {
+		origTemp = Files.createTempDirectory("fswrap-bench");
+		Map<String, Object> env = new HashMap<>();
+		env.put(WrappedFileSystem.WRITE_BEHIND, writeBehind);
+		fs = new WrappedFileSystemProvider().newFileSystem(
+				URI.create("wrap:file:///"), env);
+		dir = fs.getPath(origTemp.toString());
+		content = new byte[fileSize];
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteFiles() throws IOException {
+		fs.close();
+		Files.walkFileTree(origTemp, new DeleterVisitor());
+	}
+
+	@Benchmark
+	public void writeFiles() throws IOException {
+		for (int i = 0; i < FILES; i++) {
+			Files.write(dir.resolve("file" + i), content);
+		}
+		fs.flushWrites();
+	}
+
+}